@@ -0,0 +1,67 @@
+package com.gxd.vpn.demo.toy;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+
+import com.gxd.vpn.tunnel.Connectivity;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * {@link Connectivity} backed by {@link ConnectivityManager}.
+ * Only underlying networks count: our own VPN network comes and goes with the tunnel and would wake us up for nothing.
+ */
+class NetworkMonitor extends ConnectivityManager.NetworkCallback implements Connectivity {
+    private final ConnectivityManager mConnectivityManager;
+    /**
+     * Networks currently up, only touched on the callback thread.
+     */
+    private final Set<Network> mNetworks = new HashSet<>();
+    private volatile Listener mListener;
+
+    NetworkMonitor(Context context) {
+        mConnectivityManager = context.getSystemService(ConnectivityManager.class);
+    }
+
+    @Override
+    public void register(Listener listener) {
+        mListener = listener;
+        final NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .build();
+        mConnectivityManager.registerNetworkCallback(request, this);
+    }
+
+    @Override
+    public void unregister() {
+        mListener = null;
+        try {
+            mConnectivityManager.unregisterNetworkCallback(this);
+        } catch (IllegalArgumentException e) {
+            // Never registered, nothing to do.
+        }
+    }
+
+    @Override
+    public void onAvailable(Network network) {
+        mNetworks.add(network);
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onNetworkAvailable();
+        }
+    }
+
+    @Override
+    public void onLost(Network network) {
+        mNetworks.remove(network);
+        final Listener listener = mListener;
+        if (listener != null && mNetworks.isEmpty()) {
+            listener.onNetworkLost();
+        }
+    }
+}
@@ -9,4 +9,14 @@ public interface SpConst {
     String PROXY_PORT = "proxy_port";
     String ALLOW = "allow";
     String PACKAGES = "packages";
+    String ENCRYPT = "encrypt";
+    String INCLUDE_PREFIXES = "include_prefixes";
+    String BYPASS_PREFIXES = "bypass_prefixes";
+    String UPLINK_LIMIT = "uplink_limit";
+    String LAZY = "lazy";
+    /**
+     * The server address that answered first last time, and the server addresses it was picked from.
+     */
+    String LAST_SERVER = "last_server";
+    String LAST_SERVER_FOR = "last_server_for";
 }
\ No newline at end of file
@@ -7,6 +7,7 @@ import android.content.pm.PackageInfo;
 import android.net.VpnService;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.RadioButton;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -28,6 +29,11 @@ public class ToyVpnActivity extends Activity {
     private SharedPreferences sp;
     private TextView sharedSecretTv;
     private RadioButton allowedRb;
+    private CheckBox encryptCb;
+    private TextView includePrefixesTv;
+    private TextView bypassPrefixesTv;
+    private TextView uplinkLimitTv;
+    private CheckBox lazyCb;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -41,6 +47,11 @@ public class ToyVpnActivity extends Activity {
         proxyPortTv = findViewById(R.id.proxyport);
         packagesTv = findViewById(R.id.packages);
         allowedRb = findViewById(R.id.allowed);
+        encryptCb = findViewById(R.id.encrypt);
+        includePrefixesTv = findViewById(R.id.include_prefixes);
+        bypassPrefixesTv = findViewById(R.id.bypass_prefixes);
+        uplinkLimitTv = findViewById(R.id.uplink_limit);
+        lazyCb = findViewById(R.id.lazy);
 
         sp = getSharedPreferences(SpConst.SP_NAME, MODE_PRIVATE);
 
@@ -52,8 +63,14 @@ public class ToyVpnActivity extends Activity {
         int proxyPort = sp.getInt(SpConst.PROXY_PORT, 0);
         proxyPortTv.setText(proxyPort == 0 ? "" : String.valueOf(proxyPort));
         allowedRb.setChecked(sp.getBoolean(SpConst.ALLOW, true));
+        encryptCb.setChecked(sp.getBoolean(SpConst.ENCRYPT, false));
 
         packagesTv.setText(String.join(", ", sp.getStringSet(SpConst.PACKAGES, Collections.emptySet())));
+        includePrefixesTv.setText(sp.getString(SpConst.INCLUDE_PREFIXES, ""));
+        bypassPrefixesTv.setText(sp.getString(SpConst.BYPASS_PREFIXES, ""));
+        int uplinkLimit = sp.getInt(SpConst.UPLINK_LIMIT, 0);
+        uplinkLimitTv.setText(uplinkLimit == 0 ? "" : String.valueOf(uplinkLimit));
+        lazyCb.setChecked(sp.getBoolean(SpConst.LAZY, false));
     }
 
     public void onConnectClick(View view) {
@@ -80,6 +97,12 @@ public class ToyVpnActivity extends Activity {
         } catch (NumberFormatException e) {
             proxyPort = 0;
         }
+        int uplinkLimit;
+        try {
+            uplinkLimit = Integer.parseInt(uplinkLimitTv.getText().toString());
+        } catch (NumberFormatException e) {
+            uplinkLimit = 0;
+        }
         SharedPreferences.Editor editor = sp.edit();
         editor.putString(SpConst.SERVER_HOST, serverHostTv.getText().toString())
                 .putInt(SpConst.SERVER_PORT, serverPort)
@@ -88,6 +111,11 @@ public class ToyVpnActivity extends Activity {
                 .putInt(SpConst.PROXY_PORT, proxyPort)
                 .putBoolean(SpConst.ALLOW, allowedRb.isChecked())
                 .putStringSet(SpConst.PACKAGES, packageSet)
+                .putBoolean(SpConst.ENCRYPT, encryptCb.isChecked())
+                .putString(SpConst.INCLUDE_PREFIXES, includePrefixesTv.getText().toString())
+                .putString(SpConst.BYPASS_PREFIXES, bypassPrefixesTv.getText().toString())
+                .putInt(SpConst.UPLINK_LIMIT, uplinkLimit)
+                .putBoolean(SpConst.LAZY, lazyCb.isChecked())
                 .apply();
 
         Intent intent = VpnService.prepare(ToyVpnActivity.this);// 第一步：询问权限
@@ -103,6 +131,11 @@ public class ToyVpnActivity extends Activity {
         startService(intent.setAction(ToyVpnService.ACTION_DISCONNECT));
     }
 
+    public void onDumpCaptureClick(View view) {
+        Intent intent = new Intent(this, ToyVpnService.class);
+        startService(intent.setAction(ToyVpnService.ACTION_DUMP_CAPTURE));
+    }
+
     /**
      * proxyHost、proxyPort要同时设置
      */
@@ -1,10 +1,21 @@
 package com.gxd.vpn.demo.toy;
 
+import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.Set;
 
 public class ToyVpnConfig {
     public final String serverHost;
     public final int serverPort;
+    /**
+     * Where the server may be, as typed in: the hosts of {@link #serverHost}, not resolved yet, each with its own
+     * port or {@link #serverPort}. They are raced, see {@link com.gxd.vpn.tunnel.EndpointRacer}.
+     */
+    public final List<InetSocketAddress> servers;
+    /**
+     * The address that won the last race to these servers, to try first, or {@code null}.
+     */
+    public final InetSocketAddress lastServer;
     public final byte[] sharedSecret;
     public final String proxyHost;
     public final int proxyPort;
@@ -13,14 +24,42 @@ public class ToyVpnConfig {
      */
     public final boolean allow;
     public final Set<String> packageSet;
+    /**
+     * Encrypt the tunnel instead of sending the shared secret in plaintext; the server must support it.
+     */
+    public final boolean encrypt;
+    /**
+     * Destination prefixes to send through the tunnel on top of the server's routes, and to keep out of it.
+     */
+    public final List<String> includePrefixes;
+    public final List<String> bypassPrefixes;
+    /**
+     * Rate to shape the uplink to, a little below the slowest link on the way, or 0 for no limit.
+     */
+    public final int uplinkLimitKbps;
+    /**
+     * Let the tunnel go when idle instead of keeping it alive, and bring up a new one once there is something to send.
+     */
+    public final boolean lazy;
 
-    public ToyVpnConfig(String serverHost, int serverPort, byte[] sharedSecret, String proxyHost, int proxyPort, boolean allow, Set<String> packageSet) {
+    public ToyVpnConfig(String serverHost, int serverPort, List<InetSocketAddress> servers,
+                        InetSocketAddress lastServer, byte[] sharedSecret, String proxyHost, int proxyPort,
+                        boolean allow, Set<String> packageSet, boolean encrypt,
+                        List<String> includePrefixes, List<String> bypassPrefixes, int uplinkLimitKbps,
+                        boolean lazy) {
         this.serverHost = serverHost;
         this.serverPort = serverPort;
+        this.servers = servers;
+        this.lastServer = lastServer;
         this.sharedSecret = sharedSecret;
         this.proxyHost = proxyHost;
         this.proxyPort = proxyPort;
         this.allow = allow;
         this.packageSet = packageSet;
+        this.encrypt = encrypt;
+        this.includePrefixes = includePrefixes;
+        this.bypassPrefixes = bypassPrefixes;
+        this.uplinkLimitKbps = uplinkLimitKbps;
+        this.lazy = lazy;
     }
 }
\ No newline at end of file
@@ -5,63 +5,198 @@ import android.content.pm.PackageManager;
 import android.net.ProxyInfo;
 import android.net.VpnService;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import com.gxd.vpn.tunnel.AdaptiveKeepalive;
+import com.gxd.vpn.tunnel.BufferPool;
+import com.gxd.vpn.tunnel.Connectivity;
+import com.gxd.vpn.tunnel.EndpointRacer;
+import com.gxd.vpn.tunnel.HandshakeDriver;
+import com.gxd.vpn.tunnel.JoinHandshake;
+import com.gxd.vpn.tunnel.PacketPump;
+import com.gxd.vpn.tunnel.PathMtuDiscovery;
+import com.gxd.vpn.tunnel.PathMtuProber;
+import com.gxd.vpn.tunnel.PlainHandshake;
+import com.gxd.vpn.tunnel.ReconnectScheduler;
+import com.gxd.vpn.tunnel.ResumableSession;
+import com.gxd.vpn.tunnel.RttEstimator;
+import com.gxd.vpn.tunnel.TunnelParameters;
+import com.gxd.vpn.tunnel.capture.PacketCapture;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.SecureHandshake;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.dns.DnsCache;
+import com.gxd.vpn.tunnel.fec.FecEncoder;
+import com.gxd.vpn.tunnel.flow.FlowTable;
+import com.gxd.vpn.tunnel.metrics.TunnelMetrics;
+import com.gxd.vpn.tunnel.route.SplitTunnel;
+import com.gxd.vpn.tunnel.shaping.LatencyClassifier;
+import com.gxd.vpn.tunnel.shaping.TrafficShaper;
+
 import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
-import static java.nio.charset.StandardCharsets.US_ASCII;
-
 public class ToyVpnConnection implements Runnable {
     /**
-     * Maximum packet size is constrained by the MTU, which is given as a signed short.
+     * Time to wait in between failing to connect and retrying, doubled with every failure up to the maximum.
      */
-    private static final int MAX_PACKET_SIZE = Short.MAX_VALUE;
+    private static final long RECONNECT_BASE_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+    private static final long RECONNECT_MAX_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
     /**
-     * Time to wait in between losing the connection and retrying.
+     * Failures in a row, with a network up all along, before giving up.
      */
-    private static final long RECONNECT_WAIT_MS = TimeUnit.SECONDS.toMillis(3);
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
     /**
-     * Time between keepalives if there is no traffic at the moment.
-     * <p>
-     * TODO: don't do this; it's much better to let the connection die and then reconnect when
-     * necessary instead of keeping the network hardware up for hours on end in between.
+     * Time between keepalives if there is no traffic at the moment, to start with: the interval is stretched up to
+     * the maximum as far as the NAT on the way allows, see {@link AdaptiveKeepalive}. In lazy mode, the tunnel is
+     * let go after as long instead, and reconnected when necessary.
      **/
     private static final long KEEPALIVE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(15);
+    private static final long MAX_KEEPALIVE_INTERVAL_MS = TimeUnit.MINUTES.toMillis(20);
     /**
-     * Time to wait without receiving any response before assuming the server is gone.
+     * Time to wait for any response to what we sent before assuming the server is gone.
      */
     private static final long RECEIVE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(20);
     /**
-     * Time between polling the VPN interface for new traffic, since it's non-blocking.
+     * Time to wait for the handshake response, hellos included, before declaring the handshake a complete and abject failure.
      * <p>
-     * TODO: really don't do this; a blocking read on another thread is much cleaner.
+     * TODO: use a higher-level protocol; hand-rolling is a fun but pointless exercise.
      */
-    private static final long IDLE_INTERVAL_MS = TimeUnit.MILLISECONDS.toMillis(100);
+    private static final long HANDSHAKE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
     /**
-     * Number of periods of length {@link IDLE_INTERVAL_MS} to wait before declaring the handshake a complete and abject failure.
-     * <p>
-     * TODO: use a higher-level protocol; hand-rolling is a fun but pointless exercise.
+     * Time to give a handshake to one server address before racing one to the next, as RFC 8305 suggests.
+     */
+    private static final long SERVER_RACE_STAGGER_MS = 250;
+    /**
+     * Most packets to drain from the VPN interface in one go when batching.
+     */
+    private static final int MAX_BATCH_PACKETS = 64;
+    /**
+     * Packets to hold on to while the tunnel is being rebuilt after a handover.
+     */
+    private static final int HANDOVER_QUEUE_CAPACITY = 64;
+    /**
+     * Packets to queue per class of service on the uplink, and how much of the uplink limit may go out at once.
+     */
+    private static final int SHAPER_QUEUE_CAPACITY = 128;
+    private static final long SHAPER_BURST_MS = 10;
+    /**
+     * Free packet buffers to keep around; the pump itself only holds a few at a time, plus whatever it queues.
+     */
+    private static final int BUFFER_POOL_CAPACITY = 8 + HANDOVER_QUEUE_CAPACITY + SHAPER_QUEUE_CAPACITY;
+    /**
+     * Most flows to account for at once, and how long a flow may go without packets before it is forgotten.
+     */
+    private static final int MAX_FLOWS = 4096;
+    private static final long FLOW_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(5);
+    /**
+     * Most DNS answers to keep, so that lookups don't all take a round trip through the tunnel.
+     */
+    private static final int DNS_CACHE_SIZE = 512;
+    /**
+     * Latest packets to keep the headers of for a capture, 4096 of 128 bytes in about 576 KB off the heap.
+     */
+    private static final int CAPTURE_PACKETS = 4096;
+    private static final int CAPTURE_SNAP_LENGTH = 128;
+    /**
+     * Smallest MTU to probe the path for, the least any link carrying IPv6 must take, and how long to probe at most.
      */
-    private static final int MAX_HANDSHAKE_ATTEMPTS = 50;
+    private static final int MIN_MTU = 1280;
+    private static final long PATH_MTU_PROBE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(2);
+    /**
+     * Socket options from linux/in.h and linux/in6.h that {@link OsConstants} doesn't have, and their values to
+     * always set the don't-fragment bit, or to set it as the kernel sees fit.
+     */
+    private static final int IP_MTU_DISCOVER = 10;
+    private static final int IPV6_MTU_DISCOVER = 23;
+    private static final int PMTUDISC_WANT = 1;
+    private static final int PMTUDISC_PROBE = 3;
     private final VpnService mVpnService;
     private final int mConnectionId;
     private final ToyVpnConfig mToyVpnConfig;
     private PendingIntent mConfigureIntent;
     private OnEstablishListener mOnEstablishListener;
+    private OnServerChosenListener mOnServerChosenListener;
+    private Connectivity mConnectivity;
+    /**
+     * Parameters of the current session.
+     */
+    private TunnelParameters mParameters;
+    /**
+     * The current session with its ticket, to resume rather than do a handshake, or {@code null} if there is no
+     * ticket or the server turned it down.
+     */
+    private ResumableSession mResumable;
+    /**
+     * Destinations through the tunnel for the current interface, or {@code null} if there are no prefixes of our
+     * own and the server's routes go to the interface as they are.
+     */
+    private SplitTunnel mSplitTunnel;
+    /**
+     * The VPN interface and the pump on top of it, kept across reconnects.
+     */
+    private ParcelFileDescriptor mFileDescriptor;
+    private PacketPump mPump;
+    private long mTunnelLostTime;
+    /**
+     * Packet buffers sized to the MTU, kept across reconnects as long as the MTU doesn't change.
+     */
+    private BufferPool mBufferPool;
+    /**
+     * Round trips measured by the handshakes, kept across reconnects so that retransmits fit the link.
+     */
+    private final RttEstimator mRttEstimator = new RttEstimator();
+    private final EndpointRacer mEndpointRacer =
+            new EndpointRacer(mRttEstimator, SERVER_RACE_STAGGER_MS, HANDSHAKE_TIMEOUT_MS);
+    /**
+     * The server address the last handshake was answered from, raced first by the next, and probed by the
+     * keepalive in the meantime.
+     */
+    private volatile InetSocketAddress mServerAddress;
+    private final TunnelMetrics mMetrics = new TunnelMetrics();
+    private final FlowTable mFlowTable = new FlowTable(MAX_FLOWS, FLOW_IDLE_TIMEOUT_MS);
+    private final DnsCache mDnsCache = new DnsCache(DNS_CACHE_SIZE);
+    private final PacketCapture mCapture = new PacketCapture(CAPTURE_PACKETS, CAPTURE_SNAP_LENGTH);
+    /**
+     * Keys of the current session if the tunnel is encrypted, set by {@link #handshake}.
+     */
+    private SessionKeys mSessionKeys;
+    /**
+     * Which tunnels get their path MTU probed, so that reconnects don't wait for probes a server doesn't answer.
+     */
+    private final PathMtuDiscovery mPathMtuDiscovery = new PathMtuDiscovery();
+    /**
+     * The keepalive interval learned for the network of {@link #mLocalAddress}.
+     */
+    private AdaptiveKeepalive mKeepalive;
+    private InetAddress mLocalAddress;
+    /**
+     * Set when the last tunnel was let go for being idle, in lazy mode.
+     */
+    private boolean mIdle;
 
     public ToyVpnConnection(final VpnService service, final int connectionId, final ToyVpnConfig toyVpnConfig) {
         mVpnService = service;
         mConnectionId = connectionId;
         this.mToyVpnConfig = toyVpnConfig;
+        mServerAddress = toyVpnConfig.lastServer;
     }
 
     /**
@@ -75,177 +210,451 @@ public class ToyVpnConnection implements Runnable {
         mOnEstablishListener = listener;
     }
 
+    /**
+     * Optionally, set who to tell when a different server address answers first, to remember for the next
+     * connection.
+     */
+    public void setOnServerChosenListener(OnServerChosenListener listener) {
+        mOnServerChosenListener = listener;
+    }
+
+    /**
+     * Optionally, set where to learn about networks coming and going. Without it, reconnects only back off.
+     */
+    public void setConnectivity(Connectivity connectivity) {
+        mConnectivity = connectivity;
+    }
+
+    /**
+     * @return traffic, drops, handshake and reconnect times and round trips of this connection, safe to read from
+     * any thread
+     */
+    public TunnelMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return traffic per flow of this connection, safe to read from any thread
+     */
+    public FlowTable getFlowTable() {
+        return mFlowTable;
+    }
+
+    /**
+     * @return the DNS cache of this connection, safe to read the stats of from any thread
+     */
+    public DnsCache getDnsCache() {
+        return mDnsCache;
+    }
+
+    /**
+     * @return the latest packets of this connection, safe to dump from any thread
+     */
+    public PacketCapture getCapture() {
+        return mCapture;
+    }
+
     @Override
     public void run() {
         try {
             Log.i(getTag(), "Starting");
-            // If anything needs to be obtained using the network, get it now.
+            // If anything needs to be obtained using the network, get it before there is an interface.
             // This greatly reduces the complexity of seamless handover, which tries to recreate the tunnel without shutting down everything.
-            // In this demo, all we need to know is the server address.
-            final SocketAddress serverAddress = new InetSocketAddress(mToyVpnConfig.serverHost, mToyVpnConfig.serverPort);
-            // We try to create the tunnel several times.
-            // TODO: The better way is to work with ConnectivityManager, trying only when the network is available.
-            // Here we just use a counter to keep things simple.
-            for (int attempt = 0; attempt < 10; ++attempt) {
-                if (run(serverAddress)) {// Reset the counter if we were connected.
-                    attempt = 0;
+            // In this demo, all we need is the server addresses, which the first race resolves, see handshake().
+            mKeepalive = new AdaptiveKeepalive(KEEPALIVE_INTERVAL_MS, MAX_KEEPALIVE_INTERVAL_MS,
+                    () -> openTunnel(mServerAddress));
+            // We try to create the tunnel until it keeps failing even though there is a network.
+            // Waits in between grow with every failure, and are cut short when a network comes up.
+            final ReconnectScheduler scheduler = new ReconnectScheduler(RECONNECT_BASE_DELAY_MS,
+                    RECONNECT_MAX_DELAY_MS, new Random()::nextDouble);
+            if (mConnectivity != null) {
+                mConnectivity.register(scheduler);
+            }
+            while (true) {
+                if (runTunnels()) {// Reset the backoff if we were connected.
+                    // Losing an established tunnel is most likely a handover, so try again right away.
+                    scheduler.reset();
+                    if (mIdle) {
+                        // Unless we let it go: then wait until there is something to send.
+                        Log.i(getTag(), "Idle, disconnected until there is traffic");
+                        mPump.awaitUplink();
+                        mTunnelLostTime = SystemClock.elapsedRealtime();
+                    }
+                    continue;
+                }
+                if (scheduler.attempts() >= MAX_RECONNECT_ATTEMPTS) {
+                    break;
+                }
+                // Wait for a while. This also checks if we got interrupted.
+                if (scheduler.await()) {
+                    Log.i(getTag(), "Network available, reconnecting");
                 }
-                Thread.sleep(3000);// Sleep for a while. This also checks if we got interrupted.
             }
             Log.i(getTag(), "Giving up");
         } catch (IOException | InterruptedException | IllegalArgumentException e) {
             Log.e(getTag(), "Connection failed, exiting", e);
+        } finally {
+            if (mConnectivity != null) {
+                mConnectivity.unregister();
+            }
+            closeInterface();
+            if (mKeepalive != null) {
+                mKeepalive.close();
+            }
+            Log.i(getTag(), "DNS cache: " + mDnsCache.stats());
         }
     }
 
-    private boolean run(SocketAddress server) throws IOException, InterruptedException, IllegalArgumentException {
-        ParcelFileDescriptor fileDescriptor = null;
+    /**
+     * Connects one tunnel, plus more to stripe over if the server allows, and forwards packets until one fails.
+     * The VPN interface is kept up for the next tunnel unless the server hands out a different configuration.
+     */
+    private boolean runTunnels() throws IOException, InterruptedException, IllegalArgumentException {
         boolean connected = false;
-        try (DatagramChannel tunnel = DatagramChannel.open()) {// Create a DatagramChannel as the VPN tunnel.
-            if (!mVpnService.protect(tunnel.socket())) {// 第二步: Protect the tunnel before connecting to avoid loopback.
-                throw new IllegalStateException("Cannot protect the tunnel");
+        mIdle = false;
+        if (mResumable != null && mServerAddress != null && mPump != null && mPump.isOpen() && resume()) {
+            return true;
+        }
+        final List<DatagramChannel> tunnels = new ArrayList<>();
+        try {
+            // Authenticate with whichever server address answers first.
+            final EndpointRacer.Winner winner = handshake();
+            final DatagramChannel tunnel = winner.tunnel;
+            tunnels.add(tunnel);
+            // What NATs do on another network tells nothing about this one.
+            final InetAddress localAddress = tunnel.socket().getLocalAddress();
+            if (!localAddress.equals(mLocalAddress)) {
+                mLocalAddress = localAddress;
+                mKeepalive.reset();
             }
-            tunnel.connect(server);// 第三步: Connect to the server. 隧道套接字连接到 VPN 网关
-            // For simplicity, we use the same thread for both reading and writing.
-            // Here we put the tunnel into non-blocking mode.
-            tunnel.configureBlocking(false);
-            // Authenticate and configure the virtual network interface.
-            fileDescriptor = handshake(tunnel);
+            // Get the parameters of the virtual network interface, fitted to the path, which may well have changed
+            // with a handover.
+            final TunnelParameters parameters = discoverPathMtu(tunnel, TunnelParameters.parse(winner.parameters));
             // Now we are connected. Set the flag.
             connected = true;
-            // Packets to be sent are queued in this input stream. 别的app的数据包进入我们的VPN app，加密后由隧道套接字发送出去
-            FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
-            // Packets received need to be written to this output stream.
-            FileOutputStream outputStream = new FileOutputStream(fileDescriptor.getFileDescriptor());
-            // Allocate the buffer for a single packet.
-            ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_SIZE);
-            // Timeouts:
-            //   - when data has not been sent in a while, send empty keepalive messages.
-            //   - when data has not been received in a while, assume the connection is broken.
-            long lastSendTime = System.currentTimeMillis();
-            long lastReceiveTime = System.currentTimeMillis();
-            // We keep forwarding packets till something goes wrong.
-            while (true) {
-                // Assume that we did not make any progress in this iteration.
-                boolean idle = true;
-                // Read the outgoing packet from the input stream.
-                int length = inputStream.read(packet.array());
-                if (length > 0) {
-                    // Write the outgoing packet to the tunnel.
-                    packet.limit(length);
-                    tunnel.write(packet);
-                    packet.clear();
-                    // There might be more outgoing packets.
-                    idle = false;
-                    lastReceiveTime = System.currentTimeMillis();
-                }
-                // Read the incoming packet from the tunnel.
-                length = tunnel.read(packet);
-                if (length > 0) {
-                    // Ignore control messages, which start with zero.
-                    if (packet.get(0) != 0) {
-                        // Write the incoming packet to the output stream.
-                        outputStream.write(packet.array(), 0, length);
-                    }
-                    packet.clear();
-                    // There might be more incoming packets.
-                    idle = false;
-                    lastSendTime = System.currentTimeMillis();
-                }
-                // If we are idle or waiting for the network, sleep for a fraction of time to avoid busy looping.
-                if (idle) {
-                    Thread.sleep(IDLE_INTERVAL_MS);
-                    final long timeNow = System.currentTimeMillis();
-                    if (lastSendTime + KEEPALIVE_INTERVAL_MS <= timeNow) {
-                        // We are receiving for a long time but not sending.
-                        // Send empty control messages.
-                        packet.put((byte) 0).limit(1);
-                        for (int i = 0; i < 3; ++i) {
-                            packet.position(0);
-                            tunnel.write(packet);
-                        }
-                        packet.clear();
-                        lastSendTime = timeNow;
-                    } else if (lastReceiveTime + RECEIVE_TIMEOUT_MS <= timeNow) {
-                        // We are sending for a long time but not receiving.
-                        throw new IllegalStateException("Timed out");
-                    }
-                }
+            if (mPump == null || !mPump.isOpen() || !parameters.hasSameInterface(mParameters)) {
+                closeInterface();
+                establish(parameters);
+            } else {
+                // Seamless handover: the interface and every app connection on it survive, and so do the packets
+                // the pump queued in the meantime.
+                mParameters = parameters;
             }
-        } catch (SocketException e) {
+            mResumable = parameters.ticket != null ? new ResumableSession(parameters.ticket, localAddress) : null;
+            if (mTunnelLostTime != 0) {
+                final long reconnectTimeMs = SystemClock.elapsedRealtime() - mTunnelLostTime;
+                mMetrics.onReconnect(TimeUnit.MILLISECONDS.toMicros(reconnectTimeMs));
+                Log.i(getTag(), "Tunnel rebuilt in " + reconnectTimeMs + " ms");
+            }
+            join(winner.address, parameters, tunnels);
+            // The handshakes left the tunnels non-blocking. From here on the pump blocks on both sides instead.
+            for (DatagramChannel channel : tunnels) {
+                channel.configureBlocking(true);
+            }
+            // We keep forwarding packets till something goes wrong, or in lazy mode, till there is no traffic.
+            mPump.run(tunnels, mSessionKeys);
+            mIdle = true;
+        } catch (IOException e) {
+            // Includes handshake timeouts: on a flaky network the next attempt may well get through.
+            // If we got interrupted instead, the flag is still set and the wait before the next attempt throws.
             Log.e(getTag(), "Cannot use socket", e);
         } finally {
-            if (fileDescriptor != null) {
-                try {
-                    fileDescriptor.close();
-                } catch (IOException e) {
-                    Log.e(getTag(), "Unable to close interface", e);
-                }
+            for (DatagramChannel channel : tunnels) {
+                channel.close();
+            }
+            if (connected) {
+                mTunnelLostTime = SystemClock.elapsedRealtime();
             }
         }
         return connected;
     }
 
-    private ParcelFileDescriptor handshake(DatagramChannel tunnel) throws IOException, InterruptedException {
-        // To build a secured tunnel, we should perform mutual authentication and exchange session keys for encryption.
-        // To keep things simple in this demo, we just send the shared secret in plaintext and wait for the server to send the parameters.
-        // Allocate the buffer for handshaking.
-        // We have a hardcoded maximum handshake size of 1024 bytes, which should be enough for demo purposes.
-        ByteBuffer packet = ByteBuffer.allocate(1024);
-        // Control messages always start with zero.
-        packet.put((byte) 0).put(mToyVpnConfig.sharedSecret).flip();// 切换读/写模式
-
-        for (int i = 0; i < 3; ++i) {// Send the secret several times in case of packet loss.
-            packet.position(0);
-            tunnel.write(packet);
+    /**
+     * Picks the session back up with its ticket on a tunnel to the server it was with, keeping the interface, the
+     * path MTU and the rest of the parameters as they were. What the pump queued in the meantime goes out right
+     * behind the request to resume, a round trip earlier than after a handshake. A resumed session takes a single
+     * tunnel; striping comes back with the next handshake.
+     * <p>
+     * Only on the network the path MTU was found on: from another local address, the path is another one too, and
+     * the handshake that probes it is due instead.
+     *
+     * @return whether the session got going; false if there is no tunnel, it is on another network, or the server
+     * didn't take the ticket or the first flight didn't get out, and a handshake is due
+     */
+    private boolean resume() {
+        final ByteBuffer request = ByteBuffer.allocate(mParameters.mtu + PacketSealer.OVERHEAD);
+        final DatagramChannel tunnel;
+        final SessionKeys keys;
+        try {
+            tunnel = openTunnel(mServerAddress);
+        } catch (IOException | RuntimeException e) {
+            Log.e(getTag(), "Cannot open a tunnel to resume on", e);
+            return false;
         }
-        packet.clear();
+        try {
+            keys = mResumable.writeResume(tunnel, request, new SecureRandom(), System.currentTimeMillis());
+            request.flip();
+            if (mTunnelLostTime != 0) {
+                Log.i(getTag(), "Resuming session " + (SystemClock.elapsedRealtime() - mTunnelLostTime)
+                        + " ms after the tunnel was lost");
+            }
+            mPump.resume(tunnel, keys, request, HANDSHAKE_TIMEOUT_MS);
+            mIdle = true;
+        } catch (ProtocolException | GeneralSecurityException e) {
+            // On another network, turned down, not answered or never sent: the ticket is of no more use, and the
+            // handshake follows right away, with the usual backoff should it fail as well.
+            Log.i(getTag(), "Cannot resume session: " + e.getMessage());
+            mResumable = null;
+            return false;
+        } catch (IOException e) {
+            // Lost after the session got going, like any other tunnel.
+            Log.e(getTag(), "Cannot use socket", e);
+        } finally {
+            try {
+                tunnel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mTunnelLostTime = SystemClock.elapsedRealtime();
+        return true;
+    }
 
-        for (int i = 0; i < MAX_HANDSHAKE_ATTEMPTS; ++i) {// Wait for the parameters within a limited time.
-            Thread.sleep(IDLE_INTERVAL_MS);
-            // Normally we should not receive random packets. Check that the first byte is 0 as expected.
-            int length = tunnel.read(packet);
-            if (length > 0 && packet.get(0) == 0) {
-                String trim = new String(packet.array(), 1, length - 1, US_ASCII).trim();
-                return configure(trim);
+    private DatagramChannel openTunnel(SocketAddress server) throws IOException {
+        final DatagramChannel tunnel = DatagramChannel.open();// Create a DatagramChannel as the VPN tunnel.
+        try {
+            if (!mVpnService.protect(tunnel.socket())) {// 第二步: Protect the tunnel before connecting to avoid loopback.
+                throw new IllegalStateException("Cannot protect the tunnel");
             }
+            tunnel.connect(server);// 第三步: Connect to the server. 隧道套接字连接到 VPN 网关
+        } catch (IOException | RuntimeException e) {
+            tunnel.close();
+            throw e;
         }
-        throw new IOException("Timed out");
+        return tunnel;
     }
 
     /**
-     * 第四步：为 VPN 流量配置新的本地 TUN 接口
-     * @param parameters 从隧道接口(DatagramChannel)读到的数据
+     * Adds a tunnel per core, as far as the server allows, so that the pump can stripe packets over them.
+     * Each one comes with its own UDP flow, which also helps against carriers that throttle per flow.
+     * Joining is best effort; the session goes ahead with the tunnels that made it.
+     * <p>
+     * Each join retransmits on an estimator of its own, as the handshakes of a race do, so that a lost JOIN's backoff
+     * doesn't stay in the timeouts of everything after it. Only the round trips of joins answered first time count.
      */
-    private ParcelFileDescriptor configure(String parameters) throws IllegalArgumentException {
-        VpnService.Builder localTunnel = mVpnService.new Builder();// Configure a localTunnel while parsing the parameters.
-        for (String parameter : parameters.split(" ")) {
-            String[] fields = parameter.split(",");
+    private void join(SocketAddress server, TunnelParameters parameters, List<DatagramChannel> tunnels)
+            throws IOException, InterruptedException {
+        final int paths = Math.min(parameters.maxPaths, Runtime.getRuntime().availableProcessors());
+        for (int path = tunnels.size(); path < paths; ++path) {
+            final HandshakeDriver driver = new HandshakeDriver(new RttEstimator(mRttEstimator), HANDSHAKE_TIMEOUT_MS);
+            final DatagramChannel tunnel = openTunnel(server);
             try {
-                switch (fields[0].charAt(0)) {
-                    case 'm':
-                        localTunnel.setMtu(Short.parseShort(fields[1]));
-                        break;
-                    case 'a':
-                        // 添加至少一个 IPv4 或 IPv6 地址以及系统指定为本地 TUN 接口地址的子网掩码。
-                        // 您的应用通常会在握手过程中收到来自 VPN 网关的 IP 地址和子网掩码。
-                        localTunnel.addAddress(fields[1], Integer.parseInt(fields[2]));
-                        break;
-                    case 'r':
-                        // 如果您希望系统通过 VPN 接口发送流量，请至少添加一个路由。
-                        // 路由按目标地址过滤。要接受所有流量，请设置开放路由，例如 0.0.0.0/0 或 ::/0
-                        localTunnel.addRoute(fields[1], Integer.parseInt(fields[2]));
-                        break;
-                    case 'd':
-                        localTunnel.addDnsServer(fields[1]);
-                        break;
-                    case 's':
-                        localTunnel.addSearchDomain(fields[1]);
-                        break;
+                driver.run(tunnel, new JoinHandshake(parameters.sessionId, path));
+                record(driver);
+                if (driver.rttUs() >= 0) {
+                    mRttEstimator.update(driver.rttUs());
                 }
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Bad parameter: " + parameter);
+            } catch (IOException | GeneralSecurityException e) {
+                Log.w(getTag(), "Cannot join tunnel " + path, e);
+                tunnel.close();
+                break;
+            }
+            tunnels.add(tunnel);
+        }
+        if (tunnels.size() > 1) {
+            Log.i(getTag(), "Striping over " + tunnels.size() + " tunnels");
+        }
+    }
+
+    /**
+     * Brings up a new VPN interface and a pump on top of it.
+     */
+    private void establish(TunnelParameters parameters) throws IOException {
+        mFileDescriptor = configure(parameters);
+        final int bufferSize = Math.max(parameters.mtu, parameters.batchFrameSize) + PacketSealer.OVERHEAD
+                + fecOverhead(parameters);
+        if (mBufferPool == null || mBufferPool.bufferSize() != bufferSize) {
+            mBufferPool = new BufferPool(bufferSize, BUFFER_POOL_CAPACITY);
+        }
+        mPump = new PacketPump(new TunInterface(mFileDescriptor), mBufferPool, KEEPALIVE_INTERVAL_MS, RECEIVE_TIMEOUT_MS, getTag());
+        mPump.setQueueCapacity(HANDOVER_QUEUE_CAPACITY);
+        mPump.setMetrics(mMetrics);
+        mPump.setFlowTable(mFlowTable);
+        mPump.setKeepalive(mKeepalive);
+        mPump.setLazy(mToyVpnConfig.lazy);
+        // Answer lookups from the cache where possible, the servers are the ones the interface was given.
+        final List<InetAddress> dnsServers = new ArrayList<>();
+        for (String dnsServer : parameters.dnsServers) {
+            // Numeric addresses only, so this never does a lookup itself.
+            dnsServers.add(InetAddress.getByName(dnsServer));
+        }
+        mDnsCache.setServers(dnsServers);
+        mPump.setDnsCache(mDnsCache);
+        mPump.setCapture(mCapture);
+        mPump.setSplitTunnel(mSplitTunnel);
+        mPump.setCompression(parameters.compression);
+        if (parameters.fecData > 0) {
+            mPump.setFec(parameters.fecData, parameters.fecParity);
+        }
+        if (parameters.batchFrameSize > 0) {
+            mPump.setBatching(parameters.batchFrameSize, MAX_BATCH_PACKETS);
+        }
+        // Interactive packets go first even without a limit, whenever the socket can't keep up.
+        final TrafficShaper shaper = new TrafficShaper(new LatencyClassifier(), SHAPER_QUEUE_CAPACITY);
+        if (mToyVpnConfig.uplinkLimitKbps > 0) {
+            final long bytesPerSecond = mToyVpnConfig.uplinkLimitKbps * 1000L / 8;
+            shaper.setRate(bytesPerSecond, (int) Math.max(2L * bufferSize,
+                    bytesPerSecond * SHAPER_BURST_MS / TimeUnit.SECONDS.toMillis(1)));
+        }
+        mPump.setShaper(shaper);
+        // ACKs only pile up in there when the uplink can't keep up, which is when they are better thinned out.
+        mPump.setAckThinning(true);
+    }
+
+    private void closeInterface() {
+        if (mPump != null) {
+            mPump.close();
+            mPump = null;
+        }
+        if (mFileDescriptor != null) {
+            try {
+                mFileDescriptor.close();
+            } catch (IOException e) {
+                Log.e(getTag(), "Unable to close interface", e);
+            }
+            mFileDescriptor = null;
+        }
+    }
+
+    /**
+     * Races handshakes to the server addresses, the last one answered first, and keeps the tunnel of the winner.
+     * Host names are only resolved while there is no VPN interface to route the lookups into; with one up, the
+     * addresses they resolved to before are raced instead.
+     */
+    private EndpointRacer.Winner handshake() throws IOException, InterruptedException {
+        // To build a secured tunnel, we should perform mutual authentication and exchange session keys for encryption.
+        // With encryption on, SecureHandshake does exactly that and the secret never goes over the wire.
+        // Otherwise, we just send the shared secret in plaintext and wait for the server to send the parameters.
+        // Every address raced gets a handshake of its own.
+        final SecureRandom random = new SecureRandom();
+        mSessionKeys = null;
+        final List<InetSocketAddress> resolved = mEndpointRacer.resolved();
+        final EndpointRacer.Winner winner = mEndpointRacer.race(
+                mFileDescriptor == null || resolved.isEmpty() ? mToyVpnConfig.servers : resolved, mServerAddress,
+                this::openTunnel, () -> mToyVpnConfig.encrypt
+                        ? new SecureHandshake(mToyVpnConfig.sharedSecret, random)
+                        : new PlainHandshake(mToyVpnConfig.sharedSecret));
+        final HandshakeDriver driver = winner.driver;
+        record(driver);
+        Log.i(getTag(), "Handshake with " + winner.address + " done in " + driver.establishTimeUs() + " us, "
+                + driver.retransmits() + " retransmits, srtt " + mRttEstimator.srttUs() + " us");
+        if (winner.handshake instanceof SecureHandshake) {
+            mSessionKeys = ((SecureHandshake) winner.handshake).sessionKeys();
+        }
+        if (!winner.address.equals(mServerAddress)) {
+            mServerAddress = winner.address;
+            if (mOnServerChosenListener != null) {
+                mOnServerChosenListener.onServerChosen(winner.address);
+            }
+        }
+        return winner;
+    }
+
+    /**
+     * Cuts the MTU and batch size the server offers down to what the path to it carries, see {@link PathMtuProber}.
+     * Datagrams larger than that would be fragmented, or dropped on networks that don't pass fragments. If not even
+     * the smallest probe gets through, the server's MTU is kept and left to fragmentation, and unless the server has
+     * answered probes before, the next tunnels on the network don't probe either, see {@link PathMtuDiscovery}.
+     */
+    private TunnelParameters discoverPathMtu(DatagramChannel tunnel, TunnelParameters parameters)
+            throws IOException, InterruptedException {
+        if (!mPathMtuDiscovery.due(tunnel)) {
+            return parameters;
+        }
+        final int overhead = (mSessionKeys != null ? PacketSealer.OVERHEAD : 0) + fecOverhead(parameters);
+        final int high = Math.max(parameters.mtu, parameters.batchFrameSize) + overhead;
+        final PathMtuProber prober = new PathMtuProber(mRttEstimator, PATH_MTU_PROBE_TIMEOUT_MS);
+        final int size;
+        setDontFragment(tunnel, true);
+        try {
+            size = prober.run(tunnel, Math.min(MIN_MTU + overhead, high), high);
+        } finally {
+            setDontFragment(tunnel, false);
+        }
+        final boolean probeAgain = mPathMtuDiscovery.record(tunnel, size);
+        if (size < 0) {
+            if (probeAgain) {
+                Log.i(getTag(), "Path MTU probes lost, keeping MTU " + parameters.mtu + " this time");
+            } else {
+                Log.i(getTag(), "No answer to path MTU probes, keeping MTU " + parameters.mtu + " on this network");
+            }
+            return parameters;
+        }
+        final TunnelParameters fitted = parameters.fitTo(size - overhead);
+        Log.i(getTag(), "Path takes datagrams of " + size + " bytes, MTU " + fitted.mtu + ", found with "
+                + prober.probes() + " probes in " + prober.timeUs() + " us");
+        return fitted;
+    }
+
+    /**
+     * @return what forward error correction adds to the largest datagram, if the server offers it
+     */
+    private static int fecOverhead(TunnelParameters parameters) {
+        return parameters.fecData > 0 ? FecEncoder.OVERHEAD : 0;
+    }
+
+    /**
+     * Sets whether datagrams on the tunnel always go out with the don't-fragment bit set, as probes must. Otherwise
+     * the kernel sets it as usual, and fragments datagrams larger than the path MTU it has learned of.
+     */
+    private void setDontFragment(DatagramChannel tunnel, boolean always) {
+        final int value = always ? PMTUDISC_PROBE : PMTUDISC_WANT;
+        try (ParcelFileDescriptor fd = ParcelFileDescriptor.fromDatagramSocket(tunnel.socket())) {
+            // The IPv4 option also covers IPv4 servers reached over an IPv6 socket.
+            if (((InetSocketAddress) tunnel.getRemoteAddress()).getAddress() instanceof Inet6Address) {
+                Os.setsockoptInt(fd.getFileDescriptor(), OsConstants.IPPROTO_IPV6, IPV6_MTU_DISCOVER, value);
+            } else {
+                Os.setsockoptInt(fd.getFileDescriptor(), OsConstants.IPPROTO_IP, IP_MTU_DISCOVER, value);
             }
+        } catch (IOException | ErrnoException e) {
+            Log.w(getTag(), "Cannot set the don't-fragment bit on the tunnel", e);
+        }
+    }
+
+    private void record(HandshakeDriver driver) {
+        mMetrics.onHandshake(driver.establishTimeUs());
+        if (driver.rttUs() >= 0) {
+            mMetrics.onRtt(driver.rttUs());
+        }
+    }
+
+    /**
+     * 第四步：为 VPN 流量配置新的本地 TUN 接口
+     * @param tunnelParameters 从隧道接口(DatagramChannel)读到的数据
+     */
+    private ParcelFileDescriptor configure(TunnelParameters tunnelParameters) throws IllegalArgumentException {
+        VpnService.Builder localTunnel = mVpnService.new Builder();// Configure a localTunnel from the parameters.
+        localTunnel.setMtu(tunnelParameters.mtu);
+        for (TunnelParameters.Route address : tunnelParameters.addresses) {
+            // 添加至少一个 IPv4 或 IPv6 地址以及系统指定为本地 TUN 接口地址的子网掩码。
+            // 您的应用通常会在握手过程中收到来自 VPN 网关的 IP 地址和子网掩码。
+            localTunnel.addAddress(address.address, address.prefixLength);
+        }
+        // Our own prefixes are merged into the server's routes, with the bypassed ones carved out.
+        mSplitTunnel = mToyVpnConfig.includePrefixes.isEmpty() && mToyVpnConfig.bypassPrefixes.isEmpty() ? null
+                : new SplitTunnel(tunnelParameters.routes, mToyVpnConfig.includePrefixes, mToyVpnConfig.bypassPrefixes);
+        if (mSplitTunnel != null) {
+            Log.i(getTag(), "Split tunnel: " + mSplitTunnel);
+        }
+        for (TunnelParameters.Route route : mSplitTunnel != null ? mSplitTunnel.routes() : tunnelParameters.routes) {
+            // 如果您希望系统通过 VPN 接口发送流量，请至少添加一个路由。
+            // 路由按目标地址过滤。要接受所有流量，请设置开放路由，例如 0.0.0.0/0 或 ::/0
+            localTunnel.addRoute(route.address, route.prefixLength);
+        }
+        for (String dnsServer : tunnelParameters.dnsServers) {
+            localTunnel.addDnsServer(dnsServer);
+        }
+        for (String searchDomain : tunnelParameters.searchDomains) {
+            localTunnel.addSearchDomain(searchDomain);
         }
 
         final ParcelFileDescriptor fileDescriptor;// Create a new interface using the localTunnel and save the parameters.
@@ -260,7 +669,8 @@ public class ToyVpnConnection implements Runnable {
                 Log.w(getTag(), "Package not available: " + packageName, e);
             }
         }
-        localTunnel.setSession(mToyVpnConfig.serverHost).setConfigureIntent(mConfigureIntent);
+        // The pump reads the interface from a dedicated thread, so let the read block until a packet arrives.
+        localTunnel.setSession(mToyVpnConfig.serverHost).setConfigureIntent(mConfigureIntent).setBlocking(true);
         if (!TextUtils.isEmpty(mToyVpnConfig.proxyHost)) {
             localTunnel.setHttpProxy(ProxyInfo.buildDirectProxy(mToyVpnConfig.proxyHost, mToyVpnConfig.proxyPort));
         }
@@ -270,7 +680,8 @@ public class ToyVpnConnection implements Runnable {
                 mOnEstablishListener.onEstablish(fileDescriptor);
             }
         }
-        Log.i(getTag(), "New interface: " + fileDescriptor + " (" + parameters + ")");
+        mParameters = tunnelParameters;
+        Log.i(getTag(), "New interface: " + fileDescriptor + " (" + tunnelParameters + ")");
         return fileDescriptor;
     }
 
@@ -285,4 +696,11 @@ public class ToyVpnConnection implements Runnable {
     public interface OnEstablishListener {
         void onEstablish(ParcelFileDescriptor fileDescriptor);
     }
+
+    /**
+     * Callback interface to let the {@link ToyVpnService} remember the server address to try first next time.
+     */
+    public interface OnServerChosenListener {
+        void onServerChosen(InetSocketAddress server);
+    }
 }
\ No newline at end of file
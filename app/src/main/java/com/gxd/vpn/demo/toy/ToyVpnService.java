@@ -7,30 +7,63 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.VpnService;
+import android.os.Binder;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.util.Pair;
 import android.widget.Toast;
 
 import com.gxd.vpn.demo.R;
+import com.gxd.vpn.tunnel.capture.PacketCapture;
+import com.gxd.vpn.tunnel.dns.DnsCache;
+import com.gxd.vpn.tunnel.flow.FlowTable;
+import com.gxd.vpn.tunnel.metrics.TunnelMetrics;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class ToyVpnService extends VpnService implements Handler.Callback {
     public static final String ACTION_CONNECT = "com.example.android.toyvpn.START";
     public static final String ACTION_DISCONNECT = "com.example.android.toyvpn.STOP";
+    /**
+     * Writes the packets captured lately to a pcapng file, see {@link #dumpCapture}, without touching the
+     * connection.
+     */
+    public static final String ACTION_DUMP_CAPTURE = "com.example.android.toyvpn.DUMP_CAPTURE";
     private static final String TAG = ToyVpnService.class.getSimpleName();
+    /**
+     * How often the notification shows fresh traffic numbers while connected.
+     */
+    private static final long NOTIFICATION_UPDATE_INTERVAL_MS = TimeUnit.SECONDS.toMillis(1);
     private final AtomicReference<Thread> mConnectingThread = new AtomicReference<>();
     private final AtomicReference<ConnectionPair> mConnection = new AtomicReference<>();
     private final AtomicInteger mNextConnectionId = new AtomicInteger(1);
+    /**
+     * The latest connection, or {@code null} while disconnected.
+     */
+    private final AtomicReference<ToyVpnConnection> mCurrentConnection = new AtomicReference<>();
+    private final IBinder mBinder = new LocalBinder();
+    private final Runnable mNotificationUpdater = this::updateTrafficNotification;
     private Handler mHandler;
     private PendingIntent mConfigureIntent;
+    /**
+     * What the notification showed last, to turn the counters into rates. Only touched on the main thread.
+     */
+    private TunnelMetrics.Snapshot mLastSnapshot;
 
     @Override
     public void onCreate() {
@@ -48,6 +81,17 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
         if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
             disconnect();
             return START_NOT_STICKY;
+        } else if (intent != null && ACTION_DUMP_CAPTURE.equals(intent.getAction())) {
+            new Thread(() -> {
+                try {
+                    final File file = dumpCapture();
+                    Log.i(TAG, file != null ? "Capture written to " + file : "Nothing to capture while disconnected");
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot write capture", e);
+                }
+            }, "ToyVpnCapture").start();
+            // Dumping must not bring back a connection that was not there.
+            return mCurrentConnection.get() != null ? START_STICKY : START_NOT_STICKY;
         } else {
             connect();
             return START_STICKY;
@@ -59,11 +103,74 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
         disconnect();
     }
 
+    /**
+     * The system binds with {@link VpnService#SERVICE_INTERFACE}, everyone else gets a {@link LocalBinder}.
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (intent != null && SERVICE_INTERFACE.equals(intent.getAction())) {
+            return super.onBind(intent);
+        }
+        return mBinder;
+    }
+
+    /**
+     * @return what the current connection has been doing, or {@code null} while disconnected
+     */
+    public TunnelMetrics.Snapshot getMetricsSnapshot() {
+        final ToyVpnConnection connection = mCurrentConnection.get();
+        return connection != null ? connection.getMetrics().snapshot() : null;
+    }
+
+    /**
+     * @return the flows of the current connection with their traffic, or an empty list while disconnected
+     */
+    public List<FlowTable.Flow> getFlows() {
+        final ToyVpnConnection connection = mCurrentConnection.get();
+        return connection != null ? connection.getFlowTable().flows() : Collections.emptyList();
+    }
+
+    /**
+     * @return hit rate and latency saved by the DNS cache of the current connection, or {@code null} while
+     * disconnected
+     */
+    public DnsCache.Stats getDnsStats() {
+        final ToyVpnConnection connection = mCurrentConnection.get();
+        return connection != null ? connection.getDnsCache().stats() : null;
+    }
+
+    /**
+     * Writes the packets the current connection captured lately to a new pcapng file in the app's external files
+     * directory, where {@code adb pull} can get at it. Blocks on the file, so keep it off the main thread.
+     *
+     * @return the file, or {@code null} while disconnected
+     */
+    public File dumpCapture() throws IOException {
+        final ToyVpnConnection connection = mCurrentConnection.get();
+        if (connection == null) {
+            return null;
+        }
+        final File directory = getExternalFilesDir(null);
+        final File file = new File(directory != null ? directory : getFilesDir(),
+                "capture-" + System.currentTimeMillis() + ".pcapng");
+        final PacketCapture capture = connection.getCapture();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            final int packets = capture.writePcapng(out.getChannel());
+            Log.i(TAG, packets + " of " + capture.recorded() + " packets captured so far written");
+        }
+        return file;
+    }
+
     @Override
     public boolean handleMessage(Message message) {
         Toast.makeText(this, message.what, Toast.LENGTH_SHORT).show();
+        mHandler.removeCallbacks(mNotificationUpdater);
         if (message.what != R.string.disconnected) {
-            updateForegroundNotification(message.what);
+            updateForegroundNotification(getString(message.what));
+        }
+        if (message.what == R.string.connected) {
+            mLastSnapshot = null;
+            mHandler.postDelayed(mNotificationUpdater, NOTIFICATION_UPDATE_INTERVAL_MS);
         }
         return true;
     }
@@ -71,7 +178,7 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
     private void connect() {
         // Become a foreground service. Background services can be VPN services too,
         // but they can be killed by background check before getting a chance to receive onRevoke().
-        updateForegroundNotification(R.string.connecting);
+        updateForegroundNotification(getString(R.string.connecting));
         mHandler.sendEmptyMessage(R.string.connecting);
         // Extract information from the shared preferences.
         final SharedPreferences sp = getSharedPreferences(SpConst.SP_NAME, MODE_PRIVATE);
@@ -82,21 +189,82 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
         final int serverPort = sp.getInt(SpConst.SERVER_PORT, 0);
         final String proxyHost = sp.getString(SpConst.PROXY_HOST, "");
         final int proxyPort = sp.getInt(SpConst.PROXY_PORT, 0);
+        final boolean encrypt = sp.getBoolean(SpConst.ENCRYPT, false);
+        final List<String> includePrefixes = split(sp.getString(SpConst.INCLUDE_PREFIXES, ""));
+        final List<String> bypassPrefixes = split(sp.getString(SpConst.BYPASS_PREFIXES, ""));
+        final int uplinkLimitKbps = sp.getInt(SpConst.UPLINK_LIMIT, 0);
+        final boolean lazy = sp.getBoolean(SpConst.LAZY, false);
+        // The last winner only counts for the servers it was picked from.
+        final String servers = serverHost + " " + serverPort;
+        final List<InetSocketAddress> lastServer = servers.equals(sp.getString(SpConst.LAST_SERVER_FOR, ""))
+                ? splitServers(sp.getString(SpConst.LAST_SERVER, ""), serverPort) : Collections.emptyList();
 
         ToyVpnConnection vpnConnection = new ToyVpnConnection(
                 this,
                 mNextConnectionId.getAndIncrement(),
-                new ToyVpnConfig(serverHost, serverPort, sharedSecret, proxyHost, proxyPort, allow, packageSet)
+                new ToyVpnConfig(serverHost, serverPort, splitServers(serverHost, serverPort),
+                        lastServer.isEmpty() ? null : lastServer.get(0), sharedSecret, proxyHost, proxyPort, allow,
+                        packageSet, encrypt, includePrefixes, bypassPrefixes, uplinkLimitKbps, lazy)
         );
+        vpnConnection.setOnServerChosenListener(server -> sp.edit()
+                .putString(SpConst.LAST_SERVER, server.getAddress() instanceof Inet6Address
+                        ? "[" + server.getAddress().getHostAddress() + "]:" + server.getPort()
+                        : server.getAddress().getHostAddress() + ":" + server.getPort())
+                .putString(SpConst.LAST_SERVER_FOR, servers)
+                .apply());
         startConnection(vpnConnection);
     }
 
+    /**
+     * Splits a list typed or pasted in, separated by commas, spaces or line breaks.
+     */
+    private static List<String> split(String items) {
+        final List<String> list = new ArrayList<>();
+        for (String item : items.split("[,\\s]+")) {
+            if (!item.isEmpty()) {
+                list.add(item);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Splits a list of servers, each a host name or address with an optional port, {@code host:port} or
+     * {@code [IPv6 address]:port}, into endpoints to resolve later; those without a port take {@code port}.
+     */
+    private static List<InetSocketAddress> splitServers(String servers, int port) {
+        final List<InetSocketAddress> list = new ArrayList<>();
+        for (String server : split(servers)) {
+            String host = server;
+            String serverPort = null;
+            final int colon = server.lastIndexOf(':');
+            if (server.startsWith("[")) {
+                final int end = server.indexOf(']');
+                host = server.substring(1, Math.max(1, end));
+                serverPort = end > 0 && colon == end + 1 ? server.substring(colon + 1) : null;
+            } else if (colon >= 0 && colon == server.indexOf(':')) {
+                // Any more colons and it is an IPv6 address without a port.
+                host = server.substring(0, colon);
+                serverPort = server.substring(colon + 1);
+            }
+            try {
+                list.add(InetSocketAddress.createUnresolved(host,
+                        serverPort != null ? Integer.parseInt(serverPort) : port));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Bad server address: " + server, e);
+            }
+        }
+        return list;
+    }
+
     private void startConnection(final ToyVpnConnection connection) {
         // Replace any existing connecting thread with the  new one.
         final Thread thread = new Thread(connection, "ToyVpnThread");
         setConnectingThread(thread);
         // Handler to mark as connected once onEstablish is called.
         connection.setConfigureIntent(mConfigureIntent);
+        connection.setConnectivity(new NetworkMonitor(this));
+        mCurrentConnection.set(connection);
         connection.setOnEstablishListener(tunInterface -> {
             mHandler.sendEmptyMessage(R.string.connected);
             mConnectingThread.compareAndSet(thread, null);
@@ -119,7 +287,10 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
             return;
         }
         try {
-            oldConnectionPair.first.interrupt();
+            // A connection that rebuilds its own interface must not interrupt itself.
+            if (connectionPair == null || oldConnectionPair.first != connectionPair.first) {
+                oldConnectionPair.first.interrupt();
+            }
             oldConnectionPair.second.close();
         } catch (IOException e) {
             Log.e(TAG, "Closing VPN interface", e);
@@ -130,10 +301,35 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
         mHandler.sendEmptyMessage(R.string.disconnected);
         setConnectingThread(null);
         setConnection(null);
+        mCurrentConnection.set(null);
         stopForeground(true);
     }
 
-    private void updateForegroundNotification(final int message) {
+    /**
+     * Shows the traffic of the last interval and the median round trip, then schedules the next update.
+     */
+    private void updateTrafficNotification() {
+        final TunnelMetrics.Snapshot snapshot = getMetricsSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+        if (mLastSnapshot != null) {
+            final long intervalNanos = Math.max(1, snapshot.timeNanos - mLastSnapshot.timeNanos);
+            final long sentPerSecond = (snapshot.bytesSent - mLastSnapshot.bytesSent)
+                    * TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+            final long receivedPerSecond = (snapshot.bytesReceived - mLastSnapshot.bytesReceived)
+                    * TimeUnit.SECONDS.toNanos(1) / intervalNanos;
+            final long rttUs = snapshot.rtt.percentileUs(0.5);
+            updateForegroundNotification(getString(R.string.traffic,
+                    Formatter.formatShortFileSize(this, sentPerSecond),
+                    Formatter.formatShortFileSize(this, receivedPerSecond),
+                    rttUs < 0 ? "-" : TimeUnit.MICROSECONDS.toMillis(rttUs) + " ms"));
+        }
+        mLastSnapshot = snapshot;
+        mHandler.postDelayed(mNotificationUpdater, NOTIFICATION_UPDATE_INTERVAL_MS);
+    }
+
+    private void updateForegroundNotification(final CharSequence message) {
         final String NOTIFICATION_CHANNEL_ID = "ToyVpn";
         NotificationManager mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         NotificationChannel notificationChannel = new NotificationChannel(
@@ -142,12 +338,22 @@ public class ToyVpnService extends VpnService implements Handler.Callback {
         mNotificationManager.createNotificationChannel(notificationChannel);
         Notification notification = new Notification.Builder(this, NOTIFICATION_CHANNEL_ID)
                 .setSmallIcon(R.drawable.ic_vpn)
-                .setContentText(getString(message))
+                .setContentText(message)
                 .setContentIntent(mConfigureIntent)
+                .setOnlyAlertOnce(true)
                 .build();
         startForeground(1, notification);
     }
 
+    /**
+     * Lets activities in this process bind to the service and read its metrics.
+     */
+    public class LocalBinder extends Binder {
+        public ToyVpnService getService() {
+            return ToyVpnService.this;
+        }
+    }
+
     private static class ConnectionPair extends Pair<Thread, ParcelFileDescriptor> {
         public ConnectionPair(Thread thread, ParcelFileDescriptor pfd) {
             super(thread, pfd);
@@ -0,0 +1,47 @@
+package com.gxd.vpn.demo.toy;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import com.gxd.vpn.tunnel.ChannelTunDevice;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The TUN interface established by {@link android.net.VpnService.Builder}, seen as a {@link com.gxd.vpn.tunnel.TunDevice}.
+ * Reads block; {@link #poll} asks the kernel whether a packet is queued before reading.
+ * <p>
+ * I/O goes through {@link java.nio.channels.FileChannel}s, so direct buffers are read and written in place
+ * without a copy through the Java heap. Interrupting a thread blocked in a read closes the interface.
+ */
+class TunInterface extends ChannelTunDevice {
+    private final StructPollfd[] mPollFds = {new StructPollfd()};
+
+    TunInterface(ParcelFileDescriptor fileDescriptor) throws IOException {
+        // Packets to be sent are queued in this input channel. 别的app的数据包进入我们的VPN app，加密后由隧道套接字发送出去
+        // Packets received need to be written to this output channel.
+        super(new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel(),
+                new FileOutputStream(fileDescriptor.getFileDescriptor()).getChannel());
+        mPollFds[0].fd = fileDescriptor.getFileDescriptor();
+        mPollFds[0].events = (short) OsConstants.POLLIN;
+    }
+
+    @Override
+    public int poll(ByteBuffer dst) throws IOException {
+        mPollFds[0].revents = 0;
+        try {
+            if (Os.poll(mPollFds, 0) == 0) {
+                return 0;
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        return read(dst);
+    }
+}
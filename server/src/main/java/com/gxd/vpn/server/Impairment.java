@@ -0,0 +1,145 @@
+package com.gxd.vpn.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the network between the clients and the server does to datagrams: it loses some, delays all of them by a
+ * base delay plus jitter, and holds some back long enough for later ones to overtake them.
+ * <p>
+ * Delayed datagrams are copied into a queue ordered by when they are due, which the server drains from its
+ * selector loop, so delays are kept to the millisecond rather than the microsecond. Like a router's buffer, the
+ * queue is bounded and what doesn't fit is lost. The randomness is seeded, so that a run can be repeated.
+ * <p>
+ * Not thread-safe; the server thread is its only user.
+ */
+public class Impairment {
+    /**
+     * Passes everything straight through.
+     */
+    public static final Impairment NONE = new Impairment(0, 0, 0, 0, 0);
+    private static final int MAX_QUEUED = 16384;
+    private static final int BUFFER_SIZE = 2048;
+    private final double mLoss;
+    private final long mDelayNs;
+    private final long mJitterNs;
+    private final double mReorder;
+    private final Random mRandom;
+    private final PriorityQueue<Delayed> mQueue = new PriorityQueue<>(64, (a, b) -> a.dueNanos != b.dueNanos
+            ? Long.compare(a.dueNanos - b.dueNanos, 0) : Long.compare(a.order, b.order));
+    private final ArrayDeque<Delayed> mFree = new ArrayDeque<>();
+    private long mOrder;
+
+    /**
+     * @param loss     share of datagrams lost, from 0 to 1
+     * @param delayMs  delay every datagram gets
+     * @param jitterMs up to how much more delay a datagram gets, evenly spread
+     * @param reorder  share of datagrams held back by another {@code delayMs}, at least a millisecond, so that the
+     *                 ones after them overtake them
+     * @param seed     seed of the randomness
+     */
+    public Impairment(double loss, long delayMs, long jitterMs, double reorder, long seed) {
+        if (loss < 0 || loss > 1 || reorder < 0 || reorder > 1 || delayMs < 0 || jitterMs < 0) {
+            throw new IllegalArgumentException("Bad impairment: loss " + loss + ", delay " + delayMs + " ms, jitter "
+                    + jitterMs + " ms, reorder " + reorder);
+        }
+        mLoss = loss;
+        mDelayNs = TimeUnit.MILLISECONDS.toNanos(delayMs);
+        mJitterNs = TimeUnit.MILLISECONDS.toNanos(jitterMs);
+        mReorder = reorder;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @return whether the next datagram is lost
+     */
+    boolean lose() {
+        return mLoss > 0 && mRandom.nextDouble() < mLoss;
+    }
+
+    /**
+     * Sends the remaining bytes of {@code datagram} to {@code to}, now or once its delay is up, unless it gets lost.
+     *
+     * @return false if it was lost, on the way or because the queue or the socket's send buffer was full
+     */
+    boolean send(DatagramChannel channel, ByteBuffer datagram, SocketAddress to, long nowNanos) throws IOException {
+        if (lose()) {
+            return false;
+        }
+        long delayNs = mDelayNs;
+        if (mJitterNs > 0) {
+            delayNs += (long) (mRandom.nextDouble() * mJitterNs);
+        }
+        if (mReorder > 0 && mRandom.nextDouble() < mReorder) {
+            delayNs += Math.max(mDelayNs, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        if (delayNs == 0) {
+            return channel.send(datagram, to) > 0;
+        }
+        if (mQueue.size() >= MAX_QUEUED) {
+            return false;
+        }
+        Delayed delayed = mFree.poll();
+        if (delayed == null || delayed.datagram.capacity() < datagram.remaining()) {
+            delayed = new Delayed(Math.max(BUFFER_SIZE, datagram.remaining()));
+        }
+        delayed.datagram.clear();
+        delayed.datagram.put(datagram).flip();
+        delayed.to = to;
+        delayed.dueNanos = nowNanos + delayNs;
+        delayed.order = mOrder++;
+        mQueue.add(delayed);
+        return true;
+    }
+
+    /**
+     * Sends the datagrams that are due.
+     *
+     * @return how long until the next one is due, or -1 if none are waiting
+     */
+    long flush(DatagramChannel channel, long nowNanos) throws IOException {
+        Delayed delayed;
+        while ((delayed = mQueue.peek()) != null) {
+            final long waitNs = delayed.dueNanos - nowNanos;
+            if (waitNs > 0) {
+                return waitNs;
+            }
+            mQueue.poll();
+            // Nothing to be done about a full send buffer at this point; the datagram is lost.
+            channel.send(delayed.datagram, delayed.to);
+            delayed.to = null;
+            mFree.add(delayed);
+        }
+        return -1;
+    }
+
+    /**
+     * @return datagrams waiting for their delay to be up
+     */
+    int queued() {
+        return mQueue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "loss " + mLoss + ", delay " + TimeUnit.NANOSECONDS.toMillis(mDelayNs) + " ms, jitter "
+                + TimeUnit.NANOSECONDS.toMillis(mJitterNs) + " ms, reorder " + mReorder;
+    }
+
+    private static class Delayed {
+        final ByteBuffer datagram;
+        SocketAddress to;
+        long dueNanos;
+        long order;
+
+        Delayed(int capacity) {
+            datagram = ByteBuffer.allocate(capacity);
+        }
+    }
+}
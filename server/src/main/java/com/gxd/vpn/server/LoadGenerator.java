@@ -0,0 +1,287 @@
+package com.gxd.vpn.server;
+
+import com.gxd.vpn.tunnel.Handshake;
+import com.gxd.vpn.tunnel.PlainHandshake;
+import com.gxd.vpn.tunnel.Protocol;
+import com.gxd.vpn.tunnel.RttEstimator;
+import com.gxd.vpn.tunnel.crypto.PacketOpener;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.SecureHandshake;
+import com.gxd.vpn.tunnel.metrics.LatencyHistogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated clients to load a server with, all driven by one thread from one selector. Every client opens a socket
+ * of its own, so the server sees it as a client of its own, and does the handshake, sending the hello again with
+ * the same backoff as {@link com.gxd.vpn.tunnel.HandshakeDriver}. Once in, it sends fake IP packets of a fixed
+ * size at a steady rate, sealed if it did the encrypted handshake, and times the ones that come back.
+ * <p>
+ * Every client takes a file descriptor, so thousands of them need the limit on open files raised accordingly.
+ */
+public class LoadGenerator implements Closeable {
+    private static final int MAX_DATAGRAM_SIZE = 0xFFFF;
+    private static final int IPV4_HEADER_SIZE = 20;
+    /**
+     * Room for the time a packet was sent, which comes back with it.
+     */
+    private static final int MIN_PACKET_SIZE = IPV4_HEADER_SIZE + 8;
+    private final List<Client> mClients = new ArrayList<>();
+    private final Selector mSelector;
+    private final ByteBuffer mPacket = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mSealed = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mReceived = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mOpened = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final LatencyHistogram mHandshakeTime = new LatencyHistogram();
+    private final LatencyHistogram mRtt = new LatencyHistogram();
+    private int mRate;
+    private int mPacketSize = MIN_PACKET_SIZE;
+    private long mRetransmits;
+    private long mPacketsSent;
+    private long mPacketsReceived;
+
+    /**
+     * @param encrypt whether to do the encrypted handshake rather than the plaintext one
+     */
+    public LoadGenerator(InetSocketAddress server, byte[] sharedSecret, int clients, boolean encrypt)
+            throws IOException {
+        mSelector = Selector.open();
+        final SecureRandom random = new SecureRandom();
+        try {
+            for (int i = 0; i < clients; ++i) {
+                final DatagramChannel channel = DatagramChannel.open();
+                channel.connect(server);
+                channel.configureBlocking(false);
+                final Client client = new Client(channel,
+                        encrypt ? new SecureHandshake(sharedSecret, random) : new PlainHandshake(sharedSecret));
+                channel.register(mSelector, SelectionKey.OP_READ, client);
+                mClients.add(client);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Makes every client send {@code packetsPerSecond} packets of {@code packetSize} bytes once it is in.
+     */
+    public void setTraffic(int packetsPerSecond, int packetSize) {
+        if (packetsPerSecond < 0 || packetSize < MIN_PACKET_SIZE || packetSize > MAX_DATAGRAM_SIZE - 64) {
+            throw new IllegalArgumentException("Bad traffic: " + packetsPerSecond + " packets of " + packetSize
+                    + " bytes per second");
+        }
+        mRate = packetsPerSecond;
+        mPacketSize = packetSize;
+    }
+
+    /**
+     * Runs the clients for {@code durationMs}, starting every handshake at once.
+     */
+    public Report run(long durationMs) throws IOException, GeneralSecurityException, InterruptedException {
+        mPacket.clear();
+        for (int i = 0; i < mPacketSize; ++i) {
+            mPacket.put((byte) i);
+        }
+        // Just enough of an IPv4 header to pass as one: version and header length, and the total length.
+        mPacket.put(0, (byte) 0x45).putShort(2, (short) mPacketSize);
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        for (Client client : mClients) {
+            client.startNanos = start;
+            client.nextHelloNanos = start + TimeUnit.MILLISECONDS.toNanos(client.rttEstimator.rtoMs());
+            client.hello.rewind();
+            write(client.channel, client.hello);
+        }
+        long now = start;
+        while (now - end < 0) {
+            mSelector.select(1);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            for (SelectionKey key : mSelector.selectedKeys()) {
+                receive((Client) key.attachment());
+            }
+            mSelector.selectedKeys().clear();
+            now = System.nanoTime();
+            for (Client client : mClients) {
+                if (client.trafficStartNanos == 0) {
+                    if (now - client.nextHelloNanos >= 0) {
+                        client.rttEstimator.backoff();
+                        client.nextHelloNanos = now + TimeUnit.MILLISECONDS.toNanos(client.rttEstimator.rtoMs());
+                        client.hello.rewind();
+                        write(client.channel, client.hello);
+                        ++mRetransmits;
+                    }
+                } else if (mRate > 0) {
+                    final long due = (now - client.trafficStartNanos) * mRate / TimeUnit.SECONDS.toNanos(1);
+                    for (; client.packetsSent < due; ++client.packetsSent) {
+                        send(client, now);
+                    }
+                }
+            }
+        }
+        int established = 0;
+        for (Client client : mClients) {
+            if (client.trafficStartNanos != 0) {
+                ++established;
+            }
+        }
+        return new Report(mClients.size(), established, mRetransmits, mPacketsSent, mPacketsReceived,
+                mHandshakeTime.snapshot(), mRtt.snapshot());
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Client client : mClients) {
+            client.channel.close();
+        }
+        mSelector.close();
+    }
+
+    private void send(Client client, long now) throws IOException, GeneralSecurityException {
+        mPacket.clear().limit(mPacketSize);
+        mPacket.putLong(IPV4_HEADER_SIZE, now);
+        ByteBuffer datagram = mPacket;
+        if (client.sealer != null) {
+            mSealed.clear();
+            client.sealer.seal(mPacket, mSealed);
+            mSealed.flip();
+            datagram = mSealed;
+        }
+        // A full send buffer loses the packet, like a congested link would.
+        if (write(client.channel, datagram) > 0) {
+            ++mPacketsSent;
+        }
+    }
+
+    private void receive(Client client) throws IOException, GeneralSecurityException {
+        while (true) {
+            mReceived.clear();
+            try {
+                if (client.channel.read(mReceived) <= 0) {
+                    return;
+                }
+            } catch (PortUnreachableException e) {
+                // Nobody listening yet; the hello goes out again anyway.
+                continue;
+            }
+            mReceived.flip();
+            final long now = System.nanoTime();
+            if (client.trafficStartNanos == 0) {
+                if (client.handshake.readReply(mReceived) != null) {
+                    mHandshakeTime.record(now - client.startNanos, TimeUnit.NANOSECONDS);
+                    if (client.handshake instanceof SecureHandshake) {
+                        final SecureHandshake handshake = (SecureHandshake) client.handshake;
+                        client.sealer = new PacketSealer(handshake.sessionKeys());
+                        client.opener = new PacketOpener(handshake.sessionKeys());
+                    }
+                    client.trafficStartNanos = now;
+                }
+                continue;
+            }
+            ByteBuffer packet = mReceived;
+            if (client.opener != null) {
+                if (!Protocol.isFrame(mReceived, Protocol.SEALED)) {
+                    // Keepalives.
+                    continue;
+                }
+                mOpened.clear();
+                if (client.opener.open(mReceived, mOpened) < 0) {
+                    continue;
+                }
+                packet = mOpened;
+                packet.flip();
+            }
+            if (packet.remaining() >= MIN_PACKET_SIZE && packet.get(0) != Protocol.CONTROL) {
+                mRtt.record(now - packet.getLong(IPV4_HEADER_SIZE), TimeUnit.NANOSECONDS);
+                ++mPacketsReceived;
+            }
+        }
+    }
+
+    private static int write(DatagramChannel channel, ByteBuffer datagram) throws IOException {
+        try {
+            return channel.write(datagram);
+        } catch (PortUnreachableException e) {
+            // Nobody listening yet.
+            return 0;
+        }
+    }
+
+    /**
+     * What the clients got done in one run.
+     */
+    public static class Report {
+        public final int clients;
+        /**
+         * Clients whose handshake went through.
+         */
+        public final int established;
+        /**
+         * Hellos sent again, across all clients.
+         */
+        public final long retransmits;
+        public final long packetsSent;
+        public final long packetsReceived;
+        public final LatencyHistogram.Snapshot handshakeTime;
+        public final LatencyHistogram.Snapshot rtt;
+
+        Report(int clients, int established, long retransmits, long packetsSent, long packetsReceived,
+               LatencyHistogram.Snapshot handshakeTime, LatencyHistogram.Snapshot rtt) {
+            this.clients = clients;
+            this.established = established;
+            this.retransmits = retransmits;
+            this.packetsSent = packetsSent;
+            this.packetsReceived = packetsReceived;
+            this.handshakeTime = handshakeTime;
+            this.rtt = rtt;
+        }
+
+        @Override
+        public String toString() {
+            return established + "/" + clients + " clients in, " + retransmits + " hellos sent again, handshake "
+                    + handshakeTime + ", sent " + packetsSent + " packets, received " + packetsReceived
+                    + ", rtt " + rtt;
+        }
+    }
+
+    private static class Client {
+        final DatagramChannel channel;
+        final Handshake handshake;
+        final ByteBuffer hello = ByteBuffer.allocate(128);
+        final RttEstimator rttEstimator = new RttEstimator();
+        long startNanos;
+        long nextHelloNanos;
+        /**
+         * When the handshake went through, or 0 while it hasn't.
+         */
+        long trafficStartNanos;
+        long packetsSent;
+        PacketSealer sealer;
+        PacketOpener opener;
+
+        Client(DatagramChannel channel, Handshake handshake) throws IOException {
+            this.channel = channel;
+            this.handshake = handshake;
+            try {
+                handshake.writeHello(hello);
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            hello.flip();
+        }
+    }
+}
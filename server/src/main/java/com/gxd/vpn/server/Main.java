@@ -0,0 +1,125 @@
+package com.gxd.vpn.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line of the stand-in server and the load generator.
+ * <pre>
+ *   serve [--port 8000] [--secret S] [--parameters "m,1400 r,0.0.0.0,0"] [--paths N] [--sink] [--idle SECONDS]
+ *         [--loss 0.01] [--delay MS] [--jitter MS] [--reorder 0.01] [--seed N] [--path-mtu BYTES]
+ *   load  [--server HOST:PORT] [--secret S] [--clients N] [--encrypt] [--rate PACKETS_PER_SECOND] [--size BYTES]
+ *         [--duration SECONDS]
+ * </pre>
+ * Without {@code --server}, the load generator starts a server of its own on the loopback interface, which takes
+ * the options of {@code serve} as well.
+ */
+public final class Main {
+    private static final String DEFAULT_PARAMETERS = "m,1400 r,0.0.0.0,0 d,8.8.8.8";
+    private static final long STATS_INTERVAL_MS = 1000;
+
+    private Main() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || !args[0].equals("serve") && !args[0].equals("load")) {
+            System.err.println("Usage: serve|load [--option value]..., see " + Main.class.getName());
+            System.exit(2);
+        }
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; ++i) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Not an option: " + args[i]);
+            }
+            final String name = args[i].substring(2);
+            // Flags take no value.
+            final boolean flag = name.equals("sink") || name.equals("encrypt");
+            if (!flag && i + 1 == args.length) {
+                throw new IllegalArgumentException("No value for " + args[i]);
+            }
+            options.put(name, flag ? "true" : args[++i]);
+        }
+        if (args[0].equals("serve")) {
+            serve(options);
+        } else {
+            load(options);
+        }
+    }
+
+    private static void serve(Map<String, String> options) throws Exception {
+        final StandInServer server = server(options, new InetSocketAddress(integer(options, "port", 8000)));
+        final Thread thread = start(server);
+        System.out.println("Serving on " + server.localAddress() + ", " + options);
+        while (thread.isAlive()) {
+            thread.join(STATS_INTERVAL_MS);
+            System.out.println(server.stats());
+        }
+    }
+
+    private static void load(Map<String, String> options) throws Exception {
+        StandInServer server = null;
+        final InetSocketAddress address;
+        final String target = options.get("server");
+        if (target != null) {
+            final int colon = target.lastIndexOf(':');
+            address = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        } else {
+            server = server(options, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            address = server.localAddress();
+            start(server);
+        }
+        try (LoadGenerator generator = new LoadGenerator(address, secret(options), integer(options, "clients", 1000),
+                options.containsKey("encrypt"))) {
+            generator.setTraffic(integer(options, "rate", 0), integer(options, "size", 512));
+            System.out.println(generator.run(TimeUnit.SECONDS.toMillis(integer(options, "duration", 10))));
+        } finally {
+            if (server != null) {
+                System.out.println(server.stats());
+                server.close();
+            }
+        }
+    }
+
+    private static StandInServer server(Map<String, String> options, InetSocketAddress address) throws IOException {
+        final StandInServer server = new StandInServer(address, secret(options),
+                options.getOrDefault("parameters", DEFAULT_PARAMETERS));
+        server.setMaxPaths(integer(options, "paths", 1));
+        server.setSink(options.containsKey("sink"));
+        server.setIdleTimeout(TimeUnit.SECONDS.toMillis(integer(options, "idle", 1800)));
+        if (options.containsKey("path-mtu")) {
+            server.setPathMtu(integer(options, "path-mtu", 0));
+        }
+        server.setImpairment(new Impairment(Double.parseDouble(options.getOrDefault("loss", "0")),
+                integer(options, "delay", 0), integer(options, "jitter", 0),
+                Double.parseDouble(options.getOrDefault("reorder", "0")), integer(options, "seed", 1)));
+        return server;
+    }
+
+    private static Thread start(StandInServer server) {
+        final Thread thread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException | GeneralSecurityException e) {
+                e.printStackTrace();
+            }
+        }, "stand-in-server");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] secret(Map<String, String> options) {
+        return options.getOrDefault("secret", "test").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static int integer(Map<String, String> options, String name, int defaultValue) {
+        final String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -0,0 +1,75 @@
+package com.gxd.vpn.server;
+
+import com.gxd.vpn.tunnel.crypto.PacketOpener;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.ReplayWindow;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.fec.FecDecoder;
+import com.gxd.vpn.tunnel.fec.FecEncoder;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client the server has completed a handshake with, and the tunnels it has joined to it.
+ */
+class Session {
+    final String id;
+    /**
+     * The hello the session was set up with, to recognize it when the client sends it again.
+     */
+    final byte[] hello;
+    /**
+     * The answer to it, sent again as it is, since a secure client has already derived its keys from the first one.
+     */
+    final ByteBuffer reply;
+    /**
+     * Sealer and opener of the session, or {@code null} with the plaintext handshake.
+     */
+    final PacketSealer sealer;
+    final PacketOpener opener;
+    final ReplayWindow replayWindow = new ReplayWindow();
+    final SocketAddress[] paths;
+    /**
+     * Forward error correction per tunnel, set up once the client offers it or sends protected datagrams.
+     */
+    final FecEncoder[] encoders;
+    final FecDecoder[] decoders;
+    /**
+     * Whether a group is open on some tunnel, and the session is on the server's list to send its parity.
+     */
+    boolean parityPending;
+    long lastReceiveNanos;
+
+    /**
+     * @param keys the session keys, or {@code null} with the plaintext handshake
+     */
+    Session(String id, byte[] hello, ByteBuffer reply, SessionKeys keys, int maxPaths, SocketAddress address,
+            long nowNanos) throws GeneralSecurityException {
+        this.id = id;
+        this.hello = hello;
+        this.reply = reply;
+        // The reply was sealed with sequence number 0.
+        sealer = keys != null ? new PacketSealer(keys, new AtomicLong(1)) : null;
+        opener = keys != null ? new PacketOpener(keys) : null;
+        paths = new SocketAddress[maxPaths];
+        paths[0] = address;
+        encoders = new FecEncoder[maxPaths];
+        decoders = new FecDecoder[maxPaths];
+        lastReceiveNanos = nowNanos;
+    }
+
+    /**
+     * @return the index of the tunnel at {@code address}
+     */
+    int path(SocketAddress address) {
+        for (int i = 1; i < paths.length; ++i) {
+            if (address.equals(paths[i])) {
+                return i;
+            }
+        }
+        return 0;
+    }
+}
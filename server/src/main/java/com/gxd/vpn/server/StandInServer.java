@@ -0,0 +1,799 @@
+package com.gxd.vpn.server;
+
+import com.gxd.vpn.tunnel.AdaptiveKeepalive;
+import com.gxd.vpn.tunnel.JoinHandshake;
+import com.gxd.vpn.tunnel.PathMtuProber;
+import com.gxd.vpn.tunnel.PlainHandshake;
+import com.gxd.vpn.tunnel.Protocol;
+import com.gxd.vpn.tunnel.TunnelParameters;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.SecureHandshake;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.crypto.SessionTicket;
+import com.gxd.vpn.tunnel.fec.FecDecoder;
+import com.gxd.vpn.tunnel.fec.FecEncoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stand-in for the VPN server, to load-test clients against on one machine. It speaks the handshakes and the
+ * data protocol of the tunnel, and either bounces the data back to the client or swallows it.
+ * <p>
+ * One thread serves every client from one non-blocking UDP socket, so thousands of simulated clients cost a map
+ * entry and a few hundred bytes each rather than a thread. Clients are told apart by their address:
+ * <ul>
+ * <li>Both the plaintext and the encrypted handshake are taken, see {@link PlainHandshake} and
+ * {@link SecureHandshake}. Every client gets the configured parameters plus an address of its own out of
+ * 10.0.0.0/8 and, with striping on, a session id for its other tunnels to join with, see {@link JoinHandshake}.</li>
+ * <li>A hello that comes again is answered with the same reply, so that a client whose first reply got lost ends
+ * up with the keys the server has.</li>
+ * <li>The parameters come with a resumption ticket, which a client can send back to pick its session up again
+ * without a handshake, its data right behind, see {@link SessionTicket}. Tickets are sealed with a key derived from
+ * the shared secret, so any server with the secret takes them, after a restart as well.</li>
+ * <li>Datagrams of an encrypted session are opened, checked against a replay window, and sealed again with the
+ * server's keys on their way back.</li>
+ * <li>Batches and compressed packets go back as they are, since the client takes them on the way down as well;
+ * they are only looked into to count the packets.</li>
+ * <li>Keepalives are answered with keepalives, so that clients don't time out when the server swallows their
+ * data, and path MTU probes with the size that came in, see {@link PathMtuProber}.</li>
+ * <li>Requests to be echoed later are, from anyone, so that clients can learn how long their NAT bindings last,
+ * see {@link AdaptiveKeepalive}.</li>
+ * <li>If the parameters offer forward error correction, clients may send protected datagrams, which are recovered
+ * before they go back, and what goes back to a client that offers it is protected in turn, with the parity sent
+ * after every burst of datagrams read. Both sides tell each other every second how much got lost.</li>
+ * <li>Sessions that nothing has come from for a while are forgotten.</li>
+ * </ul>
+ * An {@link Impairment} loses datagrams in both directions, and delays and reorders what the server sends. A path
+ * MTU can be set as well, above which datagrams are lost both ways.
+ */
+public class StandInServer implements Closeable {
+    private static final int SOCKET_BUFFER_SIZE = 4 << 20;
+    private static final int MAX_DATAGRAM_SIZE = 0xFFFF;
+    /**
+     * Datagrams read in a row before the delayed ones get their turn.
+     */
+    private static final int MAX_READS = 256;
+    private static final long MILLISECOND_NS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SWEEP_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * Client addresses go from 10.0.0.2 up, leaving out the network, the server and the broadcast address.
+     */
+    private static final int FIRST_ADDRESS = 0x0A000002;
+    private static final int ADDRESSES = (1 << 24) - 3;
+    /**
+     * IPv4 and UDP headers, which count against the path MTU.
+     */
+    private static final int HEADERS_SIZE = 28;
+    /**
+     * Most echoes to hold at once, and the longest delay to hold one for.
+     */
+    private static final int MAX_ECHOES = 4096;
+    private static final long MAX_ECHO_DELAY_MS = TimeUnit.HOURS.toMillis(1);
+    /**
+     * How long a resumption ticket is good for, and most requests to resume to remember at once to catch replays
+     * with; beyond that, requests are turned down until the oldest are forgotten.
+     */
+    private static final long TICKET_LIFETIME_MS = TimeUnit.DAYS.toMillis(1);
+    private static final int MAX_RESUMED_NONCES = 1 << 17;
+    private final DatagramChannel mChannel;
+    private final Selector mSelector;
+    private final byte[] mSharedSecret;
+    private final String mParameters;
+    /**
+     * Forward error correction the parameters offer, or 0, and the largest datagram it protects.
+     */
+    private final int mFecData;
+    private final int mFecParity;
+    private final int mFecDatagramSize;
+    private final SecureRandom mRandom = new SecureRandom();
+    /**
+     * Sessions by the address of every tunnel they have, and by id.
+     */
+    private final Map<SocketAddress, Session> mSessions = new HashMap<>();
+    private final Map<String, Session> mSessionsById = new HashMap<>();
+    private final PriorityQueue<Echo> mEchoes = new PriorityQueue<>();
+    /**
+     * Client nonces of the sessions resumed lately, and when each may be forgotten, in ms since the epoch.
+     */
+    private final Map<ByteBuffer, Long> mResumedNonces = new HashMap<>();
+    /**
+     * Sessions with a group open on some tunnel, whose parity is due once the datagrams read in a row are through.
+     */
+    private final List<Session> mParityPending = new ArrayList<>();
+    private final ByteBuffer mDatagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mOpened = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mSealed = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE + PacketSealer.OVERHEAD);
+    private final ByteBuffer mProtected = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final ByteBuffer mReport = ByteBuffer.allocateDirect(FecDecoder.REPORT_SIZE);
+    private final ByteBuffer mKeepalive = ByteBuffer.allocateDirect(1);
+    private final ByteBuffer mProbeAnswer = ByteBuffer.allocateDirect(PathMtuProber.ANSWER_SIZE);
+    private final ByteBuffer mResumeRejection = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE + 1);
+    private final LongAdder mHandshakes = new LongAdder();
+    private final LongAdder mResumptions = new LongAdder();
+    private final LongAdder mJoins = new LongAdder();
+    private final LongAdder mRejected = new LongAdder();
+    private final LongAdder mDatagramsReceived = new LongAdder();
+    private final LongAdder mBytesReceived = new LongAdder();
+    private final LongAdder mPacketsReceived = new LongAdder();
+    private final LongAdder mDatagramsSent = new LongAdder();
+    private final LongAdder mBytesSent = new LongAdder();
+    private final LongAdder mLost = new LongAdder();
+    private final LongAdder mRecovered = new LongAdder();
+    private final LongAdder mParity = new LongAdder();
+    private volatile int mSessionCount;
+    private Impairment mImpairment = Impairment.NONE;
+    private boolean mSink;
+    private int mMaxPaths = 1;
+    private long mIdleTimeoutNs = TimeUnit.MINUTES.toNanos(30);
+    private int mMaxDatagramSize = MAX_DATAGRAM_SIZE;
+    private int mNextAddress;
+
+    /**
+     * @param parameters what every client is told apart from its address and session id, e.g. "m,1400 r,0.0.0.0,0"
+     */
+    public StandInServer(InetSocketAddress address, byte[] sharedSecret, String parameters) throws IOException {
+        mSharedSecret = sharedSecret;
+        mParameters = parameters.trim();
+        final TunnelParameters offered = TunnelParameters.parse(mParameters);
+        mFecData = offered.fecData;
+        mFecParity = offered.fecParity;
+        // Compressed packets only go out if they come out smaller.
+        mFecDatagramSize = Math.max(offered.mtu, offered.batchFrameSize);
+        mChannel = DatagramChannel.open()
+                .setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE)
+                .setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE)
+                .bind(address);
+        mChannel.configureBlocking(false);
+        mSelector = Selector.open();
+        mChannel.register(mSelector, SelectionKey.OP_READ);
+        mKeepalive.put(0, Protocol.CONTROL);
+        mResumeRejection.put(Protocol.CONTROL).put(Protocol.RESUME).put(SessionTicket.REJECTED).flip();
+    }
+
+    /**
+     * Makes the server swallow data instead of sending it back. Call before {@link #serve}.
+     */
+    public void setSink(boolean sink) {
+        mSink = sink;
+    }
+
+    /**
+     * Lets every client stripe over up to {@code maxPaths} tunnels. Call before {@link #serve}.
+     */
+    public void setMaxPaths(int maxPaths) {
+        if (maxPaths < 1 || maxPaths > 0xFF) {
+            throw new IllegalArgumentException("Bad number of paths: " + maxPaths);
+        }
+        mMaxPaths = maxPaths;
+    }
+
+    /**
+     * Call before {@link #serve}.
+     */
+    public void setImpairment(Impairment impairment) {
+        mImpairment = impairment;
+    }
+
+    /**
+     * Makes the path to and from the server carry IP packets of up to {@code mtu} bytes only, as if datagrams were
+     * sent over IPv4 without fragmenting. Call before {@link #serve}.
+     */
+    public void setPathMtu(int mtu) {
+        if (mtu <= HEADERS_SIZE + PathMtuProber.ANSWER_SIZE) {
+            throw new IllegalArgumentException("Bad path MTU: " + mtu);
+        }
+        mMaxDatagramSize = Math.min(MAX_DATAGRAM_SIZE, mtu - HEADERS_SIZE);
+    }
+
+    /**
+     * Sets how long a session is kept without anything coming from it, 30 minutes by default: longer than clients
+     * stretch their keepalive interval to. Call before {@link #serve}.
+     */
+    public void setIdleTimeout(long idleTimeoutMs) {
+        mIdleTimeoutNs = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    }
+
+    public InetSocketAddress localAddress() throws IOException {
+        return (InetSocketAddress) mChannel.getLocalAddress();
+    }
+
+    /**
+     * Serves clients until {@link #close} is called.
+     */
+    public void serve() throws IOException, GeneralSecurityException {
+        try {
+            long nextSweep = System.nanoTime() + SWEEP_INTERVAL_NS;
+            while (mChannel.isOpen()) {
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_INTERVAL_NS;
+                }
+                long waitNs = nextSweep - now;
+                final long dueNs = mImpairment.flush(mChannel, now);
+                if (dueNs >= 0) {
+                    waitNs = Math.min(waitNs, dueNs);
+                }
+                final long echoDueNs = echo(now);
+                if (echoDueNs >= 0) {
+                    waitNs = Math.min(waitNs, echoDueNs);
+                }
+                // Round up, so as not to wake up before anything is due, and never pass 0, which waits forever.
+                mSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNs + MILLISECOND_NS - 1)));
+                mSelector.selectedKeys().clear();
+                for (int i = 0; i < MAX_READS; ++i) {
+                    mDatagram.clear();
+                    final SocketAddress from = mChannel.receive(mDatagram);
+                    if (from == null) {
+                        break;
+                    }
+                    mDatagram.flip();
+                    receive(mDatagram, from, System.nanoTime());
+                }
+                flushParity(System.nanoTime());
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // Closed.
+        } finally {
+            mSelector.close();
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+        mSelector.wakeup();
+    }
+
+    private void receive(ByteBuffer datagram, SocketAddress from, long now)
+            throws IOException, GeneralSecurityException {
+        final int length = datagram.remaining();
+        mDatagramsReceived.increment();
+        mBytesReceived.add(length);
+        if (length == 0) {
+            return;
+        }
+        if (length > mMaxDatagramSize || mImpairment.lose()) {
+            mLost.increment();
+            return;
+        }
+        if (datagram.get(0) == Protocol.CONTROL && length > 1) {
+            final byte type = datagram.get(1);
+            if (type == Protocol.HELLO) {
+                secureHello(datagram, from, now);
+                return;
+            }
+            if (type == Protocol.JOIN) {
+                join(datagram, from, now);
+                return;
+            }
+            if (type == Protocol.RESUME) {
+                resume(datagram, from, now);
+                return;
+            }
+            if (type == Protocol.ECHO_LATER) {
+                echoLater(datagram, from, now);
+                return;
+            }
+            if ((type & 0xFF) >= 0x20) {
+                plainHello(datagram, from, now);
+                return;
+            }
+        }
+        final Session session = mSessions.get(from);
+        if (session == null) {
+            mRejected.increment();
+            return;
+        }
+        session.lastReceiveNanos = now;
+        if (length == 1 && datagram.get(0) == Protocol.CONTROL) {
+            mKeepalive.clear();
+            send(mKeepalive, from, now);
+            return;
+        }
+        if (Protocol.isFrame(datagram, Protocol.PROBE) && length > PathMtuProber.ANSWER_SIZE) {
+            // Answer with the token and the size.
+            mProbeAnswer.clear();
+            for (int i = 0; i < PathMtuProber.ANSWER_SIZE - 2; ++i) {
+                mProbeAnswer.put(datagram.get(i));
+            }
+            mProbeAnswer.putShort((short) length).flip();
+            send(mProbeAnswer, from, now);
+            return;
+        }
+        ByteBuffer plaintext = datagram;
+        if (session.opener != null) {
+            mOpened.clear();
+            // Forgeries come back as -1, which the window rejects as well.
+            if (!session.replayWindow.accept(session.opener.open(datagram, mOpened))) {
+                mRejected.increment();
+                return;
+            }
+            plaintext = mOpened;
+            plaintext.flip();
+        }
+        final int path = session.path(from);
+        if (mFecData > 0 && Protocol.isFrame(plaintext, Protocol.FEC)) {
+            if (FecDecoder.isReport(plaintext)) {
+                // An offer to take protected datagrams, or a report on how that goes.
+                if (session.encoders[path] == null) {
+                    session.encoders[path] = new FecEncoder(mFecData, mFecParity, mFecDatagramSize);
+                }
+                final int loss = FecDecoder.reportedLoss(plaintext);
+                if (loss >= 0) {
+                    session.encoders[path].setLoss(loss);
+                }
+                return;
+            }
+            if (session.decoders[path] == null) {
+                session.decoders[path] = new FecDecoder(mFecData, mFecParity, mFecDatagramSize);
+            }
+            mRecovered.add(session.decoders[path].receive(plaintext,
+                    recovered -> forward(session, path, recovered, from, now)));
+            return;
+        }
+        forward(session, path, plaintext, from, now);
+    }
+
+    /**
+     * Counts the packets in a datagram from a client, and sends it back unless the server swallows data, protected
+     * if the client asked for that.
+     */
+    private void forward(Session session, int path, ByteBuffer plaintext, SocketAddress from, long now)
+            throws IOException {
+        final int packets = packets(plaintext);
+        mPacketsReceived.add(packets);
+        if (mSink || packets == 0) {
+            return;
+        }
+        final FecEncoder encoder = session.encoders[path];
+        if (encoder == null || plaintext.remaining() > encoder.maxDatagramSize()) {
+            send(session, plaintext, from, now);
+            return;
+        }
+        final boolean full = encoder.protect(plaintext, mProtected);
+        send(session, mProtected, from, now);
+        if (full) {
+            flushParity(session, path, now);
+        } else if (!session.parityPending) {
+            session.parityPending = true;
+            mParityPending.add(session);
+        }
+    }
+
+    /**
+     * Sends the parity of every group left open by the datagrams read in a row.
+     */
+    private void flushParity(long now) throws IOException {
+        if (mParityPending.isEmpty()) {
+            return;
+        }
+        for (Session session : mParityPending) {
+            session.parityPending = false;
+            for (int path = 0; path < session.paths.length; ++path) {
+                flushParity(session, path, now);
+            }
+        }
+        mParityPending.clear();
+    }
+
+    private void flushParity(Session session, int path, long now) throws IOException {
+        final FecEncoder encoder = session.encoders[path];
+        if (encoder == null || session.paths[path] == null) {
+            return;
+        }
+        while (encoder.parity(mProtected)) {
+            send(session, mProtected, session.paths[path], now);
+            mParity.increment();
+        }
+    }
+
+    /**
+     * Sends plaintext to one of the session's tunnels, sealed if the session is encrypted.
+     */
+    private void send(Session session, ByteBuffer plaintext, SocketAddress to, long now) throws IOException {
+        if (session.sealer == null) {
+            send(plaintext, to, now);
+            return;
+        }
+        mSealed.clear();
+        try {
+            session.sealer.seal(plaintext, mSealed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        mSealed.flip();
+        send(mSealed, to, now);
+    }
+
+    /**
+     * <pre>
+     *   client: 0x00 | shared secret
+     *   server: 0x00 | parameter string
+     * </pre>
+     */
+    private void plainHello(ByteBuffer hello, SocketAddress from, long now)
+            throws IOException, GeneralSecurityException {
+        if (answerAgain(hello, from, now)) {
+            return;
+        }
+        final byte[] secret = new byte[hello.remaining() - 1];
+        final ByteBuffer secretBytes = hello.duplicate();
+        secretBytes.position(hello.position() + 1);
+        secretBytes.get(secret);
+        if (!MessageDigest.isEqual(secret, mSharedSecret)) {
+            mRejected.increment();
+            return;
+        }
+        final String id = newSessionId();
+        final String session = parameters(id);
+        final byte[] parameters = (session + " " + SessionTicket.issue(mSharedSecret, session, null,
+                System.currentTimeMillis() + TICKET_LIFETIME_MS, mRandom)).getBytes(StandardCharsets.US_ASCII);
+        final ByteBuffer reply = ByteBuffer.allocate(1 + parameters.length);
+        reply.put(Protocol.CONTROL).put(parameters).flip();
+        mHandshakes.increment();
+        establish(new Session(id, copy(hello), reply, null, mMaxPaths, from, now), from, now);
+    }
+
+    private void secureHello(ByteBuffer hello, SocketAddress from, long now)
+            throws IOException, GeneralSecurityException {
+        if (answerAgain(hello, from, now)) {
+            return;
+        }
+        final byte[] clientNonce = SecureHandshake.verifyHello(hello.duplicate(), mSharedSecret);
+        if (clientNonce == null) {
+            mRejected.increment();
+            return;
+        }
+        final String id = newSessionId();
+        final String session = parameters(id);
+        final byte[] secret = new byte[SessionTicket.SECRET_SIZE];
+        mRandom.nextBytes(secret);
+        final String parameters = session + " " + SessionTicket.issue(mSharedSecret, session, secret,
+                System.currentTimeMillis() + TICKET_LIFETIME_MS, mRandom);
+        final ByteBuffer reply = ByteBuffer.allocate(Protocol.HEADER_SIZE + SecureHandshake.NONCE_SIZE
+                + PacketSealer.OVERHEAD + parameters.length());
+        final SessionKeys keys = SecureHandshake.writeReply(reply, mSharedSecret, clientNonce, parameters, mRandom);
+        reply.flip();
+        mHandshakes.increment();
+        establish(new Session(id, copy(hello), reply, keys, mMaxPaths, from, now), from, now);
+    }
+
+    /**
+     * Picks a session back up from its ticket, under the session id it had, taking over from what is left of it.
+     * The answer is sealed with the resumed keys like the parameters of a handshake, and sent again if the request
+     * is. Anything else is turned down in plaintext, so that the client does a handshake instead of waiting.
+     */
+    private void resume(ByteBuffer request, SocketAddress from, long now)
+            throws IOException, GeneralSecurityException {
+        if (answerAgain(request, from, now)) {
+            return;
+        }
+        final long nowMs = System.currentTimeMillis();
+        final SessionTicket.Resumption resumption = SessionTicket.accept(request, mSharedSecret, nowMs);
+        final ByteBuffer nonce = resumption != null ? ByteBuffer.wrap(resumption.clientNonce) : null;
+        if (resumption == null || mResumedNonces.containsKey(nonce) || mResumedNonces.size() >= MAX_RESUMED_NONCES) {
+            mRejected.increment();
+            send(mResumeRejection.duplicate(), from, now);
+            return;
+        }
+        mResumedNonces.put(nonce, nowMs + SessionTicket.REPLAY_WINDOW_MS);
+        String id = TunnelParameters.parse(resumption.parameters).sessionId;
+        if (id == null) {
+            id = newSessionId();
+        } else {
+            drop(mSessionsById.get(id));
+        }
+        final ByteBuffer accepted = ByteBuffer.allocate(Protocol.HEADER_SIZE + 1);
+        accepted.put(Protocol.CONTROL).put(Protocol.RESUME).put(SessionTicket.ACCEPTED).flip();
+        final ByteBuffer reply = ByteBuffer.allocate(accepted.remaining() + PacketSealer.OVERHEAD);
+        if (resumption.keys != null) {
+            new PacketSealer(resumption.keys, new AtomicLong(0)).seal(accepted, reply);
+        } else {
+            reply.put(accepted);
+        }
+        reply.flip();
+        mResumptions.increment();
+        establish(new Session(id, copy(request), reply, resumption.keys, mMaxPaths, from, now), from, now);
+    }
+
+    /**
+     * Adds a tunnel to a session; the request is echoed back as the answer.
+     * <pre>
+     *   client: 0x00 JOIN | path index (1) | session id
+     * </pre>
+     */
+    private void join(ByteBuffer request, SocketAddress from, long now) throws IOException {
+        final int start = request.position();
+        if (request.remaining() < Protocol.HEADER_SIZE + 2) {
+            mRejected.increment();
+            return;
+        }
+        final int path = request.get(start + Protocol.HEADER_SIZE) & 0xFF;
+        final byte[] id = new byte[request.remaining() - Protocol.HEADER_SIZE - 1];
+        final ByteBuffer idBytes = request.duplicate();
+        idBytes.position(start + Protocol.HEADER_SIZE + 1);
+        idBytes.get(id);
+        final Session session = mSessionsById.get(new String(id, StandardCharsets.US_ASCII));
+        if (session == null || path == 0 || path >= session.paths.length) {
+            mRejected.increment();
+            return;
+        }
+        final Session previous = mSessions.get(from);
+        if (previous != session) {
+            drop(previous);
+            if (session.paths[path] != null) {
+                // The client joined this path again from a new address.
+                mSessions.remove(session.paths[path]);
+            }
+            session.paths[path] = from;
+            mSessions.put(from, session);
+            mJoins.increment();
+        }
+        session.lastReceiveNanos = now;
+        send(request, from, now);
+    }
+
+    /**
+     * Holds on to a request to echo it once the delay it asks for is over.
+     */
+    private void echoLater(ByteBuffer request, SocketAddress from, long now) {
+        if (request.remaining() != AdaptiveKeepalive.REQUEST_SIZE || mEchoes.size() >= MAX_ECHOES) {
+            mRejected.increment();
+            return;
+        }
+        final long delayMs = request.getInt(request.limit() - 4) & 0xFFFFFFFFL;
+        if (delayMs > MAX_ECHO_DELAY_MS) {
+            mRejected.increment();
+            return;
+        }
+        mEchoes.add(new Echo(now + TimeUnit.MILLISECONDS.toNanos(delayMs), from, copy(request)));
+    }
+
+    /**
+     * Sends the echoes that are due.
+     *
+     * @return nanoseconds until the next one is, or -1 if there are none
+     */
+    private long echo(long now) throws IOException {
+        Echo echo;
+        while ((echo = mEchoes.peek()) != null && now - echo.dueNanos >= 0) {
+            mEchoes.poll();
+            send(ByteBuffer.wrap(echo.message), echo.to, now);
+        }
+        return echo != null ? echo.dueNanos - now : -1;
+    }
+
+    /**
+     * Sends the reply again if the client at {@code from} repeats the hello its session was set up with.
+     */
+    private boolean answerAgain(ByteBuffer hello, SocketAddress from, long now) throws IOException {
+        final Session session = mSessions.get(from);
+        if (session == null || !from.equals(session.paths[0]) || !ByteBuffer.wrap(session.hello).equals(hello)) {
+            return false;
+        }
+        session.lastReceiveNanos = now;
+        send(session.reply.duplicate(), from, now);
+        return true;
+    }
+
+    /**
+     * Takes over {@code from} for a new session, dropping the one it had if it handshakes again, and answers.
+     */
+    private void establish(Session session, SocketAddress from, long now) throws IOException {
+        drop(mSessions.get(from));
+        mSessions.put(from, session);
+        mSessionsById.put(session.id, session);
+        mSessionCount = mSessionsById.size();
+        send(session.reply.duplicate(), from, now);
+    }
+
+    private void drop(Session session) {
+        if (session == null) {
+            return;
+        }
+        for (SocketAddress path : session.paths) {
+            if (path != null) {
+                mSessions.remove(path, session);
+            }
+        }
+        mSessionsById.remove(session.id);
+        mSessionCount = mSessionsById.size();
+    }
+
+    /**
+     * Forgets idle sessions and the requests to resume that can't come back anymore, and tells the other sessions
+     * how much of what they protect got lost.
+     */
+    private void sweep(long now) throws IOException {
+        final long nowMs = System.currentTimeMillis();
+        mResumedNonces.values().removeIf(forgetAtMs -> nowMs - forgetAtMs > 0);
+        final Iterator<Session> sessions = mSessionsById.values().iterator();
+        while (sessions.hasNext()) {
+            final Session session = sessions.next();
+            if (now - session.lastReceiveNanos > mIdleTimeoutNs) {
+                for (SocketAddress path : session.paths) {
+                    if (path != null) {
+                        mSessions.remove(path, session);
+                    }
+                }
+                sessions.remove();
+                continue;
+            }
+            for (int path = 0; path < session.paths.length; ++path) {
+                final FecDecoder decoder = session.decoders[path];
+                if (decoder != null && session.paths[path] != null && decoder.takeLoss(mReport)) {
+                    send(session, mReport, session.paths[path], now);
+                }
+            }
+        }
+        mSessionCount = mSessionsById.size();
+    }
+
+    private void send(ByteBuffer datagram, SocketAddress to, long now) throws IOException {
+        final int length = datagram.remaining();
+        if (length <= mMaxDatagramSize && mImpairment.send(mChannel, datagram, to, now)) {
+            mDatagramsSent.increment();
+            mBytesSent.add(length);
+        } else {
+            mLost.increment();
+        }
+    }
+
+    private String parameters(String sessionId) {
+        final int address = FIRST_ADDRESS + mNextAddress;
+        mNextAddress = (mNextAddress + 1) % ADDRESSES;
+        final StringBuilder parameters = new StringBuilder(mParameters)
+                .append(" a,10.").append(address >>> 16 & 0xFF).append('.').append(address >>> 8 & 0xFF)
+                .append('.').append(address & 0xFF).append(",32");
+        if (mMaxPaths > 1) {
+            parameters.append(" p,").append(mMaxPaths).append(',').append(sessionId);
+        }
+        return parameters.toString();
+    }
+
+    private String newSessionId() {
+        String id;
+        do {
+            id = Long.toHexString(mRandom.nextLong());
+        } while (mSessionsById.containsKey(id));
+        return id;
+    }
+
+    /**
+     * @return the number of IP packets in a datagram's plaintext: one, a batch's worth, or none for control messages
+     */
+    private static int packets(ByteBuffer plaintext) {
+        if (!plaintext.hasRemaining()) {
+            return 0;
+        }
+        if (plaintext.get(plaintext.position()) != Protocol.CONTROL) {
+            return 1;
+        }
+        if (Protocol.isFrame(plaintext, Protocol.COMPRESSED)) {
+            // Without a packet, it's the client offering to take compressed packets.
+            return plaintext.remaining() > Protocol.HEADER_SIZE ? 1 : 0;
+        }
+        if (!Protocol.isFrame(plaintext, Protocol.BATCH)) {
+            return 0;
+        }
+        int count = 0;
+        for (int at = plaintext.position() + Protocol.HEADER_SIZE; at + 2 <= plaintext.limit(); ++count) {
+            final int length = plaintext.getShort(at) & 0xFFFF;
+            at += 2 + length;
+            if (length == 0 || at > plaintext.limit()) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] copy(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * What the server has been doing since it started. Counters are read one after the other, so they are not
+     * exactly consistent with each other while traffic flows.
+     */
+    public static class Stats {
+        public final long timeNanos;
+        public final int sessions;
+        public final long handshakes;
+        /**
+         * Sessions picked back up with a ticket rather than a handshake.
+         */
+        public final long resumptions;
+        public final long joins;
+        /**
+         * Datagrams from unknown clients, with the wrong secret, forged or replayed.
+         */
+        public final long rejected;
+        public final long datagramsReceived;
+        public final long bytesReceived;
+        public final long packetsReceived;
+        public final long datagramsSent;
+        public final long bytesSent;
+        /**
+         * Datagrams lost to the impairment in either direction, or for lack of room.
+         */
+        public final long lost;
+        /**
+         * Datagrams recovered from forward error correction, and parity datagrams sent.
+         */
+        public final long recovered;
+        public final long parity;
+
+        Stats(StandInServer server) {
+            timeNanos = System.nanoTime();
+            sessions = server.mSessionCount;
+            handshakes = server.mHandshakes.sum();
+            resumptions = server.mResumptions.sum();
+            joins = server.mJoins.sum();
+            rejected = server.mRejected.sum();
+            datagramsReceived = server.mDatagramsReceived.sum();
+            bytesReceived = server.mBytesReceived.sum();
+            packetsReceived = server.mPacketsReceived.sum();
+            datagramsSent = server.mDatagramsSent.sum();
+            bytesSent = server.mBytesSent.sum();
+            lost = server.mLost.sum();
+            recovered = server.mRecovered.sum();
+            parity = server.mParity.sum();
+        }
+
+        @Override
+        public String toString() {
+            return sessions + " sessions, " + handshakes + " handshakes, " + resumptions + " resumptions, " + joins
+                    + " joins, received "
+                    + datagramsReceived + " datagrams/" + bytesReceived + " bytes/" + packetsReceived
+                    + " packets, sent " + datagramsSent + " datagrams/" + bytesSent + " bytes, " + rejected
+                    + " rejected, " + lost + " lost, " + recovered + " recovered, " + parity + " parity";
+        }
+    }
+
+    private static class Echo implements Comparable<Echo> {
+        final long dueNanos;
+        final SocketAddress to;
+        final byte[] message;
+
+        Echo(long dueNanos, SocketAddress to, byte[] message) {
+            this.dueNanos = dueNanos;
+            this.to = to;
+            this.message = message;
+        }
+
+        @Override
+        public int compareTo(Echo other) {
+            return Long.compare(dueNanos - other.dueNanos, 0);
+        }
+    }
+}
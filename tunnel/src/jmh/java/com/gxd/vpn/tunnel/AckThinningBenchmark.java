@@ -0,0 +1,109 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.shaping.LatencyClassifier;
+import com.gxd.vpn.tunnel.shaping.TrafficShaper;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ACK stream of downloads on an asymmetric link: the uplink is shaped to {@link #RATE}, and every operation
+ * sends the pure ACKs a few downloads send back for a round of data, then waits until the last ACK of every flow
+ * has come through. That last one is all the senders need; with {@code ackThinning} the pump drops the ACKs it makes
+ * redundant, so the round goes through in a fraction of the uplink time. The {@code acks} counter is what came
+ * through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class AckThinningBenchmark {
+    /**
+     * 800 kbit/s, the uplink of a slow ADSL or a crowded cell.
+     */
+    private static final long RATE = 100_000;
+    private static final int BURST = 2 * LoopbackTunnel.MTU;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int FLOWS = 4;
+    /**
+     * ACKs per flow and round: one for every other segment of a 64 KB window.
+     */
+    private static final int ACKS_PER_FLOW = 22;
+    private static final int ACK_SIZE = 60;
+    private static final int FIRST_PORT = 50000;
+    private static final int ACK_OFFSET = 48;
+    private static final int SEGMENT_SIZE = 1460;
+    @Param({"false", "true"})
+    public boolean ackThinning;
+    private LoopbackTunnel mTunnel;
+    private DatagramPacket[] mAcks;
+    private DatagramPacket mReply;
+    private int mRound;
+
+    @Setup
+    public void setUp() throws IOException {
+        final TrafficShaper shaper = new TrafficShaper(new LatencyClassifier(), QUEUE_CAPACITY);
+        shaper.setRate(RATE, BURST);
+        mTunnel = new LoopbackTunnel(1, 1, false, shaper, ackThinning);
+        // Interleaved by flow, as the downloads' segments come in.
+        mAcks = new DatagramPacket[FLOWS * ACKS_PER_FLOW];
+        for (int i = 0; i < mAcks.length; ++i) {
+            mAcks[i] = new DatagramPacket(Packets.ipv6Tcp(ACK_SIZE, FIRST_PORT + i % FLOWS, 443), ACK_SIZE);
+        }
+        mReply = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTunnel.close();
+    }
+
+    @Benchmark
+    public void round(Counters counters) throws IOException {
+        final int base = ++mRound * ACKS_PER_FLOW * 2 * SEGMENT_SIZE;
+        for (int i = 0; i < mAcks.length; ++i) {
+            ByteBuffer.wrap(mAcks[i].getData()).putInt(ACK_OFFSET, base + (i / FLOWS + 1) * 2 * SEGMENT_SIZE);
+            mTunnel.send(mAcks[i]);
+        }
+        final int last = base + ACKS_PER_FLOW * 2 * SEGMENT_SIZE;
+        int done = 0;
+        while (done < FLOWS) {
+            mReply.setLength(Short.MAX_VALUE);
+            mTunnel.receive(mReply);
+            counters.acks++;
+            if (ByteBuffer.wrap(mReply.getData()).getInt(ACK_OFFSET) == last) {
+                ++done;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long acks;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            acks = 0;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.server.Impairment;
+import com.gxd.vpn.server.StandInServer;
+import com.gxd.vpn.tunnel.fec.FecEncoder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Goodput of a reliable transfer through a {@link StandInServer} that loses datagrams both ways, with and without
+ * forward error correction. Every operation moves a block of packets: they all go out, each one that comes back
+ * counts as acknowledged, and whatever hasn't once nothing came back for {@link #RTO_MS} goes out again, the way a
+ * TCP sender's retransmit timer works. Without correction, a single loss anywhere in the block costs a timeout;
+ * with it, most losses are recovered right away, for the parity they cost. The goodput is the {@code bytes}
+ * counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class FecBenchmark {
+    private static final int RTO_MS = 200;
+    /**
+     * How long the server holds on to what it sends back, for a round trip that isn't instant.
+     */
+    private static final int DELAY_MS = 20;
+    private static final int BLOCK_PACKETS = 64;
+    private static final int MTU = 1500;
+    private static final int BUFFER_POOL_CAPACITY = 1024;
+    private static final int SOCKET_BUFFER_SIZE = 4 << 20;
+    /**
+     * Where the block number and the packet's index in it go, in the UDP payload.
+     */
+    private static final int BLOCK_OFFSET = 28;
+    private static final int INDEX_OFFSET = BLOCK_OFFSET + 4;
+    private static final byte[] SECRET = "fec".getBytes(StandardCharsets.US_ASCII);
+    @Param({"0", "0.01", "0.02", "0.05"})
+    public double loss;
+    @Param({"false", "true"})
+    public boolean fec;
+    @Param({"1200"})
+    public int packetSize;
+    private StandInServer mServer;
+    private DatagramChannel mTunnel;
+    private DatagramChannel mTunSide;
+    private DatagramSocket mApp;
+    private PacketPump mPump;
+    private DatagramPacket[] mPackets;
+    private DatagramPacket mReply;
+    private final BitSet mAcknowledged = new BitSet(BLOCK_PACKETS);
+    private int mBlock;
+
+    @Setup
+    public void setUp() throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        mServer = new StandInServer(new InetSocketAddress(loopback, 0), SECRET,
+                "m," + MTU + " r,0.0.0.0,0" + (fec ? " f,10,4" : ""));
+        mServer.setImpairment(new Impairment(loss, DELAY_MS, 0, 0, 1));
+        final Thread serverThread = new Thread(() -> {
+            try {
+                mServer.serve();
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "fec-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        mTunnel = DatagramChannel.open();
+        mTunnel.connect(mServer.localAddress());
+        final TunnelParameters parameters = handshake(mTunnel);
+
+        mTunSide = DatagramChannel.open()
+                .setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE)
+                .bind(new InetSocketAddress(loopback, 0));
+        mApp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        mApp.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        mApp.setSoTimeout(RTO_MS);
+        mApp.connect(mTunSide.getLocalAddress());
+        mTunSide.connect(mApp.getLocalSocketAddress());
+        mPump = new PacketPump(new ChannelTunDevice(mTunSide, mTunSide),
+                new BufferPool(MTU + FecEncoder.OVERHEAD, BUFFER_POOL_CAPACITY),
+                Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, "fec");
+        if (parameters.fecData > 0) {
+            mPump.setFec(parameters.fecData, parameters.fecParity);
+        }
+        final Thread pumpThread = new Thread(() -> {
+            try {
+                mPump.run(mTunnel, null);
+            } catch (IOException | RuntimeException ignored) {
+                // Closed.
+            }
+        }, "fec-pump");
+        pumpThread.setDaemon(true);
+        pumpThread.start();
+
+        mPackets = new DatagramPacket[BLOCK_PACKETS];
+        for (int i = 0; i < BLOCK_PACKETS; ++i) {
+            final byte[] packet = Packets.ipv4Udp(packetSize, 10000, 53);
+            ByteBuffer.wrap(packet).putShort(INDEX_OFFSET, (short) i);
+            mPackets[i] = new DatagramPacket(packet, packetSize);
+        }
+        mReply = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mPump.close();
+        mServer.close();
+        mApp.close();
+        mTunSide.close();
+    }
+
+    @Benchmark
+    public void block(Counters counters) throws IOException {
+        ++mBlock;
+        mAcknowledged.clear();
+        for (DatagramPacket packet : mPackets) {
+            ByteBuffer.wrap(packet.getData()).putInt(BLOCK_OFFSET, mBlock);
+            mApp.send(packet);
+        }
+        int acknowledged = 0;
+        while (acknowledged < BLOCK_PACKETS) {
+            mReply.setLength(Short.MAX_VALUE);
+            try {
+                mApp.receive(mReply);
+            } catch (SocketTimeoutException e) {
+                counters.timeouts++;
+                for (int i = mAcknowledged.nextClearBit(0); i < BLOCK_PACKETS; i = mAcknowledged.nextClearBit(i + 1)) {
+                    mApp.send(mPackets[i]);
+                    counters.retransmits++;
+                }
+                continue;
+            }
+            final ByteBuffer reply = ByteBuffer.wrap(mReply.getData(), 0, mReply.getLength());
+            if (mReply.getLength() != packetSize || reply.getInt(BLOCK_OFFSET) != mBlock) {
+                // Late, from a block that is already through.
+                continue;
+            }
+            final int index = reply.getShort(INDEX_OFFSET);
+            if (index >= 0 && index < BLOCK_PACKETS && !mAcknowledged.get(index)) {
+                mAcknowledged.set(index);
+                ++acknowledged;
+            }
+        }
+        counters.packets += BLOCK_PACKETS;
+        counters.bytes += BLOCK_PACKETS * packetSize;
+    }
+
+    /**
+     * Sends the hello until the server answers, since the server loses it like anything else.
+     */
+    private static TunnelParameters handshake(DatagramChannel tunnel) throws IOException {
+        final PlainHandshake handshake = new PlainHandshake(SECRET);
+        final ByteBuffer hello = ByteBuffer.allocate(64);
+        handshake.writeHello(hello);
+        hello.flip();
+        final ByteBuffer reply = ByteBuffer.allocate(MTU);
+        tunnel.configureBlocking(false);
+        try {
+            while (true) {
+                hello.rewind();
+                tunnel.write(hello);
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RTO_MS);
+                while (System.nanoTime() - deadline < 0) {
+                    reply.clear();
+                    if (tunnel.read(reply) > 0) {
+                        reply.flip();
+                        final String parameters = handshake.readReply(reply);
+                        if (parameters != null) {
+                            return TunnelParameters.parse(parameters);
+                        }
+                    }
+                    Thread.sleep(1);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            tunnel.configureBlocking(true);
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long packets;
+        public long bytes;
+        public long timeouts;
+        public long retransmits;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+            bytes = 0;
+            timeouts = 0;
+            retransmits = 0;
+        }
+    }
+}
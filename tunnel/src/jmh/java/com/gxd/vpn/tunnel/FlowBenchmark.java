@@ -0,0 +1,78 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.flow.FlowTable;
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-packet cost of parsing the headers and counting the packet against its flow. The packets cycle through a
+ * number of flows that are all tracked already, so a lookup hits; with many flows the table no longer fits into
+ * the caches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class FlowBenchmark {
+    private static final int PACKET_SIZE = 64;
+    @Param({"1", "1024", "65536"})
+    public int flows;
+    @Param({"ipv4Udp", "ipv6Tcp"})
+    public String packetType;
+    private final PacketHeaders mHeaders = new PacketHeaders();
+    private ByteBuffer mPackets;
+    private FlowTable mTable;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mPackets = ByteBuffer.allocateDirect(flows * PACKET_SIZE);
+        for (int i = 0; i < flows; ++i) {
+            final int srcPort = 1024 + i % 60000;
+            final int dstPort = 443 + i / 60000;
+            mPackets.put("ipv6Tcp".equals(packetType)
+                    ? Packets.ipv6Tcp(PACKET_SIZE, srcPort, dstPort)
+                    : Packets.ipv4Udp(PACKET_SIZE, srcPort, dstPort));
+        }
+        mTable = new FlowTable(flows, Long.MAX_VALUE / 2);
+        for (int i = 0; i < flows; ++i) {
+            record();
+        }
+    }
+
+    @Benchmark
+    public boolean parse() {
+        return mHeaders.parse(next());
+    }
+
+    @Benchmark
+    public void record() {
+        final ByteBuffer packet = next();
+        if (mHeaders.parse(packet)) {
+            mTable.record(mHeaders, true, PACKET_SIZE, 0);
+        }
+    }
+
+    private ByteBuffer next() {
+        final int start = mNext * PACKET_SIZE;
+        mNext = mNext + 1 == flows ? 0 : mNext + 1;
+        mPackets.limit(start + PACKET_SIZE).position(start);
+        return mPackets;
+    }
+}
@@ -0,0 +1,197 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.crypto.PacketOpener;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.shaping.TrafficShaper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link PacketPump} wired up entirely on the loopback interface.
+ * <p>
+ * A local UDP echo socket stands in for the VPN server and a connected pair of datagram sockets stands in
+ * for the TUN interface. A packet sent from the app side goes up through the pump, bounces off the echo
+ * server and comes back down to the app side.
+ * <p>
+ * Striped over several tunnels, every tunnel gets an echo socket and thread of its own. With encryption, the echo
+ * server opens every datagram and seals it again with the server's keys, as a real server would.
+ */
+final class LoopbackTunnel implements Closeable {
+    private static final int SOCKET_BUFFER_SIZE = 4 << 20;
+    private static final int RECEIVE_TIMEOUT_MS = 1000;
+    static final int MTU = 1500;
+    /**
+     * Keeps batch datagrams within a typical 1500-byte path MTU once IP and UDP headers are added.
+     */
+    private static final int MAX_FRAME_SIZE = 1472;
+    /**
+     * Free buffers to keep, enough for the striping workers' and the shaper's queues not to allocate in steady state.
+     */
+    private static final int BUFFER_POOL_CAPACITY = 1024;
+    private static final byte[] SECRET = "loopback".getBytes(StandardCharsets.US_ASCII);
+    private final List<DatagramChannel> mServers = new ArrayList<>();
+    private final DatagramChannel mTunSide;
+    private final DatagramSocket mApp;
+    private final Thread mPumpThread;
+    private final PacketPump mPump;
+    private volatile Throwable mPumpFailure;
+
+    LoopbackTunnel() throws IOException {
+        this(1);
+    }
+
+    /**
+     * @param maxBatchPackets most packets the uplink coalesces into one datagram, 1 to disable batching
+     */
+    LoopbackTunnel(int maxBatchPackets) throws IOException {
+        this(maxBatchPackets, 1, false);
+    }
+
+    /**
+     * @param paths   number of tunnels to stripe over
+     * @param encrypt whether to seal every datagram
+     */
+    LoopbackTunnel(int maxBatchPackets, int paths, boolean encrypt) throws IOException {
+        this(maxBatchPackets, paths, encrypt, null);
+    }
+
+    /**
+     * @param shaper to schedule the uplink with, or {@code null} to send packets as they come
+     */
+    LoopbackTunnel(int maxBatchPackets, int paths, boolean encrypt, TrafficShaper shaper) throws IOException {
+        this(maxBatchPackets, paths, encrypt, shaper, false);
+    }
+
+    /**
+     * @param ackThinning whether to thin out pure TCP ACKs on the uplink
+     */
+    LoopbackTunnel(int maxBatchPackets, int paths, boolean encrypt, TrafficShaper shaper, boolean ackThinning)
+            throws IOException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        mTunSide = open().bind(new InetSocketAddress(loopback, 0));
+        mApp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        mApp.setReceiveBufferSize(SOCKET_BUFFER_SIZE);
+        mApp.setSendBufferSize(SOCKET_BUFFER_SIZE);
+        mApp.setSoTimeout(RECEIVE_TIMEOUT_MS);
+        mApp.connect(mTunSide.getLocalAddress());
+        mTunSide.connect(mApp.getLocalSocketAddress());
+        final SessionKeys clientKeys;
+        final SessionKeys serverKeys;
+        try {
+            final byte[] clientNonce = new byte[16];
+            final byte[] serverNonce = new byte[16];
+            clientKeys = encrypt ? SessionKeys.derive(SECRET, clientNonce, serverNonce, true) : null;
+            serverKeys = encrypt ? SessionKeys.derive(SECRET, clientNonce, serverNonce, false) : null;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+        final AtomicLong serverSequence = new AtomicLong(1);
+        final List<DatagramChannel> tunnels = new ArrayList<>();
+        for (int i = 0; i < paths; ++i) {
+            final DatagramChannel server = open().bind(new InetSocketAddress(loopback, 0));
+            mServers.add(server);
+            final DatagramChannel tunnel = open();
+            tunnel.connect(server.getLocalAddress());
+            tunnels.add(tunnel);
+            final Thread serverThread = new Thread(() -> echo(server, serverKeys, serverSequence),
+                    "loopback-server-" + i);
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+        mPump = new PacketPump(new ChannelTunDevice(mTunSide, mTunSide),
+                new BufferPool(MTU + PacketSealer.OVERHEAD, BUFFER_POOL_CAPACITY),
+                Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, "loopback");
+        if (maxBatchPackets > 1) {
+            mPump.setBatching(MAX_FRAME_SIZE, maxBatchPackets);
+        }
+        mPump.setShaper(shaper);
+        mPump.setAckThinning(ackThinning);
+        mPumpThread = new Thread(() -> {
+            try {
+                mPump.run(tunnels, clientKeys);
+            } catch (IOException | RuntimeException e) {
+                mPumpFailure = e;
+            }
+        }, "loopback-pump");
+        mPumpThread.setDaemon(true);
+        mPumpThread.start();
+    }
+
+    void send(DatagramPacket packet) throws IOException {
+        mApp.send(packet);
+    }
+
+    /**
+     * Waits for the next packet coming down the tunnel; a lost packet fails the benchmark instead of hanging it.
+     */
+    void receive(DatagramPacket packet) throws IOException {
+        mApp.receive(packet);
+    }
+
+    Throwable pumpFailure() {
+        return mPumpFailure;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mPump.close();
+        try {
+            mPumpThread.join(RECEIVE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mApp.close();
+        mTunSide.close();
+        for (DatagramChannel server : mServers) {
+            server.close();
+        }
+    }
+
+    private static void echo(DatagramChannel server, SessionKeys keys, AtomicLong sequence) {
+        final ByteBuffer packet = ByteBuffer.allocateDirect(Short.MAX_VALUE);
+        final ByteBuffer opened = ByteBuffer.allocateDirect(Short.MAX_VALUE);
+        try {
+            final PacketOpener opener = keys != null ? new PacketOpener(keys) : null;
+            final PacketSealer sealer = keys != null ? new PacketSealer(keys, sequence) : null;
+            while (true) {
+                packet.clear();
+                SocketAddress client = server.receive(packet);
+                packet.flip();
+                if (opener != null) {
+                    opened.clear();
+                    if (opener.open(packet, opened) < 0) {
+                        continue;
+                    }
+                    opened.flip();
+                    packet.clear();
+                    sealer.seal(opened, packet);
+                    packet.flip();
+                }
+                server.send(packet, client);
+            }
+        } catch (IOException | GeneralSecurityException ignored) {
+            // Closed.
+        }
+    }
+
+    private static DatagramChannel open() throws IOException {
+        return DatagramChannel.open()
+                .setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE)
+                .setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,61 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.metrics.LatencyHistogram;
+import com.gxd.vpn.tunnel.metrics.TunnelMetrics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of counting a packet on the hot path, from one thread and from as many as a striped session has, all
+ * counting into the same metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class MetricsBenchmark {
+    private final TunnelMetrics mMetrics = new TunnelMetrics();
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    @Benchmark
+    public void packet() {
+        mMetrics.onPacketSent(1400);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void packetContended() {
+        mMetrics.onPacketSent(1400);
+    }
+
+    @Benchmark
+    public void histogram(Rtt rtt) {
+        mHistogram.record(rtt.next());
+    }
+
+    @State(Scope.Thread)
+    public static class Rtt {
+        private long mValue = 20_000;
+
+        /**
+         * Walks over a few octaves around 20 ms, so that different buckets are hit.
+         */
+        long next() {
+            mValue = mValue * 7 % 65_521 + 1_000;
+            return mValue;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.gxd.vpn.tunnel;
+
+/**
+ * Builds the synthetic IP packets the benchmarks push through the tunnel.
+ * Contents are deterministic so that runs can be compared with each other.
+ */
+final class Packets {
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int UDP_HEADER_SIZE = 8;
+    private static final int PROTOCOL_UDP = 17;
+    private static final int IPV6_HEADER_SIZE = 40;
+    private static final int TCP_HEADER_SIZE = 20;
+    private static final int PROTOCOL_TCP = 6;
+
+    private Packets() {
+    }
+
+    /**
+     * An IPv4/UDP packet of exactly {@code size} bytes from 10.0.0.2:{@code srcPort} to 10.0.0.1:{@code dstPort}.
+     */
+    static byte[] ipv4Udp(int size, int srcPort, int dstPort) {
+        if (size < IPV4_HEADER_SIZE + UDP_HEADER_SIZE) {
+            throw new IllegalArgumentException("Packet too small: " + size);
+        }
+        byte[] packet = new byte[size];
+        packet[0] = 0x45;// Version 4, header length 5 words.
+        putShort(packet, 2, size);
+        packet[8] = 64;// TTL
+        packet[9] = PROTOCOL_UDP;
+        packet[12] = 10;
+        packet[15] = 2;
+        packet[16] = 10;
+        packet[19] = 1;
+        putShort(packet, 10, checksum(packet, 0, IPV4_HEADER_SIZE));
+        putShort(packet, IPV4_HEADER_SIZE, srcPort);
+        putShort(packet, IPV4_HEADER_SIZE + 2, dstPort);
+        putShort(packet, IPV4_HEADER_SIZE + 4, size - IPV4_HEADER_SIZE);
+        for (int i = IPV4_HEADER_SIZE + UDP_HEADER_SIZE; i < size; ++i) {
+            packet[i] = (byte) i;
+        }
+        return packet;
+    }
+
+    static byte[] ipv4Udp(int size) {
+        return ipv4Udp(size, 40000, 9);
+    }
+
+    /**
+     * An IPv6/TCP ACK of exactly {@code size} bytes from fd00::2:{@code srcPort} to fd00::1:{@code dstPort}.
+     * Checksums are left at zero, nothing on the way checks them.
+     */
+    static byte[] ipv6Tcp(int size, int srcPort, int dstPort) {
+        if (size < IPV6_HEADER_SIZE + TCP_HEADER_SIZE) {
+            throw new IllegalArgumentException("Packet too small: " + size);
+        }
+        byte[] packet = new byte[size];
+        packet[0] = 0x60;// Version 6.
+        putShort(packet, 4, size - IPV6_HEADER_SIZE);
+        packet[6] = PROTOCOL_TCP;
+        packet[7] = 64;// Hop limit
+        packet[8] = (byte) 0xFD;
+        packet[23] = 2;
+        packet[24] = (byte) 0xFD;
+        packet[39] = 1;
+        putShort(packet, IPV6_HEADER_SIZE, srcPort);
+        putShort(packet, IPV6_HEADER_SIZE + 2, dstPort);
+        packet[IPV6_HEADER_SIZE + 12] = 5 << 4;// Header length 5 words.
+        packet[IPV6_HEADER_SIZE + 13] = 0x10;// ACK
+        for (int i = IPV6_HEADER_SIZE + TCP_HEADER_SIZE; i < size; ++i) {
+            packet[i] = (byte) i;
+        }
+        return packet;
+    }
+
+    private static void putShort(byte[] packet, int offset, int value) {
+        packet[offset] = (byte) (value >>> 8);
+        packet[offset + 1] = (byte) value;
+    }
+
+    private static int checksum(byte[] packet, int offset, int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; i += 2) {
+            sum += ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return ~sum & 0xFFFF;
+    }
+}
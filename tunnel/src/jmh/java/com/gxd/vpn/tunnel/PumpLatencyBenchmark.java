@@ -0,0 +1,56 @@
+package com.gxd.vpn.tunnel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip of a single packet through the pump: app -> uplink -> echo server -> downlink -> app.
+ * Sample mode reports the latency distribution, including p99.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class PumpLatencyBenchmark {
+    @Param({"40", "576", "1400", "1500"})
+    public int packetSize;
+    private LoopbackTunnel mTunnel;
+    private DatagramPacket mPacket;
+    private DatagramPacket mReply;
+
+    @Setup
+    public void setUp() throws IOException {
+        mTunnel = new LoopbackTunnel();
+        mPacket = new DatagramPacket(Packets.ipv4Udp(packetSize), packetSize);
+        mReply = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTunnel.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        mTunnel.send(mPacket);
+        mReply.setLength(Short.MAX_VALUE);
+        mTunnel.receive(mReply);
+        return mReply.getLength();
+    }
+}
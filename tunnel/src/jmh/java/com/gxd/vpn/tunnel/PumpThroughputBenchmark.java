@@ -0,0 +1,81 @@
+package com.gxd.vpn.tunnel;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk forwarding through the pump. The offered load is the number of packets kept in flight per operation;
+ * packets/sec and bytes/sec are reported as secondary counters. With batching, packets queued on the TUN side
+ * are coalesced into fewer tunnel datagrams.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class PumpThroughputBenchmark {
+    @Param({"40", "576", "1400", "1500"})
+    public int packetSize;
+    @Param({"1", "8", "64"})
+    public int window;
+    @Param({"1", "64"})
+    public int maxBatchPackets;
+    private LoopbackTunnel mTunnel;
+    private DatagramPacket mPacket;
+    private DatagramPacket mReply;
+
+    @Setup
+    public void setUp() throws IOException {
+        mTunnel = new LoopbackTunnel(maxBatchPackets);
+        mPacket = new DatagramPacket(Packets.ipv4Udp(packetSize), packetSize);
+        mReply = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTunnel.close();
+    }
+
+    @Benchmark
+    public void burst(Counters counters) throws IOException {
+        for (int i = 0; i < window; ++i) {
+            mTunnel.send(mPacket);
+        }
+        for (int i = 0; i < window; ++i) {
+            mReply.setLength(Short.MAX_VALUE);
+            mTunnel.receive(mReply);
+            counters.bytes += mReply.getLength();
+        }
+        counters.packets += window;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long packets;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.server.Impairment;
+import com.gxd.vpn.server.StandInServer;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.SecureHandshake;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.crypto.SessionTicket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to the first byte after a reconnect, through a {@link StandInServer} a round trip of {@code delayMs} away,
+ * with a handshake or with a resumption ticket. Every operation drops the tunnel with a packet waiting in the pump,
+ * connects a new one and waits for the packet to come back: a handshake takes a round trip before the packet goes
+ * out, while the request to resume takes it along, so it should come down to one round trip from two.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 4)
+@Fork(value = 1, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class ResumptionBenchmark {
+    private static final int MTU = 1500;
+    private static final int BUFFER_POOL_CAPACITY = 64;
+    private static final long TIMEOUT_MS = TimeUnit.SECONDS.toMillis(2);
+    private static final byte[] SECRET = "resumption".getBytes(StandardCharsets.US_ASCII);
+    @Param({"10", "40"})
+    public long delayMs;
+    @Param({"false", "true"})
+    public boolean resume;
+    private final SecureRandom mRandom = new SecureRandom();
+    private final RttEstimator mRttEstimator = new RttEstimator();
+    private StandInServer mServer;
+    private DatagramChannel mTunSide;
+    private DatagramSocket mApp;
+    private PacketPump mPump;
+    private SessionTicket mTicket;
+    private DatagramChannel mTunnel;
+    private Thread mPumpThread;
+    private DatagramPacket mPacket;
+    private DatagramPacket mReply;
+
+    @Setup
+    public void setUp() throws IOException, GeneralSecurityException, InterruptedException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        mServer = new StandInServer(new InetSocketAddress(loopback, 0), SECRET, "m," + MTU + " r,0.0.0.0,0");
+        mServer.setImpairment(new Impairment(0, delayMs, 0, 0, 1));
+        final Thread serverThread = new Thread(() -> {
+            try {
+                mServer.serve();
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "resumption-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        mTunSide = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        mApp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        mApp.setSoTimeout((int) TIMEOUT_MS);
+        mApp.connect(mTunSide.getLocalAddress());
+        mTunSide.connect(mApp.getLocalSocketAddress());
+        mPump = new PacketPump(new ChannelTunDevice(mTunSide, mTunSide),
+                new BufferPool(MTU + PacketSealer.OVERHEAD, BUFFER_POOL_CAPACITY),
+                Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, "resumption");
+        mPump.setQueueCapacity(BUFFER_POOL_CAPACITY);
+        mPacket = new DatagramPacket(Packets.ipv4Udp(100, 10000, 53), 100);
+        mReply = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+        // The first session hands out the ticket, and starts the pump's uplink for the queue to fill while the
+        // tunnel is down.
+        reconnect(false);
+        mApp.send(mPacket);
+        mApp.receive(mReply);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        disconnect();
+        mPump.close();
+        mServer.close();
+        mApp.close();
+        mTunSide.close();
+    }
+
+    @Benchmark
+    public int firstByte() throws IOException, GeneralSecurityException, InterruptedException {
+        disconnect();
+        // Lets the uplink queue the packet rather than race it onto the tunnel on its way out.
+        mApp.send(mPacket);
+        reconnect(resume);
+        mReply.setLength(Short.MAX_VALUE);
+        mApp.receive(mReply);
+        return mReply.getLength();
+    }
+
+    private void reconnect(boolean resume) throws IOException, GeneralSecurityException, InterruptedException {
+        mTunnel = DatagramChannel.open();
+        mTunnel.connect(mServer.localAddress());
+        final DatagramChannel tunnel = mTunnel;
+        final Runnable run;
+        if (resume) {
+            final ByteBuffer request = ByteBuffer.allocate(MTU);
+            final SessionKeys keys = mTicket.writeResume(request, mRandom, System.currentTimeMillis());
+            request.flip();
+            run = () -> {
+                try {
+                    mPump.resume(tunnel, keys, request, TIMEOUT_MS);
+                } catch (IOException | RuntimeException ignored) {
+                    // Closed.
+                }
+            };
+        } else {
+            final SecureHandshake handshake = new SecureHandshake(SECRET, mRandom);
+            final TunnelParameters parameters =
+                    TunnelParameters.parse(new HandshakeDriver(mRttEstimator, TIMEOUT_MS).run(tunnel, handshake));
+            mTicket = parameters.ticket;
+            tunnel.configureBlocking(true);
+            final SessionKeys keys = handshake.sessionKeys();
+            run = () -> {
+                try {
+                    mPump.run(tunnel, keys);
+                } catch (IOException | RuntimeException ignored) {
+                    // Closed.
+                }
+            };
+        }
+        mPumpThread = new Thread(run, "resumption-pump");
+        mPumpThread.setDaemon(true);
+        mPumpThread.start();
+    }
+
+    private void disconnect() throws IOException, InterruptedException {
+        mTunnel.close();
+        mPumpThread.join();
+    }
+}
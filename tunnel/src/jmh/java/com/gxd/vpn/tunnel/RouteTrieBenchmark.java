@@ -0,0 +1,89 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.route.PrefixTrie;
+import com.gxd.vpn.tunnel.route.RouteTrie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and querying the split tunnel's route tries for country-sized lists of IPv4 prefixes, /8 to /24 like
+ * the allocations they come from. {@code build} compiles the trie and aggregates the routes; the footprint of the
+ * compiled trie is printed once per fork. Lookups go to random addresses, precomputed.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class RouteTrieBenchmark {
+    private static final int ADDRESS_COUNT = 1 << 16;
+    @Param({"100", "5000", "50000"})
+    public int prefixes;
+    private final int[] mAddresses = new int[ADDRESS_COUNT];
+    private long[] mPrefixes;
+    private int[] mLengths;
+    private RouteTrie mTrie;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        // Fixed seed, so every run sees the same prefixes.
+        final Random random = new Random(42);
+        mPrefixes = new long[prefixes];
+        mLengths = new int[prefixes];
+        for (int i = 0; i < prefixes; ++i) {
+            mLengths[i] = 8 + random.nextInt(17);
+            mPrefixes[i] = (long) random.nextInt() << 32;
+        }
+        for (int i = 0; i < ADDRESS_COUNT; ++i) {
+            mAddresses[i] = random.nextInt();
+        }
+        mTrie = trie().compile();
+        System.out.println(prefixes + " prefixes: " + mTrie.nodes() + " nodes, " + mTrie.sizeBytes() + " bytes");
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<PrefixTrie.Prefix> build() {
+        final PrefixTrie trie = trie();
+        trie.compile();
+        final List<PrefixTrie.Prefix> cover = new ArrayList<>();
+        trie.cover(1, cover);
+        return cover;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int lookup() {
+        mNext = (mNext + 1) & (ADDRESS_COUNT - 1);
+        return mTrie.lookup(mAddresses[mNext]);
+    }
+
+    /**
+     * Everything through the tunnel but the prefixes, like a bypass list on top of a default route.
+     */
+    private PrefixTrie trie() {
+        final PrefixTrie trie = new PrefixTrie(32);
+        trie.put(0, 0, 0, 1);
+        for (int i = 0; i < prefixes; ++i) {
+            trie.put(mPrefixes[i], 0, mLengths[i], 0);
+        }
+        return trie;
+    }
+}
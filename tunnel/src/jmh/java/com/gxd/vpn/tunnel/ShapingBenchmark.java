@@ -0,0 +1,106 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.shaping.LatencyClassifier;
+import com.gxd.vpn.tunnel.shaping.TrafficShaper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency under load: round trip of a small packet while a bulk flow keeps the uplink busy. The uplink is shaped to
+ * {@link #RATE} either way, so that the queue builds up in the pump; {@code fifo} queues everything in one class,
+ * like a plain send buffer would, while {@code priority} sorts packets with a {@link LatencyClassifier}.
+ * <p>
+ * The bulk flow keeps a window of {@link #WINDOW} packets in flight, like a TCP upload with a full congestion
+ * window, so it fills the queue without overflowing it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class ShapingBenchmark {
+    /**
+     * 80 Mbit/s, which a single core pushes through the loopback tunnel with room to spare.
+     */
+    private static final long RATE = 10_000_000;
+    private static final int BURST = 2 * LoopbackTunnel.MTU;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int WINDOW = 128;
+    private static final int BULK_SIZE = 1400;
+    private static final int PROBE_SIZE = 64;
+    @Param({"fifo", "priority"})
+    public String scheduler;
+    private LoopbackTunnel mTunnel;
+    private DatagramPacket mProbe;
+    private DatagramPacket mReply;
+    private final AtomicLong mBulkEchoed = new AtomicLong();
+    private volatile boolean mRunning;
+    private Thread mBulk;
+
+    @Setup
+    public void setUp() throws IOException {
+        final TrafficShaper shaper = new TrafficShaper(scheduler.equals("priority") ? new LatencyClassifier()
+                : packet -> TrafficShaper.DEFAULT, QUEUE_CAPACITY);
+        shaper.setRate(RATE, BURST);
+        mTunnel = new LoopbackTunnel(1, 1, false, shaper);
+        mProbe = new DatagramPacket(Packets.ipv4Udp(PROBE_SIZE, 40000, 7), PROBE_SIZE);
+        mReply = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+        final DatagramPacket bulk = new DatagramPacket(Packets.ipv4Udp(BULK_SIZE, 40001, 5001), BULK_SIZE);
+        mRunning = true;
+        mBulk = new Thread(() -> {
+            long sent = 0;
+            try {
+                while (mRunning) {
+                    if (sent - mBulkEchoed.get() < WINDOW) {
+                        mTunnel.send(bulk);
+                        ++sent;
+                    } else {
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                    }
+                }
+            } catch (IOException ignored) {
+                // Closed.
+            }
+        }, "bulk");
+        mBulk.setDaemon(true);
+        mBulk.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        mRunning = false;
+        mBulk.join();
+        mTunnel.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        mTunnel.send(mProbe);
+        while (true) {
+            mReply.setLength(Short.MAX_VALUE);
+            mTunnel.receive(mReply);
+            if (mReply.getLength() == PROBE_SIZE) {
+                return PROBE_SIZE;
+            }
+            mBulkEchoed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.gxd.vpn.tunnel;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate throughput striped over 1 to N tunnels, N being meant as the number of cores; pass
+ * {@code -p paths=1,2,...} to match the machine. Packets come from as many UDP flows as are kept in flight, so
+ * they spread over all the tunnels. Encryption is where striping should pay off, since sealing and opening then
+ * run on a core per tunnel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+public class StripingBenchmark {
+    private static final int FIRST_PORT = 10000;
+    private static final int DST_PORT = 53;
+    @Param({"1", "2", "4", "8"})
+    public int paths;
+    @Param({"false", "true"})
+    public boolean encrypt;
+    @Param({"1400"})
+    public int packetSize;
+    @Param({"64"})
+    public int window;
+    private LoopbackTunnel mTunnel;
+    private DatagramPacket[] mPackets;
+    private DatagramPacket mReply;
+
+    @Setup
+    public void setUp() throws IOException {
+        mTunnel = new LoopbackTunnel(1, paths, encrypt);
+        mPackets = new DatagramPacket[window];
+        for (int i = 0; i < window; ++i) {
+            mPackets[i] = new DatagramPacket(Packets.ipv4Udp(packetSize, FIRST_PORT + i, DST_PORT), packetSize);
+        }
+        mReply = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTunnel.close();
+    }
+
+    @Benchmark
+    public void burst(Counters counters) throws IOException {
+        for (DatagramPacket packet : mPackets) {
+            mTunnel.send(packet);
+        }
+        for (int i = 0; i < window; ++i) {
+            mReply.setLength(Short.MAX_VALUE);
+            mTunnel.receive(mReply);
+            counters.bytes += mReply.getLength();
+        }
+        counters.packets += window;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long packets;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            packets = 0;
+            bytes = 0;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Learns how long the NATs on the way keep a binding without traffic, and stretches the keepalive interval up to
+ * that, so that an idle tunnel wakes the radio as rarely as it can.
+ * <p>
+ * Bindings are learned about on a socket of their own, so that the tunnel is never put at risk: the probe asks the
+ * server to send its request back after a delay, and then stays silent. If the answer gets through, the binding
+ * survived that long. The first probe asks for no delay, to learn whether the server answers at all; after that
+ * the delay doubles from the minimum interval until a probe goes unanswered, and the time in between is searched
+ * by halving, down to a tenth of what is known to survive.
+ * <pre>
+ *   client: 0x00 ECHO_LATER | token (8) | delay in milliseconds, unsigned 32-bit big-endian
+ *   server: the same, once the delay is over
+ * </pre>
+ * Probes only start while the radio is awake anyway, and one at a time. What has been learned belongs to the
+ * network it was learned on; {@link #reset} when that changes.
+ */
+public class AdaptiveKeepalive implements Closeable {
+    private static final int TOKEN_SIZE = 8;
+    /**
+     * Size of a probe, and of the server's answer.
+     */
+    public static final int REQUEST_SIZE = Protocol.HEADER_SIZE + TOKEN_SIZE + 4;
+    /**
+     * How much later than asked for the answer may come, for the round trip and the timer's granularity.
+     */
+    private static final long GRACE_MS = 5000;
+    /**
+     * The interval stays this much below the longest time a binding is known to survive, and the search stops
+     * once it has narrowed the timeout down to as much.
+     */
+    private static final int MARGIN_PERCENT = 10;
+    private final long mMinIntervalMs;
+    private final long mMaxIntervalMs;
+    private final Sockets mSockets;
+    private final Random mRandom = new SecureRandom();
+    private final ByteBuffer mMessage = ByteBuffer.allocate(REQUEST_SIZE + 1);
+    /**
+     * Whether the server answers probes, or {@code null} while that isn't known.
+     */
+    private Boolean mAnswered;
+    /**
+     * The longest time a binding is known to survive without traffic, and the shortest it is known not to, or 0.
+     */
+    private long mSurvivedMs;
+    private long mFailedMs;
+    private DatagramChannel mProbe;
+    private long mToken;
+    private long mDelayMs;
+    private long mDeadlineMs;
+    private int mProbes;
+
+    /**
+     * @param minIntervalMs an interval that keeps any binding alive, which is where the search starts
+     * @param maxIntervalMs the longest interval to go up to
+     * @param sockets       where to get probe sockets, or {@code null} to stay at the minimum interval
+     */
+    public AdaptiveKeepalive(long minIntervalMs, long maxIntervalMs, Sockets sockets) {
+        if (minIntervalMs <= 0 || maxIntervalMs < minIntervalMs || maxIntervalMs > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Bad keepalive intervals: " + minIntervalMs + ", " + maxIntervalMs);
+        }
+        mMinIntervalMs = minIntervalMs;
+        mMaxIntervalMs = maxIntervalMs;
+        mSockets = sockets;
+        mSurvivedMs = minIntervalMs;
+    }
+
+    /**
+     * @return how long the tunnel may go without sending anything
+     */
+    public synchronized long intervalMs() {
+        return Math.max(mMinIntervalMs, mSurvivedMs - mSurvivedMs * MARGIN_PERCENT / 100);
+    }
+
+    /**
+     * @return whether there is nothing left to probe for
+     */
+    public synchronized boolean isSettled() {
+        return mProbe == null && nextDelayMs() < 0;
+    }
+
+    /**
+     * @return probes sent since the last {@link #reset}
+     */
+    public synchronized int probes() {
+        return mProbes;
+    }
+
+    /**
+     * Moves the search on: checks for the answer to the probe out there, or sends the next one.
+     * Meant to be called every second or so while a tunnel is up.
+     *
+     * @param radioAwake whether traffic went through just now, so that a new probe doesn't wake the radio up
+     */
+    public synchronized void onTimer(long nowMs, boolean radioAwake) {
+        try {
+            if (mProbe != null) {
+                check(nowMs);
+                return;
+            }
+            final long delayMs = nextDelayMs();
+            if (delayMs >= 0 && radioAwake) {
+                send(delayMs, nowMs);
+            }
+        } catch (IOException e) {
+            // No telling what the binding did; settle for what is known.
+            closeProbe();
+            mAnswered = mAnswered != null && mAnswered;
+            mFailedMs = mFailedMs > 0 ? mFailedMs : mSurvivedMs;
+        }
+    }
+
+    /**
+     * The tunnel timed out. If that was after stretching the interval, the binding may not last as long anymore
+     * as it did, so start over.
+     */
+    public synchronized void onTimeout() {
+        if (mSurvivedMs > mMinIntervalMs) {
+            reset();
+        }
+    }
+
+    /**
+     * Forgets what has been learned, e.g. on moving to another network, and starts the search over.
+     */
+    public synchronized void reset() {
+        closeProbe();
+        mAnswered = null;
+        mSurvivedMs = mMinIntervalMs;
+        mFailedMs = 0;
+        mProbes = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        closeProbe();
+    }
+
+    /**
+     * @return the delay to probe next, or -1 if the search is over
+     */
+    private long nextDelayMs() {
+        if (mSockets == null || mAnswered == Boolean.FALSE) {
+            return -1;
+        }
+        if (mAnswered == null) {
+            return 0;
+        }
+        if (mFailedMs == 0) {
+            return mSurvivedMs < mMaxIntervalMs ? Math.min(2 * mSurvivedMs, mMaxIntervalMs) : -1;
+        }
+        return mFailedMs - mSurvivedMs > mSurvivedMs * MARGIN_PERCENT / 100 ? (mSurvivedMs + mFailedMs) / 2 : -1;
+    }
+
+    private void send(long delayMs, long nowMs) throws IOException {
+        mProbe = mSockets.open();
+        mProbe.configureBlocking(false);
+        mToken = mRandom.nextLong();
+        mDelayMs = delayMs;
+        mDeadlineMs = nowMs + delayMs + GRACE_MS;
+        mMessage.clear();
+        mMessage.put(Protocol.CONTROL).put(Protocol.ECHO_LATER).putLong(mToken).putInt((int) delayMs).flip();
+        mProbe.write(mMessage);
+        ++mProbes;
+    }
+
+    private void check(long nowMs) throws IOException {
+        mMessage.clear();
+        while (mProbe.read(mMessage) > 0) {
+            mMessage.flip();
+            // Whenever it was read, an answer proves the binding lived until the server sent it.
+            if (mMessage.remaining() == REQUEST_SIZE && Protocol.isFrame(mMessage, Protocol.ECHO_LATER)
+                    && mMessage.getLong(Protocol.HEADER_SIZE) == mToken) {
+                closeProbe();
+                mAnswered = true;
+                mSurvivedMs = Math.max(mSurvivedMs, mDelayMs);
+                return;
+            }
+            mMessage.clear();
+        }
+        if (nowMs - mDeadlineMs >= 0) {
+            closeProbe();
+            if (mAnswered == null) {
+                mAnswered = false;
+            } else {
+                mFailedMs = mFailedMs > 0 ? Math.min(mFailedMs, mDelayMs) : mDelayMs;
+            }
+        }
+    }
+
+    private void closeProbe() {
+        if (mProbe != null) {
+            try {
+                mProbe.close();
+            } catch (IOException ignored) {
+            }
+            mProbe = null;
+        }
+    }
+
+    /**
+     * Opens sockets to probe with.
+     */
+    public interface Sockets {
+        /**
+         * @return a datagram channel connected to the server, kept out of the VPN
+         */
+        DatagramChannel open() throws IOException;
+    }
+}
@@ -0,0 +1,45 @@
+package com.gxd.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Recycles direct buffers of one size, so that the forwarding loops neither allocate per packet nor copy
+ * packets between the Java heap and native memory on their way through the file descriptors.
+ * <p>
+ * Direct buffers are expensive to allocate and slow to be reclaimed, so keep one pool for the lifetime of a
+ * connection, across reconnects, rather than one per session.
+ */
+public class BufferPool {
+    private final int mBufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> mFree;
+
+    /**
+     * @param bufferSize size of every buffer, at least the MTU
+     * @param capacity   most free buffers to keep around; buffers released beyond that are left to the GC
+     */
+    public BufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFree = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public int bufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return a cleared direct buffer, newly allocated only if the pool has run dry
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = mFree.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(mBufferSize);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != mBufferSize || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Not from this pool: " + buffer);
+        }
+        buffer.clear();
+        mFree.offer(buffer);
+    }
+}
@@ -0,0 +1,65 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link TunDevice} on top of a pair of channels. A connected {@code DatagramChannel} keeps packet boundaries
+ * and can stand in for a TUN interface on both sides; a {@code Pipe} works as long as each read is handed
+ * exactly one packet.
+ * <p>
+ * A selectable source is switched to non-blocking mode so that {@link #poll} can tell whether a packet is
+ * queued; {@link #read} then waits on a selector instead.
+ */
+public class ChannelTunDevice implements TunDevice {
+    private final ReadableByteChannel mSource;
+    private final WritableByteChannel mSink;
+    private final Selector mSelector;
+
+    public ChannelTunDevice(ReadableByteChannel source, WritableByteChannel sink) throws IOException {
+        mSource = source;
+        mSink = sink;
+        if (source instanceof SelectableChannel) {
+            mSelector = Selector.open();
+            ((SelectableChannel) source).configureBlocking(false).register(mSelector, SelectionKey.OP_READ);
+        } else {
+            mSelector = null;
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (mSelector == null) {
+            return mSource.read(dst);
+        }
+        while (true) {
+            int length = mSource.read(dst);
+            if (length != 0) {
+                return length;
+            }
+            mSelector.select();
+            mSelector.selectedKeys().clear();
+            if (Thread.currentThread().isInterrupted()) {
+                throw new ClosedByInterruptException();
+            }
+        }
+    }
+
+    @Override
+    public int poll(ByteBuffer dst) throws IOException {
+        return mSelector == null ? 0 : mSource.read(dst);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            mSink.write(src);
+        }
+    }
+}
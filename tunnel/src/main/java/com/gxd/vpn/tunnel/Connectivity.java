@@ -0,0 +1,26 @@
+package com.gxd.vpn.tunnel;
+
+/**
+ * Tells whether there is a network to build the tunnel over.
+ * On Android this is backed by ConnectivityManager; anything else can drive the {@link Listener} by hand.
+ */
+public interface Connectivity {
+    /**
+     * Starts reporting network changes. If a network is up already, the listener may be told so right away.
+     */
+    void register(Listener listener);
+
+    void unregister();
+
+    interface Listener {
+        /**
+         * A network came up, it may or may not replace the one the tunnel was using.
+         */
+        void onNetworkAvailable();
+
+        /**
+         * The last network went away, there is nothing to connect over until the next one comes up.
+         */
+        void onNetworkLost();
+    }
+}
@@ -0,0 +1,329 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Connects to whichever of several server endpoints answers a handshake first, in the manner of Happy Eyeballs
+ * (RFC 8305).
+ * <p>
+ * Every host is resolved on a thread of its own, so a slow resolver for one doesn't hold up the others, and its
+ * addresses join the race as soon as they are in, IPv6 and IPv4 taking turns. A handshake starts every
+ * {@code staggerMs} on the next address, or right away once the last one failed, each on its own tunnel and
+ * thread; the first to be answered wins and the others are closed. An endpoint that won before can be put first,
+ * so that on a network where it still works the race is over after one handshake, with nothing to wait for from
+ * the resolver.
+ * <p>
+ * Each handshake retransmits on an estimator of its own, started from the shared one, so that the backoffs of
+ * addresses that never answer don't end up in the timeouts of the tunnel that does.
+ */
+public class EndpointRacer {
+    private final RttEstimator mRttEstimator;
+    private final long mStaggerMs;
+    private final long mTimeoutMs;
+    /**
+     * What the threads of the current race tell, new for every race so that stragglers of the last one can't mix in.
+     */
+    private BlockingQueue<Event> mEvents;
+    private final List<Attempt> mAttempts = new ArrayList<>();
+    private final List<InetSocketAddress> mPending = new ArrayList<>();
+    private final Set<InetSocketAddress> mCandidates = new HashSet<>();
+    /**
+     * Every address ever resolved, by resolvers that finished after their race as well.
+     */
+    private final Set<InetSocketAddress> mResolved = Collections.synchronizedSet(new LinkedHashSet<>());
+    /**
+     * Addresses of the preferred endpoint at the head of {@link #mPending}, which stay there.
+     */
+    private int mPreferred;
+    private int mResolving;
+    private IOException mFailure;
+
+    /**
+     * @param staggerMs time to give a handshake before starting the next one alongside
+     * @param timeoutMs how long each handshake keeps trying, and how long to wait for addresses to try at all
+     */
+    public EndpointRacer(RttEstimator rttEstimator, long staggerMs, long timeoutMs) {
+        mRttEstimator = rttEstimator;
+        mStaggerMs = staggerMs;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Races handshakes to the endpoints until one is answered. Not reentrant: one race at a time.
+     *
+     * @param endpoints  where the server may be, resolved or not
+     * @param preferred  endpoint to try first, such as the last winner, or {@code null}
+     * @param sockets    opens a tunnel to an address, connected and kept out of the VPN
+     * @param handshakes makes a new handshake for every attempt
+     * @throws SocketTimeoutException if no address was answered in time
+     * @throws UnknownHostException   if none of the hosts could be resolved
+     * @throws InterruptedException   if the thread got interrupted while waiting
+     */
+    public Winner race(List<InetSocketAddress> endpoints, InetSocketAddress preferred, Sockets sockets,
+                       Supplier<Handshake> handshakes) throws IOException, InterruptedException {
+        mEvents = new LinkedBlockingQueue<>();
+        mAttempts.clear();
+        mPending.clear();
+        mCandidates.clear();
+        mPreferred = 0;
+        mResolving = 0;
+        mFailure = null;
+        Winner winner = null;
+        try {
+            if (preferred != null) {
+                resolve(preferred, true);
+            }
+            for (InetSocketAddress endpoint : endpoints) {
+                resolve(endpoint, false);
+            }
+            final long start = System.nanoTime();
+            long nextStart = start;
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (!mPending.isEmpty() && now - nextStart >= 0) {
+                    mPreferred = Math.max(0, mPreferred - 1);
+                    if (start(mPending.remove(0), sockets, handshakes.get())) {
+                        nextStart = now + TimeUnit.MILLISECONDS.toNanos(mStaggerMs);
+                    }
+                }
+                final boolean running = running();
+                if (!running && mPending.isEmpty()
+                        && (mResolving == 0 || now - start >= TimeUnit.MILLISECONDS.toNanos(mTimeoutMs))) {
+                    throw mFailure != null ? mFailure : mResolving > 0
+                            ? new SocketTimeoutException("No address resolved in time")
+                            : new UnknownHostException("No address for " + endpoints);
+                }
+                long waitNs = Long.MAX_VALUE;
+                if (!mPending.isEmpty()) {
+                    waitNs = nextStart - now;
+                } else if (!running) {
+                    waitNs = start + TimeUnit.MILLISECONDS.toNanos(mTimeoutMs) - now;
+                }
+                final Event event = waitNs == Long.MAX_VALUE ? mEvents.take()
+                        : mEvents.poll(Math.max(0, waitNs), TimeUnit.NANOSECONDS);
+                if (event == null) {
+                    continue;
+                }
+                if (event.addresses != null || event.failure != null && event.attempt == null) {
+                    --mResolving;
+                }
+                if (event.addresses != null) {
+                    add(event.addresses, event.preferred);
+                } else if (event.failure != null) {
+                    mFailure = event.failure;
+                    if (event.attempt != null) {
+                        event.attempt.done = true;
+                        // No point waiting out the stagger for an address that has given up.
+                        nextStart = System.nanoTime();
+                    }
+                } else {
+                    event.attempt.done = true;
+                    winner = event.attempt.winner;
+                }
+            }
+            if (winner.driver.rttUs() >= 0) {
+                mRttEstimator.update(winner.driver.rttUs());
+            }
+            return winner;
+        } finally {
+            for (Attempt attempt : mAttempts) {
+                if (winner == null || attempt.winner != winner) {
+                    attempt.thread.interrupt();
+                    attempt.tunnel.close();
+                }
+            }
+            mAttempts.clear();
+        }
+    }
+
+    /**
+     * @return the addresses the endpoints of the races so far resolved to, or were given as, to race again where
+     * resolving is not an option, such as with the VPN interface up and nothing to route the lookups to
+     */
+    public List<InetSocketAddress> resolved() {
+        synchronized (mResolved) {
+            return new ArrayList<>(mResolved);
+        }
+    }
+
+    /**
+     * Looks up the addresses of an endpoint on a thread of its own, which is left to finish on its own if the race
+     * is over before: there is no interrupting the resolver. Addresses already resolved are up for the race at once.
+     */
+    private void resolve(InetSocketAddress endpoint, boolean preferred) {
+        if (!endpoint.isUnresolved()) {
+            mResolved.add(endpoint);
+            add(Collections.singletonList(endpoint), preferred);
+            return;
+        }
+        ++mResolving;
+        final BlockingQueue<Event> events = mEvents;
+        final Thread thread = new Thread(() -> {
+            final Event event = new Event();
+            event.preferred = preferred;
+            try {
+                final List<InetSocketAddress> addresses = new ArrayList<>();
+                for (InetAddress address : InetAddress.getAllByName(endpoint.getHostString())) {
+                    addresses.add(new InetSocketAddress(address, endpoint.getPort()));
+                }
+                mResolved.addAll(addresses);
+                event.addresses = addresses;
+            } catch (UnknownHostException e) {
+                event.failure = e;
+            }
+            events.add(event);
+        }, "resolve-" + endpoint.getHostString());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds freshly resolved addresses to those waiting for their turn, the preferred ones first, and otherwise
+     * alternating between IPv6 and IPv4 starting with IPv6, since one family may be broken on the network as a
+     * whole.
+     */
+    private void add(List<InetSocketAddress> addresses, boolean preferred) {
+        final List<InetSocketAddress> fresh = new ArrayList<>();
+        for (InetSocketAddress address : addresses) {
+            if (mCandidates.add(address)) {
+                fresh.add(address);
+            }
+        }
+        if (preferred) {
+            mPending.addAll(0, fresh);
+            mPreferred += fresh.size();
+            return;
+        }
+        final List<InetSocketAddress> rest = mPending.subList(mPreferred, mPending.size());
+        fresh.addAll(rest);
+        final List<InetSocketAddress> v6 = new ArrayList<>();
+        final List<InetSocketAddress> v4 = new ArrayList<>();
+        for (InetSocketAddress address : fresh) {
+            (address.getAddress() instanceof Inet6Address ? v6 : v4).add(address);
+        }
+        rest.clear();
+        for (int i = 0; i < Math.max(v6.size(), v4.size()); ++i) {
+            if (i < v6.size()) {
+                mPending.add(v6.get(i));
+            }
+            if (i < v4.size()) {
+                mPending.add(v4.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return false if there is no tunnel to the address, and the next one may as well start
+     */
+    private boolean start(InetSocketAddress address, Sockets sockets, Handshake handshake) {
+        final DatagramChannel tunnel;
+        try {
+            tunnel = sockets.open(address);
+        } catch (IOException e) {
+            mFailure = e;
+            return false;
+        }
+        final Attempt attempt = new Attempt();
+        attempt.tunnel = tunnel;
+        final HandshakeDriver driver = new HandshakeDriver(new RttEstimator(mRttEstimator), mTimeoutMs);
+        final BlockingQueue<Event> events = mEvents;
+        attempt.thread = new Thread(() -> {
+            final Event event = new Event();
+            event.attempt = attempt;
+            try {
+                final String parameters = driver.run(tunnel, handshake);
+                attempt.winner = new Winner(address, tunnel, handshake, parameters, driver);
+            } catch (IOException e) {
+                event.failure = e;
+            } catch (GeneralSecurityException e) {
+                event.failure = new IOException("Cannot set up encryption", e);
+            } catch (InterruptedException e) {
+                // Lost the race.
+                return;
+            }
+            events.add(event);
+        }, "handshake-" + address);
+        mAttempts.add(attempt);
+        attempt.thread.start();
+        return true;
+    }
+
+    private boolean running() {
+        for (Attempt attempt : mAttempts) {
+            if (!attempt.done) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens tunnels to race on.
+     */
+    public interface Sockets {
+        /**
+         * @return a datagram channel connected to {@code address}, kept out of the VPN
+         */
+        DatagramChannel open(InetSocketAddress address) throws IOException;
+    }
+
+    /**
+     * The endpoint that answered first, with the tunnel its handshake went over.
+     */
+    public static class Winner {
+        public final InetSocketAddress address;
+        public final DatagramChannel tunnel;
+        public final Handshake handshake;
+        public final String parameters;
+        /**
+         * Timings and retransmits of the winning handshake.
+         */
+        public final HandshakeDriver driver;
+
+        Winner(InetSocketAddress address, DatagramChannel tunnel, Handshake handshake, String parameters,
+               HandshakeDriver driver) {
+            this.address = address;
+            this.tunnel = tunnel;
+            this.handshake = handshake;
+            this.parameters = parameters;
+            this.driver = driver;
+        }
+    }
+
+    private static class Attempt {
+        DatagramChannel tunnel;
+        Thread thread;
+        /**
+         * Only touched by the racing thread, and {@link #winner} by the attempt's before it tells.
+         */
+        boolean done;
+        volatile Winner winner;
+    }
+
+    /**
+     * Addresses resolved, or a resolution failed, or an attempt finished one way or the other.
+     */
+    private static class Event {
+        List<InetSocketAddress> addresses;
+        boolean preferred;
+        Attempt attempt;
+        IOException failure;
+    }
+}
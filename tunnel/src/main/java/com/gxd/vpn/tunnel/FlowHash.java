@@ -0,0 +1,58 @@
+package com.gxd.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hashes the flow an IP packet belongs to, i.e. its addresses, protocol and, for TCP and UDP, its ports.
+ * Packets of one flow always hash alike, so anything that spreads packets by this hash keeps each flow in order.
+ */
+final class FlowHash {
+    private static final int TCP = 6;
+    private static final int UDP = 17;
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int IPV6_HEADER_SIZE = 40;
+
+    private FlowHash() {
+    }
+
+    /**
+     * @return the hash of the packet between position and limit; anything that isn't IPv4 or IPv6 hashes to 0
+     */
+    static int of(ByteBuffer packet) {
+        final int start = packet.position();
+        if (!packet.hasRemaining()) {
+            return 0;
+        }
+        final int first = packet.get(start) & 0xFF;
+        final int protocol;
+        final int transport;
+        int hash;
+        if (first >>> 4 == 4 && packet.remaining() >= IPV4_HEADER_SIZE) {
+            protocol = packet.get(start + 9) & 0xFF;
+            hash = 31 * packet.getInt(start + 12) + packet.getInt(start + 16);
+            // Only the first fragment carries the ports, so leave them out for every fragment of a datagram.
+            final boolean fragment = (packet.getShort(start + 6) & 0x3FFF) != 0;
+            transport = fragment ? -1 : start + (first & 0x0F) * 4;
+        } else if (first >>> 4 == 6 && packet.remaining() >= IPV6_HEADER_SIZE) {
+            // Extension headers are not followed, packets with them hash by addresses only.
+            protocol = packet.get(start + 6) & 0xFF;
+            hash = 0;
+            for (int i = 8; i < IPV6_HEADER_SIZE; i += 4) {
+                hash = 31 * hash + packet.getInt(start + i);
+            }
+            transport = start + IPV6_HEADER_SIZE;
+        } else {
+            return 0;
+        }
+        hash = 31 * hash + protocol;
+        if ((protocol == TCP || protocol == UDP) && transport >= 0 && transport + 4 <= packet.limit()) {
+            hash = 31 * hash + packet.getInt(transport);
+        }
+        // Spread the bits, so that the low ones can pick a path.
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        return hash ^ hash >>> 16;
+    }
+}
@@ -0,0 +1,20 @@
+package com.gxd.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Client side of one handshake: what to send, and how to recognize the server's answer.
+ * {@link HandshakeDriver} takes care of getting them across.
+ */
+public interface Handshake {
+    /**
+     * Puts the client hello into {@code out}. It must be the same every time, since it is sent again if lost.
+     */
+    void writeHello(ByteBuffer out) throws GeneralSecurityException;
+
+    /**
+     * @return the parameter string, or {@code null} if {@code reply} isn't the answer to our hello
+     */
+    String readReply(ByteBuffer reply) throws GeneralSecurityException;
+}
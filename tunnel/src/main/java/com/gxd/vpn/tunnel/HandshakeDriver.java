@@ -0,0 +1,126 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets a {@link Handshake} across an unreliable tunnel.
+ * <p>
+ * The hello goes out once and we wait on a selector for the answer, so on a good link the handshake is done in
+ * one round trip. If nothing comes back within the retransmission timeout the hello is sent again and the
+ * timeout doubles, until the overall deadline. Answers to a hello that went out only once feed the
+ * {@link RttEstimator}, so the next handshake starts from a timeout that fits the link.
+ */
+public class HandshakeDriver {
+    /**
+     * We have a hardcoded maximum handshake size of 1024 bytes, which should be enough for demo purposes.
+     */
+    private static final int MAX_HANDSHAKE_SIZE = 1024;
+    private final RttEstimator mRttEstimator;
+    private final long mTimeoutMs;
+    private final ByteBuffer mHello = ByteBuffer.allocate(MAX_HANDSHAKE_SIZE);
+    private final ByteBuffer mReply = ByteBuffer.allocate(MAX_HANDSHAKE_SIZE);
+    private long mEstablishTimeUs = -1;
+    private long mRttUs = -1;
+    private int mRetransmits;
+
+    /**
+     * @param timeoutMs how long to keep trying before giving up
+     */
+    public HandshakeDriver(RttEstimator rttEstimator, long timeoutMs) {
+        mRttEstimator = rttEstimator;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Runs the handshake over a connected tunnel, which is left in non-blocking mode.
+     *
+     * @return the parameter string the server answered with
+     * @throws SocketTimeoutException if no answer came back in time
+     * @throws InterruptedException   if the thread got interrupted while waiting
+     */
+    public String run(DatagramChannel tunnel, Handshake handshake)
+            throws IOException, InterruptedException, GeneralSecurityException {
+        mHello.clear();
+        handshake.writeHello(mHello);
+        mHello.flip();
+        mEstablishTimeUs = -1;
+        mRttUs = -1;
+        mRetransmits = 0;
+        tunnel.configureBlocking(false);
+        // Closing the selector deregisters the tunnel, so it can be switched back to blocking mode afterwards.
+        try (Selector selector = Selector.open()) {
+            tunnel.register(selector, SelectionKey.OP_READ);
+            final long start = System.nanoTime();
+            final long deadline = start + TimeUnit.MILLISECONDS.toNanos(mTimeoutMs);
+            long sentAt = start;
+            long nextSend = start;
+            while (true) {
+                long now = System.nanoTime();
+                if (now - nextSend >= 0) {
+                    if (nextSend != start) {
+                        mRttEstimator.backoff();
+                        ++mRetransmits;
+                    }
+                    mHello.rewind();
+                    tunnel.write(mHello);
+                    sentAt = now;
+                    nextSend = now + TimeUnit.MILLISECONDS.toNanos(mRttEstimator.rtoMs());
+                }
+                if (now - deadline >= 0) {
+                    throw new SocketTimeoutException("Handshake timed out after " + mRetransmits + " retransmits");
+                }
+                final long waitNs = Math.min(nextSend, deadline) - now;
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNs)));
+                selector.selectedKeys().clear();
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                mReply.clear();
+                while (tunnel.read(mReply) > 0) {
+                    mReply.flip();
+                    final String parameters = handshake.readReply(mReply);
+                    if (parameters != null) {
+                        now = System.nanoTime();
+                        mEstablishTimeUs = TimeUnit.NANOSECONDS.toMicros(now - start);
+                        if (mRetransmits == 0) {
+                            mRttUs = TimeUnit.NANOSECONDS.toMicros(now - sentAt);
+                            mRttEstimator.update(mRttUs);
+                        }
+                        return parameters;
+                    }
+                    mReply.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return time from sending the first hello to accepting the answer in the last successful handshake,
+     * or -1 if it didn't succeed
+     */
+    public long establishTimeUs() {
+        return mEstablishTimeUs;
+    }
+
+    /**
+     * @return the round trip measured by the last successful handshake, or -1 if the hello had to be sent again,
+     * which makes it unclear which hello was answered
+     */
+    public long rttUs() {
+        return mRttUs;
+    }
+
+    /**
+     * @return hellos sent again in the last handshake
+     */
+    public int retransmits() {
+        return mRetransmits;
+    }
+}
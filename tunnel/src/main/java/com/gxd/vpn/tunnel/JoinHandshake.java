@@ -0,0 +1,50 @@
+package com.gxd.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Adds a tunnel to a session that is already up, so the pump can stripe over it. The server echoes the request
+ * back as the answer:
+ * <pre>
+ *   client: 0x00 JOIN | path index (1) | session id in ASCII
+ *   server: the same
+ * </pre>
+ * The session id comes with the parameters of the first handshake. With encryption on, it was sealed on the way,
+ * and a tunnel that joins without the session keys can't get anything across anyway.
+ */
+public class JoinHandshake implements Handshake {
+    private final byte[] mSessionId;
+    private final int mPath;
+
+    /**
+     * @param path index of the new tunnel within the session, the first one being 0
+     */
+    public JoinHandshake(String sessionId, int path) {
+        mSessionId = sessionId.getBytes(StandardCharsets.US_ASCII);
+        mPath = path;
+    }
+
+    @Override
+    public void writeHello(ByteBuffer out) {
+        out.put(Protocol.CONTROL).put(Protocol.JOIN).put((byte) mPath).put(mSessionId);
+    }
+
+    /**
+     * @return an empty string once the server accepted the tunnel; joining doesn't change any parameters
+     */
+    @Override
+    public String readReply(ByteBuffer reply) {
+        if (!Protocol.isFrame(reply, Protocol.JOIN)
+                || reply.remaining() != Protocol.HEADER_SIZE + 1 + mSessionId.length
+                || reply.get(reply.position() + Protocol.HEADER_SIZE) != (byte) mPath) {
+            return null;
+        }
+        for (int i = 0; i < mSessionId.length; ++i) {
+            if (reply.get(reply.position() + Protocol.HEADER_SIZE + 1 + i) != mSessionId[i]) {
+                return null;
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,101 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Coalesces several IP packets into one {@link Protocol#BATCH} datagram, and splits them up again on the way in.
+ */
+class PacketBatch {
+    private static final int LENGTH_SIZE = 2;
+    private static final int MAX_LENGTH = 0xFFFF;
+    private final ByteBuffer mFrame;
+    private final int mMaxFrameSize;
+    private int mCount;
+
+    /**
+     * @param frame        buffer to build the datagrams in
+     * @param maxFrameSize largest datagram the batch may grow to
+     */
+    PacketBatch(ByteBuffer frame, int maxFrameSize) {
+        mFrame = frame;
+        mMaxFrameSize = maxFrameSize;
+        clear();
+    }
+
+    /**
+     * Appends the remaining bytes of {@code packet}, unless the frame is too full to take it.
+     *
+     * @return whether the packet was consumed
+     */
+    boolean add(ByteBuffer packet) {
+        final int length = packet.remaining();
+        if (length > MAX_LENGTH || mFrame.remaining() < LENGTH_SIZE + length) {
+            return false;
+        }
+        mFrame.putShort((short) length).put(packet);
+        ++mCount;
+        return true;
+    }
+
+    int count() {
+        return mCount;
+    }
+
+    /**
+     * Prepares the datagram to be sent. A single packet goes out as it is, since framing it would only add bytes.
+     */
+    ByteBuffer datagram() {
+        mFrame.flip();
+        if (mCount == 1) {
+            mFrame.position(Protocol.HEADER_SIZE + LENGTH_SIZE);
+        }
+        return mFrame;
+    }
+
+    void clear() {
+        mFrame.clear().limit(mMaxFrameSize);
+        mFrame.put(Protocol.CONTROL).put(Protocol.BATCH);
+        mCount = 0;
+    }
+
+    /**
+     * @return the frame buffer, so that it can go back to its pool
+     */
+    ByteBuffer release() {
+        return mFrame;
+    }
+
+    /**
+     * Hands every packet of a {@link Protocol#BATCH} datagram to {@code sink}. A truncated tail is dropped.
+     *
+     * @return the number of packets handed over
+     */
+    static int unpack(ByteBuffer frame, Sink sink) throws IOException {
+        final int end = frame.limit();
+        int count = 0;
+        frame.position(frame.position() + Protocol.HEADER_SIZE);
+        while (frame.remaining() >= LENGTH_SIZE) {
+            int length = frame.getShort() & MAX_LENGTH;
+            if (length == 0 || length > frame.remaining()) {
+                break;
+            }
+            // The sink may leave the packet or part of it unread, so the next one is found from here.
+            final int next = frame.position() + length;
+            frame.limit(next);
+            sink.accept(frame);
+            frame.limit(end);
+            frame.position(next);
+            ++count;
+        }
+        frame.position(end);
+        return count;
+    }
+
+    interface Sink {
+        /**
+         * Takes the packet between position and limit of {@code packet}. Whatever of it is left unread is skipped.
+         */
+        void accept(ByteBuffer packet) throws IOException;
+    }
+}
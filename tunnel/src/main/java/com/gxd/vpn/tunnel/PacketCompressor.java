@@ -0,0 +1,93 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.compress.Lz4;
+import com.gxd.vpn.tunnel.metrics.TunnelMetrics;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses IP packets into {@link Protocol#COMPRESSED} frames, and expands them again on the way in.
+ * <p>
+ * Most traffic is TLS or media nowadays and doesn't compress at all, so each flow is watched: after a few packets in
+ * a row that didn't shrink enough, the flow goes out uncompressed for a while before it is given another try.
+ * Flows are told apart by {@link FlowHash} only, so two flows sharing a slot may hold each other back now and
+ * then, which costs some ratio but never correctness. Small packets, mostly ACKs, are never worth it.
+ * <p>
+ * Not thread-safe: every thread sending packets needs its own, which also keeps the compressor state warm.
+ */
+class PacketCompressor {
+    /**
+     * Control byte, type byte and the length of the packet once expanded.
+     */
+    static final int FRAME_HEADER_SIZE = Protocol.HEADER_SIZE + 2;
+    private static final int MIN_PACKET_SIZE = 128;
+    private static final int FLOW_SLOTS = 1024;
+    /**
+     * Packets in a row that didn't compress before a flow is left alone, and for how many packets.
+     */
+    private static final int MAX_FAILURES = 4;
+    private static final int BACKOFF_PACKETS = 256;
+    private final Lz4 mLz4 = new Lz4();
+    private final byte[] mFailures = new byte[FLOW_SLOTS];
+    private final short[] mBackoff = new short[FLOW_SLOTS];
+    private final TunnelMetrics mMetrics;
+
+    PacketCompressor(TunnelMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Compresses {@code packet} into {@code frame} if that saves at least a sixteenth of it. The packet is left
+     * alone either way.
+     *
+     * @return whether {@code frame} now holds the frame to send instead of the packet
+     */
+    boolean compress(ByteBuffer packet, ByteBuffer frame) {
+        final int length = packet.remaining();
+        if (length < MIN_PACKET_SIZE) {
+            return false;
+        }
+        final int slot = FlowHash.of(packet) & FLOW_SLOTS - 1;
+        if (mBackoff[slot] > 0) {
+            --mBackoff[slot];
+            return false;
+        }
+        final int budget = length - (length >>> 4) - FRAME_HEADER_SIZE;
+        final int compressed = mLz4.compress(packet, packet.position(), packet.limit(), frame, FRAME_HEADER_SIZE,
+                Math.min(frame.capacity(), FRAME_HEADER_SIZE + budget));
+        if (compressed < 0) {
+            if (++mFailures[slot] >= MAX_FAILURES) {
+                mFailures[slot] = 0;
+                mBackoff[slot] = BACKOFF_PACKETS;
+            }
+            return false;
+        }
+        mFailures[slot] = 0;
+        frame.clear();
+        frame.put(0, Protocol.CONTROL).put(1, Protocol.COMPRESSED).putShort(2, (short) length);
+        frame.limit(FRAME_HEADER_SIZE + compressed);
+        mMetrics.onCompressed(length, frame.remaining());
+        return true;
+    }
+
+    /**
+     * Expands a {@link Protocol#COMPRESSED} frame into {@code packet}, from its start.
+     *
+     * @return false if the frame is malformed or doesn't fit, in which case it has to be dropped
+     */
+    static boolean decompress(ByteBuffer frame, ByteBuffer packet) {
+        if (frame.remaining() < FRAME_HEADER_SIZE) {
+            return false;
+        }
+        final int length = frame.getShort(frame.position() + Protocol.HEADER_SIZE) & 0xFFFF;
+        if (length > packet.capacity()) {
+            return false;
+        }
+        packet.clear();
+        if (Lz4.decompress(frame, frame.position() + FRAME_HEADER_SIZE, frame.limit(), packet, 0, length) != length) {
+            return false;
+        }
+        packet.limit(length);
+        return true;
+    }
+}
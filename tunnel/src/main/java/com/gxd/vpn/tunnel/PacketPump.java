@@ -0,0 +1,1345 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.capture.PacketCapture;
+import com.gxd.vpn.tunnel.crypto.PacketOpener;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.ReplayWindow;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.crypto.SessionTicket;
+import com.gxd.vpn.tunnel.dns.DnsCache;
+import com.gxd.vpn.tunnel.fec.FecDecoder;
+import com.gxd.vpn.tunnel.fec.FecEncoder;
+import com.gxd.vpn.tunnel.flow.FlowTable;
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+import com.gxd.vpn.tunnel.metrics.TunnelMetrics;
+import com.gxd.vpn.tunnel.route.SplitTunnel;
+import com.gxd.vpn.tunnel.shaping.TrafficShaper;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Moves packets between the local TUN interface and the tunnel socket.
+ * This is the platform-independent forwarding core, it can run against a real TUN interface as well as
+ * against a pipe or a local socket.
+ * <p>
+ * The uplink (TUN -> tunnel) runs on its own thread and the downlink (tunnel -> TUN) runs on the caller's thread.
+ * Both block in read() instead of polling, so a packet is forwarded as soon as it shows up.
+ * Keepalives and the receive timeout are driven by a timer. Anything sent counts as a keepalive, and while the
+ * radio is up anyway, keepalives go out early rather than waking it up later on. The tunnel times out once what
+ * was sent has gone unanswered for the receive timeout, which leaves the keepalive interval free to stretch, see
+ * {@link AdaptiveKeepalive}. In lazy mode the tunnel is let go instead once it has been idle for an interval.
+ * <p>
+ * The pump outlives the tunnels it forwards over: {@link #run} attaches one tunnel until it fails, while the uplink
+ * keeps reading the TUN interface. Packets read while no tunnel is attached wait in a bounded queue and go out
+ * first once the next tunnel is attached, so a network handover doesn't tear down the interface and every app
+ * connection with it. With a resumption ticket, the next tunnel doesn't even wait for a handshake: the request to
+ * resume goes out first and the queued packets right behind it, see {@link #resume}.
+ * <p>
+ * A session can also stripe over several tunnels to the same server, for more than one core's or one UDP flow's
+ * worth of throughput. The uplink then only hashes each packet to a tunnel by its flow, so that every flow stays in
+ * order, and hands it to that tunnel's worker thread, which seals and sends it. Each tunnel also gets its own
+ * downlink thread.
+ * <p>
+ * With a {@link TrafficShaper}, the uplink thread only classifies and queues what it reads, and a scheduler thread
+ * sends it in order of priority and, optionally, at a limited rate.
+ * <p>
+ * With forward error correction, every tunnel protects what it sends in groups, whose parity goes out once a group
+ * is full or whoever sends on the tunnel has nothing more to send for now, see {@link FecEncoder}. Each downlink
+ * recovers what the server's parity allows, and the timer tells the server how much of what it sent got lost, so
+ * that it can fit its parity to that; the server does the same for us.
+ */
+public class PacketPump implements Closeable {
+    /**
+     * How often the timer checks the keepalive and receive deadlines.
+     */
+    private static final long TIMER_PERIOD_MS = TimeUnit.SECONDS.toMillis(1);
+    /**
+     * About how long a cellular radio stays connected after the last packet. Traffic after a longer silence counts
+     * as a wakeup.
+     */
+    private static final long RADIO_TAIL_MS = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * What a session fails with when it is let go for being idle, which is not a failure as far as {@link #run} is
+     * concerned.
+     */
+    private static final EOFException IDLE = new EOFException("Idle");
+    /**
+     * Packets waiting for each worker when striping. Beyond that they are dropped, like a full NIC ring would.
+     */
+    private static final int PATH_QUEUE_CAPACITY = 256;
+    /**
+     * Most packets to drain from the TUN interface in one go with forward error correction but without batching.
+     */
+    private static final int FEC_DRAIN_PACKETS = 64;
+    private final TunDevice mTun;
+    private final BufferPool mBufferPool;
+    private final long mKeepaliveIntervalMs;
+    private final long mReceiveTimeoutMs;
+    private final String mName;
+    /**
+     * Guards {@link #mSession} and {@link #mQueue}. The uplink takes it for every datagram it sends itself, which
+     * costs next to nothing since nobody else wants it unless a tunnel is being attached or detached.
+     */
+    private final Object mLock = new Object();
+    private final ArrayDeque<ByteBuffer> mQueue = new ArrayDeque<>();
+    /**
+     * Set once the TUN side is gone, after which the pump is of no more use.
+     */
+    private final AtomicReference<Throwable> mFailure = new AtomicReference<>();
+    /**
+     * Only touched by the timer threads, one session after another.
+     */
+    private final ByteBuffer mKeepalive = ByteBuffer.allocateDirect(1);
+    /**
+     * Only written with {@link #mLock} held; the uplink peeks without it to find out whether to stripe.
+     */
+    private volatile Session mSession;
+    /**
+     * When the last datagram went either way, to tell wakeups of the radio.
+     */
+    private volatile long mLastActivityTime;
+    /**
+     * Set once a packet has come while no tunnel is attached, for {@link #awaitUplink}. Guarded by {@link #mLock}.
+     */
+    private boolean mUplinkWaiting;
+    private Thread mUplink;
+    private Thread mScheduler;
+    private int mQueueCapacity;
+    private int mMaxBatchPackets = 1;
+    private int mMaxFrameSize;
+    private TunnelMetrics mMetrics = new TunnelMetrics();
+    private FlowTable mFlowTable;
+    private PacketCapture mCapture;
+    private DnsCache mDnsCache;
+    private SplitTunnel mSplitTunnel;
+    private TrafficShaper mShaper;
+    private AdaptiveKeepalive mAdaptiveKeepalive;
+    private boolean mLazy;
+    private boolean mCompression;
+    private int mFecData;
+    private int mFecParity;
+    private boolean mAckThinning;
+
+    /**
+     * @param tun        packets to be sent are read from here and packets received are written back; reads must block
+     * @param bufferPool packet buffers; they must hold the largest packet or datagram, i.e. at least the MTU
+     */
+    public PacketPump(TunDevice tun, BufferPool bufferPool, long keepaliveIntervalMs, long receiveTimeoutMs,
+                      String name) {
+        mTun = tun;
+        mBufferPool = bufferPool;
+        mKeepaliveIntervalMs = keepaliveIntervalMs;
+        mReceiveTimeoutMs = receiveTimeoutMs;
+        mName = name;
+    }
+
+    /**
+     * Enables batching on the uplink. Packets already queued on the TUN interface are drained right after the one
+     * that woke us up, and as many as fit are coalesced into one {@link Protocol#BATCH} datagram.
+     * Only enable this if the server understands batches.
+     *
+     * @param maxFrameSize largest datagram to build, at most the buffer size; packets that don't fit into a batch
+     *                     are sent on their own
+     * @param maxPackets   most packets to drain in one go, so that a busy uplink still yields to timers and flushes
+     */
+    public void setBatching(int maxFrameSize, int maxPackets) {
+        if (maxFrameSize <= Protocol.HEADER_SIZE || maxFrameSize > mBufferPool.bufferSize() || maxPackets < 1) {
+            throw new IllegalArgumentException("Bad batching: " + maxFrameSize + ", " + maxPackets);
+        }
+        mMaxFrameSize = maxFrameSize;
+        mMaxBatchPackets = maxPackets;
+    }
+
+    /**
+     * Sets how many datagrams to hold on to while no tunnel is attached. Beyond that, new ones are dropped and left
+     * to the apps to retransmit. This is 0 by default, i.e. nothing survives a handover.
+     * Each queued datagram takes a buffer from the pool.
+     */
+    public void setQueueCapacity(int capacity) {
+        mQueueCapacity = capacity;
+    }
+
+    /**
+     * Sets where to count packets, drops and keepalives. Keep one for the lifetime of a connection, so that the
+     * counts carry on across pumps.
+     */
+    public void setMetrics(TunnelMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Enables per-flow accounting: every packet going either way is parsed and counted against its flow.
+     * Idle flows are evicted by the timer while a tunnel is attached.
+     */
+    public void setFlowTable(FlowTable flowTable) {
+        mFlowTable = flowTable;
+    }
+
+    /**
+     * Enables capturing the first bytes of every packet going either way into {@code capture}, to be written out
+     * when needed; see {@link PacketCapture#setEnabled} for turning it on and off later.
+     */
+    public void setCapture(PacketCapture capture) {
+        mCapture = capture;
+    }
+
+    /**
+     * Enables answering DNS queries from {@code dnsCache}: queries it can answer or hold never reach the tunnel,
+     * and responses coming back are cached on their way to the TUN interface.
+     */
+    public void setDnsCache(DnsCache dnsCache) {
+        mDnsCache = dnsCache;
+    }
+
+    /**
+     * Enables compressing packets on the uplink, where it pays off, and tells the server it may compress as well
+     * whenever a tunnel is attached. Only enable this if the server understands {@link Protocol#COMPRESSED}
+     * frames; compressed frames from the server are expanded either way.
+     */
+    public void setCompression(boolean compression) {
+        mCompression = compression;
+    }
+
+    /**
+     * Enables forward error correction on every tunnel, and tells the server it may protect what it sends as well
+     * whenever a tunnel is attached. Only enable this if the server understands {@link Protocol#FEC} frames.
+     * The buffers must have room for {@link FecEncoder#OVERHEAD} more bytes then, on top of what encryption takes.
+     *
+     * @param data   datagrams per group
+     * @param parity most parity datagrams per group; how many go out follows the loss the server reports
+     */
+    public void setFec(int data, int parity) {
+        if (data < 1 || data > FecEncoder.MAX_DATA || parity < 0 || parity > FecEncoder.MAX_PARITY) {
+            throw new IllegalArgumentException("Bad FEC: " + data + ", " + parity);
+        }
+        mFecData = data;
+        mFecParity = parity;
+    }
+
+    /**
+     * Enables checking the destination of every packet read from the TUN interface against {@code splitTunnel}.
+     * Packets for destinations that bypass the tunnel are dropped; the interface's routes should keep them away
+     * in the first place.
+     */
+    public void setSplitTunnel(SplitTunnel splitTunnel) {
+        mSplitTunnel = splitTunnel;
+    }
+
+    /**
+     * Enables scheduling the uplink through {@code shaper}, so that interactive packets don't wait behind bulk
+     * transfers wherever the uplink is the bottleneck. Packets are dropped once the queue of their class is full.
+     */
+    public void setShaper(TrafficShaper shaper) {
+        mShaper = shaper;
+    }
+
+    /**
+     * Enables thinning out pure TCP ACKs in the shaper's queues, see {@link TrafficShaper#setAckThinning}; without
+     * a shaper there is no queue to thin. Worth it where the uplink is much slower than the downlink.
+     */
+    public void setAckThinning(boolean ackThinning) {
+        mAckThinning = ackThinning;
+    }
+
+    /**
+     * Takes the keepalive interval from {@code keepalive} rather than the fixed one, and moves its search for the
+     * NAT timeout on while a tunnel is attached.
+     */
+    public void setKeepalive(AdaptiveKeepalive keepalive) {
+        mAdaptiveKeepalive = keepalive;
+    }
+
+    /**
+     * Enables lazy mode: no keepalives are sent, and once the tunnel has been idle for a keepalive interval,
+     * {@link #run} returns instead. Packets read from then on are queued, and {@link #awaitUplink} tells when to
+     * attach the next tunnel. Nothing the server sends gets through in between, so this suits apps that only
+     * ever open connections themselves. It takes a queue, see {@link #setQueueCapacity}.
+     */
+    public void setLazy(boolean lazy) {
+        mLazy = lazy;
+    }
+
+    /**
+     * Waits for a packet to come while no tunnel is attached, e.g. after {@link #run} returned in lazy mode.
+     *
+     * @return false if the pump has failed or been closed instead
+     * @throws InterruptedException if the thread got interrupted while waiting
+     */
+    public boolean awaitUplink() throws InterruptedException {
+        synchronized (mLock) {
+            while (!mUplinkWaiting && mFailure.get() == null) {
+                mLock.wait();
+            }
+            return mFailure.get() == null;
+        }
+    }
+
+    /**
+     * @return false once the TUN interface has failed or the pump has been closed; a new pump is needed then
+     */
+    public boolean isOpen() {
+        return mFailure.get() == null;
+    }
+
+    /**
+     * Forwards packets over {@code tunnel} until something goes wrong with it, or in lazy mode, until it is idle.
+     * The tunnel is closed when this returns; the TUN interface and the pump stay up for the next tunnel.
+     *
+     * @param tunnel      connected tunnel socket; it must be in blocking mode
+     * @param sessionKeys keys to encrypt and authenticate every datagram carrying packets with, or {@code null} for
+     *                    a plaintext tunnel. With keys, datagrams from the server that are not sealed with them are
+     *                    dropped, apart from keepalives, which carry nothing, and so are duplicated or replayed ones.
+     *                    The buffers must have room for {@link PacketSealer#OVERHEAD} more bytes then.
+     */
+    public void run(DatagramChannel tunnel, SessionKeys sessionKeys) throws IOException {
+        run(Collections.singletonList(tunnel), sessionKeys);
+    }
+
+    /**
+     * Forwards packets striped over several tunnels to the same server until something goes wrong with any of them.
+     * The server must take every datagram of the session on each of them, and seal everything it sends with one
+     * sequence counter across all of them. The tunnels are all closed when this returns.
+     *
+     * @param tunnels connected tunnel sockets in blocking mode; a single one works just like {@link #run(DatagramChannel, SessionKeys)}
+     */
+    public void run(List<DatagramChannel> tunnels, SessionKeys sessionKeys) throws IOException {
+        run(tunnels, sessionKeys, null, 0);
+    }
+
+    /**
+     * Picks a session back up with a resumption ticket rather than a handshake, and otherwise works like
+     * {@link #run(DatagramChannel, SessionKeys)}. The request to resume goes out first, and whatever is queued right
+     * behind it without waiting for an answer, so the first packets take a single round trip. The request is sent
+     * again every tick until the server answers, which with keys means anything sealed with them.
+     *
+     * @param sessionKeys keys of the resumed session, as written along with the request, or {@code null} for a
+     *                    plaintext one
+     * @param resume      the request to resume, see {@link SessionTicket#writeResume}
+     * @param timeoutMs   how long to wait for the server to take the request
+     * @throws ProtocolException if the server turned the request down or never answered it, or the tunnel failed
+     *                           before it did, in which case the ticket is of no more use and a handshake is due;
+     *                           other failures come after the session got going
+     */
+    public void resume(DatagramChannel tunnel, SessionKeys sessionKeys, ByteBuffer resume, long timeoutMs)
+            throws IOException {
+        run(Collections.singletonList(tunnel), sessionKeys, resume, timeoutMs);
+    }
+
+    private void run(List<DatagramChannel> tunnels, SessionKeys sessionKeys, ByteBuffer resume, long timeoutMs)
+            throws IOException {
+        for (DatagramChannel tunnel : tunnels) {
+            if (!tunnel.isBlocking()) {
+                throw new IllegalStateException("Tunnel must be in blocking mode");
+            }
+        }
+        rethrow(mFailure.get());
+        final Session session;
+        try {
+            session = new Session(tunnels, sessionKeys, resume, timeoutMs);
+        } catch (GeneralSecurityException e) {
+            for (DatagramChannel tunnel : tunnels) {
+                tunnel.close();
+            }
+            throw new IOException(e);
+        }
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, mName + "-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final List<Thread> workers = new ArrayList<>();
+        final List<Thread> downlinks = new ArrayList<>();
+        try {
+            attach(session);
+            startUplink();
+            timer.scheduleWithFixedDelay(() -> onTimer(session), TIMER_PERIOD_MS, TIMER_PERIOD_MS, TimeUnit.MILLISECONDS);
+            if (session.striped()) {
+                for (Path path : session.paths) {
+                    workers.add(startThread(() -> work(session, path), mName + "-worker-" + path.index));
+                    if (path.index > 0) {
+                        downlinks.add(startThread(() -> downlink(session, path), mName + "-downlink-" + path.index));
+                    }
+                }
+            }
+            downlink(session, session.paths[0]);
+        } finally {
+            timer.shutdownNow();
+            detach(session);
+            session.close();
+            // The workers wait on their queues and have to be interrupted. The downlinks must not be: they write to
+            // the TUN interface, which an interrupt would close for good. Closing the tunnels is enough for them.
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            for (Thread thread : workers) {
+                joinUninterruptibly(thread);
+            }
+            for (Thread thread : downlinks) {
+                joinUninterruptibly(thread);
+            }
+            session.release();
+        }
+        final Throwable failure = session.failure.get();
+        if (session.resume != null && !session.resumed && failure instanceof IOException
+                && !(failure instanceof ProtocolException)) {
+            // Such as the first flight not getting out at all: as far as the caller is concerned, turned down.
+            throw (ProtocolException) new ProtocolException("Resumption failed: " + failure).initCause(failure);
+        }
+        if (failure != IDLE) {
+            rethrow(failure);
+        }
+    }
+
+    /**
+     * Stops the uplink and drops whatever is queued. The TUN interface itself is left to the caller.
+     */
+    @Override
+    public void close() {
+        mFailure.compareAndSet(null, new EOFException("Closed"));
+        synchronized (mLock) {
+            if (mSession != null) {
+                mSession.fail(mFailure.get());
+            }
+            if (mUplink != null) {
+                // The uplink thread is blocked reading the TUN interface. It exits once the interface is closed,
+                // which interruptible channels do right away.
+                mUplink.interrupt();
+            }
+            if (mScheduler != null) {
+                mScheduler.interrupt();
+            }
+            ByteBuffer queued;
+            while ((queued = mQueue.poll()) != null) {
+                mBufferPool.release(queued);
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    private void startUplink() {
+        synchronized (mLock) {
+            if (mUplink == null) {
+                mUplink = startThread(this::uplink, mName + "-uplink");
+                if (mShaper != null) {
+                    mShaper.setAckThinning(mAckThinning ? this::onAckThinned : null);
+                    mScheduler = startThread(this::schedule, mName + "-scheduler");
+                }
+            }
+        }
+    }
+
+    private void onAckThinned(ByteBuffer packet) {
+        mMetrics.onAckThinned();
+        mBufferPool.release(packet);
+    }
+
+    private static Thread startThread(Runnable runnable, String name) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void attach(Session session) {
+        synchronized (mLock) {
+            mSession = session;
+            mUplinkWaiting = false;
+            try {
+                if (session.resume != null) {
+                    // Plaintext, since the server needs the ticket to know the keys.
+                    session.paths[0].tunnel.write(session.resume.duplicate());
+                }
+                if (mCompression) {
+                    offer(session, Protocol.COMPRESSED);
+                }
+                if (mFecData > 0) {
+                    offer(session, Protocol.FEC);
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                session.fail(e);
+                return;
+            }
+            // Whatever piled up in between goes out first, in order.
+            // When striping they take the first tunnel, before the workers start.
+            while (!mQueue.isEmpty()) {
+                ByteBuffer queued = mQueue.peek();
+                try {
+                    session.paths[0].send(queued);
+                } catch (IOException | GeneralSecurityException e) {
+                    session.fail(e);
+                    return;
+                }
+                mBufferPool.release(mQueue.poll());
+            }
+            try {
+                session.paths[0].flushParity();
+            } catch (IOException | GeneralSecurityException e) {
+                session.fail(e);
+            }
+        }
+    }
+
+    /**
+     * Tells the server on every tunnel that it may send {@code type} frames.
+     */
+    private static void offer(Session session, byte type) throws IOException, GeneralSecurityException {
+        // Nothing acknowledges this, so send it a few times like the keepalives.
+        final ByteBuffer offer = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+        for (Path path : session.paths) {
+            for (int i = 0; i < 3; ++i) {
+                offer.clear();
+                offer.put(Protocol.CONTROL).put(type).flip();
+                path.write(offer);
+            }
+        }
+    }
+
+    private void detach(Session session) {
+        synchronized (mLock) {
+            if (mSession == session) {
+                mSession = null;
+            }
+        }
+    }
+
+    private void uplink() {
+        // Take the buffer for a single packet.
+        final ByteBuffer packet = mBufferPool.acquire();
+        final PacketHeaders headers = new PacketHeaders();
+        // With a shaper, the scheduler batches and compresses instead.
+        final PacketBatch batch = mShaper == null && mMaxBatchPackets > 1
+                ? new PacketBatch(mBufferPool.acquire(), mMaxFrameSize) : null;
+        final PacketCompressor compressor = mShaper == null && mCompression ? new PacketCompressor(mMetrics) : null;
+        final ByteBuffer compressed = compressor != null ? mBufferPool.acquire() : null;
+        try {
+            while (mFailure.get() == null) {
+                // Read the outgoing packet from the TUN interface. This blocks until the system routes one to us.
+                int length = checkOpen(mTun.read(packet));
+                if (length > 0) {
+                    packet.flip();
+                    if (!admit(packet, headers)) {
+                        packet.clear();
+                        continue;
+                    }
+                    final Session session = mSession;
+                    if (mShaper != null) {
+                        // The scheduler takes it from here.
+                        shape(packet);
+                    } else if (session != null && session.striped()) {
+                        // The workers batch and seal, all that's left to do here is to pick one.
+                        session.stripe(packet);
+                    } else if (batch == null && mFecData == 0) {
+                        // Write the outgoing packet to the tunnel.
+                        send(compress(compressor, packet, compressed));
+                    } else {
+                        drain(packet, batch, headers, compressor, compressed);
+                    }
+                }
+                packet.clear();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Without the TUN interface there is nothing left to forward, whatever the tunnel does.
+            mFailure.compareAndSet(null, e);
+            synchronized (mLock) {
+                if (mSession != null) {
+                    mSession.fail(e);
+                }
+                mLock.notifyAll();
+            }
+        } finally {
+            mBufferPool.release(packet);
+            if (batch != null) {
+                mBufferPool.release(batch.release());
+            }
+            if (compressed != null) {
+                mBufferPool.release(compressed);
+            }
+        }
+    }
+
+    /**
+     * Sends {@code packet} together with whatever else is already queued on the TUN interface,
+     * using as few datagrams as possible, and the parity once the queue is empty.
+     *
+     * @param batch the batch to coalesce packets into, or {@code null} to send them one by one
+     */
+    private void drain(ByteBuffer packet, PacketBatch batch, PacketHeaders headers, PacketCompressor compressor,
+                       ByteBuffer compressed) throws IOException {
+        final int maxPackets = batch != null ? mMaxBatchPackets : FEC_DRAIN_PACKETS;
+        int count = 1;
+        while (true) {
+            add(batch, compress(compressor, packet, compressed));
+            // Skip whatever was answered locally on the way to the next packet to send.
+            do {
+                if (count == maxPackets) {
+                    // More may well be queued; the group stays open for them.
+                    flush(batch);
+                    return;
+                }
+                ++count;
+                packet.clear();
+                if (checkOpen(mTun.poll(packet)) == 0) {
+                    flush(batch);
+                    flushParity();
+                    return;
+                }
+                packet.flip();
+            } while (!admit(packet, headers));
+        }
+    }
+
+    /**
+     * Adds a datagram to the batch, sending the batch first if it doesn't fit anymore, or sends it without a batch.
+     */
+    private void add(PacketBatch batch, ByteBuffer datagram) {
+        if (batch == null) {
+            send(datagram);
+        } else if (!batch.add(datagram)) {
+            flush(batch);
+            if (!batch.add(datagram)) {
+                // Too big to be framed at all.
+                send(datagram);
+            }
+        }
+    }
+
+    private void flush(PacketBatch batch) {
+        if (batch != null && batch.count() > 0) {
+            send(batch.datagram());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends the parity of the attached tunnel's open group, since there is nothing more to send for now.
+     */
+    private void flushParity() {
+        if (mFecData == 0) {
+            return;
+        }
+        synchronized (mLock) {
+            final Session session = mSession;
+            if (session != null) {
+                try {
+                    session.paths[0].flushParity();
+                } catch (IOException | GeneralSecurityException e) {
+                    session.fail(e);
+                    mSession = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a copy of {@code packet} in the shaper.
+     */
+    private void shape(ByteBuffer packet) {
+        final ByteBuffer queued = mBufferPool.acquire();
+        queued.put(packet).flip();
+        if (!mShaper.offer(queued)) {
+            mBufferPool.release(queued);
+            mMetrics.onUplinkDrop();
+        }
+    }
+
+    /**
+     * Sends the packets queued in the shaper as it hands them out, like the uplink does without one, batching
+     * whatever else may go right away.
+     */
+    private void schedule() {
+        final PacketBatch batch = mMaxBatchPackets > 1 ? new PacketBatch(mBufferPool.acquire(), mMaxFrameSize) : null;
+        final PacketCompressor compressor = mCompression ? new PacketCompressor(mMetrics) : null;
+        final ByteBuffer compressed = compressor != null ? mBufferPool.acquire() : null;
+        try {
+            while (mFailure.get() == null) {
+                ByteBuffer packet = mShaper.take();
+                final Session session = mSession;
+                if (session != null && session.striped()) {
+                    try {
+                        session.stripe(packet);
+                    } finally {
+                        mBufferPool.release(packet);
+                    }
+                    continue;
+                }
+                if (batch == null && mFecData == 0) {
+                    try {
+                        send(compress(compressor, packet, compressed));
+                    } finally {
+                        mBufferPool.release(packet);
+                    }
+                    continue;
+                }
+                final int maxPackets = batch != null ? mMaxBatchPackets : FEC_DRAIN_PACKETS;
+                for (int count = 1; packet != null; ++count) {
+                    try {
+                        add(batch, compress(compressor, packet, compressed));
+                    } finally {
+                        mBufferPool.release(packet);
+                    }
+                    packet = count < maxPackets ? mShaper.poll() : null;
+                }
+                flush(batch);
+                // Held back by the rate, more is on its way; the group stays open for it.
+                if (mShaper.isEmpty()) {
+                    flushParity();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The pump is closed.
+        } catch (RuntimeException e) {
+            mFailure.compareAndSet(null, e);
+            synchronized (mLock) {
+                if (mSession != null) {
+                    mSession.fail(e);
+                }
+            }
+        } finally {
+            mShaper.clear(mBufferPool::release);
+            if (batch != null) {
+                mBufferPool.release(batch.release());
+            }
+            if (compressed != null) {
+                mBufferPool.release(compressed);
+            }
+        }
+    }
+
+    /**
+     * Sends the packets the uplink striped to {@code path}, batching whatever piled up while the last one went out.
+     */
+    private void work(Session session, Path path) {
+        final PacketBatch batch = mMaxBatchPackets > 1 ? new PacketBatch(mBufferPool.acquire(), mMaxFrameSize) : null;
+        // Every worker compresses its own flows, so that compression spreads over the cores as well.
+        final PacketCompressor compressor = mCompression ? new PacketCompressor(mMetrics) : null;
+        final ByteBuffer compressed = compressor != null ? mBufferPool.acquire() : null;
+        try {
+            while (session.failure.get() == null) {
+                ByteBuffer packet = path.queue.take();
+                if (batch == null && path.encoder == null) {
+                    try {
+                        path.send(compress(compressor, packet, compressed));
+                    } finally {
+                        mBufferPool.release(packet);
+                    }
+                    continue;
+                }
+                final int maxPackets = batch != null ? mMaxBatchPackets : FEC_DRAIN_PACKETS;
+                for (int count = 1; packet != null; ++count) {
+                    try {
+                        final ByteBuffer datagram = compress(compressor, packet, compressed);
+                        if (batch == null) {
+                            path.send(datagram);
+                        } else if (!batch.add(datagram)) {
+                            flush(path, batch);
+                            if (!batch.add(datagram)) {
+                                // Too big to be framed at all.
+                                path.send(datagram);
+                            }
+                        }
+                    } finally {
+                        mBufferPool.release(packet);
+                    }
+                    packet = count < maxPackets ? path.queue.poll() : null;
+                }
+                flush(path, batch);
+                if (path.queue.isEmpty()) {
+                    path.flushParity();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The session is over.
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            session.fail(e);
+        } finally {
+            if (batch != null) {
+                mBufferPool.release(batch.release());
+            }
+            if (compressed != null) {
+                mBufferPool.release(compressed);
+            }
+        }
+    }
+
+    /**
+     * @return {@code compressed} holding the packet compressed, or the packet itself if that isn't worth it or
+     * compression is off
+     */
+    private static ByteBuffer compress(PacketCompressor compressor, ByteBuffer packet, ByteBuffer compressed) {
+        return compressor != null && compressor.compress(packet, compressed) ? compressed : packet;
+    }
+
+    private static void flush(Path path, PacketBatch batch) throws IOException, GeneralSecurityException {
+        if (batch != null && batch.count() > 0) {
+            path.send(batch.datagram());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends a datagram through the attached tunnel, or queues it if there is none at the moment.
+     */
+    private void send(ByteBuffer datagram) {
+        synchronized (mLock) {
+            final Session session = mSession;
+            if (session != null) {
+                try {
+                    session.paths[0].send(datagram);
+                    return;
+                } catch (IOException | GeneralSecurityException e) {
+                    // The downlink notices and returns from run(), the datagram waits for the next tunnel.
+                    session.fail(e);
+                    mSession = null;
+                }
+            }
+            if (mQueue.size() < mQueueCapacity) {
+                ByteBuffer queued = mBufferPool.acquire();
+                queued.put(datagram).flip();
+                mQueue.add(queued);
+            } else {
+                mMetrics.onUplinkDrop();
+            }
+            if (!mUplinkWaiting) {
+                mUplinkWaiting = true;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads what the server sends on one tunnel until the session fails, which is recorded rather than thrown.
+     */
+    private void downlink(Session session, Path path) {
+        // Take the buffer for a single packet, and one more for its plaintext if it is sealed.
+        final ByteBuffer packet = mBufferPool.acquire();
+        final ByteBuffer opened = session.keys != null ? mBufferPool.acquire() : null;
+        final ByteBuffer expanded = mBufferPool.acquire();
+        final PacketHeaders headers = new PacketHeaders();
+        try {
+            downlink(session, path, packet, opened, incoming -> {
+                if (Protocol.isFrame(incoming, Protocol.COMPRESSED)) {
+                    if (incoming.remaining() == Protocol.HEADER_SIZE) {
+                        // The server offering to take compressed packets; we only go by the parameters.
+                        return;
+                    }
+                    if (!PacketCompressor.decompress(incoming, expanded)) {
+                        mMetrics.onDownlinkDrop();
+                        return;
+                    }
+                    incoming = expanded;
+                }
+                final boolean parsed = parse(incoming, headers);
+                if (parsed && mDnsCache != null) {
+                    mDnsCache.answer(incoming, headers, mTun, System.nanoTime());
+                }
+                account(incoming, parsed ? headers : null, false);
+                // Write the incoming packet to the TUN interface.
+                mTun.write(incoming);
+            });
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            session.fail(e);
+        } finally {
+            mBufferPool.release(packet);
+            if (opened != null) {
+                mBufferPool.release(opened);
+            }
+            mBufferPool.release(expanded);
+        }
+    }
+
+    /**
+     * Reads what the server sends on {@code path} into {@code tun}, until the session fails.
+     * <p>
+     * Every tunnel of a session gets a downlink of its own, and the tunnels are fixed when the session starts, so
+     * the downlink of the first tunnel is the only one of a session that isn't striped. Only then is the replay
+     * window used without a lock.
+     */
+    private void downlink(Session session, Path path, ByteBuffer packet, ByteBuffer opened, PacketBatch.Sink tun)
+            throws IOException, GeneralSecurityException {
+        // Openers are not thread-safe, so every tunnel gets one. The replay window is shared, since the server
+        // numbers datagrams across tunnels and one replayed onto another tunnel must be caught as well.
+        final PacketOpener opener = session.keys != null ? new PacketOpener(session.keys) : null;
+        final ReplayWindow replayWindow = session.replayWindow;
+        // With a single tunnel, this downlink is the window's only user and needs no lock.
+        final boolean striped = session.striped();
+        assert striped || path.index == 0 : "Downlink " + path.index + " of a session that isn't striped";
+        final FecDecoder.Sink recovered = datagram -> deliver(datagram, tun);
+        while (session.failure.get() == null) {
+            // Read the incoming packet from the tunnel. This blocks until the server sends something.
+            int length = path.tunnel.read(packet);
+            if (length > 0) {
+                final long timeNow = now();
+                session.lastReceiveTime = timeNow;
+                session.unansweredSince = 0;
+                onActivity(timeNow);
+                packet.flip();
+                if (!session.resumed && session.resume != null) {
+                    // The rejection can't be authenticated, so it only counts before anything authentic came.
+                    if (SessionTicket.isRejection(packet)) {
+                        throw new ProtocolException("Resumption turned down");
+                    }
+                    if (opener == null) {
+                        session.resumed = true;
+                    }
+                }
+                if (opener == null) {
+                    receive(path, packet, tun, recovered);
+                } else if (Protocol.isFrame(packet, Protocol.SEALED)) {
+                    opened.clear();
+                    // Duplicates and replays are only recognized after authentication, so forgeries can't
+                    // move the window. Forgeries come back as -1, which the window rejects as well.
+                    final long sequence = opener.open(packet, opened);
+                    if (sequence >= 0 && !session.resumed) {
+                        // Authentic, so the server has taken the request. Its answer is sealed with sequence number
+                        // 0, which the window turns down like a handshake's.
+                        session.resumed = true;
+                    }
+                    final boolean accepted;
+                    if (striped) {
+                        synchronized (replayWindow) {
+                            accepted = replayWindow.accept(sequence);
+                        }
+                    } else {
+                        accepted = replayWindow.accept(sequence);
+                    }
+                    if (accepted) {
+                        opened.flip();
+                        receive(path, opened, tun, recovered);
+                    } else {
+                        mMetrics.onDownlinkDrop();
+                    }
+                } else if (length > 1 || packet.get(0) != Protocol.CONTROL) {
+                    // With encryption on, anything that is not sealed is dropped. Keepalives carry nothing anyway.
+                    mMetrics.onDownlinkDrop();
+                }
+            }
+            packet.clear();
+        }
+    }
+
+    /**
+     * Hands the packets carried by a datagram from the server to {@code tun}, through the tunnel's decoder if it is
+     * protected, and takes the server's loss reports.
+     */
+    private void receive(Path path, ByteBuffer datagram, PacketBatch.Sink tun, FecDecoder.Sink recovered)
+            throws IOException {
+        if (path.decoder == null || !Protocol.isFrame(datagram, Protocol.FEC)) {
+            deliver(datagram, tun);
+        } else if (FecDecoder.isReport(datagram)) {
+            final int loss = FecDecoder.reportedLoss(datagram);
+            if (loss >= 0) {
+                path.encoder.setLoss(loss);
+            }
+        } else {
+            final int count = path.decoder.receive(datagram, recovered);
+            if (count > 0) {
+                mMetrics.onFecRecovered(count);
+            }
+        }
+    }
+
+    /**
+     * Hands the packets carried by a datagram from the server to {@code tun}.
+     */
+    private static void deliver(ByteBuffer datagram, PacketBatch.Sink tun) throws IOException {
+        if (!datagram.hasRemaining()) {
+            return;
+        }
+        if (datagram.get(datagram.position()) != Protocol.CONTROL || Protocol.isFrame(datagram, Protocol.COMPRESSED)) {
+            tun.accept(datagram);
+        } else if (Protocol.isFrame(datagram, Protocol.BATCH)) {
+            PacketBatch.unpack(datagram, tun);
+        }
+        // Ignore any other control messages.
+    }
+
+    /**
+     * Drops a packet read from the TUN interface if it bypasses the tunnel, lets the DNS cache answer it, and
+     * accounts for it if it goes out.
+     *
+     * @return false if the packet has been taken care of and must not be forwarded
+     */
+    private boolean admit(ByteBuffer packet, PacketHeaders headers) throws IOException {
+        final boolean parsed = parse(packet, headers);
+        if (parsed && mSplitTunnel != null && !mSplitTunnel.isTunneled(headers)) {
+            mMetrics.onUplinkDrop();
+            return false;
+        }
+        if (parsed && mDnsCache != null && mDnsCache.query(packet, headers, mTun, System.nanoTime())) {
+            return false;
+        }
+        account(packet, parsed ? headers : null, true);
+        return true;
+    }
+
+    /**
+     * Parses the headers of a packet, if anybody is going to look at them.
+     */
+    private boolean parse(ByteBuffer packet, PacketHeaders headers) {
+        return (mFlowTable != null || mDnsCache != null || mSplitTunnel != null) && headers.parse(packet);
+    }
+
+    /**
+     * Counts a packet in the metrics and, if enabled and its headers were parsed, against its flow, and captures it
+     * if enabled. Leaves the packet's position alone.
+     */
+    private void account(ByteBuffer packet, PacketHeaders headers, boolean outbound) {
+        final int length = packet.remaining();
+        final PacketCapture capture = mCapture;
+        if (capture != null) {
+            capture.record(packet, outbound);
+        }
+        if (outbound) {
+            mMetrics.onPacketSent(length);
+        } else {
+            mMetrics.onPacketsReceived(1, length);
+        }
+        final FlowTable flowTable = mFlowTable;
+        if (flowTable != null && headers != null) {
+            flowTable.record(headers, outbound, length, now());
+        }
+    }
+
+    private void onTimer(Session session) {
+        try {
+            final long timeNow = now();
+            if (session.resume != null && !session.resumed) {
+                if (session.resumeDeadline <= timeNow) {
+                    throw new ProtocolException("Resumption not answered");
+                }
+                session.paths[0].tunnel.write(session.resume.duplicate());
+            }
+            final long unansweredSince = session.unansweredSince;
+            if (unansweredSince != 0 && unansweredSince + mReceiveTimeoutMs <= timeNow) {
+                // We are sending for a long time but not receiving.
+                if (mAdaptiveKeepalive != null) {
+                    mAdaptiveKeepalive.onTimeout();
+                }
+                throw new SocketTimeoutException("Timed out");
+            }
+            final long intervalMs = mAdaptiveKeepalive != null
+                    ? mAdaptiveKeepalive.intervalMs() : mKeepaliveIntervalMs;
+            // Traffic went through within the last tick, so the radio is up and sending costs little.
+            final boolean radioAwake = mLastActivityTime + TIMER_PERIOD_MS > timeNow;
+            if (mLazy && lastTrafficTime(session) + intervalMs <= timeNow) {
+                // Let the NAT binding go rather than keep it alive; the next packet out brings a new tunnel.
+                session.fail(IDLE);
+                return;
+            }
+            // What went out unanswered for a while may be one-way traffic, so ask the server for a sign of life.
+            final boolean check = unansweredSince != 0 && unansweredSince + mReceiveTimeoutMs / 2 <= timeNow
+                    && session.paths[0].lastKeepaliveTime < unansweredSince;
+            // Every tunnel has its own NAT mapping to keep alive.
+            for (Path path : session.paths) {
+                final long idleMs = timeNow - path.lastSendTime;
+                if (check && path.index == 0
+                        || !mLazy && (idleMs >= intervalMs || radioAwake && idleMs >= intervalMs / 2)) {
+                    // We are receiving for a long time but not sending.
+                    // Send empty control messages.
+                    for (int i = 0; i < 3; ++i) {
+                        mKeepalive.position(0);
+                        path.tunnel.write(mKeepalive);
+                    }
+                    mMetrics.onKeepalive();
+                    path.lastSendTime = path.lastKeepaliveTime = timeNow;
+                    if (session.unansweredSince == 0) {
+                        session.unansweredSince = timeNow;
+                    }
+                    onActivity(timeNow);
+                }
+            }
+            if (mFecData > 0) {
+                for (Path path : session.paths) {
+                    // Parity left behind by whoever sends, should they have stopped without telling.
+                    if (timeNow - path.lastSendTime >= TIMER_PERIOD_MS) {
+                        path.flushParity();
+                    }
+                    if (path.decoder.takeLoss(path.report)) {
+                        path.write(path.report);
+                    }
+                }
+            }
+            if (mAdaptiveKeepalive != null) {
+                mAdaptiveKeepalive.onTimer(timeNow, radioAwake);
+            }
+            final FlowTable flowTable = mFlowTable;
+            if (flowTable != null) {
+                flowTable.evictIdle(timeNow);
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            session.fail(e);
+        }
+    }
+
+    /**
+     * @return when the last datagram went either way
+     */
+    private static long lastTrafficTime(Session session) {
+        long time = session.lastReceiveTime;
+        for (Path path : session.paths) {
+            time = Math.max(time, path.lastSendTime);
+        }
+        return time;
+    }
+
+    /**
+     * Notes that a datagram went either way, counting a wakeup if the radio has most likely been idle.
+     */
+    private void onActivity(long timeNow) {
+        final long last = mLastActivityTime;
+        if (last != timeNow) {
+            if (last + RADIO_TAIL_MS <= timeNow) {
+                mMetrics.onWakeup();
+            }
+            mLastActivityTime = timeNow;
+        }
+    }
+
+    private static int checkOpen(int length) throws EOFException {
+        if (length < 0) {
+            throw new EOFException("TUN interface closed");
+        }
+        return length;
+    }
+
+    private static void rethrow(Throwable e) throws IOException {
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        }
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * The tunnels attached to the pump, from {@link #run} until one of them fails.
+     */
+    private class Session {
+        final Path[] paths;
+        final SessionKeys keys;
+        final ReplayWindow replayWindow;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        volatile long lastReceiveTime;
+        /**
+         * When the first datagram went out that nothing has come back since, or 0 if something has.
+         */
+        volatile long unansweredSince;
+        /**
+         * The request to resume with, or {@code null} after a handshake, whether the server has taken it, and by
+         * when it has to.
+         */
+        final ByteBuffer resume;
+        volatile boolean resumed;
+        final long resumeDeadline;
+
+        Session(List<DatagramChannel> tunnels, SessionKeys keys, ByteBuffer resume, long timeoutMs)
+                throws GeneralSecurityException {
+            this.keys = keys;
+            this.resume = resume;
+            replayWindow = keys != null ? new ReplayWindow() : null;
+            paths = new Path[tunnels.size()];
+            // With several tunnels the sealers share one counter, since they share the keys and nonces must never
+            // repeat under one key.
+            final AtomicLong nextSequence = new AtomicLong(1);
+            for (int i = 0; i < paths.length; ++i) {
+                paths[i] = new Path(this, i, tunnels.get(i),
+                        keys != null ? new PacketSealer(keys, nextSequence) : null, paths.length > 1);
+            }
+            lastReceiveTime = now();
+            resumeDeadline = lastReceiveTime + timeoutMs;
+        }
+
+        /**
+         * @return whether packets are striped over several tunnels, for as long as the session lasts
+         */
+        boolean striped() {
+            return paths.length > 1;
+        }
+
+        /**
+         * Queues a copy of {@code packet} for the worker of the tunnel its flow hashes to.
+         */
+        void stripe(ByteBuffer packet) {
+            final Path path = paths[(FlowHash.of(packet) & Integer.MAX_VALUE) % paths.length];
+            final ByteBuffer queued = mBufferPool.acquire();
+            queued.put(packet).flip();
+            if (!path.queue.offer(queued)) {
+                mBufferPool.release(queued);
+                mMetrics.onUplinkDrop();
+            }
+        }
+
+        /**
+         * Records the first failure and wakes up the downlinks, which are blocked reading the tunnels.
+         */
+        void fail(Throwable e) {
+            if (failure.compareAndSet(null, e)) {
+                close();
+            }
+        }
+
+        void close() {
+            for (Path path : paths) {
+                try {
+                    path.tunnel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Returns every buffer to the pool once no thread uses the session anymore.
+         */
+        void release() {
+            for (Path path : paths) {
+                path.release();
+            }
+        }
+    }
+
+    /**
+     * One of the tunnels of a session.
+     */
+    private class Path {
+        final Session session;
+        final int index;
+        final DatagramChannel tunnel;
+        /**
+         * Packets striped to this tunnel, or {@code null} if it is the only one.
+         */
+        final ArrayBlockingQueue<ByteBuffer> queue;
+        /**
+         * Forward error correction for what goes out and comes in on this tunnel, or {@code null} without it.
+         */
+        final FecEncoder encoder;
+        final FecDecoder decoder;
+        /**
+         * Where the timer writes loss reports.
+         */
+        final ByteBuffer report;
+        private final PacketSealer mSealer;
+        private ByteBuffer mSealed;
+        private ByteBuffer mProtected;
+        volatile long lastSendTime;
+        volatile long lastKeepaliveTime;
+
+        Path(Session session, int index, DatagramChannel tunnel, PacketSealer sealer, boolean striped) {
+            this.session = session;
+            this.index = index;
+            this.tunnel = tunnel;
+            queue = striped ? new ArrayBlockingQueue<>(PATH_QUEUE_CAPACITY) : null;
+            mSealer = sealer;
+            mSealed = sealer != null ? mBufferPool.acquire() : null;
+            final int bufferSize = mBufferPool.bufferSize();
+            encoder = mFecData > 0 ? new FecEncoder(mFecData, mFecParity, bufferSize - FecEncoder.OVERHEAD) : null;
+            decoder = mFecData > 0 ? new FecDecoder(mFecData, mFecParity, bufferSize - FecEncoder.OVERHEAD) : null;
+            report = mFecData > 0 ? ByteBuffer.allocate(FecDecoder.REPORT_SIZE) : null;
+            mProtected = mFecData > 0 ? mBufferPool.acquire() : null;
+            lastSendTime = now();
+        }
+
+        /**
+         * Usually called by one thread only: the uplink, or the worker when striping. Right after a tunnel is
+         * attached the uplink may still get here for a moment, so the buffers need the lock anyway.
+         */
+        synchronized void send(ByteBuffer datagram) throws IOException, GeneralSecurityException {
+            if (encoder == null) {
+                write(datagram);
+                return;
+            }
+            final boolean full = encoder.protect(datagram, mProtected);
+            write(mProtected);
+            if (full) {
+                flushParity();
+            }
+        }
+
+        /**
+         * Sends the parity of the open group, if any, and closes it.
+         */
+        synchronized void flushParity() throws IOException, GeneralSecurityException {
+            if (encoder == null) {
+                return;
+            }
+            while (encoder.parity(mProtected)) {
+                write(mProtected);
+                mMetrics.onFecParity();
+            }
+        }
+
+        /**
+         * Sends a datagram as it is, without protecting it, as is right for control messages.
+         */
+        synchronized void write(ByteBuffer datagram) throws IOException, GeneralSecurityException {
+            if (mSealer != null) {
+                mSealed.clear();
+                mSealer.seal(datagram, mSealed);
+                mSealed.flip();
+                datagram = mSealed;
+            }
+            tunnel.write(datagram);
+            final long timeNow = now();
+            lastSendTime = timeNow;
+            if (session.unansweredSince == 0) {
+                session.unansweredSince = timeNow;
+            }
+            onActivity(timeNow);
+        }
+
+        synchronized void release() {
+            if (mSealed != null) {
+                mBufferPool.release(mSealed);
+                mSealed = null;
+            }
+            if (mProtected != null) {
+                mBufferPool.release(mProtected);
+                mProtected = null;
+            }
+            if (queue != null) {
+                ByteBuffer queued;
+                while ((queued = queue.poll()) != null) {
+                    mBufferPool.release(queued);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which tunnels get their path probed with a {@link PathMtuProber}, across reconnects.
+ * <p>
+ * Probes that go unanswered may mean a server that doesn't answer them, which is no reason to wait for them again on
+ * every reconnect, or a network that lost even the smallest one this time. Server addresses that have answered before
+ * tell the two apart: only a server that never did stops the probing, and only until the local address changes,
+ * since the path is another one on another network.
+ */
+public class PathMtuDiscovery {
+    /**
+     * Server addresses that have answered probes.
+     */
+    private final Set<SocketAddress> mAnswerers = new HashSet<>();
+    private InetAddress mLocalAddress;
+    private boolean mStopped;
+
+    /**
+     * @param tunnel a tunnel to the server, already connected
+     * @return whether to probe the path of {@code tunnel}
+     */
+    public boolean due(DatagramChannel tunnel) throws IOException {
+        final InetAddress localAddress = tunnel.socket().getLocalAddress();
+        if (!localAddress.equals(mLocalAddress)) {
+            mLocalAddress = localAddress;
+            mStopped = false;
+        }
+        return !mStopped;
+    }
+
+    /**
+     * Takes what probing the path of {@code tunnel} found.
+     *
+     * @param size what {@link PathMtuProber#run} returned
+     * @return whether the path gets probed again on the next tunnel on this network
+     */
+    public boolean record(DatagramChannel tunnel, int size) throws IOException {
+        final SocketAddress server = tunnel.getRemoteAddress();
+        if (size >= 0) {
+            mAnswerers.add(server);
+        } else if (!mAnswerers.contains(server)) {
+            mStopped = true;
+        }
+        return !mStopped;
+    }
+}
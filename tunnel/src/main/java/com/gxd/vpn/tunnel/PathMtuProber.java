@@ -0,0 +1,160 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the largest datagram that gets through to the server, so that the tunnel's datagrams never need
+ * fragmenting on the way, or get dropped silently where fragments don't make it.
+ * <p>
+ * A probe is a control message padded to the size being tried, which the server answers with a short one:
+ * <pre>
+ *   client: 0x00 PROBE | token (8) | padding up to the size tried
+ *   server: 0x00 PROBE | token (8) | size received, as an unsigned 16-bit big-endian value
+ * </pre>
+ * The largest size is tried first, since it usually gets through and then settles the matter in one round trip.
+ * Otherwise the smallest size is tried, to learn whether the server answers probes at all, and the sizes in
+ * between are searched by halving down to {@link #GRANULARITY} bytes. A probe that isn't answered within the
+ * retransmission timeout counts as too large. Every probe goes out twice, so that a single lost datagram doesn't
+ * pass for that, and carries a random token, so that neither late answers to an earlier probe nor answers forged
+ * by someone who can't see the probes count.
+ * <p>
+ * Probes only tell anything if they are sent with the don't-fragment bit set, which is up to the socket.
+ */
+public class PathMtuProber {
+    private static final int TOKEN_SIZE = 8;
+    /**
+     * Size of the server's answer, and the smallest probe.
+     */
+    public static final int ANSWER_SIZE = Protocol.HEADER_SIZE + TOKEN_SIZE + 2;
+    /**
+     * The search stops once the largest size that got through and the smallest that didn't are this close.
+     */
+    private static final int GRANULARITY = 8;
+    private static final int COPIES = 2;
+    private final RttEstimator mRttEstimator;
+    private final long mTimeoutMs;
+    private final Random mRandom = new SecureRandom();
+    private final ByteBuffer mAnswer = ByteBuffer.allocate(ANSWER_SIZE + 1);
+    private ByteBuffer mProbe = ByteBuffer.allocate(0);
+    private long mTimeUs = -1;
+    private int mProbes;
+
+    /**
+     * @param rttEstimator where the retransmission timeout comes from; answers feed it in turn
+     * @param timeoutMs    how long to search at most, after which the largest size that got through so far is taken
+     */
+    public PathMtuProber(RttEstimator rttEstimator, long timeoutMs) {
+        mRttEstimator = rttEstimator;
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Searches the datagram sizes from {@code low} to {@code high} over a connected tunnel, which is left in
+     * non-blocking mode. Nothing else must be coming down the tunnel meanwhile, as it is read and dropped.
+     *
+     * @return the largest size that got through, give or take {@link #GRANULARITY} bytes, or -1 if not even
+     * {@code low} did, in which case the server most likely doesn't answer probes
+     * @throws InterruptedException if the thread got interrupted while waiting
+     */
+    public int run(DatagramChannel tunnel, int low, int high) throws IOException, InterruptedException {
+        if (low < ANSWER_SIZE || high < low) {
+            throw new IllegalArgumentException("Bad sizes to probe: " + low + " to " + high);
+        }
+        if (mProbe.capacity() < high) {
+            mProbe = ByteBuffer.allocate(high);
+        }
+        mProbes = 0;
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(mTimeoutMs);
+        tunnel.configureBlocking(false);
+        int passed = -1;
+        // Closing the selector deregisters the tunnel, so it can be switched back to blocking mode afterwards.
+        try (Selector selector = Selector.open()) {
+            tunnel.register(selector, SelectionKey.OP_READ);
+            if (probe(tunnel, selector, high, deadline)) {
+                passed = high;
+            } else if (low < high && probe(tunnel, selector, low, deadline)) {
+                passed = low;
+                int failed = high;
+                while (failed - passed > GRANULARITY) {
+                    final int size = (passed + failed) >>> 1;
+                    if (probe(tunnel, selector, size, deadline)) {
+                        passed = size;
+                    } else {
+                        failed = size;
+                    }
+                }
+            }
+        }
+        mTimeUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        return passed;
+    }
+
+    /**
+     * @return how long the last search took
+     */
+    public long timeUs() {
+        return mTimeUs;
+    }
+
+    /**
+     * @return sizes tried in the last search
+     */
+    public int probes() {
+        return mProbes;
+    }
+
+    /**
+     * @return whether a probe of {@code size} bytes got answered in time
+     */
+    private boolean probe(DatagramChannel tunnel, Selector selector, int size, long deadline)
+            throws IOException, InterruptedException {
+        long now = System.nanoTime();
+        if (now - deadline >= 0) {
+            return false;
+        }
+        final long token = mRandom.nextLong();
+        mProbe.clear().limit(size);
+        mProbe.put(0, Protocol.CONTROL).put(1, Protocol.PROBE).putLong(Protocol.HEADER_SIZE, token);
+        try {
+            for (int i = 0; i < COPIES; ++i) {
+                mProbe.rewind();
+                tunnel.write(mProbe);
+            }
+        } catch (SocketException e) {
+            // Larger than the local interface takes, with fragmentation off.
+            return false;
+        }
+        ++mProbes;
+        final long sentAt = now;
+        final long until = Math.min(deadline, now + TimeUnit.MILLISECONDS.toNanos(mRttEstimator.rtoMs()));
+        while (now - until < 0) {
+            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(until - now)));
+            selector.selectedKeys().clear();
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            mAnswer.clear();
+            while (tunnel.read(mAnswer) > 0) {
+                mAnswer.flip();
+                if (mAnswer.remaining() == ANSWER_SIZE && Protocol.isFrame(mAnswer, Protocol.PROBE)
+                        && mAnswer.getLong(Protocol.HEADER_SIZE) == token) {
+                    // Both copies went out at once, so the round trip is clear whichever one was answered.
+                    mRttEstimator.update(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+                    return (mAnswer.getShort(Protocol.HEADER_SIZE + TOKEN_SIZE) & 0xFFFF) == size;
+                }
+                mAnswer.clear();
+            }
+            now = System.nanoTime();
+        }
+        return false;
+    }
+}
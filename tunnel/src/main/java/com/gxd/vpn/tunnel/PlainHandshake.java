@@ -0,0 +1,37 @@
+package com.gxd.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The original handshake: the shared secret goes over the wire in plaintext and the server answers with the
+ * parameter string.
+ * <pre>
+ *   client: 0x00 | shared secret
+ *   server: 0x00 | parameter string in ASCII
+ * </pre>
+ */
+public class PlainHandshake implements Handshake {
+    private final byte[] mSharedSecret;
+
+    public PlainHandshake(byte[] sharedSecret) {
+        mSharedSecret = sharedSecret;
+    }
+
+    @Override
+    public void writeHello(ByteBuffer out) {
+        out.put(Protocol.CONTROL).put(mSharedSecret);
+    }
+
+    @Override
+    public String readReply(ByteBuffer reply) {
+        // Normally we should not receive random packets. Check that the first byte is 0 as expected.
+        if (reply.remaining() < 2 || reply.get(reply.position()) != Protocol.CONTROL) {
+            return null;
+        }
+        byte[] parameters = new byte[reply.remaining() - 1];
+        reply.position(reply.position() + 1);
+        reply.get(parameters);
+        return new String(parameters, StandardCharsets.US_ASCII).trim();
+    }
+}
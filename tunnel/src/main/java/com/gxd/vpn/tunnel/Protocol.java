@@ -0,0 +1,78 @@
+package com.gxd.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wire format of the tunnel.
+ * <p>
+ * A datagram either carries a raw IP packet, whose first byte is never zero since it starts with the IP version,
+ * or a control message, which always starts with zero. A lone zero is a keepalive and zero followed by printable
+ * ASCII is the handshake. Zero followed by one of the type bytes below is a framed message; type bytes stay below
+ * 0x20 so they can never be confused with the handshake.
+ */
+public final class Protocol {
+    /**
+     * First byte of every control message.
+     */
+    public static final byte CONTROL = 0;
+    /**
+     * Several IP packets in one datagram, each prefixed with its length as an unsigned 16-bit big-endian value.
+     */
+    public static final byte BATCH = 1;
+    /**
+     * Encrypted handshake, see {@link com.gxd.vpn.tunnel.crypto.SecureHandshake}.
+     */
+    public static final byte HELLO = 2;
+    /**
+     * An encrypted and authenticated datagram, see {@link com.gxd.vpn.tunnel.crypto.PacketSealer}.
+     * Its plaintext is what would otherwise have been sent: a raw IP packet or a batch.
+     */
+    public static final byte SEALED = 3;
+    /**
+     * Adds another tunnel to a session for striping, see {@link JoinHandshake}.
+     */
+    public static final byte JOIN = 4;
+    /**
+     * An IP packet compressed with LZ4: its length once expanded as an unsigned 16-bit big-endian value, then the
+     * LZ4 block. It may stand in for a packet anywhere, in a batch as well, and is sealed like one.
+     * On its own, without anything after the type byte, it tells the peer that it may compress what it sends.
+     */
+    public static final byte COMPRESSED = 5;
+    /**
+     * A probe of the path MTU, padded to the size being probed, or the server's answer to one, see
+     * {@link PathMtuProber}.
+     */
+    public static final byte PROBE = 6;
+    /**
+     * A request to be sent the same message back after a delay, to learn how long the NAT keeps a binding without
+     * traffic, see {@link AdaptiveKeepalive}.
+     */
+    public static final byte ECHO_LATER = 7;
+    /**
+     * A datagram protected by forward error correction, a parity datagram to recover lost ones with, or a report of
+     * how many got lost, see {@link com.gxd.vpn.tunnel.fec.FecEncoder} and {@link com.gxd.vpn.tunnel.fec.FecDecoder}.
+     * On its own, without anything after the type byte, it tells the peer that it may protect what it sends.
+     */
+    public static final byte FEC = 8;
+    /**
+     * Picks a session back up with a resumption ticket instead of a handshake, or the server's answer to that, see
+     * {@link com.gxd.vpn.tunnel.crypto.SessionTicket}.
+     */
+    public static final byte RESUME = 9;
+    /**
+     * Size of the control byte plus the type byte.
+     */
+    public static final int HEADER_SIZE = 2;
+
+    private Protocol() {
+    }
+
+    /**
+     * @return whether the datagram between position and limit is a framed control message of the given type
+     */
+    public static boolean isFrame(ByteBuffer datagram, byte type) {
+        return datagram.remaining() >= HEADER_SIZE
+                && datagram.get(datagram.position()) == CONTROL
+                && datagram.get(datagram.position() + 1) == type;
+    }
+}
@@ -0,0 +1,102 @@
+package com.gxd.vpn.tunnel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Decides how long to wait before trying to build the tunnel again.
+ * <p>
+ * The wait doubles with every failed attempt up to a ceiling, and only the upper half of it is fixed while the
+ * lower half is random, so that clients that lost the server at the same time don't all come back at once.
+ * Waiting is cut short as soon as a network comes up, and while there is no network at all there is no point in
+ * trying, so the wait lasts until one shows up.
+ */
+public class ReconnectScheduler implements Connectivity.Listener {
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final DoubleSupplier mRandom;
+    private int mAttempts;
+    private boolean mNetworkAvailable = true;
+    /**
+     * Set when a network comes up and cleared once a wait has noticed.
+     */
+    private boolean mWakeup;
+
+    /**
+     * @param baseDelayMs wait after the first failure
+     * @param maxDelayMs  most to wait no matter how many attempts have failed
+     * @param random      draws the jitter, uniformly from [0, 1), e.g. {@code new Random()::nextDouble}
+     */
+    public ReconnectScheduler(long baseDelayMs, long maxDelayMs, DoubleSupplier random) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("Bad delays: " + baseDelayMs + ", " + maxDelayMs);
+        }
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mRandom = random;
+    }
+
+    /**
+     * @return attempts failed in a row since the last success or the last network change
+     */
+    public synchronized int attempts() {
+        return mAttempts;
+    }
+
+    /**
+     * Starts over from the base delay, to be called once a tunnel is up.
+     * Networks that came up before then are already being used and no reason to hurry the next attempt.
+     */
+    public synchronized void reset() {
+        mAttempts = 0;
+        mWakeup = false;
+    }
+
+    /**
+     * Counts a failed attempt and picks the wait before the next one.
+     */
+    public synchronized long nextDelayMs() {
+        // Stop doubling long before the shift overflows, the ceiling is reached by then anyway.
+        final long ceiling = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(mAttempts, 30));
+        ++mAttempts;
+        final long half = ceiling / 2;
+        return ceiling - half + (long) (mRandom.getAsDouble() * half);
+    }
+
+    /**
+     * Counts a failed attempt and waits before the next one.
+     *
+     * @return {@code true} if the wait was cut short by a network coming up
+     */
+    public synchronized boolean await() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(nextDelayMs());
+        while (!mWakeup) {
+            if (!mNetworkAvailable) {
+                wait();
+                continue;
+            }
+            final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        mWakeup = false;
+        return true;
+    }
+
+    @Override
+    public synchronized void onNetworkAvailable() {
+        // A new network is a fresh start, the failures so far say nothing about it.
+        mNetworkAvailable = true;
+        mAttempts = 0;
+        mWakeup = true;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onNetworkLost() {
+        mNetworkAvailable = false;
+        notifyAll();
+    }
+}
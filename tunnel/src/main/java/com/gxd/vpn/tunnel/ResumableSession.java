@@ -0,0 +1,48 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.crypto.SessionTicket;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * A session to pick back up with its ticket rather than a handshake, on the network it was set up on.
+ * <p>
+ * A resumed session keeps the path MTU and the rest of the parameters it had. From another local address the path
+ * is another one too, so the handshake that probes it is due instead, and hands out a ticket for the new network.
+ */
+public class ResumableSession {
+    private final SessionTicket mTicket;
+    private final InetAddress mLocalAddress;
+
+    /**
+     * @param localAddress the address of the tunnel the session was set up on
+     */
+    public ResumableSession(SessionTicket ticket, InetAddress localAddress) {
+        mTicket = ticket;
+        mLocalAddress = localAddress;
+    }
+
+    /**
+     * Puts the request to resume on {@code tunnel} into {@code out}, to go to {@link PacketPump#resume}.
+     *
+     * @param tunnel a tunnel to the server the session was with, already connected
+     * @param nowMs  the time in ms since the epoch
+     * @return the keys of the resumed session, or {@code null} if it is a plaintext one
+     * @throws ProtocolException if the tunnel is on another network, and a handshake is due
+     */
+    public SessionKeys writeResume(DatagramChannel tunnel, ByteBuffer out, SecureRandom random, long nowMs)
+            throws IOException, GeneralSecurityException {
+        final InetAddress localAddress = tunnel.socket().getLocalAddress();
+        if (!localAddress.equals(mLocalAddress)) {
+            throw new ProtocolException("On another network, " + localAddress + " rather than " + mLocalAddress);
+        }
+        return mTicket.writeResume(out, random, nowMs);
+    }
+}
@@ -0,0 +1,68 @@
+package com.gxd.vpn.tunnel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smoothed round-trip time and retransmission timeout as in RFC 6298, kept in microseconds so that a LAN round
+ * trip doesn't round down to nothing.
+ * <p>
+ * Keep one for the lifetime of a connection, so a reconnect starts from what the last handshake measured rather
+ * than from the conservative initial timeout. Not thread-safe, although the getters can be read from anywhere.
+ */
+public class RttEstimator {
+    public static final long INITIAL_RTO_MS = TimeUnit.SECONDS.toMillis(1);
+    /**
+     * Lower bound of the timeout. RFC 6298 asks for a second, which is a lot to lose on a retransmit; like most
+     * stacks we go lower.
+     */
+    public static final long MIN_RTO_MS = 200;
+    public static final long MAX_RTO_MS = TimeUnit.SECONDS.toMillis(60);
+    private volatile long mSrttUs = -1;
+    private long mRttVarUs;
+    private volatile long mRtoMs = INITIAL_RTO_MS;
+
+    public RttEstimator() {
+    }
+
+    /**
+     * Starts from where {@code other} is, to go on separately.
+     */
+    public RttEstimator(RttEstimator other) {
+        mSrttUs = other.mSrttUs;
+        mRttVarUs = other.mRttVarUs;
+        mRtoMs = other.mRtoMs;
+    }
+
+    /**
+     * Takes a new sample. Per Karn's algorithm, only answers to messages that were sent exactly once count.
+     */
+    public void update(long rttUs) {
+        if (mSrttUs < 0) {
+            mSrttUs = rttUs;
+            mRttVarUs = rttUs / 2;
+        } else {
+            mRttVarUs += (Math.abs(mSrttUs - rttUs) - mRttVarUs) / 4;
+            mSrttUs += (rttUs - mSrttUs) / 8;
+        }
+        final long rtoUs = mSrttUs + Math.max(TimeUnit.MILLISECONDS.toMicros(1), 4 * mRttVarUs);
+        mRtoMs = Math.min(MAX_RTO_MS, Math.max(MIN_RTO_MS, TimeUnit.MICROSECONDS.toMillis(rtoUs)));
+    }
+
+    /**
+     * Doubles the timeout after it expired. It stays backed off until the next sample.
+     */
+    public void backoff() {
+        mRtoMs = Math.min(MAX_RTO_MS, mRtoMs * 2);
+    }
+
+    public long rtoMs() {
+        return mRtoMs;
+    }
+
+    /**
+     * @return the smoothed round-trip time, or -1 if there has been no sample yet
+     */
+    public long srttUs() {
+        return mSrttUs;
+    }
+}
@@ -0,0 +1,33 @@
+package com.gxd.vpn.tunnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The local side of the tunnel: a TUN interface on Android, a pipe or a local socket on a plain JVM.
+ * <p>
+ * Every read returns exactly one IP packet and every write hands exactly one IP packet over.
+ */
+public interface TunDevice {
+    /**
+     * Reads one packet into the remaining space of {@code dst}, blocking until one is available.
+     *
+     * @return the packet length, or -1 if the device has been closed
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Reads one packet into the remaining space of {@code dst} only if one is already queued.
+     * Devices that cannot tell without blocking never report a queued packet.
+     *
+     * @return the packet length, 0 if nothing is queued, or -1 if the device has been closed
+     */
+    default int poll(ByteBuffer dst) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code src} as one packet.
+     */
+    void write(ByteBuffer src) throws IOException;
+}
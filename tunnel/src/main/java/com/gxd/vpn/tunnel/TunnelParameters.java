@@ -0,0 +1,229 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.crypto.SessionTicket;
+import com.gxd.vpn.tunnel.fec.FecEncoder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The parameter string the server answers the handshake with, e.g. "m,1400 a,10.0.0.2,32 r,0.0.0.0,0 d,8.8.8.8".
+ * <ul>
+ * <li>m,MTU</li>
+ * <li>a,ADDRESS,PREFIX_LENGTH - address of the local TUN interface</li>
+ * <li>r,ADDRESS,PREFIX_LENGTH - route through the tunnel</li>
+ * <li>d,ADDRESS - DNS server</li>
+ * <li>s,DOMAIN - search domain</li>
+ * <li>b,SIZE - the server unpacks {@link Protocol#BATCH} datagrams up to this size</li>
+ * <li>p,PATHS,SESSION_ID - the server takes up to this many tunnels striped for the session, the extra ones join
+ * with the session id, see {@link JoinHandshake}</li>
+ * <li>c,lz4 - the server expands {@link Protocol#COMPRESSED} packets</li>
+ * <li>f,DATA,PARITY - the server recovers lost datagrams from {@link Protocol#FEC} frames, in groups of up to DATA
+ * datagrams with up to PARITY parity datagrams, see {@link com.gxd.vpn.tunnel.fec.FecEncoder}</li>
+ * <li>t,TICKET[,SECRET] - resumption ticket for the session, and with encryption on the secret to derive the keys
+ * of a resumed session from, both in Base64, see {@link SessionTicket}</li>
+ * </ul>
+ * Unknown parameters are ignored so that servers can add new ones.
+ */
+public class TunnelParameters {
+    /**
+     * MTU of the interface if the server doesn't send one.
+     */
+    public static final int DEFAULT_MTU = 1500;
+    /**
+     * The parameter string, less the ticket, which is not to end up in logs.
+     */
+    public final String raw;
+    public final int mtu;
+    public final List<Route> addresses;
+    public final List<Route> routes;
+    public final List<String> dnsServers;
+    public final List<String> searchDomains;
+    /**
+     * Largest batch datagram the server accepts, or 0 if it doesn't support batching.
+     */
+    public final int batchFrameSize;
+    /**
+     * Most tunnels the session may stripe over, 1 if the server doesn't support striping.
+     */
+    public final int maxPaths;
+    /**
+     * What extra tunnels join the session with, or {@code null} if the server doesn't support striping.
+     */
+    public final String sessionId;
+    /**
+     * Whether packets to the server may be compressed.
+     */
+    public final boolean compression;
+    /**
+     * Most datagrams and parity datagrams per group of forward error correction, or 0 if the server doesn't
+     * support it.
+     */
+    public final int fecData;
+    public final int fecParity;
+    /**
+     * What to resume the session with instead of a handshake, or {@code null} if the server doesn't support that.
+     */
+    public final SessionTicket ticket;
+
+    public TunnelParameters(String raw, int mtu, List<Route> addresses, List<Route> routes, List<String> dnsServers,
+                            List<String> searchDomains, int batchFrameSize, int maxPaths, String sessionId,
+                            boolean compression, int fecData, int fecParity, SessionTicket ticket) {
+        this.raw = raw;
+        this.mtu = mtu;
+        this.addresses = Collections.unmodifiableList(addresses);
+        this.routes = Collections.unmodifiableList(routes);
+        this.dnsServers = Collections.unmodifiableList(dnsServers);
+        this.searchDomains = Collections.unmodifiableList(searchDomains);
+        this.batchFrameSize = batchFrameSize;
+        this.maxPaths = maxPaths;
+        this.sessionId = sessionId;
+        this.compression = compression;
+        this.fecData = fecData;
+        this.fecParity = fecParity;
+        this.ticket = ticket;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a known parameter is malformed
+     */
+    public static TunnelParameters parse(String parameters) throws IllegalArgumentException {
+        int mtu = DEFAULT_MTU;
+        int batchFrameSize = 0;
+        int maxPaths = 1;
+        String sessionId = null;
+        boolean compression = false;
+        int fecData = 0;
+        int fecParity = 0;
+        SessionTicket ticket = null;
+        final StringBuilder raw = new StringBuilder();
+        List<Route> addresses = new ArrayList<>();
+        List<Route> routes = new ArrayList<>();
+        List<String> dnsServers = new ArrayList<>();
+        List<String> searchDomains = new ArrayList<>();
+        for (String parameter : parameters.split(" ")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            String[] fields = parameter.split(",");
+            try {
+                switch (fields[0].charAt(0)) {
+                    case 'm':
+                        mtu = Short.parseShort(fields[1]);
+                        break;
+                    case 'a':
+                        addresses.add(new Route(fields[1], Integer.parseInt(fields[2])));
+                        break;
+                    case 'r':
+                        routes.add(new Route(fields[1], Integer.parseInt(fields[2])));
+                        break;
+                    case 'd':
+                        dnsServers.add(fields[1]);
+                        break;
+                    case 's':
+                        searchDomains.add(fields[1]);
+                        break;
+                    case 'b':
+                        batchFrameSize = Integer.parseInt(fields[1]);
+                        break;
+                    case 'p':
+                        maxPaths = Math.max(1, Integer.parseInt(fields[1]));
+                        sessionId = fields[2];
+                        break;
+                    case 'c':
+                        // Other algorithms may follow, we only know LZ4.
+                        compression |= "lz4".equals(fields[1]);
+                        break;
+                    case 'f':
+                        fecData = Integer.parseInt(fields[1]);
+                        fecParity = Integer.parseInt(fields[2]);
+                        if (fecData < 1 || fecData > FecEncoder.MAX_DATA || fecParity < 0
+                                || fecParity > FecEncoder.MAX_PARITY) {
+                            throw new IllegalArgumentException("Bad parameter: " + parameter);
+                        }
+                        break;
+                    case 't':
+                        ticket = new SessionTicket(fields[1], fields.length > 2 ? fields[2] : null);
+                        continue;
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Bad parameter: " + parameter);
+            }
+            raw.append(raw.length() > 0 ? " " : "").append(parameter);
+        }
+        return new TunnelParameters(raw.toString(), mtu, addresses, routes, dnsServers, searchDomains, batchFrameSize,
+                maxPaths, sessionId, compression, fecData, fecParity, ticket);
+    }
+
+    /**
+     * @param maxSize largest datagram the path to the server carries, less what encryption adds
+     * @return these parameters with the MTU and the batch size cut down so that no datagram gets larger than that
+     */
+    public TunnelParameters fitTo(int maxSize) {
+        if (mtu <= maxSize && batchFrameSize <= maxSize) {
+            return this;
+        }
+        return new TunnelParameters(raw, Math.min(mtu, maxSize), addresses, routes, dnsServers, searchDomains,
+                Math.min(batchFrameSize, maxSize), maxPaths, sessionId, compression, fecData, fecParity, ticket);
+    }
+
+    /**
+     * @return whether an interface and pump set up for {@code other} fit these parameters as well, so that a new
+     * tunnel can take over without rebuilding them. Their MTU and batch size may be smaller than these allow, as
+     * after a handover to a path that carries larger datagrams; that is not worth rebuilding for.
+     */
+    public boolean hasSameInterface(TunnelParameters other) {
+        return other != null
+                && other.mtu <= mtu
+                && other.batchFrameSize <= batchFrameSize
+                && (other.batchFrameSize == 0) == (batchFrameSize == 0)
+                && compression == other.compression
+                && fecData == other.fecData
+                && fecParity == other.fecParity
+                && addresses.equals(other.addresses)
+                && routes.equals(other.routes)
+                && dnsServers.equals(other.dnsServers)
+                && searchDomains.equals(other.searchDomains);
+    }
+
+    @Override
+    public String toString() {
+        return raw;
+    }
+
+    /**
+     * An address or a route: a prefix and its length.
+     */
+    public static class Route {
+        public final String address;
+        public final int prefixLength;
+
+        public Route(String address, int prefixLength) {
+            this.address = address;
+            this.prefixLength = prefixLength;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Route)) {
+                return false;
+            }
+            Route route = (Route) o;
+            return prefixLength == route.prefixLength && address.equals(route.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * address.hashCode() + prefixLength;
+        }
+
+        @Override
+        public String toString() {
+            return address + "/" + prefixLength;
+        }
+    }
+}
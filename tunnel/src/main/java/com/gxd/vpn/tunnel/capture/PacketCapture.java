@@ -0,0 +1,203 @@
+package com.gxd.vpn.tunnel.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the first bytes of the latest packets going either way, to be written out as a pcapng file on demand.
+ * <p>
+ * Records go into a ring of fixed-size slots in a direct buffer allocated up front, so capturing allocates nothing
+ * and stays off the heap. Recording a packet claims the next slot with a single atomic increment and copies into
+ * it, so threads recording at the same time never wait for each other; once the ring is full, the oldest records
+ * are overwritten. A slot holds:
+ * <pre>
+ *   time in ns since the epoch (8) | length of the packet (4) | bytes kept (2) | outbound (1) | unused (1)
+ *   | first bytes of the packet, up to the snap length
+ * </pre>
+ * Every slot is also stamped with the number of its record once the record is complete. The dump reads the ring
+ * while recording goes on, and leaves out records that are still being written or that got overwritten while it
+ * read them.
+ */
+public class PacketCapture {
+    private static final int HEADER_SIZE = 16;
+    /**
+     * pcapng block types, the link type of raw IPv4 and IPv6 packets, and option codes.
+     */
+    private static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final short LINKTYPE_RAW = 101;
+    private static final short OPTION_END = 0;
+    private static final short OPTION_TIMESTAMP_RESOLUTION = 9;
+    private static final short OPTION_PACKET_FLAGS = 2;
+    private static final int FLAG_INBOUND = 1;
+    private static final int FLAG_OUTBOUND = 2;
+    /**
+     * What an enhanced packet block adds to the bytes kept, padding aside.
+     */
+    private static final int PACKET_BLOCK_OVERHEAD = 44;
+    private static final int DUMP_BUFFER_SIZE = 64 << 10;
+    /**
+     * Most bytes to keep of a packet, so that a block of the largest fits into the dump buffer.
+     */
+    public static final int MAX_SNAP_LENGTH = DUMP_BUFFER_SIZE - PACKET_BLOCK_OVERHEAD - 3;
+    private final ByteBuffer mRing;
+    private final AtomicLongArray mStamps;
+    private final AtomicLong mNext = new AtomicLong();
+    private final int mSlots;
+    private final int mMask;
+    private final int mSlotSize;
+    private final int mSnapLength;
+    /**
+     * What to add to {@link System#nanoTime} for the time since the epoch.
+     */
+    private final long mEpochOffsetNanos;
+    private volatile boolean mEnabled = true;
+
+    /**
+     * @param packets    most packets to keep, rounded up to a power of two; the ring takes {@code snapLength + 16}
+     *                   bytes per packet, rounded up to 8
+     * @param snapLength how many bytes to keep of every packet, from 1 to {@link #MAX_SNAP_LENGTH}; headers alone
+     *                   take up to 60 for IPv4 and TCP, and 80 for IPv6
+     */
+    public PacketCapture(int packets, int snapLength) {
+        if (packets < 1 || snapLength < 1 || snapLength > MAX_SNAP_LENGTH) {
+            throw new IllegalArgumentException("Bad capture: " + packets + ", " + snapLength);
+        }
+        mSlots = Integer.highestOneBit(Math.max(2, packets) - 1) << 1;
+        mMask = mSlots - 1;
+        mSnapLength = snapLength;
+        mSlotSize = HEADER_SIZE + (snapLength + 7 & ~7);
+        if ((long) mSlots * mSlotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Capture too large: " + packets + " of " + snapLength);
+        }
+        mRing = ByteBuffer.allocateDirect(mSlots * mSlotSize);
+        mStamps = new AtomicLongArray(mSlots);
+        mEpochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+    }
+
+    /**
+     * Turns capturing on or off, from any thread. It is on to begin with.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public int snapLength() {
+        return mSnapLength;
+    }
+
+    /**
+     * @return packets recorded since the capture was created, including those overwritten since
+     */
+    public long recorded() {
+        return mNext.get();
+    }
+
+    /**
+     * Keeps the first bytes of the packet between position and limit of {@code packet}, which is left alone. Safe
+     * to call from any number of threads at once.
+     *
+     * @param outbound whether the packet goes into the tunnel rather than comes out of it
+     */
+    public void record(ByteBuffer packet, boolean outbound) {
+        if (!mEnabled) {
+            return;
+        }
+        final long time = System.nanoTime() + mEpochOffsetNanos;
+        final long index = mNext.getAndIncrement();
+        final int offset = ((int) index & mMask) * mSlotSize;
+        final int length = packet.remaining();
+        final int kept = Math.min(length, mSnapLength);
+        final ByteBuffer ring = mRing;
+        ring.putLong(offset, time);
+        ring.putInt(offset + 8, length);
+        ring.putShort(offset + 12, (short) kept);
+        ring.put(offset + 14, (byte) (outbound ? 1 : 0));
+        // Absolute accesses only, since other threads use the ring at the same time; a long at a time, as Java 8
+        // has no absolute bulk copy.
+        final int from = packet.position();
+        final int to = offset + HEADER_SIZE;
+        final boolean swap = packet.order() != ring.order();
+        int i = 0;
+        for (; i + 8 <= kept; i += 8) {
+            final long bytes = packet.getLong(from + i);
+            ring.putLong(to + i, swap ? Long.reverseBytes(bytes) : bytes);
+        }
+        for (; i < kept; ++i) {
+            ring.put(to + i, packet.get(from + i));
+        }
+        mStamps.lazySet((int) index & mMask, index + 1);
+    }
+
+    /**
+     * Writes the packets in the ring to {@code out} as a pcapng file, oldest first, with raw IP as the link type,
+     * nanosecond timestamps and the direction of every packet. Recording goes on in the meantime. Safe to call
+     * from any thread.
+     *
+     * @return how many packets were written
+     */
+    public int writePcapng(WritableByteChannel out) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(DUMP_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(SECTION_HEADER_BLOCK).putInt(28).putInt(BYTE_ORDER_MAGIC).putShort((short) 1)
+                .putShort((short) 0).putLong(-1).putInt(28);
+        buffer.putInt(INTERFACE_DESCRIPTION_BLOCK).putInt(32).putShort(LINKTYPE_RAW).putShort((short) 0)
+                .putInt(mSnapLength).putShort(OPTION_TIMESTAMP_RESOLUTION).putShort((short) 1).putInt(9)
+                .putShort(OPTION_END).putShort((short) 0).putInt(32);
+        final ByteBuffer ring = mRing;
+        final long end = mNext.get();
+        int written = 0;
+        for (long index = Math.max(0, end - mSlots); index < end; ++index) {
+            final int slot = (int) index & mMask;
+            if (mStamps.get(slot) != index + 1) {
+                continue;
+            }
+            final int offset = slot * mSlotSize;
+            final int kept = ring.getShort(offset + 12) & 0xFFFF;
+            final int padded = kept + 3 & ~3;
+            final int blockSize = PACKET_BLOCK_OVERHEAD + padded;
+            if (buffer.remaining() < blockSize) {
+                flush(buffer, out);
+            }
+            final int start = buffer.position();
+            final long time = ring.getLong(offset);
+            buffer.putInt(ENHANCED_PACKET_BLOCK).putInt(blockSize).putInt(0).putInt((int) (time >>> 32))
+                    .putInt((int) time).putInt(kept).putInt(ring.getInt(offset + 8));
+            for (int i = 0; i < kept; ++i) {
+                buffer.put(ring.get(offset + HEADER_SIZE + i));
+            }
+            for (int i = kept; i < padded; ++i) {
+                buffer.put((byte) 0);
+            }
+            buffer.putShort(OPTION_PACKET_FLAGS).putShort((short) 4)
+                    .putInt(ring.get(offset + 14) != 0 ? FLAG_OUTBOUND : FLAG_INBOUND)
+                    .putShort(OPTION_END).putShort((short) 0).putInt(blockSize);
+            // A record whose slot was taken again while it was copied may be torn.
+            if (mStamps.get(slot) != index + 1 || mNext.get() - index > mSlots) {
+                buffer.position(start);
+                continue;
+            }
+            ++written;
+        }
+        flush(buffer, out);
+        return written;
+    }
+
+    private static void flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+}
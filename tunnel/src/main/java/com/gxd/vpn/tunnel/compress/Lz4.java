@@ -0,0 +1,256 @@
+package com.gxd.vpn.tunnel.compress;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The LZ4 block format: a series of sequences, each a token byte, literals copied as they are and a match copied
+ * from up to 64 KB back. It trades ratio for speed, which is what a tunnel wants, where every packet is compressed
+ * on its way out.
+ * <p>
+ * A compressor remembers where it has seen every 4-byte sequence in a hash table. The table is reused from packet
+ * to packet without being cleared: positions are stored relative to a base that moves past every packet, so
+ * entries from earlier packets are recognized as stale instead of being wiped. Compressing and decompressing work
+ * with absolute gets and puts on the buffers and allocate nothing.
+ * <p>
+ * A compressor is not thread-safe; decompressing is.
+ */
+public final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    /**
+     * The last literals of a block and the distance from the end where the last match must start, as the format
+     * demands.
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int HASH_LOG = 12;
+    /**
+     * Moves through misses faster the longer no match has been found, so that data that doesn't compress is
+     * skimmed rather than searched.
+     */
+    private static final int SKIP_TRIGGER = 6;
+    private static final int RUN_MASK = 0x0F;
+    private final int[] mTable = new int[1 << HASH_LOG];
+    /**
+     * Where the positions of the next packet start; 0 in the table means never seen.
+     */
+    private int mBase = 1;
+
+    /**
+     * Compresses the bytes from {@code srcStart} to {@code srcEnd} of {@code src} into {@code dst} from
+     * {@code dstStart} on, giving up as soon as the output would pass {@code dstEnd}. Positions and limits of the
+     * buffers are left alone.
+     *
+     * @return the compressed length, or -1 if it doesn't fit
+     */
+    public int compress(ByteBuffer src, int srcStart, int srcEnd, ByteBuffer dst, int dstStart, int dstEnd) {
+        final int length = srcEnd - srcStart;
+        if (mBase > Integer.MAX_VALUE - length - MAX_DISTANCE) {
+            // Only once every 2 GB compressed.
+            Arrays.fill(mTable, 0);
+            mBase = 1;
+        }
+        final boolean bigEndian = src.order() == ByteOrder.BIG_ENDIAN;
+        final int base = mBase - srcStart;
+        mBase += length;
+        int anchor = srcStart;
+        int op = dstStart;
+        if (length > MF_LIMIT) {
+            final int matchLimit = srcEnd - LAST_LITERALS;
+            final int mfLimit = srcEnd - MF_LIMIT;
+            int ip = srcStart;
+            int searches = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                final int sequence = src.getInt(ip);
+                final int hash = hash(sequence);
+                final int stored = mTable[hash];
+                mTable[hash] = ip + base;
+                final int ref = stored - base;
+                if (stored < mBase - length || ip - ref > MAX_DISTANCE || src.getInt(ref) != sequence) {
+                    ip += searches++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searches = 1 << SKIP_TRIGGER;
+                int start = ip;
+                int from = ref;
+                while (start > anchor && from > srcStart && src.get(start - 1) == src.get(from - 1)) {
+                    --start;
+                    --from;
+                }
+                final int matchLength = extend(src, start, from, ip - start + MIN_MATCH, matchLimit, bigEndian);
+                op = sequence(src, anchor, start - anchor, start - from, matchLength, dst, op, dstEnd);
+                if (op < 0) {
+                    return -1;
+                }
+                ip = start + matchLength;
+                anchor = ip;
+                if (ip - 2 >= srcStart && ip < mfLimit) {
+                    // Like the reference implementation, remember a position inside the match as well.
+                    mTable[hash(src.getInt(ip - 2))] = ip - 2 + base;
+                }
+            }
+        }
+        op = sequence(src, anchor, srcEnd - anchor, 0, 0, dst, op, dstEnd);
+        return op < 0 ? -1 : op - dstStart;
+    }
+
+    /**
+     * Decompresses the block from {@code srcStart} to {@code srcEnd} of {@code src} into {@code dst} from
+     * {@code dstStart} on, without writing past {@code dstEnd}. Malformed blocks are rejected, never trusted.
+     *
+     * @return the decompressed length, or -1 if the block is malformed or doesn't fit
+     */
+    public static int decompress(ByteBuffer src, int srcStart, int srcEnd, ByteBuffer dst, int dstStart, int dstEnd) {
+        int ip = srcStart;
+        int op = dstStart;
+        while (ip < srcEnd) {
+            final int token = src.get(ip++) & 0xFF;
+            int literals = token >>> 4;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        return -1;
+                    }
+                    b = src.get(ip++) & 0xFF;
+                    literals += b;
+                } while (b == 0xFF);
+            }
+            if (literals > srcEnd - ip || literals > dstEnd - op) {
+                return -1;
+            }
+            copy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == srcEnd) {
+                // The last sequence has no match.
+                break;
+            }
+            if (ip + 2 > srcEnd) {
+                return -1;
+            }
+            final int offset = (src.get(ip) & 0xFF) | (src.get(ip + 1) & 0xFF) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op - dstStart) {
+                return -1;
+            }
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= srcEnd) {
+                        return -1;
+                    }
+                    b = src.get(ip++) & 0xFF;
+                    matchLength += b;
+                } while (b == 0xFF);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                return -1;
+            }
+            // Matches may overlap what they produce, so copy front to back, a byte at a time where they do.
+            if (offset >= 8) {
+                copy(dst, op - offset, dst, op, matchLength);
+            } else {
+                for (int i = 0; i < matchLength; ++i) {
+                    dst.put(op + i, dst.get(op - offset + i));
+                }
+            }
+            op += matchLength;
+        }
+        return op - dstStart;
+    }
+
+    /**
+     * @return the compressed size of {@code length} bytes that don't compress at all
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * @return how far the bytes from {@code start} on match those from {@code from} on, knowing that the first
+     * {@code length} bytes do, without going past {@code limit}
+     */
+    private static int extend(ByteBuffer src, int start, int from, int length, int limit, boolean bigEndian) {
+        // Compare 8 bytes at a time; the first byte that differs holds the first set bit of the xor in memory order.
+        while (start + length + 8 <= limit) {
+            final long difference = src.getLong(start + length) ^ src.getLong(from + length);
+            if (difference != 0) {
+                return length + (bigEndian
+                        ? Long.numberOfLeadingZeros(difference) : Long.numberOfTrailingZeros(difference)) / 8;
+            }
+            length += 8;
+        }
+        while (start + length < limit && src.get(start + length) == src.get(from + length)) {
+            ++length;
+        }
+        return length;
+    }
+
+    /**
+     * Writes one sequence: literals, then a match unless {@code matchLength} is 0.
+     *
+     * @return the new output position, or -1 if the output would pass {@code dstEnd}
+     */
+    private static int sequence(ByteBuffer src, int literalStart, int literals, int offset, int matchLength,
+                                ByteBuffer dst, int op, int dstEnd) {
+        // Token, literal length, literals, offset and match length, at most.
+        if (op + 1 + literals / 0xFF + 1 + literals + 2 + matchLength / 0xFF + 1 > dstEnd) {
+            return -1;
+        }
+        final int token = op++;
+        int tokenValue;
+        if (literals >= RUN_MASK) {
+            tokenValue = RUN_MASK << 4;
+            op = length(literals - RUN_MASK, dst, op);
+        } else {
+            tokenValue = literals << 4;
+        }
+        copy(src, literalStart, dst, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            dst.put(op++, (byte) offset);
+            dst.put(op++, (byte) (offset >>> 8));
+            final int extra = matchLength - MIN_MATCH;
+            if (extra >= RUN_MASK) {
+                tokenValue |= RUN_MASK;
+                op = length(extra - RUN_MASK, dst, op);
+            } else {
+                tokenValue |= extra;
+            }
+        }
+        dst.put(token, (byte) tokenValue);
+        return op;
+    }
+
+    private static int length(int value, ByteBuffer dst, int op) {
+        while (value >= 0xFF) {
+            dst.put(op++, (byte) 0xFF);
+            value -= 0xFF;
+        }
+        dst.put(op++, (byte) value);
+        return op;
+    }
+
+    /**
+     * Copies front to back, 8 bytes at a time. Ranges in the same buffer may overlap as long as they are 8 bytes
+     * apart or more.
+     */
+    private static void copy(ByteBuffer src, int from, ByteBuffer dst, int to, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            dst.putLong(to + i, src.getLong(from + i));
+        }
+        for (; i < length; ++i) {
+            dst.put(to + i, src.get(from + i));
+        }
+    }
+
+    private static int hash(int sequence) {
+        return sequence * -1640531535 >>> 32 - HASH_LOG;
+    }
+}
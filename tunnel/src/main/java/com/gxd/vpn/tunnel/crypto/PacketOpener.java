@@ -0,0 +1,55 @@
+package com.gxd.vpn.tunnel.crypto;
+
+import com.gxd.vpn.tunnel.Protocol;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Opens {@link Protocol#SEALED} frames made by the peer's {@link PacketSealer}.
+ * Not thread-safe; the cipher instance is reused for every datagram.
+ */
+public class PacketOpener {
+    private final Cipher mCipher;
+    private final SessionKeys mKeys;
+    private final byte[] mHeader = new byte[PacketSealer.HEADER_SIZE];
+    private final byte[] mNonce = new byte[SessionKeys.SALT_SIZE + 8];
+
+    public PacketOpener(SessionKeys keys) throws GeneralSecurityException {
+        mCipher = Cipher.getInstance(PacketSealer.TRANSFORMATION);
+        mKeys = keys;
+        System.arraycopy(keys.receiveSalt, 0, mNonce, 0, SessionKeys.SALT_SIZE);
+    }
+
+    /**
+     * Authenticates and decrypts the frame between position and limit of {@code sealed} into {@code out}.
+     * Nothing is written to {@code out} unless the frame is authentic.
+     *
+     * @return the frame's sequence number, or -1 if it is malformed, forged or doesn't fit into {@code out}
+     */
+    public long open(ByteBuffer sealed, ByteBuffer out) throws GeneralSecurityException {
+        if (!Protocol.isFrame(sealed, Protocol.SEALED) || sealed.remaining() < PacketSealer.OVERHEAD) {
+            return -1;
+        }
+        final int start = sealed.position();
+        for (int i = 0; i < PacketSealer.HEADER_SIZE; ++i) {
+            mHeader[i] = sealed.get(start + i);
+        }
+        final long sequence = sealed.getLong(start + Protocol.HEADER_SIZE);
+        System.arraycopy(mHeader, Protocol.HEADER_SIZE, mNonce, SessionKeys.SALT_SIZE, 8);
+        mCipher.init(Cipher.DECRYPT_MODE, mKeys.receiveKey, new GCMParameterSpec(PacketSealer.TAG_SIZE * 8, mNonce));
+        mCipher.updateAAD(mHeader);
+        sealed.position(start + PacketSealer.HEADER_SIZE);
+        try {
+            mCipher.doFinal(sealed, out);
+        } catch (AEADBadTagException | ShortBufferException e) {
+            return -1;
+        }
+        return sequence;
+    }
+}
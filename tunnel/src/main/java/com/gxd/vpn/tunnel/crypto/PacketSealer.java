@@ -0,0 +1,75 @@
+package com.gxd.vpn.tunnel.crypto;
+
+import com.gxd.vpn.tunnel.Protocol;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Seals outgoing datagrams into {@link Protocol#SEALED} frames with AES-GCM:
+ * <pre>
+ *   0x00 SEALED | sequence number (8) | ciphertext | tag (16)
+ * </pre>
+ * The header is authenticated as associated data and the GCM nonce is the direction's salt followed by the
+ * sequence number, so every datagram gets a fresh nonce without sending one.
+ * <p>
+ * The cipher instance is reused for every datagram. Not thread-safe; each sending thread needs its own sealer,
+ * sharing the sequence counter through {@link #PacketSealer(SessionKeys, AtomicLong)}.
+ */
+public class PacketSealer {
+    public static final int HEADER_SIZE = Protocol.HEADER_SIZE + 8;
+    public static final int TAG_SIZE = 16;
+    /**
+     * Bytes a sealed datagram is larger than its plaintext.
+     */
+    public static final int OVERHEAD = HEADER_SIZE + TAG_SIZE;
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private final Cipher mCipher;
+    private final SessionKeys mKeys;
+    private final AtomicLong mNextSequence;
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private final byte[] mNonce = new byte[SessionKeys.SALT_SIZE + 8];
+
+    public PacketSealer(SessionKeys keys) throws GeneralSecurityException {
+        this(keys, new AtomicLong(1));
+    }
+
+    /**
+     * @param nextSequence sequence counter shared by every sealer of the session
+     */
+    public PacketSealer(SessionKeys keys, AtomicLong nextSequence) throws GeneralSecurityException {
+        mCipher = Cipher.getInstance(TRANSFORMATION);
+        mKeys = keys;
+        mNextSequence = nextSequence;
+        System.arraycopy(keys.sendSalt, 0, mNonce, 0, SessionKeys.SALT_SIZE);
+        mHeader[0] = Protocol.CONTROL;
+        mHeader[1] = Protocol.SEALED;
+    }
+
+    /**
+     * Seals the remaining bytes of {@code plaintext} into {@code out}, which needs {@link #OVERHEAD} bytes more room.
+     *
+     * @return the sequence number used
+     */
+    public long seal(ByteBuffer plaintext, ByteBuffer out) throws GeneralSecurityException {
+        final long sequence = mNextSequence.getAndIncrement();
+        putLong(mHeader, Protocol.HEADER_SIZE, sequence);
+        putLong(mNonce, SessionKeys.SALT_SIZE, sequence);
+        mCipher.init(Cipher.ENCRYPT_MODE, mKeys.sendKey, new GCMParameterSpec(TAG_SIZE * 8, mNonce));
+        mCipher.updateAAD(mHeader);
+        out.put(mHeader);
+        mCipher.doFinal(plaintext, out);
+        return sequence;
+    }
+
+    static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; --i) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.gxd.vpn.tunnel.crypto;
+
+/**
+ * Sliding-window anti-replay check over sequence numbers, as in IPsec (RFC 6479) and WireGuard.
+ * <p>
+ * The window is a ring of 64-bit words. Moving the window forward only clears the words it slides over, so a check
+ * costs a few shifts and masks no matter how far the sequence numbers jump, and nothing is allocated. Sequence
+ * numbers up to {@link #size()} behind the highest one seen are still accepted once, which absorbs reordering.
+ * <p>
+ * Only feed it sequence numbers of authenticated datagrams, otherwise forged ones could move the window.
+ * Not thread-safe; the downlinks of a striped session share it under a lock, a single one uses it as it is.
+ */
+public class ReplayWindow {
+    private static final int BITS_PER_WORD = 64;
+    private final long[] mBitmap;
+    private final int mMask;
+    private long mHighest;
+
+    /**
+     * @param words number of 64-bit words in the ring, a power of two; one word is always kept as slack, so the
+     *              window accepts sequence numbers up to {@code (words - 1) * 64} behind the highest one
+     */
+    public ReplayWindow(int words) {
+        if (words < 2 || Integer.bitCount(words) != 1) {
+            throw new IllegalArgumentException("Words must be a power of two: " + words);
+        }
+        mBitmap = new long[words];
+        mMask = words - 1;
+        // Sequence number 0 is taken by the handshake.
+        mBitmap[0] = 1;
+    }
+
+    public ReplayWindow() {
+        this(64);
+    }
+
+    /**
+     * @return how far behind the highest sequence number a datagram can still be accepted
+     */
+    public int size() {
+        return (mBitmap.length - 1) * BITS_PER_WORD;
+    }
+
+    /**
+     * Records {@code sequence} as seen.
+     *
+     * @return false if it was seen before or is too old to tell, in which case the datagram must be dropped
+     */
+    public boolean accept(long sequence) {
+        if (sequence < 0) {
+            return false;
+        }
+        final long word = sequence >>> 6;
+        if (sequence > mHighest) {
+            final long highestWord = mHighest >>> 6;
+            final long advance = Math.min(word - highestWord, mBitmap.length);
+            for (long i = 1; i <= advance; ++i) {
+                mBitmap[(int) (highestWord + i) & mMask] = 0;
+            }
+            mHighest = sequence;
+        } else if (mHighest - sequence >= size()) {
+            return false;
+        }
+        final int index = (int) word & mMask;
+        final long bit = 1L << (sequence & (BITS_PER_WORD - 1));
+        if ((mBitmap[index] & bit) != 0) {
+            return false;
+        }
+        mBitmap[index] |= bit;
+        return true;
+    }
+}
@@ -0,0 +1,99 @@
+package com.gxd.vpn.tunnel.crypto;
+
+import com.gxd.vpn.tunnel.Handshake;
+import com.gxd.vpn.tunnel.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of the encrypted handshake. The shared secret never goes over the wire:
+ * <pre>
+ *   client: 0x00 HELLO | client nonce (16) | HMAC-SHA256(secret, "toyvpn hello" | client nonce)
+ *   server: 0x00 HELLO | server nonce (16) | SEALED frame carrying the parameter string
+ * </pre>
+ * The HMAC proves to the server that we know the secret. The server proves the same by sealing the parameters
+ * with the session keys, which only someone who knows the secret can derive from the two nonces.
+ */
+public class SecureHandshake implements Handshake {
+    public static final int NONCE_SIZE = 16;
+    private static final byte[] HELLO_LABEL = "toyvpn hello".getBytes(StandardCharsets.US_ASCII);
+    private final byte[] mSharedSecret;
+    private final byte[] mClientNonce = new byte[NONCE_SIZE];
+    private SessionKeys mSessionKeys;
+
+    public SecureHandshake(byte[] sharedSecret, SecureRandom random) {
+        mSharedSecret = sharedSecret;
+        random.nextBytes(mClientNonce);
+    }
+
+    @Override
+    public void writeHello(ByteBuffer out) throws GeneralSecurityException {
+        out.put(Protocol.CONTROL).put(Protocol.HELLO).put(mClientNonce)
+                .put(SessionKeys.hmac(mSharedSecret, HELLO_LABEL, mClientNonce));
+    }
+
+    /**
+     * Checks the server's answer and derives the session keys from it.
+     *
+     * @return the parameter string, or {@code null} if {@code reply} isn't an authentic answer to our hello
+     */
+    @Override
+    public String readReply(ByteBuffer reply) throws GeneralSecurityException {
+        if (!Protocol.isFrame(reply, Protocol.HELLO) || reply.remaining() < Protocol.HEADER_SIZE + NONCE_SIZE) {
+            return null;
+        }
+        reply.position(reply.position() + Protocol.HEADER_SIZE);
+        byte[] serverNonce = new byte[NONCE_SIZE];
+        reply.get(serverNonce);
+        SessionKeys keys = SessionKeys.derive(mSharedSecret, mClientNonce, serverNonce, true);
+        ByteBuffer parameters = ByteBuffer.allocate(reply.remaining());
+        if (new PacketOpener(keys).open(reply, parameters) < 0) {
+            return null;
+        }
+        mSessionKeys = keys;
+        return new String(parameters.array(), 0, parameters.position(), StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * @return the keys of the session, once {@link #readReply} has accepted an answer
+     */
+    public SessionKeys sessionKeys() {
+        return mSessionKeys;
+    }
+
+    /**
+     * Server side check of a client hello, for stand-in servers.
+     *
+     * @return the client nonce, or {@code null} if the hello was not made with {@code sharedSecret}
+     */
+    public static byte[] verifyHello(ByteBuffer hello, byte[] sharedSecret) throws GeneralSecurityException {
+        if (!Protocol.isFrame(hello, Protocol.HELLO) || hello.remaining() != Protocol.HEADER_SIZE + NONCE_SIZE + 32) {
+            return null;
+        }
+        hello.position(hello.position() + Protocol.HEADER_SIZE);
+        byte[] clientNonce = new byte[NONCE_SIZE];
+        byte[] mac = new byte[32];
+        hello.get(clientNonce).get(mac);
+        return MessageDigest.isEqual(mac, SessionKeys.hmac(sharedSecret, HELLO_LABEL, clientNonce)) ? clientNonce : null;
+    }
+
+    /**
+     * Server side answer to a verified hello, for stand-in servers.
+     * The parameters are sealed with sequence number 0, so the server's data starts at 1.
+     */
+    public static SessionKeys writeReply(ByteBuffer out, byte[] sharedSecret, byte[] clientNonce, String parameters,
+                                         SecureRandom random) throws GeneralSecurityException {
+        byte[] serverNonce = new byte[NONCE_SIZE];
+        random.nextBytes(serverNonce);
+        SessionKeys keys = SessionKeys.derive(sharedSecret, clientNonce, serverNonce, false);
+        out.put(Protocol.CONTROL).put(Protocol.HELLO).put(serverNonce);
+        new PacketSealer(keys, new AtomicLong(0))
+                .seal(ByteBuffer.wrap(parameters.getBytes(StandardCharsets.US_ASCII)), out);
+        return keys;
+    }
+}
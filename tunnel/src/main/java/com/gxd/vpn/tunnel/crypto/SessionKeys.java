@@ -0,0 +1,84 @@
+package com.gxd.vpn.tunnel.crypto;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keys of one tunnel session, derived with HKDF-SHA256 from the shared secret and both handshake nonces.
+ * Each direction gets its own AES-256 key and its own nonce salt, so the two sides never share a GCM nonce space.
+ * <p>
+ * The shared secret is the only long-term input, so it has to be high-entropy: an eavesdropper who records a
+ * handshake can test guesses of it offline.
+ */
+public class SessionKeys {
+    static final String MAC_ALGORITHM = "HmacSHA256";
+    static final int KEY_SIZE = 32;
+    static final int SALT_SIZE = 4;
+    private static final byte[] INFO = "toyvpn session keys".getBytes(StandardCharsets.US_ASCII);
+    final SecretKeySpec sendKey;
+    final byte[] sendSalt;
+    final SecretKeySpec receiveKey;
+    final byte[] receiveSalt;
+
+    private SessionKeys(SecretKeySpec sendKey, byte[] sendSalt, SecretKeySpec receiveKey, byte[] receiveSalt) {
+        this.sendKey = sendKey;
+        this.sendSalt = sendSalt;
+        this.receiveKey = receiveKey;
+        this.receiveSalt = receiveSalt;
+    }
+
+    /**
+     * @param client whether the keys are for the client side; the server sends with the client's receive key
+     */
+    public static SessionKeys derive(byte[] sharedSecret, byte[] clientNonce, byte[] serverNonce, boolean client)
+            throws GeneralSecurityException {
+        byte[] salt = Arrays.copyOf(clientNonce, clientNonce.length + serverNonce.length);
+        System.arraycopy(serverNonce, 0, salt, clientNonce.length, serverNonce.length);
+        byte[] okm = expand(extract(salt, sharedSecret), INFO, 2 * (KEY_SIZE + SALT_SIZE));
+        SecretKeySpec clientKey = new SecretKeySpec(okm, 0, KEY_SIZE, "AES");
+        SecretKeySpec serverKey = new SecretKeySpec(okm, KEY_SIZE, KEY_SIZE, "AES");
+        byte[] clientSalt = Arrays.copyOfRange(okm, 2 * KEY_SIZE, 2 * KEY_SIZE + SALT_SIZE);
+        byte[] serverSalt = Arrays.copyOfRange(okm, 2 * KEY_SIZE + SALT_SIZE, okm.length);
+        Arrays.fill(okm, (byte) 0);
+        return client
+                ? new SessionKeys(clientKey, clientSalt, serverKey, serverSalt)
+                : new SessionKeys(serverKey, serverSalt, clientKey, clientSalt);
+    }
+
+    /**
+     * @return HMAC-SHA256 of {@code data} under {@code key}
+     */
+    static byte[] hmac(byte[] key, byte[]... data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        for (byte[] d : data) {
+            mac.update(d);
+        }
+        return mac.doFinal();
+    }
+
+    private static byte[] extract(byte[] salt, byte[] inputKeyMaterial) throws GeneralSecurityException {
+        return hmac(salt, inputKeyMaterial);
+    }
+
+    private static byte[] expand(byte[] pseudoRandomKey, byte[] info, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(pseudoRandomKey, MAC_ALGORITHM));
+        byte[] okm = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; ++counter) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            block = mac.doFinal();
+            int n = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, okm, offset, n);
+            offset += n;
+        }
+        return okm;
+    }
+}
@@ -0,0 +1,190 @@
+package com.gxd.vpn.tunnel.crypto;
+
+import com.gxd.vpn.tunnel.Protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A resumption ticket: what the server needs to pick a session back up, sealed so that only servers that know the
+ * shared secret can read it. The server hands it out with the parameters, and the client sends it back to resume
+ * without a handshake, along with data right behind it rather than a round trip later:
+ * <pre>
+ *   client: 0x00 RESUME | client nonce (16) | time in ms since the epoch (8) | ticket
+ *   server: 0x00 RESUME | 1, sealed with the resumed keys, or 0x00 RESUME | 0 in plaintext if it can't resume
+ *   ticket: nonce (12) | AES-256-GCM of expiry in ms since the epoch (8) | resumption secret length (1)
+ *           | resumption secret | parameter string
+ * </pre>
+ * With encryption on, the server hands out a fresh resumption secret with the ticket, sealed in the handshake
+ * reply, and both sides derive the keys of a resumed session from it, the client nonce and the time. A ticket can
+ * be used again until it expires, since every resumption gets keys of its own.
+ * <p>
+ * Nothing in the first flight comes from the server, so a recorded one can be sent again. Requests are only taken
+ * within {@link #MAX_CLOCK_SKEW_MS} of the server's clock, and a request with a different time gets different
+ * keys, so the server only has to remember the client nonces it resumed with for twice that long, see
+ * {@link #REPLAY_WINDOW_MS}, and turn down any that come again. A client whose clock is off by more than that
+ * can't resume, and does a handshake instead.
+ */
+public class SessionTicket {
+    public static final int NONCE_SIZE = SecureHandshake.NONCE_SIZE;
+    public static final int SECRET_SIZE = 32;
+    public static final byte ACCEPTED = 1;
+    public static final byte REJECTED = 0;
+    public static final long MAX_CLOCK_SKEW_MS = TimeUnit.SECONDS.toMillis(10);
+    /**
+     * How long a client nonce has to be remembered for.
+     */
+    public static final long REPLAY_WINDOW_MS = 2 * MAX_CLOCK_SKEW_MS;
+    private static final byte[] TICKET_LABEL = "toyvpn ticket".getBytes(StandardCharsets.US_ASCII);
+    private static final int TICKET_NONCE_SIZE = 12;
+    private final byte[] mTicket;
+    private final byte[] mSecret;
+
+    /**
+     * @param ticket the ticket in Base64, as in the parameters
+     * @param secret the resumption secret in Base64, or {@code null} for a plaintext session
+     * @throws IllegalArgumentException if either is not Base64
+     */
+    public SessionTicket(String ticket, String secret) throws IllegalArgumentException {
+        mTicket = Base64.getDecoder().decode(ticket);
+        mSecret = secret != null ? Base64.getDecoder().decode(secret) : null;
+    }
+
+    /**
+     * Puts the request to resume into {@code out}, with a nonce of its own.
+     *
+     * @param nowMs the time in ms since the epoch
+     * @return the keys of the resumed session, or {@code null} if it is a plaintext one
+     */
+    public SessionKeys writeResume(ByteBuffer out, SecureRandom random, long nowMs) throws GeneralSecurityException {
+        final byte[] clientNonce = new byte[NONCE_SIZE];
+        random.nextBytes(clientNonce);
+        final byte[] time = ByteBuffer.allocate(8).putLong(nowMs).array();
+        out.put(Protocol.CONTROL).put(Protocol.RESUME).put(clientNonce).put(time).put(mTicket);
+        return mSecret != null ? SessionKeys.derive(mSecret, clientNonce, time, true) : null;
+    }
+
+    /**
+     * @return whether {@code reply} is the server turning the request down, which is not authenticated; once
+     * anything authentic came back, the session is resumed and this is to be ignored
+     */
+    public static boolean isRejection(ByteBuffer reply) {
+        return Protocol.isFrame(reply, Protocol.RESUME) && reply.remaining() == Protocol.HEADER_SIZE + 1
+                && reply.get(reply.position() + Protocol.HEADER_SIZE) == REJECTED;
+    }
+
+    /**
+     * Server side issue of a ticket, for stand-in servers.
+     *
+     * @param secret the resumption secret, {@link #SECRET_SIZE} random bytes, or {@code null} for a plaintext
+     *               session
+     * @return the ticket parameter, to add to {@code parameters}
+     */
+    public static String issue(byte[] sharedSecret, String parameters, byte[] secret, long expiresAtMs,
+                               SecureRandom random) throws GeneralSecurityException {
+        final byte[] plaintext = parameters.getBytes(StandardCharsets.US_ASCII);
+        final int secretSize = secret != null ? secret.length : 0;
+        final ByteBuffer ticket = ByteBuffer.allocate(TICKET_NONCE_SIZE + 8 + 1 + secretSize + plaintext.length
+                + PacketSealer.TAG_SIZE);
+        final byte[] nonce = new byte[TICKET_NONCE_SIZE];
+        random.nextBytes(nonce);
+        ticket.put(nonce);
+        final ByteBuffer contents = ByteBuffer.allocate(8 + 1 + secretSize + plaintext.length);
+        contents.putLong(expiresAtMs).put((byte) secretSize);
+        if (secret != null) {
+            contents.put(secret);
+        }
+        contents.put(plaintext).flip();
+        final Cipher cipher = Cipher.getInstance(PacketSealer.TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, ticketKey(sharedSecret), new GCMParameterSpec(PacketSealer.TAG_SIZE * 8,
+                nonce));
+        cipher.doFinal(contents, ticket);
+        final Base64.Encoder base64 = Base64.getEncoder();
+        return "t," + base64.encodeToString(ticket.array())
+                + (secret != null ? "," + base64.encodeToString(secret) : "");
+    }
+
+    /**
+     * Server side check of a request to resume, for stand-in servers.
+     *
+     * @return what the ticket holds, or {@code null} if it was not issued with {@code sharedSecret}, has expired, or
+     * the request is too far off the server's clock
+     */
+    public static Resumption accept(ByteBuffer resume, byte[] sharedSecret, long nowMs)
+            throws GeneralSecurityException {
+        final int ticketSize = resume.remaining() - Protocol.HEADER_SIZE - NONCE_SIZE - 8;
+        if (!Protocol.isFrame(resume, Protocol.RESUME) || ticketSize < TICKET_NONCE_SIZE + 9 + PacketSealer.TAG_SIZE) {
+            return null;
+        }
+        final ByteBuffer request = resume.duplicate();
+        request.position(request.position() + Protocol.HEADER_SIZE);
+        final byte[] clientNonce = new byte[NONCE_SIZE];
+        final byte[] time = new byte[8];
+        final byte[] nonce = new byte[TICKET_NONCE_SIZE];
+        request.get(clientNonce).get(time).get(nonce);
+        if (Math.abs(nowMs - ByteBuffer.wrap(time).getLong()) > MAX_CLOCK_SKEW_MS) {
+            return null;
+        }
+        final ByteBuffer contents = ByteBuffer.allocate(request.remaining() - PacketSealer.TAG_SIZE);
+        final Cipher cipher = Cipher.getInstance(PacketSealer.TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, ticketKey(sharedSecret), new GCMParameterSpec(PacketSealer.TAG_SIZE * 8,
+                nonce));
+        try {
+            cipher.doFinal(request, contents);
+        } catch (AEADBadTagException e) {
+            return null;
+        }
+        contents.flip();
+        final long expiresAtMs = contents.getLong();
+        final int secretSize = contents.get() & 0xFF;
+        if (nowMs - expiresAtMs > 0 || secretSize > contents.remaining()) {
+            return null;
+        }
+        SessionKeys keys = null;
+        if (secretSize > 0) {
+            final byte[] secret = new byte[secretSize];
+            contents.get(secret);
+            keys = SessionKeys.derive(secret, clientNonce, time, false);
+        }
+        final byte[] parameters = new byte[contents.remaining()];
+        contents.get(parameters);
+        return new Resumption(clientNonce, new String(parameters, StandardCharsets.US_ASCII), keys);
+    }
+
+    private static SecretKeySpec ticketKey(byte[] sharedSecret) throws GeneralSecurityException {
+        return new SecretKeySpec(SessionKeys.hmac(sharedSecret, TICKET_LABEL), 0, SessionKeys.KEY_SIZE, "AES");
+    }
+
+    /**
+     * What a ticket gives the server back.
+     */
+    public static class Resumption {
+        /**
+         * The nonce of the request, which must not be taken again for {@link #REPLAY_WINDOW_MS}.
+         */
+        public final byte[] clientNonce;
+        /**
+         * The parameters the session was handed out, without the ticket.
+         */
+        public final String parameters;
+        /**
+         * The server's keys of the resumed session, or {@code null} if it is a plaintext one.
+         */
+        public final SessionKeys keys;
+
+        Resumption(byte[] clientNonce, String parameters, SessionKeys keys) {
+            this.clientNonce = clientNonce;
+            this.parameters = parameters;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.gxd.vpn.tunnel.dns;
+
+import com.gxd.vpn.tunnel.TunDevice;
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+import com.gxd.vpn.tunnel.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Answers DNS queries to the tunnel's DNS servers from a cache, so that only misses take a round trip through
+ * the tunnel.
+ * <p>
+ * The pump shows it every UDP packet going either way. Queries to one of the servers are answered right away if
+ * the answer is cached and still fresh, with its TTLs counted down by the time it spent in the cache. Otherwise
+ * the query goes out, and identical queries from other clients until the response comes back are held and
+ * answered from that response instead of going out as well. Responses are cached for the lowest TTL they carry,
+ * negative ones for what their SOA record allows, and the least recently used answers make room for new ones.
+ * A cached answer may have been fetched for a client using EDNS and be given to one that doesn't, or the other way
+ * round, so replies lose the OPT record for clients without one, and are cut down to the question with TC set if
+ * they are larger than the client takes, for it to ask again over TCP.
+ * <p>
+ * Only responses to queries that went out through here are taken, matched by question, ID and port, so that the
+ * cache can't be filled with answers nobody asked for. DNS is a few packets a second at most, so everything is
+ * synchronized and allocating, unlike the forwarding path around it.
+ */
+public class DnsCache {
+    public static final int PORT = 53;
+    /**
+     * Time after which a query that went out is considered lost; an identical one is sent out again then.
+     */
+    private static final long IN_FLIGHT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(3);
+    private static final int MAX_IN_FLIGHT = 256;
+    /**
+     * Most clients held waiting for one query; beyond that they get to send their own.
+     */
+    private static final int MAX_WAITERS = 16;
+    private static final long MAX_TTL_S = TimeUnit.DAYS.toSeconds(1);
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int IPV6_HEADER_SIZE = 40;
+    private static final int UDP_HEADER_SIZE = 8;
+    private final Map<String, Entry> mEntries;
+    private final Map<String, InFlight> mInFlight = new HashMap<>();
+    private final LatencyHistogram mUpstreamTime = new LatencyHistogram();
+    /**
+     * Version, high and low half of every server address in a row.
+     */
+    private long[] mServers = new long[0];
+    /**
+     * Where replies are built, grown to the largest one so far.
+     */
+    private ByteBuffer mReply = ByteBuffer.allocate(512);
+    private long mQueries;
+    private long mHits;
+    private long mCoalesced;
+    private long mSavedUs;
+
+    /**
+     * @param maxEntries most answers to keep; a few hundred cover what a phone looks up in a while
+     */
+    public DnsCache(final int maxEntries) {
+        // Qualified, since in here Entry would be the Map.Entry that LinkedHashMap inherits.
+        mEntries = new LinkedHashMap<String, DnsCache.Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DnsCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Sets the DNS servers whose queries to answer. Anything cached is dropped if they change, since other servers
+     * may well answer differently.
+     */
+    public synchronized void setServers(Collection<InetAddress> servers) {
+        final long[] addresses = new long[servers.size() * 3];
+        int i = 0;
+        for (InetAddress server : servers) {
+            final ByteBuffer bytes = ByteBuffer.wrap(server.getAddress());
+            final boolean ipv4 = server instanceof Inet4Address;
+            addresses[i++] = ipv4 ? 4 : 6;
+            addresses[i++] = ipv4 ? 0 : bytes.getLong();
+            addresses[i++] = ipv4 ? bytes.getInt() & 0xFFFFFFFFL : bytes.getLong();
+        }
+        if (!Arrays.equals(addresses, mServers)) {
+            mServers = addresses;
+            clear();
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mInFlight.clear();
+    }
+
+    /**
+     * Looks at a packet read from the TUN interface, answering it through {@code tun} if it is a query for a fresh
+     * cached answer, or holding it if the same query is already on its way.
+     *
+     * @param headers {@code packet} parsed
+     * @return true if the packet was taken care of and must not be forwarded
+     */
+    public synchronized boolean query(ByteBuffer packet, PacketHeaders headers, TunDevice tun, long nowNanos)
+            throws IOException {
+        if (!isDns(headers, headers.destinationPort(), headers.destinationHigh(), headers.destinationLow())) {
+            return false;
+        }
+        final int start = headers.payloadOffset();
+        final int end = end(packet, headers);
+        final int questionEnd = DnsMessage.query(packet, start, end);
+        if (questionEnd < 0) {
+            return false;
+        }
+        ++mQueries;
+        final String key = DnsMessage.key(packet, start, questionEnd);
+        final Entry entry = mEntries.get(key);
+        if (entry != null) {
+            if (entry.expiresNanos - nowNanos > 0) {
+                ++mHits;
+                mSavedUs += entry.upstreamUs;
+                reply(new Client(packet, headers, start, questionEnd), entry, nowNanos, tun);
+                return true;
+            }
+            mEntries.remove(key);
+        }
+        final int id = DnsMessage.id(packet, start);
+        final InFlight inFlight = mInFlight.get(key);
+        if (inFlight != null && nowNanos - inFlight.sentNanos < IN_FLIGHT_TIMEOUT_NANOS) {
+            // The client that sent the query out may retry it, and that retry has to go out as well.
+            final boolean retry = inFlight.port == headers.sourcePort() && inFlight.id == id;
+            if (!retry && inFlight.waiters.size() < MAX_WAITERS) {
+                inFlight.waiters.add(new Client(packet, headers, start, questionEnd));
+                ++mCoalesced;
+                return true;
+            }
+            return false;
+        }
+        if (mInFlight.size() >= MAX_IN_FLIGHT) {
+            expire(nowNanos);
+        }
+        if (mInFlight.size() < MAX_IN_FLIGHT) {
+            mInFlight.put(key, new InFlight(headers.sourcePort(), id, nowNanos));
+        }
+        return false;
+    }
+
+    /**
+     * Looks at a packet about to be written to the TUN interface, caching it if it is the response to a query
+     * that went out through here, and answering the clients held waiting for it through {@code tun}.
+     * The packet itself is left alone, for the caller to deliver.
+     *
+     * @param headers {@code packet} parsed
+     */
+    public synchronized void answer(ByteBuffer packet, PacketHeaders headers, TunDevice tun, long nowNanos)
+            throws IOException {
+        if (!isDns(headers, headers.sourcePort(), headers.sourceHigh(), headers.sourceLow())) {
+            return;
+        }
+        final int start = headers.payloadOffset();
+        final int end = end(packet, headers);
+        final int questionEnd = DnsMessage.response(packet, start, end);
+        if (questionEnd < 0) {
+            return;
+        }
+        final String key = DnsMessage.key(packet, start, questionEnd);
+        final InFlight inFlight = mInFlight.get(key);
+        if (inFlight == null || inFlight.port != headers.destinationPort()
+                || inFlight.id != DnsMessage.id(packet, start)) {
+            return;
+        }
+        mInFlight.remove(key);
+        final long upstreamUs = TimeUnit.NANOSECONDS.toMicros(nowNanos - inFlight.sentNanos);
+        mUpstreamTime.record(upstreamUs);
+        final Entry entry = Entry.of(packet, start, end, questionEnd, nowNanos, upstreamUs);
+        if (entry.expiresNanos - nowNanos > 0) {
+            mEntries.put(key, entry);
+        }
+        for (Client waiter : inFlight.waiters) {
+            reply(waiter, entry, nowNanos, tun);
+        }
+    }
+
+    public synchronized Stats stats() {
+        return new Stats(this);
+    }
+
+    private boolean isDns(PacketHeaders headers, int port, long high, long low) {
+        if (headers.protocol() != PacketHeaders.UDP || port != PORT || headers.payloadOffset() < 0) {
+            return false;
+        }
+        for (int i = 0; i < mServers.length; i += 3) {
+            if (mServers[i] == headers.version() && mServers[i + 1] == high && mServers[i + 2] == low) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the end of the UDP payload, which the UDP length may put before the end of the packet
+     */
+    private static int end(ByteBuffer packet, PacketHeaders headers) {
+        final int udpLength = packet.getShort(headers.transportOffset() + 4) & 0xFFFF;
+        return Math.min(packet.limit(), headers.transportOffset() + Math.max(UDP_HEADER_SIZE, udpLength));
+    }
+
+    private void expire(long nowNanos) {
+        for (Iterator<InFlight> i = mInFlight.values().iterator(); i.hasNext(); ) {
+            if (nowNanos - i.next().sentNanos >= IN_FLIGHT_TIMEOUT_NANOS) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes {@code entry} to the TUN interface as the response to {@code client}'s query.
+     */
+    private void reply(Client client, Entry entry, long nowNanos, TunDevice tun) throws IOException {
+        final byte[] message = entry.message;
+        final int optLength = entry.optStart >= 0 ? entry.optEnd - entry.optStart : 0;
+        final boolean opt = optLength > 0 && client.payloadSize > 0;
+        final int strippedLength = opt ? 0 : optLength;
+        final boolean truncated = message.length - strippedLength
+                > Math.max(DnsMessage.MIN_PAYLOAD_SIZE, client.payloadSize);
+        final int messageLength = truncated ? entry.questionEnd + (opt ? optLength : 0)
+                : message.length - strippedLength;
+        final int ipHeaderSize = client.version == 4 ? IPV4_HEADER_SIZE : IPV6_HEADER_SIZE;
+        final int udpLength = UDP_HEADER_SIZE + messageLength;
+        final int length = ipHeaderSize + udpLength;
+        if (mReply.capacity() < length) {
+            mReply = ByteBuffer.allocate(length);
+        }
+        final ByteBuffer reply = mReply;
+        reply.clear();
+        if (client.version == 4) {
+            reply.put((byte) 0x45).put((byte) 0).putShort((short) length)
+                    .putShort((short) 0).putShort((short) 0x4000)// Don't fragment.
+                    .put((byte) 64).put((byte) PacketHeaders.UDP).putShort((short) 0)
+                    .putInt((int) client.serverLow).putInt((int) client.clientLow);
+            reply.putShort(10, (short) ~fold(sum(reply, 0, IPV4_HEADER_SIZE, 0)));
+        } else {
+            reply.putInt(0x60000000).putShort((short) udpLength).put((byte) PacketHeaders.UDP).put((byte) 64)
+                    .putLong(client.serverHigh).putLong(client.serverLow)
+                    .putLong(client.clientHigh).putLong(client.clientLow);
+        }
+        final int udpStart = reply.position();
+        reply.putShort((short) PORT).putShort((short) client.port).putShort((short) udpLength).putShort((short) 0);
+        final int dnsStart = reply.position();
+        if (truncated) {
+            reply.put(message, 0, entry.questionEnd);
+            if (opt) {
+                reply.put(message, entry.optStart, optLength);
+            }
+            DnsMessage.setTruncated(reply, dnsStart);
+            reply.putShort(dnsStart + 6, (short) 0).putShort(dnsStart + 8, (short) 0)
+                    .putShort(dnsStart + 10, (short) (opt ? 1 : 0));
+        } else if (strippedLength > 0) {
+            reply.put(message, 0, entry.optStart).put(message, entry.optEnd, message.length - entry.optEnd);
+            reply.putShort(dnsStart + 10, (short) (DnsMessage.count(reply, dnsStart, 10) - 1));
+        } else {
+            reply.put(message);
+        }
+        reply.putShort(dnsStart, (short) client.id);
+        for (int i = 0; i < client.name.length; ++i) {
+            reply.put(dnsStart + DnsMessage.HEADER_SIZE + i, client.name[i]);
+        }
+        if (!truncated) {
+            final long ageS = TimeUnit.NANOSECONDS.toSeconds(nowNanos - entry.storedNanos);
+            for (int offset : entry.ttlOffsets) {
+                // Records after a stripped OPT record moved up.
+                final int at = dnsStart + (offset > entry.optStart ? offset - strippedLength : offset);
+                final long ttl = reply.getInt(at) & 0xFFFFFFFFL;
+                reply.putInt(at, (int) Math.max(0, ttl - ageS));
+            }
+        }
+        // The UDP checksum covers a pseudo header of addresses, protocol and length as well.
+        long sum = add(add(add(add(PacketHeaders.UDP + udpLength, client.serverHigh), client.serverLow),
+                client.clientHigh), client.clientLow);
+        sum = sum(reply, udpStart, length, sum);
+        final int checksum = ~fold(sum) & 0xFFFF;
+        reply.putShort(udpStart + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+        reply.flip();
+        tun.write(reply);
+    }
+
+    private static long add(long sum, long value) {
+        return sum + (value >>> 48) + (value >>> 32 & 0xFFFF) + (value >>> 16 & 0xFFFF) + (value & 0xFFFF);
+    }
+
+    private static long sum(ByteBuffer buffer, int from, int to, long sum) {
+        for (int i = from; i + 1 < to; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+        }
+        if (((to - from) & 1) != 0) {
+            sum += (buffer.get(to - 1) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    private static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /**
+     * A response, cached or just passed on to the waiting clients.
+     */
+    private static class Entry {
+        final byte[] message;
+        final int questionEnd;
+        /**
+         * Where the OPT record starts and ends in the message, or -1 for both if it has none.
+         */
+        final int optStart;
+        final int optEnd;
+        /**
+         * Where the TTL of every record but OPT sits in the message.
+         */
+        final int[] ttlOffsets;
+        final long storedNanos;
+        /**
+         * Not after {@link #storedNanos} if the response must not be cached.
+         */
+        final long expiresNanos;
+        final long upstreamUs;
+
+        private Entry(byte[] message, int questionEnd, int optStart, int optEnd, int[] ttlOffsets, long storedNanos,
+                long ttlS, long upstreamUs) {
+            this.message = message;
+            this.questionEnd = questionEnd;
+            this.optStart = optStart;
+            this.optEnd = optEnd;
+            this.ttlOffsets = ttlOffsets;
+            this.storedNanos = storedNanos;
+            expiresNanos = storedNanos + TimeUnit.SECONDS.toNanos(ttlS);
+            this.upstreamUs = upstreamUs;
+        }
+
+        static Entry of(ByteBuffer packet, int start, int end, int questionEnd, long nowNanos, long upstreamUs) {
+            final byte[] message = new byte[end - start];
+            for (int i = 0; i < message.length; ++i) {
+                message[i] = packet.get(start + i);
+            }
+            final int answers = DnsMessage.count(packet, start, 6);
+            final int authorities = DnsMessage.count(packet, start, 8);
+            final int records = answers + authorities + DnsMessage.count(packet, start, 10);
+            final int[] ttlOffsets = new int[records];
+            int count = 0;
+            long ttlS = MAX_TTL_S;
+            boolean soa = false;
+            int optStart = -1;
+            int optEnd = -1;
+            int offset = questionEnd;
+            for (int i = 0; i < records; ++i) {
+                final int recordStart = offset;
+                offset = DnsMessage.skipName(packet, offset, end);
+                if (offset < 0 || offset + 10 > end) {
+                    // Malformed, pass it on as it is but don't cache it.
+                    return malformed(message, questionEnd - start, nowNanos, upstreamUs);
+                }
+                final int type = packet.getShort(offset) & 0xFFFF;
+                final int data = offset + 10;
+                final int dataLength = packet.getShort(offset + 8) & 0xFFFF;
+                if (data + dataLength > end) {
+                    return malformed(message, questionEnd - start, nowNanos, upstreamUs);
+                }
+                if (type == DnsMessage.TYPE_OPT) {
+                    if (optStart >= 0) {
+                        return malformed(message, questionEnd - start, nowNanos, upstreamUs);
+                    }
+                    optStart = recordStart - start;
+                    optEnd = data + dataLength - start;
+                } else {
+                    ttlOffsets[count++] = offset + 4 - start;
+                    if (i < answers + authorities) {
+                        ttlS = Math.min(ttlS, ttl(packet.getInt(offset + 4)));
+                        if (type == DnsMessage.TYPE_SOA && i >= answers && dataLength >= 20) {
+                            // Negative answers may be cached for as long as the SOA's MINIMUM field says.
+                            soa = true;
+                            ttlS = Math.min(ttlS, ttl(packet.getInt(data + dataLength - 4)));
+                        }
+                    }
+                }
+                offset = data + dataLength;
+            }
+            final int rcode = DnsMessage.rcode(packet, start);
+            final boolean cacheable = !DnsMessage.isTruncated(packet, start)
+                    && (rcode == DnsMessage.RCODE_NOERROR && (answers > 0 || soa)
+                    || rcode == DnsMessage.RCODE_NXDOMAIN && soa);
+            return new Entry(message, questionEnd - start, optStart, optEnd, Arrays.copyOf(ttlOffsets, count),
+                    nowNanos, cacheable ? ttlS : 0, upstreamUs);
+        }
+
+        /**
+         * @return a response that is not to be cached, nor taken apart beyond its question
+         */
+        private static Entry malformed(byte[] message, int questionEnd, long nowNanos, long upstreamUs) {
+            return new Entry(message, questionEnd, -1, -1, new int[0], nowNanos, 0, upstreamUs);
+        }
+
+        /**
+         * TTLs with the top bit set are to be read as 0 (RFC 2181).
+         */
+        private static long ttl(int value) {
+            return Math.max(0, value);
+        }
+    }
+
+    /**
+     * A query that went out, and the clients waiting for the same answer.
+     */
+    private static class InFlight {
+        final int port;
+        final int id;
+        final long sentNanos;
+        final List<Client> waiters = new ArrayList<>();
+
+        InFlight(int port, int id, long sentNanos) {
+            this.port = port;
+            this.id = id;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    /**
+     * Where to send a response and how the client expects it to look.
+     */
+    private static class Client {
+        final int version;
+        final long clientHigh;
+        final long clientLow;
+        final int port;
+        final long serverHigh;
+        final long serverLow;
+        final int id;
+        final byte[] name;
+        /**
+         * Advertised in the query's OPT record, or 0 without one.
+         */
+        final int payloadSize;
+
+        Client(ByteBuffer packet, PacketHeaders headers, int start, int questionEnd) {
+            version = headers.version();
+            clientHigh = headers.sourceHigh();
+            clientLow = headers.sourceLow();
+            port = headers.sourcePort();
+            serverHigh = headers.destinationHigh();
+            serverLow = headers.destinationLow();
+            id = DnsMessage.id(packet, start);
+            name = DnsMessage.name(packet, start, questionEnd);
+            payloadSize = DnsMessage.payloadSize(packet, start, questionEnd);
+        }
+    }
+
+    /**
+     * How well the cache has been doing.
+     */
+    public static class Stats {
+        /**
+         * Queries to the tunnel's servers that the cache could have answered.
+         */
+        public final long queries;
+        public final long hits;
+        /**
+         * Queries held for an identical one that was on its way already.
+         */
+        public final long coalesced;
+        public final int entries;
+        /**
+         * Round trips saved by hits, each taken to be as long as the one that fetched the answer.
+         */
+        public final long savedUs;
+        /**
+         * Time to get a response through the tunnel, for the queries that went out.
+         */
+        public final LatencyHistogram.Snapshot upstreamTime;
+
+        Stats(DnsCache cache) {
+            queries = cache.mQueries;
+            hits = cache.mHits;
+            coalesced = cache.mCoalesced;
+            entries = cache.mEntries.size();
+            savedUs = cache.mSavedUs;
+            upstreamTime = cache.mUpstreamTime.snapshot();
+        }
+
+        /**
+         * @return the share of queries answered right away, between 0 and 1
+         */
+        public double hitRate() {
+            return queries > 0 ? (double) hits / queries : 0;
+        }
+
+        @Override
+        public String toString() {
+            return queries + " queries, " + hits + " hits (" + Math.round(hitRate() * 100) + "%), " + coalesced
+                    + " coalesced, " + entries + " entries, saved " + TimeUnit.MICROSECONDS.toMillis(savedUs)
+                    + " ms, upstream " + upstreamTime;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.gxd.vpn.tunnel.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Just enough of the DNS wire format (RFC 1035) to recognize queries worth caching and to find the TTLs in a
+ * response. Everything is read with absolute gets between {@code start}, the first byte of the DNS header, and
+ * {@code end}.
+ */
+final class DnsMessage {
+    static final int HEADER_SIZE = 12;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_OPT = 41;
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_NXDOMAIN = 3;
+    /**
+     * Largest UDP payload a client without an OPT record takes, and the least one with it may advertise.
+     */
+    static final int MIN_PAYLOAD_SIZE = 512;
+    private static final int FLAG_QR = 0x8000;
+    private static final int MASK_OPCODE = 0x7800;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_CD = 0x0010;
+    private static final int MASK_RCODE = 0x000F;
+    /**
+     * The DO bit, in the flags half of the TTL of an OPT record.
+     */
+    private static final int FLAG_DO = 0x8000;
+    private static final int MAX_NAME_SIZE = 255;
+
+    private DnsMessage() {
+    }
+
+    static int id(ByteBuffer message, int start) {
+        return message.getShort(start) & 0xFFFF;
+    }
+
+    static int rcode(ByteBuffer message, int start) {
+        return message.getShort(start + 2) & MASK_RCODE;
+    }
+
+    static boolean isTruncated(ByteBuffer message, int start) {
+        return (message.getShort(start + 2) & FLAG_TC) != 0;
+    }
+
+    static void setTruncated(ByteBuffer message, int start) {
+        message.putShort(start + 2, (short) (message.getShort(start + 2) | FLAG_TC));
+    }
+
+    /**
+     * Checks for a standard query with exactly one question, which is what stub resolvers send.
+     * DNSSEC-aware clients, those setting CD or DO, are left alone: they want records we don't keep apart.
+     *
+     * @return the end of the question, or -1 if this is not such a query
+     */
+    static int query(ByteBuffer message, int start, int end) {
+        final int questionEnd = question(message, start, end, false);
+        if (questionEnd < 0 || count(message, start, 6) != 0 || count(message, start, 8) != 0) {
+            return -1;
+        }
+        final int additional = count(message, start, 10);
+        if (additional == 1) {
+            // Only an OPT record is expected here, with the root as its name.
+            if (questionEnd + 11 > end || message.get(questionEnd) != 0
+                    || (message.getShort(questionEnd + 1) & 0xFFFF) != TYPE_OPT
+                    || (message.getShort(questionEnd + 7) & FLAG_DO) != 0) {
+                return -1;
+            }
+        } else if (additional != 0) {
+            return -1;
+        }
+        return questionEnd;
+    }
+
+    /**
+     * @param questionEnd as returned by {@link #query}
+     * @return the largest UDP payload the sender of the query takes as its OPT record says, or 0 if it has none and
+     * so takes {@link #MIN_PAYLOAD_SIZE}
+     */
+    static int payloadSize(ByteBuffer message, int start, int questionEnd) {
+        if (count(message, start, 10) == 0) {
+            return 0;
+        }
+        // Sizes below 512 are to be read as 512 (RFC 6891).
+        return Math.max(MIN_PAYLOAD_SIZE, message.getShort(questionEnd + 3) & 0xFFFF);
+    }
+
+    /**
+     * Checks for a response with exactly one question.
+     *
+     * @return the end of the question, or -1 if this is not such a response
+     */
+    static int response(ByteBuffer message, int start, int end) {
+        return question(message, start, end, true);
+    }
+
+    /**
+     * @return the question as a map key: its name with ASCII letters in lower case, then type and class
+     */
+    static String key(ByteBuffer message, int start, int questionEnd) {
+        final int nameStart = start + HEADER_SIZE;
+        final int nameEnd = questionEnd - 4;
+        final char[] key = new char[questionEnd - nameStart];
+        for (int i = nameStart; i < questionEnd; ++i) {
+            final int b = message.get(i) & 0xFF;
+            // Length bytes never exceed 63, so only letters are touched.
+            key[i - nameStart] = (char) (i < nameEnd && b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+        }
+        return new String(key);
+    }
+
+    /**
+     * @return the question's name as sent, in its original case, which some clients check
+     */
+    static byte[] name(ByteBuffer message, int start, int questionEnd) {
+        final byte[] name = new byte[questionEnd - 4 - start - HEADER_SIZE];
+        for (int i = 0; i < name.length; ++i) {
+            name[i] = message.get(start + HEADER_SIZE + i);
+        }
+        return name;
+    }
+
+    /**
+     * @return the end of the name at {@code offset}, which may end in a compression pointer, or -1 if it runs past
+     * {@code end} or uses a reserved label type
+     */
+    static int skipName(ByteBuffer message, int offset, int end) {
+        while (offset < end) {
+            final int length = message.get(offset) & 0xFF;
+            if (length == 0) {
+                return offset + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                return offset + 2 <= end ? offset + 2 : -1;
+            }
+            if ((length & 0xC0) != 0) {
+                return -1;
+            }
+            offset += length + 1;
+        }
+        return -1;
+    }
+
+    static int count(ByteBuffer message, int start, int offset) {
+        return message.getShort(start + offset) & 0xFFFF;
+    }
+
+    private static int question(ByteBuffer message, int start, int end, boolean response) {
+        if (start + HEADER_SIZE > end) {
+            return -1;
+        }
+        final int flags = message.getShort(start + 2) & 0xFFFF;
+        if ((flags & FLAG_QR) != (response ? FLAG_QR : 0) || (flags & MASK_OPCODE) != 0 || (flags & FLAG_CD) != 0
+                || count(message, start, 4) != 1) {
+            return -1;
+        }
+        // The question comes right after the header, so it has no reason to be compressed.
+        int offset = start + HEADER_SIZE;
+        while (true) {
+            if (offset >= end || offset - start - HEADER_SIZE >= MAX_NAME_SIZE) {
+                return -1;
+            }
+            final int length = message.get(offset) & 0xFF;
+            if (length == 0) {
+                break;
+            }
+            if ((length & 0xC0) != 0) {
+                return -1;
+            }
+            offset += length + 1;
+        }
+        offset += 1 + 4;
+        return offset <= end ? offset : -1;
+    }
+}
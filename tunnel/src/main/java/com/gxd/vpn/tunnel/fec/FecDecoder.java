@@ -0,0 +1,340 @@
+package com.gxd.vpn.tunnel.fec;
+
+import com.gxd.vpn.tunnel.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Takes the {@link Protocol#FEC} frames of a peer's {@link FecEncoder}, hands the datagrams on as they come, and
+ * recovers the ones lost as soon as enough of their group is in.
+ * <p>
+ * Every datagram is copied aside until its group is done with, in room set aside up front for a few groups, so
+ * that frames reordered across groups still count. Recovery inverts the part of the code matrix for what was lost
+ * in preallocated scratch space as well, so nothing is allocated per frame. Datagrams that turn up after they have
+ * been recovered are dropped as duplicates.
+ * <p>
+ * What the frames tell about their groups is also enough to count the frames lost on the way, parity included,
+ * which the peer's encoder needs to know to pick its parity:
+ * <pre>
+ *   report: 0x00 FEC | share of frames lost in ten-thousandths (2)
+ * </pre>
+ * On its own, without anything after the type byte, the frame tells the peer that it may protect what it sends.
+ * <p>
+ * Not thread-safe, apart from {@link #takeLoss}: there is one decoder per tunnel, used by whoever receives on it.
+ */
+public class FecDecoder {
+    public static final int REPORT_SIZE = Protocol.HEADER_SIZE + 2;
+    /**
+     * Groups held at once; a frame of a group older than those is too late to be of use.
+     */
+    private static final int GROUPS = 4;
+    private final int mMaxData;
+    private final int mMaxParity;
+    private final Group[] mGroups = new Group[GROUPS];
+    /**
+     * Scratch space for recovery: the indices lost and the parity used instead, and the matrix to invert.
+     */
+    private final int[] mLost;
+    private final int[] mUsed;
+    private final int[][] mMatrix;
+    /**
+     * Frames the groups done with were made of and how many of them never came, written by the receiving thread
+     * only, and what has been reported of them so far.
+     */
+    private volatile long mExpected;
+    private volatile long mMissed;
+    private long mReportedExpected;
+    private long mReportedMissed;
+
+    /**
+     * @param maxData         most datagrams per group the peer's encoder uses
+     * @param maxParity       most parity frames per group it uses
+     * @param maxDatagramSize largest datagram it protects
+     */
+    public FecDecoder(int maxData, int maxParity, int maxDatagramSize) {
+        if (maxData < 1 || maxData > FecEncoder.MAX_DATA || maxParity < 0 || maxParity > FecEncoder.MAX_PARITY) {
+            throw new IllegalArgumentException("Bad FEC: " + maxData + ", " + maxParity);
+        }
+        mMaxData = maxData;
+        mMaxParity = maxParity;
+        for (int i = 0; i < GROUPS; ++i) {
+            mGroups[i] = new Group(maxData + maxParity, 2 + maxDatagramSize);
+        }
+        mLost = new int[maxParity];
+        mUsed = new int[maxParity];
+        mMatrix = new int[maxParity][2 * maxParity];
+    }
+
+    /**
+     * Takes a data or parity frame, and hands {@code sink} the datagram it carries, if it is new, and any that
+     * can be recovered now. The frame is consumed.
+     *
+     * @return how many datagrams were recovered
+     */
+    public int receive(ByteBuffer frame, Sink sink) throws IOException {
+        final int start = frame.position();
+        final int length = frame.remaining();
+        if (length <= FecEncoder.DATA_OVERHEAD) {
+            return 0;
+        }
+        final int number = frame.getShort(start + Protocol.HEADER_SIZE) & 0xFFFF;
+        final int index = frame.get(start + Protocol.HEADER_SIZE + 2) & 0xFF;
+        final Group group = group(number);
+        if (index < FecEncoder.PARITY_FLAG) {
+            final int size = length - FecEncoder.DATA_OVERHEAD;
+            if (group != null && index < mMaxData && size + 2 <= group.symbols[index].length) {
+                if (group.lengths[index] != 0) {
+                    // Recovered before it came, or a duplicate.
+                    return 0;
+                }
+                final byte[] symbol = group.symbols[index];
+                symbol[0] = (byte) (size >>> 8);
+                symbol[1] = (byte) size;
+                frame.position(start + FecEncoder.DATA_OVERHEAD);
+                frame.get(symbol, 2, size);
+                group.lengths[index] = 2 + size;
+                group.received++;
+                group.highest = Math.max(group.highest, index);
+            }
+            frame.position(start + FecEncoder.DATA_OVERHEAD);
+            sink.accept(frame);
+        } else {
+            final int parity = index & ~FecEncoder.PARITY_FLAG;
+            final int data = frame.get(start + Protocol.HEADER_SIZE + 3) & 0xFF;
+            final int parities = frame.get(start + Protocol.HEADER_SIZE + 4) & 0xFF;
+            final int size = length - FecEncoder.PARITY_HEADER_SIZE;
+            if (group == null || data < 1 || data > mMaxData || parity >= parities || size < 2) {
+                return 0;
+            }
+            final int row = mMaxData + parity;
+            if (parity < mMaxParity && group.lengths[row] != 0) {
+                return 0;
+            }
+            group.data = data;
+            group.parities = parities;
+            group.received++;
+            if (group.done || parity >= mMaxParity || size > group.symbols[row].length) {
+                return 0;
+            }
+            frame.position(start + FecEncoder.PARITY_HEADER_SIZE);
+            frame.get(group.symbols[row], 0, size);
+            group.lengths[row] = size;
+        }
+        return group != null ? recover(group, sink) : 0;
+    }
+
+    /**
+     * Writes a report of the frames lost since the last one into {@code frame}. May be called from any one thread.
+     *
+     * @param frame cleared and then flipped to the report
+     * @return false if no group has been done with since the last report, and there is nothing to tell
+     */
+    public boolean takeLoss(ByteBuffer frame) {
+        final long missed = mMissed;
+        final long expected = mExpected;
+        if (expected == mReportedExpected) {
+            return false;
+        }
+        final long loss = (missed - mReportedMissed) * FecEncoder.LOSS_SCALE / (expected - mReportedExpected);
+        mReportedExpected = expected;
+        mReportedMissed = missed;
+        frame.clear();
+        frame.put(Protocol.CONTROL).put(Protocol.FEC).putShort((short) Math.min(loss, FecEncoder.LOSS_SCALE)).flip();
+        return true;
+    }
+
+    /**
+     * @return the share of frames lost in a report from the peer, in ten-thousandths, or -1 if the frame is an offer
+     * to protect what we send rather than a report
+     */
+    public static int reportedLoss(ByteBuffer report) {
+        return report.remaining() == REPORT_SIZE ? report.getShort(report.position() + Protocol.HEADER_SIZE) & 0xFFFF
+                : -1;
+    }
+
+    /**
+     * @return whether the {@link Protocol#FEC} frame is a report or an offer rather than data or parity
+     */
+    public static boolean isReport(ByteBuffer frame) {
+        return frame.remaining() <= REPORT_SIZE;
+    }
+
+    /**
+     * @return the group {@code number} belongs in, done with whatever was there before, or {@code null} if it is
+     * older than the groups held
+     */
+    private Group group(int number) {
+        final Group group = mGroups[number & GROUPS - 1];
+        if (group.number == number) {
+            return group;
+        }
+        if (group.number >= 0 && (short) (number - group.number) < 0) {
+            return null;
+        }
+        if (group.number >= 0) {
+            // Without parity there is no telling how many datagrams came after the last that did.
+            final int expected = group.data > 0 ? group.data + group.parities : group.highest + 1;
+            mExpected += expected;
+            mMissed += Math.max(0, expected - group.received);
+        }
+        group.reset(number);
+        return group;
+    }
+
+    /**
+     * Recovers the datagrams the group has lost, once it has as much parity as it takes, and hands them on.
+     */
+    private int recover(Group group, Sink sink) throws IOException {
+        if (group.done || group.data == 0) {
+            return 0;
+        }
+        int lost = 0;
+        for (int i = 0; i < group.data; ++i) {
+            if (group.lengths[i] == 0) {
+                if (lost == mMaxParity) {
+                    return 0;
+                }
+                mLost[lost++] = i;
+            }
+        }
+        if (lost == 0) {
+            group.done = true;
+            return 0;
+        }
+        int used = 0;
+        int size = 0;
+        for (int i = 0; i < mMaxParity && used < lost; ++i) {
+            if (group.lengths[mMaxData + i] != 0) {
+                mUsed[used++] = i;
+                size = group.lengths[mMaxData + i];
+            }
+        }
+        if (used < lost) {
+            return 0;
+        }
+        group.done = true;
+        // Take what did come out of the parity, which leaves what was lost times the code matrix.
+        for (int r = 0; r < lost; ++r) {
+            final byte[] parity = group.symbols[mMaxData + mUsed[r]];
+            for (int i = 0; i < group.data; ++i) {
+                if (group.lengths[i] != 0) {
+                    Gf256.multiplyAdd(Gf256.coefficient(mUsed[r], i), group.symbols[i], parity,
+                            Math.min(group.lengths[i], size));
+                }
+            }
+        }
+        if (!invert(lost)) {
+            return 0;
+        }
+        int recovered = 0;
+        for (int c = 0; c < lost; ++c) {
+            final int index = mLost[c];
+            final byte[] symbol = group.symbols[index];
+            Arrays.fill(symbol, 0, size, (byte) 0);
+            for (int r = 0; r < lost; ++r) {
+                Gf256.multiplyAdd(mMatrix[c][lost + r], group.symbols[mMaxData + mUsed[r]], symbol, size);
+            }
+            final int length = (symbol[0] & 0xFF) << 8 | symbol[1] & 0xFF;
+            if (2 + length > size) {
+                // Not what was sent: a frame must have been tampered with or mixed up.
+                continue;
+            }
+            group.lengths[index] = 2 + length;
+            group.buffers[index].limit(2 + length).position(2);
+            sink.accept(group.buffers[index]);
+            ++recovered;
+        }
+        return recovered;
+    }
+
+    /**
+     * Inverts the rows of the code matrix for the parity used and its columns for the datagrams lost, by
+     * Gauss-Jordan elimination. The right half of {@link #mMatrix} ends up with a row per datagram lost, and a
+     * column per parity frame used.
+     */
+    private boolean invert(int size) {
+        for (int r = 0; r < size; ++r) {
+            for (int c = 0; c < size; ++c) {
+                mMatrix[r][c] = Gf256.coefficient(mUsed[r], mLost[c]);
+                mMatrix[r][size + c] = r == c ? 1 : 0;
+            }
+        }
+        for (int c = 0; c < size; ++c) {
+            int pivot = c;
+            while (pivot < size && mMatrix[pivot][c] == 0) {
+                ++pivot;
+            }
+            if (pivot == size) {
+                return false;
+            }
+            final int[] row = mMatrix[pivot];
+            mMatrix[pivot] = mMatrix[c];
+            mMatrix[c] = row;
+            final int scale = Gf256.inverse(row[c]);
+            for (int i = 0; i < 2 * size; ++i) {
+                row[i] = Gf256.multiply(row[i], scale);
+            }
+            for (int r = 0; r < size; ++r) {
+                final int factor = mMatrix[r][c];
+                if (r != c && factor != 0) {
+                    for (int i = 0; i < 2 * size; ++i) {
+                        mMatrix[r][i] ^= Gf256.multiply(factor, row[i]);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * What is known about a group, and its datagrams and parity as far as they came.
+     */
+    private static class Group {
+        final byte[][] symbols;
+        final ByteBuffer[] buffers;
+        /**
+         * Bytes of each symbol, or 0 while it is missing.
+         */
+        final int[] lengths;
+        int number = -1;
+        /**
+         * Datagrams and parity frames in the group, or 0 until a parity frame has told.
+         */
+        int data;
+        int parities;
+        int received;
+        int highest;
+        boolean done;
+
+        Group(int rows, int symbolSize) {
+            symbols = new byte[rows][symbolSize];
+            buffers = new ByteBuffer[rows];
+            for (int i = 0; i < rows; ++i) {
+                buffers[i] = ByteBuffer.wrap(symbols[i]);
+            }
+            lengths = new int[rows];
+        }
+
+        void reset(int number) {
+            this.number = number;
+            data = 0;
+            parities = 0;
+            received = 0;
+            highest = 0;
+            done = false;
+            Arrays.fill(lengths, 0);
+        }
+    }
+
+    /**
+     * Where datagrams go once they are in or recovered.
+     */
+    public interface Sink {
+        /**
+         * Takes the datagram between position and limit of {@code datagram}, consuming it.
+         */
+        void accept(ByteBuffer datagram) throws IOException;
+    }
+}
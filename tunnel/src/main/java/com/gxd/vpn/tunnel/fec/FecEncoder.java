@@ -0,0 +1,195 @@
+package com.gxd.vpn.tunnel.fec;
+
+import com.gxd.vpn.tunnel.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Protects datagrams with forward error correction, so that the peer can recover the ones lost on the way without
+ * waiting for a retransmit.
+ * <p>
+ * Datagrams go out in groups of up to {@code k}, each in a {@link Protocol#FEC} frame that numbers it, followed by
+ * up to {@code m} parity frames. The parity is a systematic Reed-Solomon code, so any {@code k} frames of a group
+ * are enough to recover its datagrams, and with a single parity frame it comes down to XOR. Datagrams are sent right
+ * away rather than held back for their group, so nothing waits unless something was lost.
+ * <pre>
+ *   data:   0x00 FEC | group (2) | index (1) | datagram
+ *   parity: 0x00 FEC | group (2) | 0x80 + parity index (1) | datagrams in the group (1) | parity frames (1) | parity
+ * </pre>
+ * The parity covers each datagram's length as an unsigned 16-bit big-endian value followed by the datagram, padded
+ * with zeros to the longest one in the group, so a parity frame is {@link #OVERHEAD} bytes longer than that.
+ * <p>
+ * The parity is worked out as datagrams go out, so only the parity itself is kept. A group is closed when it is
+ * full, or by the sender once it has nothing more to send at the moment, so that a loss at the end of a burst is
+ * recovered right away; a group closed early gets a share of the parity in proportion to its datagrams.
+ * <p>
+ * How many parity frames a full group gets follows the loss the peer reports, see {@link FecDecoder#takeLoss}:
+ * as many as it takes to keep the odds of losing more than that in a group below {@link #TARGET_RESIDUAL_LOSS},
+ * up to {@code m}. Reports that go up are followed right away and those that go down slowly.
+ * <p>
+ * Not thread-safe, apart from {@link #setLoss}: there is one encoder per tunnel, used by whoever sends on it.
+ */
+public class FecEncoder {
+    /**
+     * Most datagrams and parity frames a group may have.
+     */
+    public static final int MAX_DATA = 64;
+    public static final int MAX_PARITY = 16;
+    /**
+     * What a data frame adds to the datagram it carries.
+     */
+    public static final int DATA_OVERHEAD = Protocol.HEADER_SIZE + 3;
+    /**
+     * What a parity frame adds to the longest datagram of its group, which is the most protection adds to any.
+     */
+    public static final int OVERHEAD = Protocol.HEADER_SIZE + 5 + 2;
+    static final int PARITY_HEADER_SIZE = Protocol.HEADER_SIZE + 5;
+    static final int PARITY_FLAG = 0x80;
+    /**
+     * Losses are reported in ten-thousandths.
+     */
+    static final int LOSS_SCALE = 10000;
+    /**
+     * Share of groups that may lose more frames than they have parity for.
+     */
+    private static final double TARGET_RESIDUAL_LOSS = 0.001;
+    private final int mData;
+    private final int mMaxParity;
+    private final int mMaxDatagramSize;
+    private final byte[][] mParity;
+    private final byte[] mSymbol;
+    /**
+     * Parity frames for a full group, as the loss reports have it, and the loss they go by.
+     */
+    private volatile int mParityCount;
+    private double mLoss;
+    private int mGroup;
+    private int mCount;
+    private int mGroupParity;
+    private int mLength;
+    private int mNextParity;
+
+    /**
+     * @param data            datagrams per group, {@code k}, from 1 to {@link #MAX_DATA}
+     * @param maxParity       most parity frames per group, {@code m}, up to {@link #MAX_PARITY}
+     * @param maxDatagramSize largest datagram to protect
+     */
+    public FecEncoder(int data, int maxParity, int maxDatagramSize) {
+        if (data < 1 || data > MAX_DATA || maxParity < 0 || maxParity > MAX_PARITY || maxDatagramSize < 1) {
+            throw new IllegalArgumentException("Bad FEC: " + data + ", " + maxParity + ", " + maxDatagramSize);
+        }
+        mData = data;
+        mMaxParity = maxParity;
+        mMaxDatagramSize = maxDatagramSize;
+        mParity = new byte[maxParity][2 + maxDatagramSize];
+        mSymbol = new byte[2 + maxDatagramSize];
+        // One to start with, until the peer has told us how much gets lost.
+        mParityCount = Math.min(1, maxParity);
+    }
+
+    public int maxDatagramSize() {
+        return mMaxDatagramSize;
+    }
+
+    /**
+     * @return parity frames a full group gets at the moment
+     */
+    public int parityCount() {
+        return mParityCount;
+    }
+
+    /**
+     * Takes a loss report from the peer and sets the parity to fit. May be called from any one thread.
+     *
+     * @param lossPerMyriad share of the frames sent lately that got lost, in ten-thousandths
+     */
+    public void setLoss(int lossPerMyriad) {
+        // Beyond half, nothing helps anymore.
+        final double loss = Math.min(0.5, Math.max(0, lossPerMyriad / (double) LOSS_SCALE));
+        mLoss = Math.max(loss, (3 * mLoss + loss) / 4);
+        int parity = 0;
+        while (parity < mMaxParity && residualLoss(mLoss, mData, parity) > TARGET_RESIDUAL_LOSS) {
+            ++parity;
+        }
+        mParityCount = parity;
+    }
+
+    /**
+     * Frames {@code datagram} into {@code frame}, and works it into the parity of its group. The datagram is left
+     * alone.
+     *
+     * @param frame buffer with room for {@link #DATA_OVERHEAD} more bytes than the datagram, cleared and then
+     *              flipped to the frame to send
+     * @return whether the group is full now, in which case its parity is due, see {@link #parity}
+     */
+    public boolean protect(ByteBuffer datagram, ByteBuffer frame) {
+        final int length = datagram.remaining();
+        if (length > mMaxDatagramSize) {
+            throw new IllegalArgumentException("Datagram too long to protect: " + length);
+        }
+        if (mCount == 0) {
+            mGroupParity = mParityCount;
+        }
+        final int start = datagram.position();
+        mSymbol[0] = (byte) (length >>> 8);
+        mSymbol[1] = (byte) length;
+        datagram.get(mSymbol, 2, length);
+        datagram.position(start);
+        frame.clear();
+        frame.put(Protocol.CONTROL).put(Protocol.FEC).putShort((short) mGroup).put((byte) mCount)
+                .put(mSymbol, 2, length).flip();
+        for (int i = 0; i < mGroupParity; ++i) {
+            Gf256.multiplyAdd(Gf256.coefficient(i, mCount), mSymbol, mParity[i], 2 + length);
+        }
+        mLength = Math.max(mLength, 2 + length);
+        return ++mCount == mData;
+    }
+
+    /**
+     * Writes the next parity frame of the open group into {@code frame}, or closes the group once they have all
+     * been written. Call until it returns false, when the group is full or there is nothing more to send for now.
+     *
+     * @param frame buffer with room for {@link #OVERHEAD} more bytes than the longest datagram, cleared and then
+     *              flipped to the frame to send
+     * @return false if there is nothing to send, and the group is closed
+     */
+    public boolean parity(ByteBuffer frame) {
+        if (mCount == 0) {
+            return false;
+        }
+        // A group closed early gets its share, but some parity whenever a full one would.
+        final int due = (mGroupParity * mCount + mData - 1) / mData;
+        if (mNextParity < due) {
+            frame.clear();
+            frame.put(Protocol.CONTROL).put(Protocol.FEC).putShort((short) mGroup)
+                    .put((byte) (PARITY_FLAG | mNextParity)).put((byte) mCount).put((byte) due)
+                    .put(mParity[mNextParity], 0, mLength).flip();
+            ++mNextParity;
+            return true;
+        }
+        for (int i = 0; i < mGroupParity; ++i) {
+            Arrays.fill(mParity[i], 0, mLength, (byte) 0);
+        }
+        mGroup = mGroup + 1 & 0xFFFF;
+        mCount = 0;
+        mLength = 0;
+        mNextParity = 0;
+        return false;
+    }
+
+    /**
+     * @return the odds that more than {@code parity} of {@code data + parity} frames are lost, each with
+     * probability {@code loss}
+     */
+    private static double residualLoss(double loss, int data, int parity) {
+        final int frames = data + parity;
+        double term = Math.pow(1 - loss, frames);
+        double delivered = term;
+        for (int lost = 1; lost <= parity; ++lost) {
+            term *= (frames - lost + 1) / (double) lost * loss / (1 - loss);
+            delivered += term;
+        }
+        return 1 - delivered;
+    }
+}
@@ -0,0 +1,73 @@
+package com.gxd.vpn.tunnel.fec;
+
+/**
+ * Arithmetic in GF(2^8), the field the Reed-Solomon code works in: bytes added with XOR and multiplied modulo the
+ * polynomial x^8 + x^4 + x^3 + x^2 + 1.
+ * <p>
+ * The parity rows are those of a Cauchy matrix, whose square submatrices are all invertible: any {@code k} of the
+ * data and parity symbols of a group are enough to get the {@code k} data symbols back. Data symbol {@code j} gets
+ * the field element {@code j} and parity symbol {@code i} gets {@code 128 + i}, which never meet since data
+ * indices stay below 128.
+ */
+final class Gf256 {
+    private static final int POLYNOMIAL = 0x11D;
+    private static final int PARITY_BASE = 0x80;
+    /**
+     * Every product, {@code a * b} at {@code a << 8 | b}, so that multiplying a whole symbol takes one row.
+     */
+    private static final byte[] PRODUCTS = new byte[256 * 256];
+    private static final int[] INVERSES = new int[256];
+
+    static {
+        final int[] exp = new int[255];
+        final int[] log = new int[256];
+        for (int i = 0, x = 1; i < 255; ++i) {
+            exp[i] = x;
+            log[x] = i;
+            x <<= 1;
+            if (x > 0xFF) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int a = 1; a < 256; ++a) {
+            for (int b = 1; b < 256; ++b) {
+                PRODUCTS[a << 8 | b] = (byte) exp[(log[a] + log[b]) % 255];
+            }
+            INVERSES[a] = exp[(255 - log[a]) % 255];
+        }
+    }
+
+    private Gf256() {
+    }
+
+    static int multiply(int a, int b) {
+        return PRODUCTS[a << 8 | b] & 0xFF;
+    }
+
+    static int inverse(int a) {
+        return INVERSES[a];
+    }
+
+    /**
+     * @return the coefficient data symbol {@code data} is multiplied with in parity symbol {@code parity}
+     */
+    static int coefficient(int parity, int data) {
+        return INVERSES[(PARITY_BASE + parity) ^ data];
+    }
+
+    /**
+     * Adds {@code coefficient} times {@code length} bytes of {@code source} to {@code target}, both from the start.
+     */
+    static void multiplyAdd(int coefficient, byte[] source, byte[] target, int length) {
+        if (coefficient == 1) {
+            for (int i = 0; i < length; ++i) {
+                target[i] ^= source[i];
+            }
+            return;
+        }
+        final int row = coefficient << 8;
+        for (int i = 0; i < length; ++i) {
+            target[i] ^= PRODUCTS[row | source[i] & 0xFF];
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package com.gxd.vpn.tunnel.flow;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Traffic per flow, keyed by protocol, addresses and ports as seen from this side of the tunnel, so that both
+ * directions of a connection land in the same entry.
+ * <p>
+ * The table is open-addressed with linear probing over primitive arrays, keys and counters alike, so recording a
+ * packet allocates nothing and touches a few adjacent cache lines. Flows idle for longer than the timeout are
+ * evicted when the table fills up and whenever {@link #evictIdle} is called; if it is full of live flows, new
+ * ones are not tracked and counted as overflows instead.
+ * <p>
+ * Recording is synchronized, since the uplink and the downlinks record from their own threads. The lock is held
+ * for a probe or two, and the threads rarely meet.
+ */
+public class FlowTable {
+    /**
+     * Longs per key: both halves of the local and the remote address, then ports, protocol and IP version.
+     */
+    private static final int KEY_LONGS = 5;
+    private static final long EMPTY = Long.MIN_VALUE;
+    /**
+     * A full table is swept for idle flows at most this often, since a sweep looks at every slot.
+     */
+    private static final long SWEEP_INTERVAL_MS = 100;
+    private final int mMask;
+    private final int mMaxSize;
+    private final long mIdleTimeoutMs;
+    private final long[] mKeys;
+    private final int[] mHashes;
+    private final long[] mPacketsOut;
+    private final long[] mBytesOut;
+    private final long[] mPacketsIn;
+    private final long[] mBytesIn;
+    private final long[] mFirstSeen;
+    /**
+     * {@link #EMPTY} marks a free slot.
+     */
+    private final long[] mLastSeen;
+    private int mSize;
+    private long mOverflows;
+    private long mLastSweepMs = Long.MIN_VALUE / 2;
+
+    /**
+     * @param maxFlows      most flows tracked at once; the table takes about 200 bytes per flow
+     * @param idleTimeoutMs time after which a flow without packets is forgotten
+     */
+    public FlowTable(int maxFlows, long idleTimeoutMs) {
+        // Keep the load factor at 3/4 at most, probes get long beyond that.
+        final int capacity = Integer.highestOneBit(Math.max(2, maxFlows * 4 / 3) - 1) << 1;
+        mMask = capacity - 1;
+        mMaxSize = maxFlows;
+        mIdleTimeoutMs = idleTimeoutMs;
+        mKeys = new long[capacity * KEY_LONGS];
+        mHashes = new int[capacity];
+        mPacketsOut = new long[capacity];
+        mBytesOut = new long[capacity];
+        mPacketsIn = new long[capacity];
+        mBytesIn = new long[capacity];
+        mFirstSeen = new long[capacity];
+        mLastSeen = new long[capacity];
+        Arrays.fill(mLastSeen, EMPTY);
+    }
+
+    /**
+     * Counts a packet of {@code bytes} bytes against its flow.
+     *
+     * @param outbound whether the packet is leaving this side, i.e. was read from the TUN interface
+     */
+    public synchronized void record(PacketHeaders headers, boolean outbound, int bytes, long nowMs) {
+        final long localHigh = outbound ? headers.sourceHigh() : headers.destinationHigh();
+        final long localLow = outbound ? headers.sourceLow() : headers.destinationLow();
+        final long remoteHigh = outbound ? headers.destinationHigh() : headers.sourceHigh();
+        final long remoteLow = outbound ? headers.destinationLow() : headers.sourceLow();
+        final int localPort = outbound ? headers.sourcePort() : headers.destinationPort();
+        final int remotePort = outbound ? headers.destinationPort() : headers.sourcePort();
+        final long ports = (long) localPort << 48 | (long) remotePort << 32 | headers.protocol() << 8 | headers.version();
+        final int hash = hash(localHigh, localLow, remoteHigh, remoteLow, ports);
+        int slot = hash & mMask;
+        while (mLastSeen[slot] != EMPTY) {
+            final int k = slot * KEY_LONGS;
+            if (mHashes[slot] == hash && mKeys[k] == localHigh && mKeys[k + 1] == localLow
+                    && mKeys[k + 2] == remoteHigh && mKeys[k + 3] == remoteLow && mKeys[k + 4] == ports) {
+                count(slot, outbound, bytes, nowMs);
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        if (mSize >= mMaxSize) {
+            if (nowMs - mLastSweepMs < SWEEP_INTERVAL_MS || evictIdle(nowMs) == 0) {
+                ++mOverflows;
+                return;
+            }
+            // Evicting moves entries around, so the free slot has to be found again.
+            slot = hash & mMask;
+            while (mLastSeen[slot] != EMPTY) {
+                slot = (slot + 1) & mMask;
+            }
+        }
+        final int k = slot * KEY_LONGS;
+        mKeys[k] = localHigh;
+        mKeys[k + 1] = localLow;
+        mKeys[k + 2] = remoteHigh;
+        mKeys[k + 3] = remoteLow;
+        mKeys[k + 4] = ports;
+        mHashes[slot] = hash;
+        mPacketsOut[slot] = mBytesOut[slot] = mPacketsIn[slot] = mBytesIn[slot] = 0;
+        mFirstSeen[slot] = nowMs;
+        ++mSize;
+        count(slot, outbound, bytes, nowMs);
+    }
+
+    /**
+     * Forgets every flow that has been idle for longer than the timeout.
+     *
+     * @return the number of flows forgotten
+     */
+    public synchronized int evictIdle(long nowMs) {
+        mLastSweepMs = nowMs;
+        int evicted = 0;
+        for (int slot = 0; slot <= mMask; ) {
+            if (mLastSeen[slot] != EMPTY && nowMs - mLastSeen[slot] > mIdleTimeoutMs) {
+                // Another entry may move into this slot, so look at it again.
+                remove(slot);
+                ++evicted;
+            } else {
+                ++slot;
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return new flows that could not be tracked since the table was full of live ones
+     */
+    public synchronized long overflows() {
+        return mOverflows;
+    }
+
+    /**
+     * @return a copy of every flow tracked at the moment; this allocates and is meant for statistics, not the hot path
+     */
+    public synchronized List<Flow> flows() {
+        final List<Flow> flows = new ArrayList<>(mSize);
+        for (int slot = 0; slot <= mMask; ++slot) {
+            if (mLastSeen[slot] != EMPTY) {
+                flows.add(new Flow(this, slot));
+            }
+        }
+        return flows;
+    }
+
+    private void count(int slot, boolean outbound, int bytes, long nowMs) {
+        if (outbound) {
+            ++mPacketsOut[slot];
+            mBytesOut[slot] += bytes;
+        } else {
+            ++mPacketsIn[slot];
+            mBytesIn[slot] += bytes;
+        }
+        mLastSeen[slot] = nowMs;
+    }
+
+    /**
+     * Empties {@code hole} and shifts back whatever follows it in the same probe run, so that lookups never need
+     * tombstones.
+     */
+    private void remove(int hole) {
+        for (int slot = (hole + 1) & mMask; mLastSeen[slot] != EMPTY; slot = (slot + 1) & mMask) {
+            final int home = mHashes[slot] & mMask;
+            // Move the entry unless its home lies cyclically between the hole and where it is now.
+            if (((slot - home) & mMask) >= ((slot - hole) & mMask)) {
+                move(slot, hole);
+                hole = slot;
+            }
+        }
+        mLastSeen[hole] = EMPTY;
+        --mSize;
+    }
+
+    private void move(int from, int to) {
+        System.arraycopy(mKeys, from * KEY_LONGS, mKeys, to * KEY_LONGS, KEY_LONGS);
+        mHashes[to] = mHashes[from];
+        mPacketsOut[to] = mPacketsOut[from];
+        mBytesOut[to] = mBytesOut[from];
+        mPacketsIn[to] = mPacketsIn[from];
+        mBytesIn[to] = mBytesIn[from];
+        mFirstSeen[to] = mFirstSeen[from];
+        mLastSeen[to] = mLastSeen[from];
+    }
+
+    private static int hash(long localHigh, long localLow, long remoteHigh, long remoteLow, long ports) {
+        long h = localHigh * 0x9E3779B97F4A7C15L;
+        h = (h ^ localLow) * 0x9E3779B97F4A7C15L;
+        h = (h ^ remoteHigh) * 0x9E3779B97F4A7C15L;
+        h = (h ^ remoteLow) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ports) * 0x9E3779B97F4A7C15L;
+        // The multiplications only carry upwards, and the ports sit in the high bits, so fold those down before
+        // the slot is taken from the low bits.
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    /**
+     * One flow and its counters at the time of {@link #flows}.
+     */
+    public static class Flow {
+        public final int version;
+        public final int protocol;
+        public final InetAddress localAddress;
+        public final int localPort;
+        public final InetAddress remoteAddress;
+        public final int remotePort;
+        public final long packetsOut;
+        public final long bytesOut;
+        public final long packetsIn;
+        public final long bytesIn;
+        public final long firstSeenMs;
+        public final long lastSeenMs;
+
+        Flow(FlowTable table, int slot) {
+            final int k = slot * KEY_LONGS;
+            final long ports = table.mKeys[k + 4];
+            version = (int) (ports & 0xFF);
+            protocol = (int) (ports >>> 8 & 0xFF);
+            localPort = (int) (ports >>> 48);
+            remotePort = (int) (ports >>> 32 & 0xFFFF);
+            localAddress = address(version, table.mKeys[k], table.mKeys[k + 1]);
+            remoteAddress = address(version, table.mKeys[k + 2], table.mKeys[k + 3]);
+            packetsOut = table.mPacketsOut[slot];
+            bytesOut = table.mBytesOut[slot];
+            packetsIn = table.mPacketsIn[slot];
+            bytesIn = table.mBytesIn[slot];
+            firstSeenMs = table.mFirstSeen[slot];
+            lastSeenMs = table.mLastSeen[slot];
+        }
+
+        private static InetAddress address(int version, long high, long low) {
+            final ByteBuffer bytes = version == 4
+                    ? ByteBuffer.allocate(4).putInt((int) low)
+                    : ByteBuffer.allocate(16).putLong(high).putLong(low);
+            try {
+                return InetAddress.getByAddress(bytes.array());
+            } catch (UnknownHostException e) {
+                // Only thrown for bad lengths.
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return protocol + " " + localAddress.getHostAddress() + ":" + localPort + " <-> "
+                    + remoteAddress.getHostAddress() + ":" + remotePort + " out " + packetsOut + "/" + bytesOut
+                    + " in " + packetsIn + "/" + bytesIn;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.gxd.vpn.tunnel.flow;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The IP and TCP/UDP header fields of one packet, parsed in place with absolute gets: the buffer's position and
+ * limit are left alone and nothing is allocated, so one instance per thread can parse every packet it forwards.
+ * <p>
+ * Addresses are kept as two longs each; an IPv4 address sits in the low 32 bits of the low half.
+ * Fragments other than the first carry no ports, so for consistency no fragment gets ports at all.
+ */
+public class PacketHeaders {
+    public static final int TCP = 6;
+    public static final int UDP = 17;
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int IPV6_HEADER_SIZE = 40;
+    private static final int TCP_HEADER_SIZE = 20;
+    private static final int UDP_HEADER_SIZE = 8;
+    private static final int TCP_ACK = 0x10;
+    /**
+     * FIN, SYN, RST and URG, which tell more than an acknowledgment.
+     */
+    private static final int TCP_CONTROL = 0x01 | 0x02 | 0x04 | 0x20;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_NOP = 1;
+    private static final int OPTION_TIMESTAMPS = 8;
+    private static final int TIMESTAMPS_SIZE = 10;
+    private static final int HOP_BY_HOP = 0;
+    private static final int ROUTING = 43;
+    private static final int FRAGMENT = 44;
+    private static final int AUTHENTICATION = 51;
+    private static final int DESTINATION_OPTIONS = 60;
+    /**
+     * Most IPv6 extension headers to skip before giving up on finding the transport header.
+     */
+    private static final int MAX_EXTENSION_HEADERS = 8;
+    private int mVersion;
+    private int mProtocol;
+    private long mSourceHigh;
+    private long mSourceLow;
+    private long mDestinationHigh;
+    private long mDestinationLow;
+    private int mSourcePort;
+    private int mDestinationPort;
+    private int mTcpFlags;
+    private int mTransportOffset;
+    private int mPayloadOffset;
+    private boolean mFragment;
+
+    /**
+     * Parses the packet between position and limit of {@code packet}.
+     *
+     * @return false if it is not an IPv4 or IPv6 packet with a complete IP header; the fields are undefined then
+     */
+    public boolean parse(ByteBuffer packet) {
+        final int start = packet.position();
+        final int end = packet.limit();
+        if (start >= end) {
+            return false;
+        }
+        mSourcePort = mDestinationPort = mTcpFlags = 0;
+        mTransportOffset = mPayloadOffset = -1;
+        mFragment = false;
+        mVersion = (packet.get(start) & 0xFF) >>> 4;
+        int offset;
+        if (mVersion == 4) {
+            final int headerLength = (packet.get(start) & 0x0F) * 4;
+            if (headerLength < IPV4_HEADER_SIZE || start + headerLength > end) {
+                return false;
+            }
+            mProtocol = packet.get(start + 9) & 0xFF;
+            mSourceHigh = mDestinationHigh = 0;
+            mSourceLow = packet.getInt(start + 12) & 0xFFFFFFFFL;
+            mDestinationLow = packet.getInt(start + 16) & 0xFFFFFFFFL;
+            mFragment = (packet.getShort(start + 6) & 0x3FFF) != 0;
+            offset = start + headerLength;
+        } else if (mVersion == 6) {
+            if (start + IPV6_HEADER_SIZE > end) {
+                return false;
+            }
+            mSourceHigh = packet.getLong(start + 8);
+            mSourceLow = packet.getLong(start + 16);
+            mDestinationHigh = packet.getLong(start + 24);
+            mDestinationLow = packet.getLong(start + 32);
+            int next = packet.get(start + 6) & 0xFF;
+            offset = start + IPV6_HEADER_SIZE;
+            for (int i = 0; i < MAX_EXTENSION_HEADERS && offset + 8 <= end; ++i) {
+                if (next == HOP_BY_HOP || next == ROUTING || next == DESTINATION_OPTIONS) {
+                    final int length = ((packet.get(offset + 1) & 0xFF) + 1) * 8;
+                    next = packet.get(offset) & 0xFF;
+                    offset += length;
+                } else if (next == AUTHENTICATION) {
+                    final int length = ((packet.get(offset + 1) & 0xFF) + 2) * 4;
+                    next = packet.get(offset) & 0xFF;
+                    offset += length;
+                } else if (next == FRAGMENT) {
+                    mFragment = true;
+                    next = packet.get(offset) & 0xFF;
+                    offset += 8;
+                } else {
+                    break;
+                }
+            }
+            mProtocol = next;
+        } else {
+            return false;
+        }
+        if (mFragment || offset > end) {
+            return true;
+        }
+        if (mProtocol == TCP && offset + TCP_HEADER_SIZE <= end) {
+            mTransportOffset = offset;
+            mSourcePort = packet.getShort(offset) & 0xFFFF;
+            mDestinationPort = packet.getShort(offset + 2) & 0xFFFF;
+            mTcpFlags = packet.get(offset + 13) & 0xFF;
+            mPayloadOffset = Math.min(end, offset + ((packet.get(offset + 12) & 0xFF) >>> 4) * 4);
+        } else if (mProtocol == UDP && offset + UDP_HEADER_SIZE <= end) {
+            mTransportOffset = offset;
+            mSourcePort = packet.getShort(offset) & 0xFFFF;
+            mDestinationPort = packet.getShort(offset + 2) & 0xFFFF;
+            mPayloadOffset = offset + UDP_HEADER_SIZE;
+        }
+        return true;
+    }
+
+    /**
+     * @return 4 or 6
+     */
+    public int version() {
+        return mVersion;
+    }
+
+    /**
+     * @return the transport protocol number, after any IPv6 extension headers
+     */
+    public int protocol() {
+        return mProtocol;
+    }
+
+    public long sourceHigh() {
+        return mSourceHigh;
+    }
+
+    public long sourceLow() {
+        return mSourceLow;
+    }
+
+    public long destinationHigh() {
+        return mDestinationHigh;
+    }
+
+    public long destinationLow() {
+        return mDestinationLow;
+    }
+
+    /**
+     * @return the TCP or UDP source port, or 0 if there is none
+     */
+    public int sourcePort() {
+        return mSourcePort;
+    }
+
+    /**
+     * @return the TCP or UDP destination port, or 0 if there is none
+     */
+    public int destinationPort() {
+        return mDestinationPort;
+    }
+
+    /**
+     * @return the TCP flags byte (FIN 0x01, SYN 0x02, RST 0x04, PSH 0x08, ACK 0x10), or 0 if it is not TCP
+     */
+    public int tcpFlags() {
+        return mTcpFlags;
+    }
+
+    /**
+     * @return absolute index of the TCP or UDP header in the buffer, or -1 if it was not parsed
+     */
+    public int transportOffset() {
+        return mTransportOffset;
+    }
+
+    /**
+     * @return absolute index of the TCP or UDP payload in the buffer, or -1 if the transport header was not parsed
+     */
+    public int payloadOffset() {
+        return mPayloadOffset;
+    }
+
+    public boolean isFragment() {
+        return mFragment;
+    }
+
+    /**
+     * @return whether the parsed packet is a TCP segment that does nothing but acknowledge: no data, no SYN, FIN,
+     * RST or URG, and no options but timestamps, so no SACK blocks either
+     */
+    public boolean isPureAck(ByteBuffer packet) {
+        if (mProtocol != TCP || mTransportOffset < 0 || (mTcpFlags & TCP_ACK) == 0 || (mTcpFlags & TCP_CONTROL) != 0
+                || mPayloadOffset != packet.limit()) {
+            return false;
+        }
+        int at = mTransportOffset + TCP_HEADER_SIZE;
+        while (at < mPayloadOffset) {
+            final int kind = packet.get(at) & 0xFF;
+            if (kind == OPTION_END) {
+                return true;
+            } else if (kind == OPTION_NOP) {
+                ++at;
+            } else if (kind == OPTION_TIMESTAMPS && at + TIMESTAMPS_SIZE <= mPayloadOffset
+                    && (packet.get(at + 1) & 0xFF) == TIMESTAMPS_SIZE) {
+                at += TIMESTAMPS_SIZE;
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the acknowledgment number of the parsed TCP segment
+     */
+    public int ackNumber(ByteBuffer packet) {
+        return packet.getInt(mTransportOffset + 8);
+    }
+
+    /**
+     * @return whether {@code other} parsed a packet of the same flow in the same direction
+     */
+    public boolean isSameFlow(PacketHeaders other) {
+        return mProtocol == other.mProtocol && mSourcePort == other.mSourcePort
+                && mDestinationPort == other.mDestinationPort && mSourceLow == other.mSourceLow
+                && mDestinationLow == other.mDestinationLow && mSourceHigh == other.mSourceHigh
+                && mDestinationHigh == other.mDestinationHigh && mVersion == other.mVersion;
+    }
+}
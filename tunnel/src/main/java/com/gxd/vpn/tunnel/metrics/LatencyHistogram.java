@@ -0,0 +1,107 @@
+package com.gxd.vpn.tunnel.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in microseconds with log-linear buckets, as in HdrHistogram: every power of two is split
+ * into 32 buckets, so any value is known to within about 3% from a microsecond up to days, in a fixed 9 KiB.
+ * <p>
+ * Recording is one atomic increment and never allocates or locks, so any thread can record at any time.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Larger values, about 12 days, are recorded as this.
+     */
+    private static final long MAX_VALUE_US = (1L << 40) - 1;
+    private static final int BUCKETS = bucket(MAX_VALUE_US) + 1;
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+    public void record(long valueUs) {
+        mCounts.incrementAndGet(bucket(Math.min(Math.max(valueUs, 0), MAX_VALUE_US)));
+    }
+
+    public void record(long value, TimeUnit unit) {
+        record(unit.toMicros(value));
+    }
+
+    /**
+     * @return a copy of the counts so far; counts recorded meanwhile may or may not be part of it
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts);
+    }
+
+    static int bucket(long valueUs) {
+        if (valueUs < SUB_BUCKETS) {
+            return (int) valueUs;
+        }
+        // Values from 2^n up to 2^(n+1) get 32 buckets that are 2^(n-5) wide each.
+        final int shift = 63 - Long.numberOfLeadingZeros(valueUs) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS * (shift + 1) + (int) (valueUs >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value that falls into {@code bucket}
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+
+        Snapshot(long[] counts) {
+            mCounts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCount = count;
+        }
+
+        public long count() {
+            return mCount;
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+         * @return the value that {@code quantile} of all values are at or below, give or take 3%, or -1 if there
+         * are none
+         */
+        public long percentileUs(double quantile) {
+            if (mCount == 0) {
+                return -1;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * mCount));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; ++i) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return MAX_VALUE_US;
+        }
+
+        @Override
+        public String toString() {
+            if (mCount == 0) {
+                return "n=0";
+            }
+            return "n=" + mCount + " p50=" + percentileUs(0.5) + "us p99=" + percentileUs(0.99)
+                    + "us max=" + percentileUs(1) + "us";
+        }
+    }
+}
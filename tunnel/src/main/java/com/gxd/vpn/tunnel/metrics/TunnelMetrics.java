@@ -0,0 +1,190 @@
+package com.gxd.vpn.tunnel.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What a connection has been doing, across all its tunnels and reconnects.
+ * <p>
+ * The counters are {@link LongAdder}s, which stripe updates over cells per thread instead of having every
+ * thread fight over one cache line, so the forwarding threads can count every packet on the hot path without
+ * slowing each other down. Reading adds the cells up, which is what {@link #snapshot} is for.
+ */
+public class TunnelMetrics {
+    private final long mStartNanos = System.nanoTime();
+    private final LongAdder mPacketsSent = new LongAdder();
+    private final LongAdder mBytesSent = new LongAdder();
+    private final LongAdder mPacketsReceived = new LongAdder();
+    private final LongAdder mBytesReceived = new LongAdder();
+    private final LongAdder mUplinkDrops = new LongAdder();
+    private final LongAdder mDownlinkDrops = new LongAdder();
+    private final LongAdder mKeepalives = new LongAdder();
+    private final LongAdder mWakeups = new LongAdder();
+    private final LongAdder mReconnects = new LongAdder();
+    private final LongAdder mCompressedPackets = new LongAdder();
+    private final LongAdder mCompressionSavedBytes = new LongAdder();
+    private final LongAdder mFecParity = new LongAdder();
+    private final LongAdder mFecRecovered = new LongAdder();
+    private final LongAdder mAcksThinned = new LongAdder();
+    private final LatencyHistogram mHandshakeTime = new LatencyHistogram();
+    private final LatencyHistogram mReconnectTime = new LatencyHistogram();
+    private final LatencyHistogram mRtt = new LatencyHistogram();
+
+    /**
+     * An IP packet read from the TUN interface went out through the tunnel, or is queued to.
+     */
+    public void onPacketSent(int bytes) {
+        mPacketsSent.increment();
+        mBytesSent.add(bytes);
+    }
+
+    /**
+     * IP packets came in through the tunnel and were written to the TUN interface.
+     */
+    public void onPacketsReceived(int packets, int bytes) {
+        mPacketsReceived.add(packets);
+        mBytesReceived.add(bytes);
+    }
+
+    /**
+     * A packet from the TUN interface was dropped, since it couldn't be queued or its destination bypasses the
+     * tunnel.
+     */
+    public void onUplinkDrop() {
+        mUplinkDrops.increment();
+    }
+
+    /**
+     * A datagram from the server was dropped, since it was forged, replayed or malformed.
+     */
+    public void onDownlinkDrop() {
+        mDownlinkDrops.increment();
+    }
+
+    /**
+     * A packet of {@code bytes} bytes went out compressed to {@code compressedBytes}.
+     */
+    public void onCompressed(int bytes, int compressedBytes) {
+        mCompressedPackets.increment();
+        mCompressionSavedBytes.add(bytes - compressedBytes);
+    }
+
+    /**
+     * A parity datagram of forward error correction went out.
+     */
+    public void onFecParity() {
+        mFecParity.increment();
+    }
+
+    /**
+     * Datagrams from the server that got lost on the way were recovered from parity.
+     */
+    public void onFecRecovered(int datagrams) {
+        mFecRecovered.add(datagrams);
+    }
+
+    /**
+     * A pure TCP ACK on its way out was dropped, since a later one of its flow acknowledges more.
+     */
+    public void onAckThinned() {
+        mAcksThinned.increment();
+    }
+
+    public void onKeepalive() {
+        mKeepalives.increment();
+    }
+
+    /**
+     * A datagram went either way after long enough a silence for the radio to have gone idle, so it most likely
+     * woke the radio up.
+     */
+    public void onWakeup() {
+        mWakeups.increment();
+    }
+
+    public void onHandshake(long timeUs) {
+        mHandshakeTime.record(timeUs);
+    }
+
+    /**
+     * A lost tunnel was replaced, {@code timeUs} after it went away.
+     */
+    public void onReconnect(long timeUs) {
+        mReconnects.increment();
+        mReconnectTime.record(timeUs);
+    }
+
+    /**
+     * A round trip to the server was measured.
+     */
+    public void onRtt(long rttUs) {
+        mRtt.record(rttUs);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The metrics at one point in time. Counters are read one after the other, so they are not exactly consistent
+     * with each other while traffic flows.
+     */
+    public static class Snapshot {
+        public final long timeNanos;
+        public final long packetsSent;
+        public final long bytesSent;
+        public final long packetsReceived;
+        public final long bytesReceived;
+        public final long uplinkDrops;
+        public final long downlinkDrops;
+        public final long keepalives;
+        public final long wakeups;
+        /**
+         * Wakeups per hour since the metrics were created, which is what an idle tunnel costs the battery.
+         */
+        public final double wakeupsPerHour;
+        public final long reconnects;
+        public final long compressedPackets;
+        public final long compressionSavedBytes;
+        public final long fecParity;
+        public final long fecRecovered;
+        public final long acksThinned;
+        public final LatencyHistogram.Snapshot handshakeTime;
+        public final LatencyHistogram.Snapshot reconnectTime;
+        public final LatencyHistogram.Snapshot rtt;
+
+        Snapshot(TunnelMetrics metrics) {
+            timeNanos = System.nanoTime();
+            packetsSent = metrics.mPacketsSent.sum();
+            bytesSent = metrics.mBytesSent.sum();
+            packetsReceived = metrics.mPacketsReceived.sum();
+            bytesReceived = metrics.mBytesReceived.sum();
+            uplinkDrops = metrics.mUplinkDrops.sum();
+            downlinkDrops = metrics.mDownlinkDrops.sum();
+            keepalives = metrics.mKeepalives.sum();
+            wakeups = metrics.mWakeups.sum();
+            wakeupsPerHour = wakeups * (double) TimeUnit.HOURS.toNanos(1)
+                    / Math.max(1, timeNanos - metrics.mStartNanos);
+            reconnects = metrics.mReconnects.sum();
+            compressedPackets = metrics.mCompressedPackets.sum();
+            compressionSavedBytes = metrics.mCompressionSavedBytes.sum();
+            fecParity = metrics.mFecParity.sum();
+            fecRecovered = metrics.mFecRecovered.sum();
+            acksThinned = metrics.mAcksThinned.sum();
+            handshakeTime = metrics.mHandshakeTime.snapshot();
+            reconnectTime = metrics.mReconnectTime.snapshot();
+            rtt = metrics.mRtt.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return "sent " + packetsSent + " packets/" + bytesSent + " bytes, received " + packetsReceived
+                    + " packets/" + bytesReceived + " bytes, drops " + uplinkDrops + " up/" + downlinkDrops
+                    + " down, " + keepalives + " keepalives, " + wakeups + " wakeups ("
+                    + Math.round(wakeupsPerHour) + "/h), " + reconnects + " reconnects, " + compressedPackets
+                    + " packets compressed saving " + compressionSavedBytes + " bytes, " + fecParity
+                    + " parity datagrams sent, " + fecRecovered + " datagrams recovered, " + acksThinned
+                    + " ACKs thinned, handshake " + handshakeTime + ", rtt " + rtt;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.gxd.vpn.tunnel.route;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Prefixes of one address family and a small value for each, as a binary trie to build a {@link RouteTrie} from.
+ * <p>
+ * An address takes the value of the longest prefix covering it, or 0 if there is none. Addresses are left-aligned
+ * in two longs, so an IPv4 address sits in the top 32 bits of the high half. Nodes live in primitive arrays, so a
+ * few thousand prefixes cost a few hundred kilobytes while building and nothing once compiled.
+ */
+public class PrefixTrie {
+    private static final int NONE = -1;
+    private final int mBits;
+    private int[] mLeft = new int[64];
+    private int[] mRight = new int[64];
+    /**
+     * Value of the prefix ending at each node, or {@link #NONE} if no prefix ends there.
+     */
+    private byte[] mValues = new byte[64];
+    private int mNodes;
+    private int mPrefixes;
+
+    /**
+     * @param bits address length, 32 or 128
+     */
+    public PrefixTrie(int bits) {
+        if (bits != 32 && bits != 128) {
+            throw new IllegalArgumentException("Bad address length: " + bits);
+        }
+        mBits = bits;
+        newNode();
+    }
+
+    public int bits() {
+        return mBits;
+    }
+
+    /**
+     * @return prefixes put so far, each counted once however often it was put
+     */
+    public int size() {
+        return mPrefixes;
+    }
+
+    /**
+     * Sets the value of a prefix, replacing whatever was put for the same prefix before. Bits past the prefix length
+     * are ignored.
+     *
+     * @param value 0 to 127
+     */
+    public void put(long high, long low, int prefixLength, int value) {
+        if (prefixLength < 0 || prefixLength > mBits || value < 0 || value > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad prefix: /" + prefixLength + " = " + value);
+        }
+        int node = 0;
+        for (int depth = 0; depth < prefixLength; ++depth) {
+            if (bit(high, low, depth) == 0) {
+                if (mLeft[node] == 0) {
+                    final int child = newNode();
+                    mLeft[node] = child;
+                }
+                node = mLeft[node];
+            } else {
+                if (mRight[node] == 0) {
+                    final int child = newNode();
+                    mRight[node] = child;
+                }
+                node = mRight[node];
+            }
+        }
+        if (mValues[node] == NONE) {
+            ++mPrefixes;
+        }
+        mValues[node] = (byte) value;
+    }
+
+    /**
+     * Compiles the prefixes into a trie for lookups. The builder can go on taking prefixes afterwards.
+     */
+    public RouteTrie compile() {
+        return new RouteTrie(this);
+    }
+
+    /**
+     * Adds the fewest prefixes that cover exactly the addresses taking {@code value} to {@code cover}: adjacent
+     * prefixes are merged, and those covered by a shorter one or carved out by longer ones with other values are
+     * taken care of.
+     */
+    public void cover(int value, List<Prefix> cover) {
+        if (cover(0, 0, 0, 0, 0, value, cover) == value) {
+            cover.add(new Prefix(mBits, 0, 0, 0));
+        }
+    }
+
+    /**
+     * @return the value every address under {@code node} takes, or {@link #NONE} if they don't all take the same;
+     * in that case the parts that take {@code value} have been added to {@code cover}
+     */
+    private int cover(int node, int depth, long high, long low, int inherited, int value, List<Prefix> cover) {
+        final int own = mValues[node] != NONE ? mValues[node] : inherited;
+        if (mLeft[node] == 0 && mRight[node] == 0) {
+            return own;
+        }
+        final long rightHigh = depth < 64 ? high | 1L << 63 - depth : high;
+        final long rightLow = depth < 64 ? low : low | 1L << 127 - depth;
+        final int left = mLeft[node] != 0 ? cover(mLeft[node], depth + 1, high, low, own, value, cover) : own;
+        final int right = mRight[node] != 0
+                ? cover(mRight[node], depth + 1, rightHigh, rightLow, own, value, cover) : own;
+        if (left == right) {
+            return left;
+        }
+        // Halves that are uniform didn't add themselves, in case the whole node turned out uniform.
+        if (left == value) {
+            cover.add(new Prefix(mBits, high, low, depth + 1));
+        }
+        if (right == value) {
+            cover.add(new Prefix(mBits, rightHigh, rightLow, depth + 1));
+        }
+        return NONE;
+    }
+
+    int left(int node) {
+        return mLeft[node];
+    }
+
+    int right(int node) {
+        return mRight[node];
+    }
+
+    /**
+     * @return the value of the prefix ending at {@code node}, or -1 if none does
+     */
+    int value(int node) {
+        return mValues[node];
+    }
+
+    static int bit(long high, long low, int index) {
+        return (int) (index < 64 ? high >>> 63 - index : low >>> 127 - index) & 1;
+    }
+
+    private int newNode() {
+        if (mNodes == mLeft.length) {
+            mLeft = Arrays.copyOf(mLeft, mNodes * 2);
+            mRight = Arrays.copyOf(mRight, mNodes * 2);
+            mValues = Arrays.copyOf(mValues, mNodes * 2);
+        }
+        mValues[mNodes] = NONE;
+        return mNodes++;
+    }
+
+    /**
+     * An address prefix, e.g. 10.0.0.0/8, with the address left-aligned like everywhere in the trie.
+     */
+    public static class Prefix {
+        public final int bits;
+        public final long high;
+        public final long low;
+        public final int length;
+
+        public Prefix(int bits, long high, long low, int length) {
+            this.bits = bits;
+            this.high = high;
+            this.low = low;
+            this.length = length;
+        }
+
+        /**
+         * Parses "ADDRESS/LENGTH", or a bare address for a host prefix. Only numeric addresses are taken, so this
+         * never does a lookup.
+         *
+         * @throws IllegalArgumentException if it is malformed
+         */
+        public static Prefix parse(String cidr) throws IllegalArgumentException {
+            final int slash = cidr.indexOf('/');
+            final String address = (slash < 0 ? cidr : cidr.substring(0, slash)).trim();
+            if (!address.contains(":") && !address.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+                throw new IllegalArgumentException("Not a numeric address: " + cidr);
+            }
+            final byte[] bytes;
+            try {
+                bytes = InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Bad address: " + cidr, e);
+            }
+            final int bits = bytes.length * 8;
+            final int length;
+            try {
+                length = slash < 0 ? bits : Integer.parseInt(cidr.substring(slash + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad prefix length: " + cidr, e);
+            }
+            if (length < 0 || length > bits) {
+                throw new IllegalArgumentException("Bad prefix length: " + cidr);
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(bytes, 16));
+            return new Prefix(bits, buffer.getLong(), buffer.getLong(), length);
+        }
+
+        /**
+         * @return the address in its usual notation, with the bits past the prefix length cleared
+         */
+        public String address() {
+            final ByteBuffer buffer = ByteBuffer.allocate(16)
+                    .putLong(length == 0 ? 0 : length < 64 ? high & -1L << 64 - length : high)
+                    .putLong(length <= 64 ? 0 : length < 128 ? low & -1L << 128 - length : low);
+            try {
+                return InetAddress.getByAddress(Arrays.copyOf(buffer.array(), bits / 8)).getHostAddress();
+            } catch (UnknownHostException e) {
+                // Only thrown for bad lengths.
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return address() + "/" + length;
+        }
+    }
+}
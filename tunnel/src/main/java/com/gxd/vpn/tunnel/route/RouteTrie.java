@@ -0,0 +1,160 @@
+package com.gxd.vpn.tunnel.route;
+
+import java.util.Arrays;
+
+/**
+ * Longest-prefix match over a compiled {@link PrefixTrie}, cheap enough to look up every packet.
+ * <p>
+ * This is a poptrie (Asai and Ohara, SIGCOMM 2015) without its direct-pointing top level: every node consumes 6
+ * bits of the address and keeps its 64 slots as two bitmaps. One bitmap marks the slots that lead to a child node,
+ * the other where a run of slots with the same value starts, so children and values are stored without gaps and
+ * found by counting the bits set below the slot. A lookup is a handful of popcounts over a few small arrays, and a
+ * node takes 24 bytes plus a byte per run of values.
+ */
+public class RouteTrie {
+    private static final int STRIDE = 6;
+    private static final int FANOUT = 1 << STRIDE;
+    private final int mBits;
+    private long[] mVectors = new long[16];
+    private long[] mLeafVectors = new long[16];
+    /**
+     * Index of each node's first child, and of its first value in {@link #mLeaves}.
+     */
+    private int[] mChildBases = new int[16];
+    private int[] mLeafBases = new int[16];
+    private byte[] mLeaves = new byte[64];
+    private int mNodes;
+    private int mLeafCount;
+
+    RouteTrie(PrefixTrie trie) {
+        mBits = trie.bits();
+        mNodes = 1;
+        compile(trie, 0, 0, 0, Math.max(0, trie.value(0)));
+        mVectors = Arrays.copyOf(mVectors, mNodes);
+        mLeafVectors = Arrays.copyOf(mLeafVectors, mNodes);
+        mChildBases = Arrays.copyOf(mChildBases, mNodes);
+        mLeafBases = Arrays.copyOf(mLeafBases, mNodes);
+        mLeaves = Arrays.copyOf(mLeaves, mLeafCount);
+    }
+
+    /**
+     * @return the value of the longest prefix covering the address, left-aligned in two longs, or 0 if none does
+     */
+    public int lookup(long high, long low) {
+        int node = 0;
+        for (int offset = 0; ; offset += STRIDE) {
+            final int slot = slot(high, low, offset);
+            // All the slots up to and including this one.
+            final long mask = (2L << slot) - 1;
+            final long vector = mVectors[node];
+            if ((vector >>> slot & 1) == 0) {
+                return mLeaves[mLeafBases[node] + Long.bitCount(mLeafVectors[node] & mask) - 1];
+            }
+            node = mChildBases[node] + Long.bitCount(vector & mask) - 1;
+        }
+    }
+
+    /**
+     * @return the value of the longest prefix covering an IPv4 address
+     */
+    public int lookup(int address) {
+        return lookup((long) address << 32, 0);
+    }
+
+    public int bits() {
+        return mBits;
+    }
+
+    public int nodes() {
+        return mNodes;
+    }
+
+    /**
+     * @return memory taken by the arrays, give or take the array headers
+     */
+    public long sizeBytes() {
+        return mNodes * (8L + 8L + 4L + 4L) + mLeafCount;
+    }
+
+    /**
+     * Fills in {@code node}, which consumes the bits from {@code depth} on, from the binary trie node {@code from}.
+     */
+    private void compile(PrefixTrie trie, int node, int from, int depth, int inherited) {
+        final int[] children = new int[FANOUT];
+        final int[] childValues = new int[FANOUT];
+        long vector = 0;
+        long leafVector = 0;
+        final int leafBase = mLeafCount;
+        int lastValue = -1;
+        for (int slot = 0; slot < FANOUT; ++slot) {
+            // Walk down the binary trie along the slot's bits, keeping the value of the longest prefix on the way.
+            int at = from;
+            int value = inherited;
+            int walked = 0;
+            for (; walked < STRIDE && depth + walked < mBits; ++walked) {
+                final int next = (slot >>> STRIDE - 1 - walked & 1) == 0 ? trie.left(at) : trie.right(at);
+                if (next == 0) {
+                    break;
+                }
+                at = next;
+                if (trie.value(at) >= 0) {
+                    value = trie.value(at);
+                }
+            }
+            if (walked == STRIDE && (trie.left(at) != 0 || trie.right(at) != 0)) {
+                // Longer prefixes lie below, so this slot needs a node of its own.
+                vector |= 1L << slot;
+                children[Long.bitCount(vector) - 1] = at;
+                childValues[Long.bitCount(vector) - 1] = value;
+            } else if (value != lastValue) {
+                leafVector |= 1L << slot;
+                addLeaf(value);
+                lastValue = value;
+            }
+        }
+        final int childCount = Long.bitCount(vector);
+        final int childBase = mNodes;
+        ensureNodes(mNodes + childCount);
+        mNodes += childCount;
+        mVectors[node] = vector;
+        mLeafVectors[node] = leafVector;
+        mChildBases[node] = childBase;
+        mLeafBases[node] = leafBase;
+        for (int i = 0; i < childCount; ++i) {
+            compile(trie, childBase + i, children[i], depth + STRIDE, childValues[i]);
+        }
+    }
+
+    private void ensureNodes(int count) {
+        if (count > mVectors.length) {
+            final int capacity = Math.max(count, mVectors.length * 2);
+            mVectors = Arrays.copyOf(mVectors, capacity);
+            mLeafVectors = Arrays.copyOf(mLeafVectors, capacity);
+            mChildBases = Arrays.copyOf(mChildBases, capacity);
+            mLeafBases = Arrays.copyOf(mLeafBases, capacity);
+        }
+    }
+
+    private void addLeaf(int value) {
+        if (mLeafCount == mLeaves.length) {
+            mLeaves = Arrays.copyOf(mLeaves, mLeafCount * 2);
+        }
+        mLeaves[mLeafCount++] = (byte) value;
+    }
+
+    /**
+     * @return the 6 bits of the address from {@code offset} on, padded with zeros past its end
+     */
+    private static int slot(long high, long low, int offset) {
+        if (offset <= 64 - STRIDE) {
+            return (int) (high >>> 64 - STRIDE - offset) & FANOUT - 1;
+        }
+        if (offset < 64) {
+            return (int) (high << offset - (64 - STRIDE) | low >>> 128 - STRIDE - offset) & FANOUT - 1;
+        }
+        if (offset <= 128 - STRIDE) {
+            return (int) (low >>> 128 - STRIDE - offset) & FANOUT - 1;
+        }
+        return (int) (low << offset - (128 - STRIDE)) & FANOUT - 1;
+    }
+}
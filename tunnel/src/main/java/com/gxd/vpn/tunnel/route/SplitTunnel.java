@@ -0,0 +1,88 @@
+package com.gxd.vpn.tunnel.route;
+
+import com.gxd.vpn.tunnel.TunnelParameters;
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Which destinations go through the tunnel: the routes the server pushes, plus prefixes the user wants through the
+ * tunnel as well, minus prefixes the user wants to bypass it, which may well be thousands, like a country's
+ * address blocks.
+ * <p>
+ * The longest prefix decides, and between equal prefixes a bypass beats an include, which beats a server route.
+ * The result is compiled twice: into the fewest routes for the VPN interface, with bypassed prefixes carved out of
+ * the routes covering them, and into a {@link RouteTrie} per address family for the pump to check every packet
+ * against. Packets that reach the interface for a bypassed destination anyway, e.g. from apps binding to the VPN
+ * network explicitly, are then dropped instead of leaking into the tunnel.
+ */
+public class SplitTunnel {
+    private static final int BYPASS = 0;
+    private static final int TUNNEL = 1;
+    private final List<TunnelParameters.Route> mRoutes;
+    private final RouteTrie mIpv4;
+    private final RouteTrie mIpv6;
+    private final int mPrefixes;
+
+    /**
+     * @param routes  routes from the server
+     * @param include prefixes to send through the tunnel as well, see {@link PrefixTrie.Prefix#parse}
+     * @param bypass  prefixes to keep out of the tunnel
+     * @throws IllegalArgumentException if a prefix is malformed
+     */
+    public SplitTunnel(Collection<TunnelParameters.Route> routes, Collection<String> include,
+                       Collection<String> bypass) throws IllegalArgumentException {
+        final PrefixTrie ipv4 = new PrefixTrie(32);
+        final PrefixTrie ipv6 = new PrefixTrie(128);
+        for (TunnelParameters.Route route : routes) {
+            put(ipv4, ipv6, PrefixTrie.Prefix.parse(route.address + "/" + route.prefixLength), TUNNEL);
+        }
+        for (String prefix : include) {
+            put(ipv4, ipv6, PrefixTrie.Prefix.parse(prefix), TUNNEL);
+        }
+        for (String prefix : bypass) {
+            put(ipv4, ipv6, PrefixTrie.Prefix.parse(prefix), BYPASS);
+        }
+        final List<PrefixTrie.Prefix> cover = new ArrayList<>();
+        ipv4.cover(TUNNEL, cover);
+        ipv6.cover(TUNNEL, cover);
+        final List<TunnelParameters.Route> aggregated = new ArrayList<>(cover.size());
+        for (PrefixTrie.Prefix prefix : cover) {
+            aggregated.add(new TunnelParameters.Route(prefix.address(), prefix.length));
+        }
+        mRoutes = Collections.unmodifiableList(aggregated);
+        mIpv4 = ipv4.compile();
+        mIpv6 = ipv6.compile();
+        mPrefixes = ipv4.size() + ipv6.size();
+    }
+
+    /**
+     * @return the routes to give the VPN interface
+     */
+    public List<TunnelParameters.Route> routes() {
+        return mRoutes;
+    }
+
+    /**
+     * @param headers a packet read from the TUN interface, parsed
+     * @return whether its destination goes through the tunnel
+     */
+    public boolean isTunneled(PacketHeaders headers) {
+        return headers.version() == 4
+                ? mIpv4.lookup((int) headers.destinationLow()) == TUNNEL
+                : mIpv6.lookup(headers.destinationHigh(), headers.destinationLow()) == TUNNEL;
+    }
+
+    @Override
+    public String toString() {
+        return mPrefixes + " prefixes, " + mRoutes.size() + " routes, "
+                + (mIpv4.sizeBytes() + mIpv6.sizeBytes()) + " bytes compiled";
+    }
+
+    private static void put(PrefixTrie ipv4, PrefixTrie ipv6, PrefixTrie.Prefix prefix, int value) {
+        (prefix.bits == 32 ? ipv4 : ipv6).put(prefix.high, prefix.low, prefix.length, value);
+    }
+}
@@ -0,0 +1,106 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sorts packets by how likely it is that somebody is waiting on them, from their headers alone:
+ * <ul>
+ * <li>{@link TrafficShaper#INTERACTIVE}: packets marked CS4 or above (voice, video calls, signalling, network
+ * control), ICMP, DNS and NTP, and any other packet of at most {@link #SMALL_PACKET_SIZE} bytes: keystrokes, game
+ * updates, voice frames, and TCP handshakes and pure ACKs, which keep downloads going while the uplink is busy.</li>
+ * <li>{@link TrafficShaper#BULK}: packets marked CS1 or lower effort, i.e. those their app says can wait.</li>
+ * <li>{@link TrafficShaper#DEFAULT}: everything else.</li>
+ * </ul>
+ * Packets of a flow in different classes can overtake each other, which is fine for pure TCP ACKs but not for
+ * anything the receiver has to put in order: a FIN or the short last segment of an upload getting ahead of the data
+ * before it looks like loss to TCP. So once a flow has sent a packet too large to be interactive, its small packets
+ * stay in {@link TrafficShaper#DEFAULT} as well, pure ACKs apart. Flows are remembered in a small table without
+ * collision handling, so a bulk flow pushed out of it by another may get a small packet ahead once more.
+ */
+public class LatencyClassifier implements PacketClassifier {
+    /**
+     * Largest packet to count as interactive by its size alone; large enough for a typical voice frame.
+     */
+    public static final int SMALL_PACKET_SIZE = 256;
+    private static final int ICMP = 1;
+    private static final int ICMPV6 = 58;
+    private static final int DNS_PORT = 53;
+    private static final int NTP_PORT = 123;
+    private static final int DSCP_CS4 = 32;
+    private static final int DSCP_CS1 = 8;
+    private static final int DSCP_LOWER_EFFORT = 1;
+    /**
+     * Slots of the table of flows that have sent a large packet; a power of two.
+     */
+    private static final int BULK_FLOWS = 256;
+    private final PacketHeaders mHeaders = new PacketHeaders();
+    /**
+     * Hashes of the flows that have sent a large packet, each in the slot of its low bits; 0 marks a free slot.
+     */
+    private final int[] mBulkFlows = new int[BULK_FLOWS];
+
+    @Override
+    public int classify(ByteBuffer packet) {
+        if (!mHeaders.parse(packet)) {
+            return TrafficShaper.DEFAULT;
+        }
+        final int dscp = dscp(packet);
+        if (dscp >= DSCP_CS4) {
+            return TrafficShaper.INTERACTIVE;
+        }
+        if (dscp == DSCP_CS1 || dscp == DSCP_LOWER_EFFORT) {
+            return TrafficShaper.BULK;
+        }
+        final int protocol = mHeaders.protocol();
+        if (protocol == ICMP || protocol == ICMPV6) {
+            return TrafficShaper.INTERACTIVE;
+        }
+        final int source = mHeaders.sourcePort();
+        final int destination = mHeaders.destinationPort();
+        if (source == DNS_PORT || destination == DNS_PORT || source == NTP_PORT || destination == NTP_PORT) {
+            return TrafficShaper.INTERACTIVE;
+        }
+        if (mHeaders.isPureAck(packet)) {
+            // Nothing to put in order, so it may overtake the data of its flow.
+            return TrafficShaper.INTERACTIVE;
+        }
+        final int flow = flowHash();
+        final int slot = flow & (BULK_FLOWS - 1);
+        if (packet.remaining() > SMALL_PACKET_SIZE) {
+            mBulkFlows[slot] = flow;
+            return TrafficShaper.DEFAULT;
+        }
+        return mBulkFlows[slot] == flow ? TrafficShaper.DEFAULT : TrafficShaper.INTERACTIVE;
+    }
+
+    /**
+     * @return a hash of the addresses, ports and protocol {@link #mHeaders} has just parsed, never 0
+     */
+    private int flowHash() {
+        long h = mHeaders.sourceHigh() * 0x9E3779B97F4A7C15L;
+        h = (h ^ mHeaders.sourceLow()) * 0x9E3779B97F4A7C15L;
+        h = (h ^ mHeaders.destinationHigh()) * 0x9E3779B97F4A7C15L;
+        h = (h ^ mHeaders.destinationLow()) * 0x9E3779B97F4A7C15L;
+        h = (h ^ ((long) mHeaders.sourcePort() << 32 | mHeaders.destinationPort() << 8 | mHeaders.protocol()))
+                * 0x9E3779B97F4A7C15L;
+        // The multiplications only carry upwards, so fold the high bits down before the slot is taken from the low.
+        h ^= h >>> 29;
+        h *= 0xBF58476D1CE4E5B9L;
+        final int hash = (int) (h ^ h >>> 32);
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * @return the DSCP of the IPv4 or IPv6 packet {@link #mHeaders} has just parsed
+     */
+    private int dscp(ByteBuffer packet) {
+        final int start = packet.position();
+        if (mHeaders.version() == 4) {
+            return (packet.get(start + 1) & 0xFF) >>> 2;
+        }
+        // The traffic class straddles the first two bytes.
+        return ((packet.get(start) & 0x0F) << 2) | ((packet.get(start + 1) & 0xC0) >>> 6);
+    }
+}
@@ -0,0 +1,16 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Picks the class of service a packet read from the TUN interface is scheduled in.
+ */
+public interface PacketClassifier {
+    /**
+     * Called from the producer thread of the shaper only, so implementations may keep state without locking.
+     *
+     * @param packet the packet between position and limit, which must be left alone
+     * @return {@link TrafficShaper#INTERACTIVE}, {@link TrafficShaper#DEFAULT} or {@link TrafficShaper#BULK}
+     */
+    int classify(ByteBuffer packet);
+}
@@ -0,0 +1,84 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for exactly one producer thread and one consumer thread, without locks.
+ * <p>
+ * Each side owns its index outright, and a slot tells both whether it is taken: the producer only fills empty
+ * slots and the consumer only empties full ones, so neither ever reads the other's index.
+ */
+final class SpscQueue<E> {
+    private final AtomicReferenceArray<E> mSlots;
+    private final int mMask;
+    /**
+     * Next slot to fill, only touched by the producer.
+     */
+    private long mTail;
+    /**
+     * Next slot to empty, only touched by the consumer.
+     */
+    private long mHead;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    SpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new AtomicReferenceArray<>(Math.max(size, 1));
+        mMask = mSlots.length() - 1;
+    }
+
+    /**
+     * Producer only.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(E element) {
+        final int index = (int) mTail & mMask;
+        if (mSlots.get(index) != null) {
+            return false;
+        }
+        // A full store rather than a lazy one, so that the producer's look at a parked consumer right after it
+        // can't be ordered before the element is seen.
+        mSlots.set(index, element);
+        ++mTail;
+        return true;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the oldest element, or {@code null} if the queue is empty
+     */
+    E peek() {
+        return mSlots.get((int) mHead & mMask);
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the element {@code ahead} places behind the oldest, or {@code null} if there are not that many
+     */
+    E peek(int ahead) {
+        return ahead < mSlots.length() ? mSlots.get((int) (mHead + ahead) & mMask) : null;
+    }
+
+    /**
+     * Consumer only.
+     *
+     * @return the oldest element, or {@code null} if the queue is empty
+     */
+    E poll() {
+        final int index = (int) mHead & mMask;
+        final E element = mSlots.get(index);
+        if (element != null) {
+            mSlots.lazySet(index, null);
+            ++mHead;
+        }
+        return element;
+    }
+}
@@ -0,0 +1,67 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits a rate in bytes per second, letting bursts of up to a bucket's worth through at once.
+ * <p>
+ * A packet may go whenever the bucket isn't empty, even if it is larger than what is left; the bucket then goes
+ * into debt, which the following packets wait out. That way no packet is ever too large for the bucket.
+ * Not thread-safe.
+ */
+public class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final long mRate;
+    private final long mBurst;
+    private long mTokens;
+    private long mLastRefillNanos;
+
+    /**
+     * @param bytesPerSecond the rate to keep to in the long run
+     * @param burstBytes     most bytes to let through at once after a pause; the bucket starts out full
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0 || burstBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad token bucket: " + bytesPerSecond + " bytes/s, burst " + burstBytes);
+        }
+        mRate = bytesPerSecond;
+        mBurst = burstBytes;
+        mTokens = burstBytes;
+        mLastRefillNanos = System.nanoTime();
+    }
+
+    public long rate() {
+        return mRate;
+    }
+
+    /**
+     * Takes {@code bytes} out of the bucket if it isn't empty.
+     *
+     * @return 0 if they were taken, otherwise how long to wait before asking again
+     */
+    public long take(int bytes, long nowNanos) {
+        refill(nowNanos);
+        if (mTokens < 0) {
+            return (-mTokens * NANOS_PER_SECOND + mRate - 1) / mRate;
+        }
+        mTokens -= bytes;
+        return 0;
+    }
+
+    private void refill(long nowNanos) {
+        final long elapsed = nowNanos - mLastRefillNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        // Checked first, so that a long pause can't overflow the multiplication below.
+        if (elapsed >= (mBurst - mTokens) * NANOS_PER_SECOND / mRate) {
+            mTokens = mBurst;
+            mLastRefillNanos = nowNanos;
+            return;
+        }
+        final long earned = elapsed * mRate / NANOS_PER_SECOND;
+        mTokens += earned;
+        // Only move on by the time actually paid out, so that the remainder counts next time.
+        mLastRefillNanos += earned * NANOS_PER_SECOND / mRate;
+    }
+}
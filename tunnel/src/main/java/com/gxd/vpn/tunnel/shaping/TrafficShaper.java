@@ -0,0 +1,250 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Schedules the packets headed for the tunnel by class of service, and optionally keeps them to a rate.
+ * <p>
+ * The thread reading the TUN interface classifies every packet and offers it to the queue of its class; a single
+ * sending thread takes them in the order they should go. Each class has a queue of its own, with one producer and
+ * one consumer, so neither side ever takes a lock or waits for the other, and a class can only ever crowd out
+ * its own packets when its queue is full.
+ * <p>
+ * The classes are served by deficit round robin: every round, a backlogged class may send up to its quantum of
+ * bytes, so a busy class gets a share of the link in proportion to its quantum and can't starve the others.
+ * Classes are always looked at from {@link #INTERACTIVE} down, and a class that has been idle starts out with a
+ * full quantum, so a packet arriving in a quiet class goes next rather than at the end of the round. That is
+ * what keeps the latency of light, interactive traffic low while a bulk transfer fills the link.
+ * <p>
+ * A queue only forms, and so scheduling only matters, where the link is slower than the packets coming in. Without
+ * a rate that is the tunnel socket's send buffer; with {@link #setRate} it is this shaper, which keeps the queue
+ * in here where it is sorted, rather than in the buffers of the network further on, where it isn't.
+ * <p>
+ * Where the queue is, it can also be thinned out, see {@link #setAckThinning}: a pure TCP ACK about to go is
+ * dropped if one queued behind it acknowledges more, since that one tells the sender everything it does. On an
+ * asymmetric link, where the ACKs of downloads fill the uplink, that frees most of it and keeps the downloads going.
+ */
+public class TrafficShaper {
+    public static final int INTERACTIVE = 0;
+    public static final int DEFAULT = 1;
+    public static final int BULK = 2;
+    private static final int CLASSES = 3;
+    /**
+     * Bytes each class may send per round. Interactive traffic gets the most, which it rarely uses up; while
+     * all three are busy they share the link 6:3:1.
+     */
+    private static final int[] QUANTA = {6000, 3000, 1000};
+    /**
+     * Packets to look through behind an ACK for a later one of its flow.
+     */
+    private static final int THINNING_LOOKAHEAD = 32;
+    private final PacketClassifier mClassifier;
+    private final SpscQueue<ByteBuffer>[] mQueues;
+    private final int[] mDeficits = new int[CLASSES];
+    /**
+     * The consumer while it is parked waiting for packets, so that the producer knows to wake it up.
+     */
+    private volatile Thread mWaiter;
+    private TokenBucket mTokenBucket;
+    private Consumer<ByteBuffer> mThinned;
+    private final PacketHeaders mHeadHeaders = new PacketHeaders();
+    private final PacketHeaders mLaterHeaders = new PacketHeaders();
+
+    /**
+     * @param capacity most packets to queue in each class; beyond that they are dropped
+     */
+    public TrafficShaper(PacketClassifier classifier, int capacity) {
+        mClassifier = classifier;
+        // An array of a generic type can't be created, only cast to.
+        @SuppressWarnings("unchecked")
+        final SpscQueue<ByteBuffer>[] queues = (SpscQueue<ByteBuffer>[]) new SpscQueue<?>[CLASSES];
+        mQueues = queues;
+        for (int i = 0; i < CLASSES; ++i) {
+            mQueues[i] = new SpscQueue<>(capacity);
+            mDeficits[i] = QUANTA[i];
+        }
+    }
+
+    /**
+     * Keeps the packets taken to {@code bytesPerSecond} in the long run, a little below the slowest link on the
+     * way so that the queue builds up here. Call this before anything is taken.
+     *
+     * @param burstBytes most bytes to send at once after a pause
+     */
+    public void setRate(long bytesPerSecond, int burstBytes) {
+        mTokenBucket = new TokenBucket(bytesPerSecond, burstBytes);
+    }
+
+    /**
+     * Enables dropping pure TCP ACKs that a later one of their flow queued behind them makes redundant. Only ACKs
+     * that tell nothing else go: no data, no SYN, FIN, RST or URG, no SACK blocks, and the same flags, ECN echoes
+     * included, as the one that replaces them. Duplicate ACKs, which acknowledge nothing new, all go, since the
+     * sender counts them to retransmit early; so does an ACK followed by anything else of its flow. Call this
+     * before anything is taken.
+     *
+     * @param thinned takes the ACKs dropped, to recycle the buffers, or {@code null} to stop thinning
+     */
+    public void setAckThinning(Consumer<ByteBuffer> thinned) {
+        mThinned = thinned;
+    }
+
+    /**
+     * Queues a packet by its class. Producer thread only.
+     *
+     * @param packet the packet between position and limit, which belongs to the shaper if it is taken
+     * @return false if the queue of the packet's class is full
+     */
+    public boolean offer(ByteBuffer packet) {
+        if (!mQueues[mClassifier.classify(packet)].offer(packet)) {
+            return false;
+        }
+        final Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the next packet that should go, and for the rate to allow it. Consumer thread only.
+     *
+     * @throws InterruptedException if the thread got interrupted while waiting
+     */
+    public ByteBuffer take() throws InterruptedException {
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            final int next = next();
+            if (next >= 0 && thin(next)) {
+                continue;
+            }
+            if (next < 0) {
+                mWaiter = Thread.currentThread();
+                // Look again now that the producer is bound to see us, or a packet offered in between is missed.
+                if (next() < 0) {
+                    LockSupport.park(this);
+                }
+                mWaiter = null;
+                continue;
+            }
+            final long waitNanos = reserve(next);
+            if (waitNanos > 0) {
+                // Whatever arrives meanwhile is sorted in before the next look.
+                LockSupport.parkNanos(this, waitNanos);
+                continue;
+            }
+            return dequeue(next);
+        }
+    }
+
+    /**
+     * Like {@link #take}, but doesn't wait. Consumer thread only.
+     *
+     * @return the next packet, or {@code null} if there is none or the rate doesn't allow it yet
+     */
+    public ByteBuffer poll() {
+        int next;
+        do {
+            next = next();
+        } while (next >= 0 && thin(next));
+        return next >= 0 && reserve(next) == 0 ? dequeue(next) : null;
+    }
+
+    /**
+     * @return whether nothing is queued, as opposed to {@link #poll} returning nothing since the rate doesn't allow
+     * it yet. Consumer thread only.
+     */
+    public boolean isEmpty() {
+        return next() < 0;
+    }
+
+    /**
+     * Drops everything queued into {@code sink}, to recycle the buffers. Consumer thread only.
+     */
+    public void clear(Consumer<ByteBuffer> sink) {
+        for (SpscQueue<ByteBuffer> queue : mQueues) {
+            ByteBuffer packet;
+            while ((packet = queue.poll()) != null) {
+                sink.accept(packet);
+            }
+        }
+    }
+
+    /**
+     * @return the class whose head packet goes next, or -1 if nothing is queued
+     */
+    private int next() {
+        while (true) {
+            boolean backlogged = false;
+            for (int i = 0; i < CLASSES; ++i) {
+                final ByteBuffer head = mQueues[i].peek();
+                if (head == null) {
+                    // Idle classes don't save up, but get to go right away once they have something.
+                    mDeficits[i] = QUANTA[i];
+                } else if (head.remaining() <= mDeficits[i]) {
+                    return i;
+                } else {
+                    backlogged = true;
+                }
+            }
+            if (!backlogged) {
+                return -1;
+            }
+            // Every backlogged class has used up its quantum: next round.
+            for (int i = 0; i < CLASSES; ++i) {
+                if (mQueues[i].peek() != null) {
+                    mDeficits[i] += QUANTA[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the head packet of class {@code next} if it is a pure ACK that one queued behind it makes redundant.
+     * ACKs of a flow are all classed alike, so there is no need to look further than the class's queue.
+     *
+     * @return whether it was dropped
+     */
+    private boolean thin(int next) {
+        final Consumer<ByteBuffer> thinned = mThinned;
+        final SpscQueue<ByteBuffer> queue = mQueues[next];
+        final ByteBuffer head = queue.peek();
+        if (thinned == null || !mHeadHeaders.parse(head) || !mHeadHeaders.isPureAck(head)) {
+            return false;
+        }
+        for (int i = 1; i <= THINNING_LOOKAHEAD; ++i) {
+            final ByteBuffer later = queue.peek(i);
+            if (later == null) {
+                return false;
+            }
+            if (mLaterHeaders.parse(later) && mLaterHeaders.isSameFlow(mHeadHeaders)) {
+                if (!mLaterHeaders.isPureAck(later) || mLaterHeaders.tcpFlags() != mHeadHeaders.tcpFlags()
+                        || mLaterHeaders.ackNumber(later) - mHeadHeaders.ackNumber(head) <= 0) {
+                    return false;
+                }
+                thinned.accept(queue.poll());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 0 if the head packet of class {@code next} may go now, otherwise how long to wait for the rate
+     */
+    private long reserve(int next) {
+        final TokenBucket tokenBucket = mTokenBucket;
+        return tokenBucket != null ? tokenBucket.take(mQueues[next].peek().remaining(), System.nanoTime()) : 0;
+    }
+
+    private ByteBuffer dequeue(int next) {
+        final ByteBuffer packet = mQueues[next].poll();
+        mDeficits[next] -= packet.remaining();
+        return packet;
+    }
+}
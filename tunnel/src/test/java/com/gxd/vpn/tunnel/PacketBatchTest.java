@@ -0,0 +1,109 @@
+package com.gxd.vpn.tunnel;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketBatchTest {
+    private static final int MAX_FRAME_SIZE = 1500;
+
+    @Test
+    public void packetsComeOutAsTheyWentIn() throws Exception {
+        final List<ByteBuffer> packets = packets(3);
+        final ByteBuffer datagram = batch(packets).datagram();
+        final List<ByteBuffer> received = new ArrayList<>();
+        assertEquals(packets.size(), PacketBatch.unpack(datagram, packet -> received.add(copy(packet))));
+        assertEquals(packets, received);
+        assertFalse(datagram.hasRemaining());
+    }
+
+    @Test
+    public void packetLeftUnreadIsSkipped() throws Exception {
+        final List<ByteBuffer> packets = packets(3);
+        final List<ByteBuffer> seen = new ArrayList<>();
+        // As a sink that turns a packet away does, without reading any of it.
+        final int count = PacketBatch.unpack(batch(packets).datagram(), packet -> seen.add(packet.duplicate()));
+        assertEquals(packets.size(), count);
+        assertEquals(packets, seen);
+    }
+
+    @Test
+    public void packetPartlyReadIsSkipped() throws Exception {
+        final List<ByteBuffer> packets = packets(3);
+        final List<ByteBuffer> seen = new ArrayList<>();
+        final int count = PacketBatch.unpack(batch(packets).datagram(), packet -> {
+            seen.add(packet.duplicate());
+            packet.get();
+        });
+        assertEquals(packets.size(), count);
+        assertEquals(packets, seen);
+    }
+
+    @Test
+    public void truncatedTailDropped() throws Exception {
+        final List<ByteBuffer> packets = packets(2);
+        final ByteBuffer datagram = batch(packets).datagram();
+        datagram.limit(datagram.limit() - 1);
+        final List<ByteBuffer> received = new ArrayList<>();
+        assertEquals(1, PacketBatch.unpack(datagram, packet -> received.add(copy(packet))));
+        assertEquals(packets.subList(0, 1), received);
+        assertFalse(datagram.hasRemaining());
+    }
+
+    @Test
+    public void zeroLengthEndsTheBatch() throws Exception {
+        final List<ByteBuffer> packets = packets(1);
+        final PacketBatch batch = batch(packets);
+        batch.add(ByteBuffer.allocate(0));
+        batch.add(packets.get(0).duplicate());
+        final List<ByteBuffer> received = new ArrayList<>();
+        assertEquals(1, PacketBatch.unpack(batch.datagram(), packet -> received.add(copy(packet))));
+        assertEquals(packets, received);
+    }
+
+    @Test
+    public void singlePacketGoesOutUnframed() {
+        final List<ByteBuffer> packets = packets(1);
+        assertEquals(packets.get(0), batch(packets).datagram());
+    }
+
+    @Test
+    public void fullBatchTurnsPacketsAway() {
+        final PacketBatch batch = new PacketBatch(ByteBuffer.allocate(MAX_FRAME_SIZE), MAX_FRAME_SIZE);
+        final ByteBuffer packet = ByteBuffer.allocate(MAX_FRAME_SIZE / 2);
+        assertTrue(batch.add(packet.duplicate()));
+        assertFalse(batch.add(packet.duplicate()));
+        assertEquals(1, batch.count());
+    }
+
+    private static PacketBatch batch(List<ByteBuffer> packets) {
+        final PacketBatch batch = new PacketBatch(ByteBuffer.allocate(MAX_FRAME_SIZE), MAX_FRAME_SIZE);
+        for (ByteBuffer packet : packets) {
+            assertTrue(batch.add(packet.duplicate()));
+        }
+        return batch;
+    }
+
+    /**
+     * Segments of different sizes, so that a sink which loses its place reads garbage lengths.
+     */
+    private static List<ByteBuffer> packets(int count) {
+        final List<ByteBuffer> packets = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            packets.add(TcpSegment.ack(1000 + i).payload(10 + 30 * i).build());
+        }
+        return packets;
+    }
+
+    private static ByteBuffer copy(ByteBuffer packet) {
+        final ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet).flip();
+        return copy;
+    }
+}
@@ -0,0 +1,262 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.tunnel.crypto.PacketOpener;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The pump over the loopback interface, with the test standing in for the server and a pair of datagram sockets for
+ * the TUN interface.
+ * <p>
+ * The pump used to sleep 100 ms between polls when there was nothing to do, so a packet arriving while it slept
+ * took up to that long. Blocking reads deliver it right away.
+ */
+public class PacketPumpTest {
+    private static final int MTU = 1500;
+    private static final int BUFFER_POOL_CAPACITY = 64;
+    private static final int RECEIVE_TIMEOUT_MS = 5000;
+    /**
+     * Longer than the old poll interval, so that a polling pump would be asleep by then.
+     */
+    private static final long IDLE_MS = 300;
+    /**
+     * Well under the old poll interval, and plenty for the loopback interface.
+     */
+    private static final long MAX_LATENCY_MS = 50;
+    private static final int ROUNDS = 3;
+    /**
+     * Striped sessions to fail in a row, each a chance for a downlink to be caught writing.
+     */
+    private static final int FAILED_SESSIONS = 10;
+    private static final byte[] SECRET = "pump".getBytes(StandardCharsets.US_ASCII);
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private DatagramChannel mTunSide;
+    private DatagramSocket mApp;
+    private DatagramSocket mServer;
+    private SessionKeys mClientKeys;
+    private PacketOpener mOpener;
+    private PacketSealer mSealer;
+    private PacketPump mPump;
+    private Thread mPumpThread;
+    private volatile Throwable mPumpFailure;
+    /**
+     * Where the pump's tunnel socket is, learned from the first datagram, as a server would.
+     */
+    private SocketAddress mClient;
+
+    @Before
+    public void setUp() throws IOException, GeneralSecurityException {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        mTunSide = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        mApp = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        mApp.setSoTimeout(RECEIVE_TIMEOUT_MS);
+        mApp.connect(mTunSide.getLocalAddress());
+        mTunSide.connect(mApp.getLocalSocketAddress());
+        mServer = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        mServer.setSoTimeout(RECEIVE_TIMEOUT_MS);
+        final byte[] clientNonce = new byte[16];
+        final byte[] serverNonce = new byte[16];
+        mClientKeys = SessionKeys.derive(SECRET, clientNonce, serverNonce, true);
+        final SessionKeys serverKeys = SessionKeys.derive(SECRET, clientNonce, serverNonce, false);
+        mOpener = new PacketOpener(serverKeys);
+        mSealer = new PacketSealer(serverKeys);
+        mPump = new PacketPump(new ChannelTunDevice(mTunSide, mTunSide),
+                new BufferPool(MTU + PacketSealer.OVERHEAD, BUFFER_POOL_CAPACITY),
+                Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, "test");
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        mPump.close();
+        if (mPumpThread != null) {
+            mPumpThread.join(RECEIVE_TIMEOUT_MS);
+        }
+        mApp.close();
+        mTunSide.close();
+        mServer.close();
+    }
+
+    @Test
+    public void firstUplinkPacketAfterIdle() throws Exception {
+        connect();
+        final ByteBuffer packet = TcpSegment.ack(1000).payload(100).build();
+        // Warms up the classes on the way and lets the server learn the client's address.
+        uplink(packet);
+        for (int i = 0; i < ROUNDS; ++i) {
+            Thread.sleep(IDLE_MS);
+            final long start = System.nanoTime();
+            final ByteBuffer received = uplink(packet);
+            final long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(packet, received);
+            assertTrue("Took " + latencyMs + " ms", latencyMs < MAX_LATENCY_MS);
+        }
+        assertNull(mPumpFailure);
+    }
+
+    @Test
+    public void firstDownlinkPacketAfterIdle() throws Exception {
+        connect();
+        final ByteBuffer packet = TcpSegment.ack(1000).payload(100).build();
+        uplink(packet);
+        downlink(packet);
+        for (int i = 0; i < ROUNDS; ++i) {
+            Thread.sleep(IDLE_MS);
+            final long start = System.nanoTime();
+            final ByteBuffer received = downlink(packet);
+            final long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertEquals(packet, received);
+            assertTrue("Took " + latencyMs + " ms", latencyMs < MAX_LATENCY_MS);
+        }
+        assertNull(mPumpFailure);
+    }
+
+    @Test
+    public void tunSurvivesFailedStripedSessions() throws Exception {
+        final InetAddress loopback = InetAddress.getLoopbackAddress();
+        final ByteBuffer flood = TcpSegment.ack(1000).payload(1000).build();
+        // Written through a file channel, as the TUN interface is, which an interrupt closes.
+        final File file = folder.newFile();
+        try (FileChannel tunWrites = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            final PacketPump pump = new PacketPump(new ChannelTunDevice(mTunSide, tunWrites),
+                    new BufferPool(MTU + PacketSealer.OVERHEAD, BUFFER_POOL_CAPACITY),
+                    Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, "striped");
+            try {
+                for (int session = 0; session < FAILED_SESSIONS; ++session) {
+                    final List<DatagramChannel> servers = new ArrayList<>();
+                    final List<DatagramChannel> tunnels = new ArrayList<>();
+                    for (int i = 0; i < 2; ++i) {
+                        servers.add(DatagramChannel.open().bind(new InetSocketAddress(loopback, 0)));
+                        tunnels.add(DatagramChannel.open().connect(servers.get(i).getLocalAddress()));
+                        servers.get(i).connect(tunnels.get(i).getLocalAddress());
+                    }
+                    // The second tunnel's downlink keeps writing to the TUN interface while the first one fails.
+                    final Thread flooder = new Thread(() -> {
+                        try {
+                            while (true) {
+                                servers.get(1).write(flood.duplicate());
+                            }
+                        } catch (IOException e) {
+                            // Closed.
+                        }
+                    }, "test-flooder");
+                    flooder.setDaemon(true);
+                    flooder.start();
+                    final Thread pumpThread = start(pump, tunnels, null);
+                    awaitGrowth(file, file.length());
+                    tunnels.get(0).close();
+                    pumpThread.join(RECEIVE_TIMEOUT_MS);
+                    assertFalse(pumpThread.isAlive());
+                    for (DatagramChannel server : servers) {
+                        server.close();
+                    }
+                    flooder.join(RECEIVE_TIMEOUT_MS);
+                    assertTrue("Session " + session, tunWrites.isOpen());
+                }
+                // And the next session still gets its packets onto it.
+                final DatagramChannel server = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+                final DatagramChannel tunnel = DatagramChannel.open().connect(server.getLocalAddress());
+                final Thread pumpThread = start(pump, Collections.singletonList(tunnel), null);
+                final long written = file.length();
+                server.send(flood.duplicate(), tunnel.getLocalAddress());
+                awaitGrowth(file, written);
+                assertEquals(written + flood.remaining(), file.length());
+                server.close();
+                tunnel.close();
+                pumpThread.join(RECEIVE_TIMEOUT_MS);
+            } finally {
+                pump.close();
+            }
+        }
+    }
+
+    /**
+     * Starts a session over a single sealed tunnel to {@link #mServer}.
+     */
+    private void connect() throws IOException {
+        final DatagramChannel tunnel = DatagramChannel.open();
+        tunnel.connect(mServer.getLocalSocketAddress());
+        mPumpThread = start(mPump, Collections.singletonList(tunnel), mClientKeys);
+    }
+
+    private Thread start(PacketPump pump, List<DatagramChannel> tunnels, SessionKeys keys) {
+        final Thread thread = new Thread(() -> {
+            try {
+                pump.run(tunnels, keys);
+            } catch (IOException | RuntimeException e) {
+                mPumpFailure = e;
+            }
+        }, "test-pump");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitGrowth(File file, long length) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MS);
+        while (file.length() == length) {
+            assertTrue("Nothing written", System.nanoTime() - deadline < 0);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Sends {@code packet} from the app into the TUN interface and opens it at the server.
+     */
+    private ByteBuffer uplink(ByteBuffer packet) throws IOException, GeneralSecurityException {
+        mApp.send(new DatagramPacket(packet.array(), packet.limit()));
+        final DatagramPacket sealed = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+        long sequence;
+        final ByteBuffer opened = ByteBuffer.allocate(Short.MAX_VALUE);
+        do {
+            // Keepalives aren't sealed.
+            mServer.receive(sealed);
+            opened.clear();
+            sequence = mOpener.open(ByteBuffer.wrap(sealed.getData(), 0, sealed.getLength()), opened);
+        } while (sequence < 0);
+        mClient = sealed.getSocketAddress();
+        opened.flip();
+        return opened;
+    }
+
+    /**
+     * Seals {@code packet} at the server and receives it from the TUN interface at the app.
+     */
+    private ByteBuffer downlink(ByteBuffer packet) throws IOException, GeneralSecurityException {
+        final ByteBuffer sealed = ByteBuffer.allocate(packet.remaining() + PacketSealer.OVERHEAD);
+        mSealer.seal(packet.duplicate(), sealed);
+        mServer.send(new DatagramPacket(sealed.array(), sealed.position(), mClient));
+        final DatagramPacket received = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+        mApp.receive(received);
+        return ByteBuffer.wrap(received.getData(), 0, received.getLength());
+    }
+}
@@ -0,0 +1,180 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.server.Impairment;
+import com.gxd.vpn.server.StandInServer;
+import com.gxd.vpn.tunnel.crypto.SecureHandshake;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Probing the path to a {@link StandInServer} on the loopback interface, which drops what is larger than the path
+ * MTU it is given, and {@link PathMtuDiscovery} deciding which tunnels get probed.
+ */
+public class PathMtuProberTest {
+    /**
+     * Datagram sizes to probe, those of IPv4 packets from 1308 to 1528 bytes.
+     */
+    private static final int LOW = 1280;
+    private static final int HIGH = 1500;
+    private static final int GRANULARITY = 8;
+    /**
+     * IPv4 and UDP headers, which a path MTU takes in on top of the datagram.
+     */
+    private static final int HEADERS_SIZE = 28;
+    private static final long PROBE_TIMEOUT_MS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final byte[] SECRET = "path mtu".getBytes(StandardCharsets.US_ASCII);
+    private final SecureRandom mRandom = new SecureRandom();
+    private final InetAddress mLoopback = InetAddress.getLoopbackAddress();
+    private final RttEstimator mRttEstimator = new RttEstimator();
+    private final List<DatagramChannel> mTunnels = new ArrayList<>();
+    private StandInServer mServer;
+    private Thread mServerThread;
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        for (DatagramChannel tunnel : mTunnels) {
+            tunnel.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+            mServerThread.join(HANDSHAKE_TIMEOUT_MS);
+        }
+    }
+
+    @Test
+    public void cleanPath() throws Exception {
+        start(0, Impairment.NONE);
+        final PathMtuProber prober = new PathMtuProber(mRttEstimator, PROBE_TIMEOUT_MS);
+        assertEquals(HIGH, prober.run(handshake(mLoopback), LOW, HIGH));
+        // The largest size settles it.
+        assertEquals(1, prober.probes());
+    }
+
+    @Test
+    public void smallerPath() throws Exception {
+        start(1400, Impairment.NONE);
+        final PathMtuProber prober = new PathMtuProber(mRttEstimator, PROBE_TIMEOUT_MS);
+        assertFound(1400, prober.run(handshake(mLoopback), LOW, HIGH));
+        assertTrue(prober.probes() > 2);
+    }
+
+    @Test
+    public void lossyPath() throws Exception {
+        // Both ways, so that probes and answers get lost alike.
+        start(1400, new Impairment(0.1, 0, 0, 0, 1));
+        final DatagramChannel tunnel = handshake(mLoopback);
+        final PathMtuProber prober = new PathMtuProber(mRttEstimator, PROBE_TIMEOUT_MS);
+        final int size = prober.run(tunnel, LOW, HIGH);
+        // A probe lost for good passes for too large, so loss can only make the size come out smaller.
+        assertTrue("Found " + size, size >= LOW && size <= 1400 - HEADERS_SIZE);
+        assertTrue(prober.timeUs() < PROBE_TIMEOUT_MS * 1000 + 100_000);
+    }
+
+    @Test
+    public void noAnswerStopsProbingOnTheNetwork() throws Exception {
+        start(0, Impairment.NONE);
+        final PathMtuDiscovery discovery = new PathMtuDiscovery();
+        // The server doesn't answer probes from a tunnel it hasn't got a session with, as if it didn't know them.
+        final DatagramChannel tunnel = open(mLoopback);
+        assertTrue(discovery.due(tunnel));
+        assertEquals(-1, new PathMtuProber(mRttEstimator, PROBE_TIMEOUT_MS).run(tunnel, LOW, HIGH));
+        assertFalse(discovery.record(tunnel, -1));
+        assertFalse(discovery.due(handshake(mLoopback)));
+    }
+
+    @Test
+    public void probesLostOnceKeepProbing() throws Exception {
+        start(0, Impairment.NONE);
+        final PathMtuDiscovery discovery = new PathMtuDiscovery();
+        final PathMtuProber prober = new PathMtuProber(mRttEstimator, PROBE_TIMEOUT_MS);
+        final DatagramChannel answered = handshake(mLoopback);
+        assertTrue(discovery.due(answered));
+        assertTrue(discovery.record(answered, prober.run(answered, LOW, HIGH)));
+        // The same server, leaving the probes of a tunnel unanswered this time.
+        final DatagramChannel lost = open(mLoopback);
+        assertTrue(discovery.due(lost));
+        assertEquals(-1, prober.run(lost, LOW, HIGH));
+        assertTrue(discovery.record(lost, -1));
+        assertTrue(discovery.due(handshake(mLoopback)));
+    }
+
+    @Test
+    public void localAddressChangeProbesAgain() throws Exception {
+        start(1400, Impairment.NONE);
+        final PathMtuDiscovery discovery = new PathMtuDiscovery();
+        final PathMtuProber prober = new PathMtuProber(mRttEstimator, PROBE_TIMEOUT_MS);
+        final DatagramChannel unanswered = open(mLoopback);
+        assertTrue(discovery.due(unanswered));
+        assertFalse(discovery.record(unanswered, prober.run(unanswered, LOW, HIGH)));
+        // Another address on the loopback network stands in for the next network.
+        final DatagramChannel next = handshake(InetAddress.getByName("127.0.0.2"));
+        assertTrue(discovery.due(next));
+        final int size = prober.run(next, LOW, HIGH);
+        assertFound(1400, size);
+        assertTrue(discovery.record(next, size));
+        // Back on the first network, which is a change of network as well.
+        final DatagramChannel back = handshake(mLoopback);
+        assertTrue(discovery.due(back));
+        assertFound(1400, prober.run(back, LOW, HIGH));
+    }
+
+    /**
+     * Asserts that {@code size} is what a path of {@code pathMtu} takes, give or take the granularity.
+     */
+    private static void assertFound(int pathMtu, int size) {
+        final int limit = pathMtu - HEADERS_SIZE;
+        assertTrue("Found " + size + " of " + limit, size <= limit && size > limit - GRANULARITY);
+    }
+
+    /**
+     * @param pathMtu the path MTU, or 0 for none
+     */
+    private void start(int pathMtu, Impairment impairment) throws IOException {
+        mServer = new StandInServer(new InetSocketAddress(mLoopback, 0), SECRET, "m," + HIGH + " r,0.0.0.0,0");
+        if (pathMtu > 0) {
+            mServer.setPathMtu(pathMtu);
+        }
+        mServer.setImpairment(impairment);
+        mServerThread = new Thread(() -> {
+            try {
+                mServer.serve();
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "test-server");
+        mServerThread.setDaemon(true);
+        mServerThread.start();
+    }
+
+    /**
+     * @return a tunnel from {@code localAddress} with a session on the server, whose probes it answers
+     */
+    private DatagramChannel handshake(InetAddress localAddress) throws Exception {
+        final DatagramChannel tunnel = open(localAddress);
+        new HandshakeDriver(mRttEstimator, HANDSHAKE_TIMEOUT_MS).run(tunnel, new SecureHandshake(SECRET, mRandom));
+        return tunnel;
+    }
+
+    private DatagramChannel open(InetAddress localAddress) throws IOException {
+        final DatagramChannel tunnel = DatagramChannel.open().bind(new InetSocketAddress(localAddress, 0));
+        mTunnels.add(tunnel);
+        tunnel.connect(mServer.localAddress());
+        return tunnel;
+    }
+}
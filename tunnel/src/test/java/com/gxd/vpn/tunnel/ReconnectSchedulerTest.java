@@ -0,0 +1,172 @@
+package com.gxd.vpn.tunnel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.DoubleSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReconnectSchedulerTest {
+    private static final long BASE_DELAY_MS = 100;
+    private static final long MAX_DELAY_MS = 1000;
+    private static final DoubleSupplier NO_JITTER = () -> 0;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void backoffDoublesUpToTheCeiling() {
+        final ReconnectScheduler scheduler = new ReconnectScheduler(BASE_DELAY_MS, MAX_DELAY_MS, NO_JITTER);
+        final long[] expected = {50, 100, 200, 400, 500, 500, 500};
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals("attempt " + i, expected[i], scheduler.nextDelayMs());
+        }
+        assertEquals(expected.length, scheduler.attempts());
+    }
+
+    @Test
+    public void backoffNeverOverflows() {
+        final ReconnectScheduler scheduler = new ReconnectScheduler(1, Long.MAX_VALUE, NO_JITTER);
+        long previous = 0;
+        for (int i = 0; i < 100; ++i) {
+            final long delay = scheduler.nextDelayMs();
+            assertTrue("attempt " + i + ": " + delay, delay >= previous);
+            previous = delay;
+        }
+    }
+
+    @Test
+    public void jitterStaysInTheLowerHalf() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 1000; ++round) {
+            final ReconnectScheduler scheduler = new ReconnectScheduler(BASE_DELAY_MS, MAX_DELAY_MS, random::nextDouble);
+            for (long ceiling : new long[]{100, 200, 400, 800, 1000, 1000}) {
+                final long delay = scheduler.nextDelayMs();
+                assertTrue(delay + " for " + ceiling, delay >= ceiling - ceiling / 2 && delay <= ceiling);
+            }
+        }
+    }
+
+    @Test
+    public void jitterReachesBothEnds() {
+        final ReconnectScheduler low = new ReconnectScheduler(BASE_DELAY_MS, MAX_DELAY_MS, NO_JITTER);
+        final ReconnectScheduler high =
+                new ReconnectScheduler(BASE_DELAY_MS, MAX_DELAY_MS, () -> Math.nextDown(1.0));
+        assertEquals(BASE_DELAY_MS / 2, low.nextDelayMs());
+        assertEquals(BASE_DELAY_MS - 1, high.nextDelayMs());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        final ReconnectScheduler scheduler = new ReconnectScheduler(BASE_DELAY_MS, MAX_DELAY_MS, NO_JITTER);
+        scheduler.nextDelayMs();
+        scheduler.nextDelayMs();
+        scheduler.reset();
+        assertEquals(0, scheduler.attempts());
+        assertEquals(BASE_DELAY_MS / 2, scheduler.nextDelayMs());
+    }
+
+    @Test
+    public void waitRunsOutWithoutNetworkChanges() throws InterruptedException {
+        final ReconnectScheduler scheduler = new ReconnectScheduler(20, 20, NO_JITTER);
+        final long start = System.nanoTime();
+        assertFalse(scheduler.await());
+        // 10 ms, give or take the last millisecond, which isn't worth waiting for.
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(9));
+    }
+
+    @Test
+    public void networkComingUpCutsTheWaitShort() throws Exception {
+        final ReconnectScheduler scheduler =
+                new ReconnectScheduler(TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1), NO_JITTER);
+        final FakeConnectivity connectivity = new FakeConnectivity();
+        connectivity.register(scheduler);
+        scheduler.nextDelayMs();
+        final Future<Boolean> woken = mExecutor.submit(scheduler::await);
+        assertStillWaiting(woken);
+        connectivity.available();
+        assertTrue(woken.get(5, TimeUnit.SECONDS));
+        // A new network starts over from the base delay.
+        assertEquals(0, scheduler.attempts());
+    }
+
+    @Test
+    public void networkComingUpBeforeTheWaitIsNoticed() throws InterruptedException {
+        final ReconnectScheduler scheduler =
+                new ReconnectScheduler(TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1), NO_JITTER);
+        final FakeConnectivity connectivity = new FakeConnectivity();
+        connectivity.register(scheduler);
+        connectivity.available();
+        assertTrue(scheduler.await());
+    }
+
+    @Test
+    public void resetForgetsEarlierNetworks() throws InterruptedException {
+        final ReconnectScheduler scheduler = new ReconnectScheduler(20, 20, NO_JITTER);
+        final FakeConnectivity connectivity = new FakeConnectivity();
+        connectivity.register(scheduler);
+        connectivity.available();
+        scheduler.reset();
+        assertFalse(scheduler.await());
+    }
+
+    @Test
+    public void noNetworkWaitsUntilOneComesUp() throws Exception {
+        final ReconnectScheduler scheduler = new ReconnectScheduler(10, 10, NO_JITTER);
+        final FakeConnectivity connectivity = new FakeConnectivity();
+        connectivity.register(scheduler);
+        connectivity.lost();
+        final Future<Boolean> woken = mExecutor.submit(scheduler::await);
+        // Far longer than the delay.
+        assertStillWaiting(woken);
+        connectivity.available();
+        assertTrue(woken.get(5, TimeUnit.SECONDS));
+    }
+
+    private static void assertStillWaiting(Future<Boolean> wait) throws Exception {
+        try {
+            wait.get(200, TimeUnit.MILLISECONDS);
+            fail("Wait ended early");
+        } catch (TimeoutException expected) {
+            // Still waiting.
+        }
+    }
+
+    /**
+     * Network changes driven by the test, as the app's ConnectivityManager callbacks would.
+     */
+    private static class FakeConnectivity implements Connectivity {
+        private Listener mListener;
+
+        @Override
+        public void register(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void unregister() {
+            mListener = null;
+        }
+
+        void available() {
+            mListener.onNetworkAvailable();
+        }
+
+        void lost() {
+            mListener.onNetworkLost();
+        }
+    }
+}
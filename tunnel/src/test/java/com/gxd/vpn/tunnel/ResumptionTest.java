@@ -0,0 +1,298 @@
+package com.gxd.vpn.tunnel;
+
+import com.gxd.vpn.server.StandInServer;
+import com.gxd.vpn.tunnel.crypto.PacketSealer;
+import com.gxd.vpn.tunnel.crypto.SecureHandshake;
+import com.gxd.vpn.tunnel.crypto.SessionKeys;
+import com.gxd.vpn.tunnel.crypto.SessionTicket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Resuming sessions with their tickets, against a {@link StandInServer} on the loopback interface. Every session
+ * is shown to work by a packet the server bounces back through the TUN interface.
+ */
+public class ResumptionTest {
+    private static final int MTU = 1500;
+    private static final int BUFFER_POOL_CAPACITY = 64;
+    private static final int TIMEOUT_MS = 5000;
+    private static final byte[] SECRET = "resumption".getBytes(StandardCharsets.US_ASCII);
+    private final SecureRandom mRandom = new SecureRandom();
+    private final InetAddress mLoopback = InetAddress.getLoopbackAddress();
+    private StandInServer mServer;
+    private Thread mServerThread;
+    private DatagramChannel mTunSide;
+    private DatagramSocket mApp;
+    private PacketPump mPump;
+    private ByteBuffer mPacket;
+    private DatagramChannel mTunnel;
+    private Thread mPumpThread;
+    private volatile Throwable mPumpFailure;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer(new InetSocketAddress(mLoopback, 0), SECRET, "m," + MTU + " r,0.0.0.0,0");
+        mServerThread = new Thread(() -> {
+            try {
+                mServer.serve();
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }, "test-server");
+        mServerThread.setDaemon(true);
+        mServerThread.start();
+        mTunSide = DatagramChannel.open().bind(new InetSocketAddress(mLoopback, 0));
+        mApp = new DatagramSocket(new InetSocketAddress(mLoopback, 0));
+        mApp.setSoTimeout(TIMEOUT_MS);
+        mApp.connect(mTunSide.getLocalAddress());
+        mTunSide.connect(mApp.getLocalSocketAddress());
+        mPump = new PacketPump(new ChannelTunDevice(mTunSide, mTunSide),
+                new BufferPool(MTU + PacketSealer.OVERHEAD, BUFFER_POOL_CAPACITY),
+                Long.MAX_VALUE / 2, Long.MAX_VALUE / 2, "resumption");
+        mPump.setQueueCapacity(BUFFER_POOL_CAPACITY);
+        mPacket = TcpSegment.ack(1000).payload(100).build();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        if (mTunnel != null) {
+            disconnect();
+        }
+        mPump.close();
+        mServer.close();
+        mServerThread.join(TIMEOUT_MS);
+        mApp.close();
+        mTunSide.close();
+    }
+
+    @Test
+    public void resumeAccepted() throws Exception {
+        final ResumableSession session = handshake(mLoopback);
+        disconnect();
+        // Queued while there is no tunnel, and sent right behind the request.
+        send();
+        final DatagramChannel tunnel = open(mLoopback);
+        resume(tunnel, session);
+        assertEquals(mPacket, receive());
+        assertEquals(1, mServer.stats().resumptions);
+        disconnect();
+        assertNull(mPumpFailure);
+    }
+
+    @Test
+    public void resumeTurnedDown() throws Exception {
+        handshake(mLoopback);
+        disconnect();
+        // Sealed with a secret the server doesn't know.
+        final SessionTicket forged = ticket("another secret".getBytes(StandardCharsets.US_ASCII),
+                System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1));
+        assertTurnedDown(resumeFailure(new ResumableSession(forged, mLoopback)));
+        assertBackWithHandshake();
+    }
+
+    @Test
+    public void ticketExpired() throws Exception {
+        handshake(mLoopback);
+        disconnect();
+        final SessionTicket expired = ticket(SECRET, System.currentTimeMillis() - 1);
+        assertTurnedDown(resumeFailure(new ResumableSession(expired, mLoopback)));
+        assertBackWithHandshake();
+    }
+
+    @Test
+    public void nonceReplayed() throws Exception {
+        final ResumableSession session = handshake(mLoopback);
+        disconnect();
+        final ByteBuffer request = ByteBuffer.allocate(MTU);
+        final SessionKeys keys = session.writeResume(open(mLoopback), request, mRandom, System.currentTimeMillis());
+        request.flip();
+        start(mTunnel, keys, request.duplicate());
+        send();
+        assertEquals(mPacket, receive());
+        disconnect();
+        // The same request again, as an eavesdropper would send it, from a tunnel of its own.
+        final DatagramChannel replay = open(mLoopback);
+        try {
+            mPump.resume(replay, keys, request.duplicate(), TIMEOUT_MS);
+            fail("Replayed request taken");
+        } catch (ProtocolException e) {
+            assertTurnedDown(e);
+        }
+        assertEquals(1, mServer.stats().resumptions);
+    }
+
+    @Test
+    public void firstFlightUnreachable() throws Exception {
+        final ResumableSession session = handshake(mLoopback);
+        disconnect();
+        // A port nothing listens on any more, which the first flight gets an ICMP error back from.
+        final DatagramChannel gone = DatagramChannel.open().bind(new InetSocketAddress(mLoopback, 0));
+        final SocketAddress goneAddress = gone.getLocalAddress();
+        gone.close();
+        final DatagramChannel tunnel = DatagramChannel.open().connect(goneAddress);
+        final ByteBuffer request = ByteBuffer.allocate(MTU);
+        final SessionKeys keys = session.writeResume(tunnel, request, mRandom, System.currentTimeMillis());
+        request.flip();
+        final long start = System.nanoTime();
+        try {
+            mPump.resume(tunnel, keys, request, TIMEOUT_MS);
+            fail("Resumed with nobody there");
+        } catch (ProtocolException e) {
+            // Right away, rather than once the server failed to answer.
+            assertTrue(e.getCause() instanceof PortUnreachableException);
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS));
+        }
+        assertBackWithHandshake();
+    }
+
+    @Test
+    public void localAddressChangeForcesHandshake() throws Exception {
+        final ResumableSession session = handshake(mLoopback);
+        disconnect();
+        // Another address on the loopback network stands in for the next network.
+        final InetAddress other = InetAddress.getByName("127.0.0.2");
+        try {
+            session.writeResume(open(other), ByteBuffer.allocate(MTU), mRandom, System.currentTimeMillis());
+            fail("Resumed from another network");
+        } catch (ProtocolException expected) {
+            // Handshake due.
+        }
+        mTunnel.close();
+        mTunnel = null;
+        final ResumableSession next = handshake(other);
+        disconnect();
+        assertEquals(2, mServer.stats().handshakes);
+        assertEquals(0, mServer.stats().resumptions);
+        // The ticket of the new network works on it.
+        resume(open(other), next);
+        send();
+        assertEquals(mPacket, receive());
+        assertEquals(1, mServer.stats().resumptions);
+    }
+
+    /**
+     * Starts a session with a handshake from {@code localAddress}, and checks that it works.
+     *
+     * @return the session to resume
+     */
+    private ResumableSession handshake(InetAddress localAddress) throws Exception {
+        final DatagramChannel tunnel = open(localAddress);
+        final SecureHandshake handshake = new SecureHandshake(SECRET, mRandom);
+        final TunnelParameters parameters =
+                TunnelParameters.parse(new HandshakeDriver(new RttEstimator(), TIMEOUT_MS).run(tunnel, handshake));
+        tunnel.configureBlocking(true);
+        start(tunnel, handshake.sessionKeys(), null);
+        send();
+        assertEquals(mPacket, receive());
+        return new ResumableSession(parameters.ticket, localAddress);
+    }
+
+    private void resume(DatagramChannel tunnel, ResumableSession session) throws Exception {
+        final ByteBuffer request = ByteBuffer.allocate(MTU);
+        final SessionKeys keys = session.writeResume(tunnel, request, mRandom, System.currentTimeMillis());
+        request.flip();
+        start(tunnel, keys, request);
+    }
+
+    /**
+     * @return what the pump failed with resuming on a new tunnel
+     */
+    private ProtocolException resumeFailure(ResumableSession session) throws Exception {
+        final DatagramChannel tunnel = open(mLoopback);
+        final ByteBuffer request = ByteBuffer.allocate(MTU);
+        final SessionKeys keys = session.writeResume(tunnel, request, mRandom, System.currentTimeMillis());
+        request.flip();
+        try {
+            mPump.resume(tunnel, keys, request, TIMEOUT_MS);
+        } catch (ProtocolException e) {
+            return e;
+        } finally {
+            mTunnel = null;
+        }
+        throw new AssertionError("Resumed");
+    }
+
+    private static void assertTurnedDown(ProtocolException e) {
+        assertEquals("Resumption turned down", e.getMessage());
+    }
+
+    /**
+     * Asserts that a handshake gets the client going again after a resumption failed.
+     */
+    private void assertBackWithHandshake() throws Exception {
+        handshake(mLoopback);
+        assertEquals(0, mServer.stats().resumptions);
+    }
+
+    private SessionTicket ticket(byte[] sharedSecret, long expiresAtMs) throws GeneralSecurityException {
+        final byte[] secret = new byte[SessionTicket.SECRET_SIZE];
+        mRandom.nextBytes(secret);
+        return TunnelParameters.parse("m," + MTU + " " + SessionTicket.issue(sharedSecret, "m," + MTU, secret,
+                expiresAtMs, mRandom)).ticket;
+    }
+
+    private DatagramChannel open(InetAddress localAddress) throws IOException {
+        mTunnel = DatagramChannel.open().bind(new InetSocketAddress(localAddress, 0));
+        mTunnel.connect(mServer.localAddress());
+        return mTunnel;
+    }
+
+    private void start(DatagramChannel tunnel, SessionKeys keys, ByteBuffer resume) {
+        mPumpThread = new Thread(() -> {
+            try {
+                if (resume != null) {
+                    mPump.resume(tunnel, keys, resume, TIMEOUT_MS);
+                } else {
+                    mPump.run(tunnel, keys);
+                }
+            } catch (ProtocolException | RuntimeException e) {
+                mPumpFailure = e;
+            } catch (IOException e) {
+                // Closed.
+            }
+        }, "test-pump");
+        mPumpThread.setDaemon(true);
+        mPumpThread.start();
+    }
+
+    private void disconnect() throws IOException, InterruptedException {
+        mTunnel.close();
+        mTunnel = null;
+        if (mPumpThread != null) {
+            mPumpThread.join(TIMEOUT_MS);
+            mPumpThread = null;
+        }
+    }
+
+    private void send() throws IOException {
+        mApp.send(new DatagramPacket(mPacket.array(), mPacket.limit()));
+    }
+
+    private ByteBuffer receive() throws IOException {
+        final DatagramPacket received = new DatagramPacket(new byte[Short.MAX_VALUE], Short.MAX_VALUE);
+        mApp.receive(received);
+        return ByteBuffer.wrap(received.getData(), 0, received.getLength());
+    }
+}
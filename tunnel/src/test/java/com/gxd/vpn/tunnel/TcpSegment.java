@@ -0,0 +1,90 @@
+package com.gxd.vpn.tunnel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds IPv4/TCP segments for tests, from 10.0.0.2 to 10.0.0.1:443. Checksums are left at zero, nothing under
+ * test checks them.
+ */
+public final class TcpSegment {
+    public static final int FIN = 0x01;
+    public static final int SYN = 0x02;
+    public static final int RST = 0x04;
+    public static final int PSH = 0x08;
+    public static final int ACK = 0x10;
+    public static final int URG = 0x20;
+    public static final int ECE = 0x40;
+    private static final int IPV4_HEADER_SIZE = 20;
+    private static final int TCP_HEADER_SIZE = 20;
+    private static final int PROTOCOL_TCP = 6;
+    private int mSourcePort = 40000;
+    private int mFlags = ACK;
+    private int mAckNumber = 1000;
+    private byte[] mOptions = new byte[0];
+    private int mPayload;
+
+    public static TcpSegment ack(int ackNumber) {
+        return new TcpSegment().ackNumber(ackNumber);
+    }
+
+    public TcpSegment sourcePort(int sourcePort) {
+        mSourcePort = sourcePort;
+        return this;
+    }
+
+    public TcpSegment flags(int flags) {
+        mFlags = flags;
+        return this;
+    }
+
+    public TcpSegment ackNumber(int ackNumber) {
+        mAckNumber = ackNumber;
+        return this;
+    }
+
+    /**
+     * @param options TCP options as they go on the wire, padded to a multiple of 4 bytes
+     */
+    public TcpSegment options(int... options) {
+        mOptions = new byte[options.length];
+        for (int i = 0; i < options.length; ++i) {
+            mOptions[i] = (byte) options[i];
+        }
+        return this;
+    }
+
+    /**
+     * Adds a timestamps option, padded with two NOPs as stacks send it.
+     */
+    public TcpSegment timestamps() {
+        return options(1, 1, 8, 10, 0, 0, 0, 1, 0, 0, 0, 2);
+    }
+
+    /**
+     * Adds one SACK block, padded with two NOPs.
+     */
+    public TcpSegment sack(int left, int right) {
+        return options(1, 1, 5, 10, left >>> 24, left >>> 16, left >>> 8, left,
+                right >>> 24, right >>> 16, right >>> 8, right);
+    }
+
+    public TcpSegment payload(int bytes) {
+        mPayload = bytes;
+        return this;
+    }
+
+    public ByteBuffer build() {
+        final int tcpHeaderSize = TCP_HEADER_SIZE + mOptions.length;
+        final int length = IPV4_HEADER_SIZE + tcpHeaderSize + mPayload;
+        final ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) length).putInt(0)
+                .put((byte) 64).put((byte) PROTOCOL_TCP).putShort((short) 0)
+                .putInt(0x0A000002).putInt(0x0A000001);
+        packet.putShort((short) mSourcePort).putShort((short) 443).putInt(1).putInt(mAckNumber)
+                .put((byte) (tcpHeaderSize / 4 << 4)).put((byte) mFlags).putShort((short) 65535).putInt(0)
+                .put(mOptions);
+        packet.position(length);
+        packet.flip();
+        return packet;
+    }
+}
@@ -0,0 +1,234 @@
+package com.gxd.vpn.tunnel.capture;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes captures out as pcapng and reads them back block by block, the way a reader of the format would.
+ */
+public class PacketCaptureTest {
+    private static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+    private static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+    private static final int ENHANCED_PACKET_BLOCK = 6;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int OPTION_END = 0;
+    private static final int OPTION_PACKET_FLAGS = 2;
+    private static final int OPTION_TIMESTAMP_RESOLUTION = 9;
+    private static final int FLAG_INBOUND = 1;
+    private static final int FLAG_OUTBOUND = 2;
+    private static final int SNAP_LENGTH = 64;
+    private static final long DUMPING_MS = 500;
+
+    @Test
+    public void roundTrip() throws IOException {
+        final PacketCapture capture = new PacketCapture(8, SNAP_LENGTH);
+        final long before = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        // Sizes that need every amount of padding, and a long at a time as well as a byte at a time.
+        final int[] sizes = {1, 2, 3, 4, 13, 20};
+        for (int i = 0; i < sizes.length; ++i) {
+            capture.record(packet(i, sizes[i]), i % 2 == 0);
+        }
+        final long after = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() + 1);
+        final List<Packet> packets = dump(capture, sizes.length);
+        long time = before - TimeUnit.MILLISECONDS.toNanos(1);
+        for (int i = 0; i < sizes.length; ++i) {
+            final Packet packet = packets.get(i);
+            assertArrayEquals(array(packet(i, sizes[i])), packet.data);
+            assertEquals(sizes[i], packet.length);
+            assertEquals(i % 2 == 0 ? FLAG_OUTBOUND : FLAG_INBOUND, packet.flags);
+            assertTrue(packet.timeNanos >= time && packet.timeNanos <= after);
+            time = packet.timeNanos;
+        }
+    }
+
+    @Test
+    public void snapLengthCutsPackets() throws IOException {
+        final PacketCapture capture = new PacketCapture(2, SNAP_LENGTH);
+        final ByteBuffer large = packet(1, 1500);
+        // Neither the position nor the byte order of the packet should matter.
+        large.position(100);
+        large.order(ByteOrder.LITTLE_ENDIAN);
+        capture.record(large, true);
+        assertEquals(100, large.position());
+        final Packet packet = dump(capture, 1).get(0);
+        assertEquals(1400, packet.length);
+        assertArrayEquals(Arrays.copyOfRange(array(packet(1, 1500)), 100, 100 + SNAP_LENGTH), packet.data);
+    }
+
+    @Test
+    public void overwrittenRecordsSkipped() throws IOException {
+        final PacketCapture capture = new PacketCapture(4, SNAP_LENGTH);
+        for (int i = 0; i < 10; ++i) {
+            capture.record(packet(i, 10 + i), false);
+        }
+        assertEquals(10, capture.recorded());
+        final List<Packet> packets = dump(capture, 4);
+        for (int i = 0; i < 4; ++i) {
+            assertArrayEquals(array(packet(6 + i, 16 + i)), packets.get(i).data);
+        }
+    }
+
+    @Test
+    public void recordsOverwrittenWhileDumpedSkipped() throws Exception {
+        final PacketCapture capture = new PacketCapture(16, SNAP_LENGTH);
+        final ByteBuffer[] recorded = new ByteBuffer[256];
+        for (int i = 0; i < recorded.length; ++i) {
+            recorded[i] = packet(i, 1 + (i & 63));
+        }
+        final Thread recorder = new Thread(() -> {
+            for (int i = 0; !Thread.currentThread().isInterrupted(); ++i) {
+                capture.record(recorded[i & 0xFF], (i & 1) != 0);
+            }
+        }, "test-recorder");
+        recorder.setDaemon(true);
+        recorder.start();
+        try {
+            final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DUMPING_MS);
+            while (System.nanoTime() - end < 0) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final int written = capture.writePcapng(Channels.newChannel(out));
+                final List<Packet> packets = parse(out.toByteArray());
+                assertEquals(written, packets.size());
+                assertTrue(written <= 16);
+                // Any torn record would mix two packets, which differ in every byte, their length and direction.
+                for (Packet packet : packets) {
+                    final int i = packet.data[0] & 0xFF;
+                    assertEquals(1 + (i & 63), packet.length);
+                    assertEquals((i & 1) != 0 ? FLAG_OUTBOUND : FLAG_INBOUND, packet.flags);
+                    for (byte b : packet.data) {
+                        assertEquals(i, b & 0xFF);
+                    }
+                }
+            }
+        } finally {
+            recorder.interrupt();
+            recorder.join();
+        }
+    }
+
+    @Test
+    public void nothingRecordedWhileDisabled() throws IOException {
+        final PacketCapture capture = new PacketCapture(4, SNAP_LENGTH);
+        capture.setEnabled(false);
+        capture.record(packet(0, 10), true);
+        assertEquals(0, capture.recorded());
+        dump(capture, 0);
+    }
+
+    /**
+     * @return the packet {@code index} of {@code size} bytes, every one of them the low byte of the index
+     */
+    private static ByteBuffer packet(int index, int size) {
+        final byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) index);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static byte[] array(ByteBuffer packet) {
+        final byte[] bytes = new byte[packet.remaining()];
+        packet.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static List<Packet> dump(PacketCapture capture, int expected) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expected, capture.writePcapng(Channels.newChannel(out)));
+        final List<Packet> packets = parse(out.toByteArray());
+        assertEquals(expected, packets.size());
+        return packets;
+    }
+
+    /**
+     * Checks the section header and interface description, and that every block is framed by its length.
+     *
+     * @return the packets of the enhanced packet blocks
+     */
+    private static List<Packet> parse(byte[] pcapng) {
+        final ByteBuffer file = ByteBuffer.wrap(pcapng).order(ByteOrder.LITTLE_ENDIAN);
+        final List<Packet> packets = new ArrayList<>();
+        int blocks = 0;
+        while (file.hasRemaining()) {
+            final int start = file.position();
+            final int type = file.getInt();
+            final int length = file.getInt();
+            assertEquals(0, length % 4);
+            assertTrue(length >= 12 && start + length <= file.limit());
+            assertEquals(length, file.getInt(start + length - 4));
+            final ByteBuffer body = (ByteBuffer) file.slice().limit(length - 12);
+            body.order(ByteOrder.LITTLE_ENDIAN);
+            if (blocks == 0) {
+                assertEquals(SECTION_HEADER_BLOCK, type);
+                assertEquals(0x1A2B3C4D, body.getInt());
+                assertEquals(1, body.getShort());
+                assertEquals(0, body.getShort());
+                assertEquals(-1, body.getLong());
+            } else if (blocks == 1) {
+                assertEquals(INTERFACE_DESCRIPTION_BLOCK, type);
+                assertEquals(LINKTYPE_RAW, body.getShort());
+                body.getShort();
+                assertTrue(body.getInt() > 0);
+                assertEquals(OPTION_TIMESTAMP_RESOLUTION, body.getShort());
+                assertEquals(1, body.getShort());
+                // Nanoseconds, padded to 4 bytes.
+                assertEquals(9, body.getInt());
+                assertEquals(OPTION_END, body.getShort());
+                assertEquals(0, body.getShort());
+            } else {
+                assertEquals(ENHANCED_PACKET_BLOCK, type);
+                packets.add(enhancedPacket(body));
+            }
+            assertFalse(body.hasRemaining());
+            file.position(start + length);
+            ++blocks;
+        }
+        assertTrue(blocks >= 2);
+        return packets;
+    }
+
+    private static Packet enhancedPacket(ByteBuffer body) {
+        assertEquals(0, body.getInt());
+        final long timeNanos = (long) body.getInt() << 32 | body.getInt() & 0xFFFFFFFFL;
+        final int captured = body.getInt();
+        final int length = body.getInt();
+        assertTrue(captured <= length && captured <= SNAP_LENGTH);
+        final byte[] data = new byte[captured];
+        body.get(data);
+        for (int i = captured; i % 4 != 0; ++i) {
+            assertEquals(0, body.get());
+        }
+        assertEquals(OPTION_PACKET_FLAGS, body.getShort());
+        assertEquals(4, body.getShort());
+        final int flags = body.getInt();
+        assertEquals(OPTION_END, body.getShort());
+        assertEquals(0, body.getShort());
+        return new Packet(timeNanos, length, flags, data);
+    }
+
+    private static class Packet {
+        final long timeNanos;
+        final int length;
+        final int flags;
+        final byte[] data;
+
+        Packet(long timeNanos, int length, int flags, byte[] data) {
+            this.timeNanos = timeNanos;
+            this.length = length;
+            this.flags = flags;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.gxd.vpn.tunnel.dns;
+
+import com.gxd.vpn.tunnel.TunDevice;
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DnsCacheTest {
+    private static final int SERVER = 0x0A000001;
+    private static final int CLIENT = 0x0A000002;
+    private static final int IP_UDP_HEADER_SIZE = 28;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_CD = 0x0010;
+    private static final int FLAG_TC = 0x0200;
+    private static final int RESPONSE_FLAGS = 0x8180;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final long START_NANOS = TimeUnit.SECONDS.toNanos(1000);
+    private final List<ByteBuffer> mWritten = new ArrayList<>();
+    private final TunDevice mTun = new TunDevice() {
+        @Override
+        public int read(ByteBuffer dst) {
+            return -1;
+        }
+
+        @Override
+        public void write(ByteBuffer src) {
+            final ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+            copy.put(src).flip();
+            mWritten.add(copy);
+        }
+    };
+    private final PacketHeaders mHeaders = new PacketHeaders();
+    private DnsCache mCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mCache = new DnsCache(16);
+        mCache.setServers(Collections.singletonList(InetAddress.getByName("10.0.0.1")));
+    }
+
+    @Test
+    public void hitCountsTheTtlDown() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").answers(3, 300));
+        // Stored a second in, so ten seconds old.
+        assertTrue(query(2000, query(2, "foo.com"), seconds(11)));
+        final ByteBuffer reply = lastReply();
+        assertChecksums(reply);
+        assertEquals(2, reply.getShort(IP_UDP_HEADER_SIZE));
+        assertEquals(2000, reply.getShort(22) & 0xFFFF);
+        assertEquals(3, count(reply, 6));
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(290, reply.getInt(answer(reply, i) + 6));
+        }
+        assertEquals(1, mCache.stats().hits);
+    }
+
+    @Test
+    public void lowestTtlRules() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").answers(1, 300).answers(1, 30));
+        assertTrue(query(2000, query(2, "foo.com"), seconds(29)));
+        assertFalse(query(2000, query(3, "foo.com"), seconds(31)));
+    }
+
+    @Test
+    public void expiresAfterTheTtl() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").answers(1, 300));
+        assertFalse(query(2000, query(2, "foo.com"), seconds(301)));
+        assertEquals(0, mCache.stats().hits);
+    }
+
+    @Test
+    public void repliesInTheClientsCase() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").answers(1, 300));
+        assertTrue(query(2000, query(2, "FoO.CoM"), seconds(1)));
+        final ByteBuffer reply = lastReply();
+        assertChecksums(reply);
+        assertEquals("FoO", new String(reply.array(), IP_UDP_HEADER_SIZE + 13, 3, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void negativeAnswerCachedForTheSoaMinimum() throws IOException {
+        fetch(query(1, "nx.com"), response(1, "nx.com").rcode(DnsMessage.RCODE_NXDOMAIN).soa(3600, 60));
+        assertTrue(query(2000, query(2, "nx.com"), seconds(59)));
+        assertEquals(DnsMessage.RCODE_NXDOMAIN, lastReply().getShort(IP_UDP_HEADER_SIZE + 2) & 0x0F);
+        assertFalse(query(2000, query(3, "nx.com"), seconds(61)));
+    }
+
+    @Test
+    public void negativeAnswerWithoutSoaNotCached() throws IOException {
+        fetch(query(1, "nx.com"), response(1, "nx.com").rcode(DnsMessage.RCODE_NXDOMAIN));
+        assertFalse(query(2000, query(2, "nx.com"), seconds(1)));
+    }
+
+    @Test
+    public void truncatedAnswerNotCached() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").flags(RESPONSE_FLAGS | FLAG_TC).answers(1, 300));
+        assertFalse(query(2000, query(2, "foo.com"), seconds(1)));
+    }
+
+    @Test
+    public void identicalQueriesCoalesced() throws IOException {
+        assertFalse(query(1000, query(1, "foo.com"), 0));
+        // Another client asking the same is held, while the first client's retry goes out.
+        assertTrue(query(2000, query(7, "foo.com"), 1));
+        assertFalse(query(1000, query(1, "foo.com"), 2));
+        assertTrue(mWritten.isEmpty());
+        answer(1000, response(1, "foo.com").answers(1, 300).build(), seconds(1));
+        final ByteBuffer reply = lastReply();
+        assertEquals(1, mWritten.size());
+        assertChecksums(reply);
+        assertEquals(2000, reply.getShort(22) & 0xFFFF);
+        assertEquals(7, reply.getShort(IP_UDP_HEADER_SIZE));
+        assertEquals(1, mCache.stats().coalesced);
+    }
+
+    @Test
+    public void lostQueryGoesOutAgain() throws IOException {
+        assertFalse(query(1000, query(1, "foo.com"), 0));
+        assertFalse(query(2000, query(7, "foo.com"), seconds(4)));
+    }
+
+    @Test
+    public void dnssecQueriesBypassed() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").answers(1, 300));
+        assertFalse(query(2000, query(2, "foo.com").flags(FLAG_RD | FLAG_CD), seconds(1)));
+        assertFalse(query(2000, query(3, "foo.com").edns(1232, true), seconds(1)));
+        assertEquals(1, mCache.stats().queries);
+    }
+
+    @Test
+    public void unsolicitedResponseDropped() throws IOException {
+        answer(1000, response(1, "foo.com").answers(1, 300).build(), 0);
+        assertFalse(query(2000, query(2, "foo.com"), seconds(1)));
+    }
+
+    @Test
+    public void responseWithAnotherIdOrPortDropped() throws IOException {
+        assertFalse(query(1000, query(1, "foo.com"), 0));
+        answer(1000, response(9, "foo.com").answers(1, 300).build(), 1);
+        answer(1001, response(1, "foo.com").answers(1, 300).build(), 2);
+        assertEquals(0, mCache.stats().entries);
+    }
+
+    @Test
+    public void ednsAnswerLosesOptForPlainClient() throws IOException {
+        fetch(query(1, "foo.com").edns(1232, false), response(1, "foo.com").answers(5, 300).edns());
+        assertTrue(query(2000, query(2, "foo.com"), seconds(2)));
+        final ByteBuffer reply = lastReply();
+        assertChecksums(reply);
+        assertEquals(5, count(reply, 6));
+        assertEquals(0, count(reply, 10));
+        assertEquals(299, reply.getInt(answer(reply, 4) + 6));
+        assertEquals(reply.limit(), answer(reply, 4) + 16);
+    }
+
+    @Test
+    public void ednsAnswerKeepsOptForEdnsClient() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").answers(5, 300).edns());
+        assertTrue(query(2000, query(2, "foo.com").edns(1232, false), seconds(1)));
+        final ByteBuffer reply = lastReply();
+        assertChecksums(reply);
+        assertEquals(1, count(reply, 10));
+        assertEquals(TYPE_OPT, reply.getShort(answer(reply, 5) + 1));
+    }
+
+    @Test
+    public void largeAnswerTruncatedForPlainClient() throws IOException {
+        fetch(query(1, "foo.com").edns(1232, false), response(1, "foo.com").answers(40, 300).edns());
+        assertTrue(query(2000, query(2, "foo.com"), seconds(1)));
+        final ByteBuffer reply = lastReply();
+        assertChecksums(reply);
+        assertTrue((reply.getShort(IP_UDP_HEADER_SIZE + 2) & FLAG_TC) != 0);
+        assertEquals(0, count(reply, 6));
+        assertEquals(0, count(reply, 10));
+        // Header and question only.
+        assertEquals(IP_UDP_HEADER_SIZE + 12 + 9 + 4, reply.limit());
+    }
+
+    @Test
+    public void largeAnswerWholeForEdnsClient() throws IOException {
+        fetch(query(1, "foo.com").edns(1232, false), response(1, "foo.com").answers(40, 300).edns());
+        assertTrue(query(2000, query(2, "foo.com").edns(1232, false), seconds(1)));
+        final ByteBuffer reply = lastReply();
+        assertChecksums(reply);
+        assertFalse((reply.getShort(IP_UDP_HEADER_SIZE + 2) & FLAG_TC) != 0);
+        assertEquals(40, count(reply, 6));
+    }
+
+    @Test
+    public void largeAnswerTruncatedForSmallEdnsClient() throws IOException {
+        fetch(query(1, "foo.com").edns(1232, false), response(1, "foo.com").answers(40, 300).edns());
+        // Sizes below 512 count as 512.
+        assertTrue(query(2000, query(2, "foo.com").edns(100, false), seconds(1)));
+        final ByteBuffer reply = lastReply();
+        assertChecksums(reply);
+        assertTrue((reply.getShort(IP_UDP_HEADER_SIZE + 2) & FLAG_TC) != 0);
+        assertEquals(0, count(reply, 6));
+        // The OPT record stays, right behind the question.
+        assertEquals(1, count(reply, 10));
+        assertEquals(TYPE_OPT, reply.getShort(IP_UDP_HEADER_SIZE + 12 + 9 + 4 + 1));
+    }
+
+    @Test
+    public void serverChangeClearsTheCache() throws IOException {
+        fetch(query(1, "foo.com"), response(1, "foo.com").answers(1, 300));
+        mCache.setServers(Collections.singletonList(InetAddress.getByName("10.0.0.9")));
+        mCache.setServers(Collections.singletonList(InetAddress.getByName("10.0.0.1")));
+        assertFalse(query(2000, query(2, "foo.com"), seconds(1)));
+    }
+
+    /**
+     * Sends {@code query} out from port 1000 at the start and has {@code response} come back a second later.
+     */
+    private void fetch(Message query, Message response) throws IOException {
+        assertFalse(query(1000, query, 0));
+        answer(1000, response.build(), seconds(1));
+        assertTrue(mWritten.isEmpty());
+    }
+
+    private boolean query(int port, Message query, long nanos) throws IOException {
+        final ByteBuffer packet = udp(CLIENT, port, SERVER, DnsCache.PORT, query.build());
+        assertTrue(mHeaders.parse(packet));
+        return mCache.query(packet, mHeaders, mTun, START_NANOS + nanos);
+    }
+
+    private void answer(int port, byte[] response, long nanos) throws IOException {
+        final ByteBuffer packet = udp(SERVER, DnsCache.PORT, CLIENT, port, response);
+        assertTrue(mHeaders.parse(packet));
+        mCache.answer(packet, mHeaders, mTun, START_NANOS + nanos);
+    }
+
+    private ByteBuffer lastReply() {
+        return mWritten.get(mWritten.size() - 1);
+    }
+
+    private static long seconds(long seconds) {
+        return TimeUnit.SECONDS.toNanos(seconds);
+    }
+
+    private static int count(ByteBuffer reply, int offset) {
+        return reply.getShort(IP_UDP_HEADER_SIZE + offset) & 0xFFFF;
+    }
+
+    /**
+     * @return where answer {@code i} starts in a reply built by {@link Message}, whose names are all pointers
+     */
+    private static int answer(ByteBuffer reply, int i) {
+        final int questionEnd = IP_UDP_HEADER_SIZE + 12;
+        int offset = questionEnd;
+        while (reply.get(offset) != 0) {
+            offset += reply.get(offset) + 1;
+        }
+        return offset + 1 + 4 + i * 16;
+    }
+
+    private static void assertChecksums(ByteBuffer packet) {
+        assertEquals(0xFFFF, fold(sum(packet, 0, 20, 0)));
+        final int udpLength = packet.getShort(24) & 0xFFFF;
+        assertEquals(packet.limit() - 20, udpLength);
+        long pseudo = (packet.getShort(12) & 0xFFFF) + (packet.getShort(14) & 0xFFFF)
+                + (packet.getShort(16) & 0xFFFF) + (packet.getShort(18) & 0xFFFF) + PacketHeaders.UDP + udpLength;
+        assertEquals(0xFFFF, fold(sum(packet, 20, packet.limit(), pseudo)));
+    }
+
+    private static long sum(ByteBuffer packet, int from, int to, long sum) {
+        for (int i = from; i + 1 < to; i += 2) {
+            sum += packet.getShort(i) & 0xFFFF;
+        }
+        if (((to - from) & 1) != 0) {
+            sum += (packet.get(to - 1) & 0xFF) << 8;
+        }
+        return sum;
+    }
+
+    private static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    private static ByteBuffer udp(int source, int sourcePort, int destination, int destinationPort, byte[] dns) {
+        final int length = IP_UDP_HEADER_SIZE + dns.length;
+        final ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) length).putInt(0)
+                .put((byte) 64).put((byte) PacketHeaders.UDP).putShort((short) 0).putInt(source).putInt(destination)
+                .putShort((short) sourcePort).putShort((short) destinationPort).putShort((short) (length - 20))
+                .putShort((short) 0).put(dns);
+        packet.flip();
+        return packet;
+    }
+
+    private static Message query(int id, String name) {
+        return new Message(id, name, FLAG_RD);
+    }
+
+    private static Message response(int id, String name) {
+        return new Message(id, name, RESPONSE_FLAGS);
+    }
+
+    /**
+     * A DNS message with one question for an A record, and records whose names all point at the question's.
+     */
+    private static class Message {
+        private final ByteBuffer mRecords = ByteBuffer.allocate(4096);
+        private final int mId;
+        private final String mName;
+        private int mFlags;
+        private int mAnswers;
+        private int mAuthorities;
+        private int mAdditional;
+
+        Message(int id, String name, int flags) {
+            mId = id;
+            mName = name;
+            mFlags = flags;
+        }
+
+        Message flags(int flags) {
+            mFlags = flags;
+            return this;
+        }
+
+        Message rcode(int rcode) {
+            mFlags = mFlags & ~0x0F | rcode;
+            return this;
+        }
+
+        Message answers(int count, int ttl) {
+            for (int i = 0; i < count; ++i) {
+                mRecords.putShort((short) 0xC00C).putShort((short) TYPE_A).putShort((short) 1).putInt(ttl)
+                        .putShort((short) 4).putInt(0x0A000100 + mAnswers);
+                ++mAnswers;
+            }
+            return this;
+        }
+
+        /**
+         * Adds an SOA record to the authority section, with a short name and mailbox.
+         */
+        Message soa(int ttl, int minimum) {
+            mRecords.putShort((short) 0xC00C).putShort((short) TYPE_SOA).putShort((short) 1).putInt(ttl)
+                    .putShort((short) 24).putShort((short) 0xC00C).putShort((short) 0xC00C)
+                    .putInt(1).putInt(7200).putInt(900).putInt(86400).putInt(minimum);
+            ++mAuthorities;
+            return this;
+        }
+
+        Message edns(int payloadSize, boolean dnssecOk) {
+            mRecords.put((byte) 0).putShort((short) TYPE_OPT).putShort((short) payloadSize)
+                    .putInt(dnssecOk ? 0x8000 : 0).putShort((short) 0);
+            ++mAdditional;
+            return this;
+        }
+
+        Message edns() {
+            return edns(1232, false);
+        }
+
+        byte[] build() {
+            final ByteBuffer message = ByteBuffer.allocate(512 + mRecords.position());
+            message.putShort((short) mId).putShort((short) mFlags).putShort((short) 1).putShort((short) mAnswers)
+                    .putShort((short) mAuthorities).putShort((short) mAdditional);
+            for (String label : mName.split("\\.")) {
+                message.put((byte) label.length()).put(label.getBytes(StandardCharsets.US_ASCII));
+            }
+            message.put((byte) 0).putShort((short) TYPE_A).putShort((short) 1);
+            message.put(mRecords.array(), 0, mRecords.position());
+            final byte[] bytes = new byte[message.position()];
+            message.flip();
+            message.get(bytes);
+            return bytes;
+        }
+    }
+}
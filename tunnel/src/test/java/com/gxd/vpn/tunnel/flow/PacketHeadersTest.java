@@ -0,0 +1,64 @@
+package com.gxd.vpn.tunnel.flow;
+
+import com.gxd.vpn.tunnel.TcpSegment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class PacketHeadersTest {
+    @Parameter(0)
+    public String name;
+    @Parameter(1)
+    public ByteBuffer packet;
+    @Parameter(2)
+    public boolean pureAck;
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> cases() {
+        return Arrays.asList(new Object[][]{
+                {"bare ACK", TcpSegment.ack(1000).build(), true},
+                {"ACK with timestamps", TcpSegment.ack(1000).timestamps().build(), true},
+                {"ACK with ECE", TcpSegment.ack(1000).flags(TcpSegment.ACK | TcpSegment.ECE).build(), true},
+                {"ACK with PSH", TcpSegment.ack(1000).flags(TcpSegment.ACK | TcpSegment.PSH).build(), true},
+                {"options ended early", TcpSegment.ack(1000).options(0, 5, 10, 0).build(), true},
+                {"ACK with SACK", TcpSegment.ack(1000).sack(2000, 3000).build(), false},
+                {"timestamps of the wrong size", TcpSegment.ack(1000).options(8, 9, 0, 0).build(), false},
+                {"unknown option", TcpSegment.ack(1000).options(30, 4, 0, 0).build(), false},
+                {"data", TcpSegment.ack(1000).payload(100).build(), false},
+                {"SYN-ACK", TcpSegment.ack(1000).flags(TcpSegment.SYN | TcpSegment.ACK).build(), false},
+                {"FIN", TcpSegment.ack(1000).flags(TcpSegment.FIN | TcpSegment.ACK).build(), false},
+                {"RST", TcpSegment.ack(1000).flags(TcpSegment.RST | TcpSegment.ACK).build(), false},
+                {"URG", TcpSegment.ack(1000).flags(TcpSegment.URG | TcpSegment.ACK).build(), false},
+                {"no ACK flag", TcpSegment.ack(0).flags(TcpSegment.RST).build(), false},
+                {"UDP", udp(), false},
+        });
+    }
+
+    @Test
+    public void isPureAck() {
+        final PacketHeaders headers = new PacketHeaders();
+        assertTrue(headers.parse(packet));
+        assertEquals(pureAck, headers.isPureAck(packet));
+    }
+
+    private static ByteBuffer udp() {
+        final ByteBuffer packet = ByteBuffer.allocate(28);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) 28).putInt(0)
+                .put((byte) 64).put((byte) PacketHeaders.UDP).putShort((short) 0)
+                .putInt(0x0A000002).putInt(0x0A000001)
+                .putShort((short) 40000).putShort((short) 53).putShort((short) 8).putShort((short) 0);
+        packet.flip();
+        return packet;
+    }
+}
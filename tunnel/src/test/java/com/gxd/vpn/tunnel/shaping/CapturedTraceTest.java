@@ -0,0 +1,215 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import com.gxd.vpn.tunnel.flow.PacketHeaders;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The uplink of a real TCP trace through the classifier and ACK thinning.
+ * <p>
+ * The trace is of Linux's own TCP over the loopback interface, with segmentation offloads off and an MTU of 1500:
+ * a client downloading 154 kB through a 16 kB receive buffer it drains slowly, which brings zero windows and window
+ * updates, and uploading 8 kB on a second connection meanwhile. It is a pcap of raw IPv4 packets; the client's
+ * packets, the uplink, are whole, the server's are cut after the TCP header.
+ */
+public class CapturedTraceTest {
+    private static final String TRACE = "loopback-download-upload.pcap";
+    private static final int PCAP_MAGIC = 0xA1B2C3D4;
+    private static final int PCAP_HEADER_SIZE = 24;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int TCP_SYN = 0x02;
+    private static final int CAPACITY = 256;
+    /**
+     * Packets the apps send for every one the uplink takes, which is slow enough for a queue to build up.
+     */
+    private static final int LINK_EVERY = 4;
+    private static List<ByteBuffer> sUplink;
+
+    @BeforeClass
+    public static void readTrace() throws IOException {
+        final ByteBuffer trace = ByteBuffer.wrap(resource(TRACE)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(PCAP_MAGIC, trace.getInt(0));
+        assertEquals(LINKTYPE_RAW, trace.getInt(20));
+        final List<ByteBuffer> packets = new ArrayList<>();
+        final List<Integer> lengths = new ArrayList<>();
+        trace.position(PCAP_HEADER_SIZE);
+        while (trace.hasRemaining()) {
+            trace.position(trace.position() + 8);
+            final int captured = trace.getInt();
+            lengths.add(trace.getInt());
+            final ByteBuffer packet = trace.slice();
+            packet.limit(captured);
+            packets.add(packet);
+            trace.position(trace.position() + captured);
+        }
+        // The client opens both connections, so the first SYN tells the server's port.
+        final PacketHeaders headers = new PacketHeaders();
+        assertTrue(headers.parse(packets.get(0)));
+        assertEquals(TCP_SYN, headers.tcpFlags());
+        final int serverPort = headers.destinationPort();
+        sUplink = new ArrayList<>();
+        for (int i = 0; i < packets.size(); ++i) {
+            assertTrue(headers.parse(packets.get(i)));
+            if (headers.destinationPort() == serverPort) {
+                assertEquals(lengths.get(i).intValue(), packets.get(i).remaining());
+                sUplink.add(packets.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void acksInteractiveUploadNot() {
+        final LatencyClassifier classifier = new LatencyClassifier();
+        final PacketHeaders headers = new PacketHeaders();
+        final Set<Integer> bulkFlows = new HashSet<>();
+        int interactive = 0;
+        int bulk = 0;
+        for (ByteBuffer packet : sUplink) {
+            assertTrue(headers.parse(packet));
+            if (packet.remaining() > LatencyClassifier.SMALL_PACKET_SIZE) {
+                bulkFlows.add(headers.sourcePort());
+            }
+            // The upload's FIN goes after its data, only the ACKs may skip ahead.
+            final int expected = bulkFlows.contains(headers.sourcePort()) && !headers.isPureAck(packet)
+                    ? TrafficShaper.DEFAULT : TrafficShaper.INTERACTIVE;
+            assertEquals(expected, classifier.classify(packet));
+            if (expected == TrafficShaper.INTERACTIVE) {
+                ++interactive;
+            } else {
+                ++bulk;
+            }
+        }
+        assertEquals(1, bulkFlows.size());
+        assertTrue(interactive > 0 && bulk > 0);
+    }
+
+    @Test
+    public void thinningKeepsWhatTheSenderNeeds() {
+        final List<ByteBuffer> thinned = new ArrayList<>();
+        final List<ByteBuffer> sent = replay(thinned);
+        assertFalse("Nothing thinned", thinned.isEmpty());
+        assertEquals(sUplink.size(), sent.size() + thinned.size());
+        assertInFlowOrder(sent);
+        final Map<ByteBuffer, Boolean> gone = new IdentityHashMap<>();
+        for (ByteBuffer packet : thinned) {
+            gone.put(packet, true);
+        }
+        final PacketHeaders headers = new PacketHeaders();
+        final PacketHeaders later = new PacketHeaders();
+        for (int i = 0; i < sUplink.size(); ++i) {
+            final ByteBuffer packet = sUplink.get(i);
+            headers.parse(packet);
+            final ByteBuffer next = nextOfFlow(i, headers, later);
+            final boolean supersededByNext = headers.isPureAck(packet) && next != null && later.isPureAck(next)
+                    && later.tcpFlags() == headers.tcpFlags()
+                    && later.ackNumber(next) - headers.ackNumber(packet) > 0;
+            if (!supersededByNext) {
+                // Data, handshakes, FINs, window updates that acknowledge nothing new, and the last of each flow.
+                assertFalse("Packet " + i + " thinned", gone.containsKey(packet));
+            }
+        }
+    }
+
+    @Test
+    public void everythingGoesWithoutThinning() {
+        final List<ByteBuffer> sent = replay(null);
+        assertEquals(sUplink.size(), sent.size());
+        assertInFlowOrder(sent);
+    }
+
+    /**
+     * Offers the uplink in the order it was captured to a shaper whose link takes a packet for every
+     * {@link #LINK_EVERY} offered, and drains it at the end.
+     *
+     * @return the packets in the order they went
+     */
+    private static List<ByteBuffer> replay(List<ByteBuffer> thinned) {
+        final TrafficShaper shaper = new TrafficShaper(new LatencyClassifier(), CAPACITY);
+        if (thinned != null) {
+            shaper.setAckThinning(thinned::add);
+        }
+        final List<ByteBuffer> sent = new ArrayList<>();
+        for (int i = 0; i < sUplink.size(); ++i) {
+            assertTrue(shaper.offer(sUplink.get(i)));
+            if (i % LINK_EVERY == LINK_EVERY - 1) {
+                assertNotNull(take(shaper, sent));
+            }
+        }
+        while (take(shaper, sent) != null) {
+            // Draining.
+        }
+        return sent;
+    }
+
+    private static ByteBuffer take(TrafficShaper shaper, List<ByteBuffer> sent) {
+        final ByteBuffer packet = shaper.poll();
+        if (packet != null) {
+            sent.add(packet);
+        }
+        return packet;
+    }
+
+    /**
+     * Asserts that the packets of each flow went in the order they were captured, whatever went between them. Pure
+     * ACKs, which the receiver doesn't have to put in order, may overtake the flow's other packets, but not each other.
+     */
+    private static void assertInFlowOrder(List<ByteBuffer> sent) {
+        final Map<ByteBuffer, Integer> captured = new IdentityHashMap<>();
+        for (int i = 0; i < sUplink.size(); ++i) {
+            captured.put(sUplink.get(i), i);
+        }
+        final PacketHeaders headers = new PacketHeaders();
+        final Map<Integer, Integer> lastOfFlow = new HashMap<>();
+        for (ByteBuffer packet : sent) {
+            headers.parse(packet);
+            final int index = captured.get(packet);
+            final Integer last = lastOfFlow.put(headers.sourcePort() << 1 | (headers.isPureAck(packet) ? 1 : 0), index);
+            assertTrue("Packet " + index + " after " + last, last == null || last < index);
+        }
+    }
+
+    /**
+     * @return the first packet after {@code index} of the flow {@code headers} has parsed, parsed into
+     * {@code later}, or {@code null} if it was the last one
+     */
+    private static ByteBuffer nextOfFlow(int index, PacketHeaders headers, PacketHeaders later) {
+        for (int i = index + 1; i < sUplink.size(); ++i) {
+            if (later.parse(sUplink.get(i)) && later.isSameFlow(headers)) {
+                return sUplink.get(i);
+            }
+        }
+        return null;
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        try (InputStream in = CapturedTraceTest.class.getResourceAsStream(name)) {
+            assertNotNull(name, in);
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+    }
+}
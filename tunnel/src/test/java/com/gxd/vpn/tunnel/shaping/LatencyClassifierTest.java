@@ -0,0 +1,43 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import com.gxd.vpn.tunnel.TcpSegment;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyClassifierTest {
+    private static final int LARGE = LatencyClassifier.SMALL_PACKET_SIZE;
+    private final LatencyClassifier mClassifier = new LatencyClassifier();
+
+    @Test
+    public void smallPacketsInteractive() {
+        assertEquals(TrafficShaper.INTERACTIVE,
+                mClassifier.classify(TcpSegment.ack(0).flags(TcpSegment.SYN).build()));
+        assertEquals(TrafficShaper.INTERACTIVE, mClassifier.classify(TcpSegment.ack(1000).build()));
+        assertEquals(TrafficShaper.INTERACTIVE, mClassifier.classify(TcpSegment.ack(1000).payload(10).build()));
+    }
+
+    @Test
+    public void largePacketsDefault() {
+        assertEquals(TrafficShaper.DEFAULT, mClassifier.classify(TcpSegment.ack(1000).payload(LARGE).build()));
+    }
+
+    @Test
+    public void bulkFlowKeepsItsSmallPacketsBehindItsData() {
+        mClassifier.classify(TcpSegment.ack(1000).payload(LARGE).build());
+        assertEquals(TrafficShaper.DEFAULT, mClassifier.classify(TcpSegment.ack(1000).payload(10).build()));
+        assertEquals(TrafficShaper.DEFAULT,
+                mClassifier.classify(TcpSegment.ack(1000).flags(TcpSegment.FIN | TcpSegment.ACK).build()));
+        // Except for pure ACKs, which have nothing to keep in order.
+        assertEquals(TrafficShaper.INTERACTIVE, mClassifier.classify(TcpSegment.ack(2000).build()));
+        assertEquals(TrafficShaper.INTERACTIVE, mClassifier.classify(TcpSegment.ack(2000).timestamps().build()));
+    }
+
+    @Test
+    public void otherFlowsStayInteractive() {
+        mClassifier.classify(TcpSegment.ack(1000).payload(LARGE).build());
+        assertEquals(TrafficShaper.INTERACTIVE,
+                mClassifier.classify(TcpSegment.ack(1000).sourcePort(40001).payload(10).build()));
+    }
+}
@@ -0,0 +1,99 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscQueueTest {
+    private static final int CAPACITY = 4;
+    private static final int HANDED_OVER = 1_000_000;
+
+    @Test
+    public void capacityRoundedUpToAPowerOfTwo() {
+        final SpscQueue<Integer> queue = new SpscQueue<>(3);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+    }
+
+    @Test
+    public void orderKeptAcrossTheWrap() {
+        final SpscQueue<Integer> queue = new SpscQueue<>(CAPACITY);
+        int offered = 0;
+        int polled = 0;
+        // Three at a time, so that head and tail wrap at different points of every round.
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 3; ++i) {
+                assertTrue(queue.offer(offered++));
+            }
+            for (int i = 0; i < 3; ++i) {
+                assertEquals(polled++, queue.poll().intValue());
+            }
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void fullAfterTheWrap() {
+        final SpscQueue<Integer> queue = new SpscQueue<>(CAPACITY);
+        assertTrue(queue.offer(-2));
+        assertTrue(queue.offer(-1));
+        queue.poll();
+        queue.poll();
+        for (int i = 0; i < CAPACITY; ++i) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(CAPACITY));
+        assertEquals(0, queue.poll().intValue());
+        assertTrue(queue.offer(CAPACITY));
+        for (int i = 1; i <= CAPACITY; ++i) {
+            assertEquals(i, queue.poll().intValue());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void peekAheadAcrossTheWrap() {
+        final SpscQueue<Integer> queue = new SpscQueue<>(CAPACITY);
+        for (int i = 0; i < 3; ++i) {
+            queue.offer(i);
+            queue.poll();
+        }
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(queue.offer(10 + i));
+        }
+        assertEquals(10, queue.peek().intValue());
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(10 + i, queue.peek(i).intValue());
+        }
+        assertNull(queue.peek(3));
+        assertNull(queue.peek(CAPACITY));
+    }
+
+    @Test
+    public void handsOverInOrderBetweenThreads() throws InterruptedException {
+        final SpscQueue<Integer> queue = new SpscQueue<>(CAPACITY);
+        final Thread producer = new Thread(() -> {
+            for (int i = 0; i < HANDED_OVER; ++i) {
+                while (!queue.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        }, "test-producer");
+        producer.setDaemon(true);
+        producer.start();
+        for (int i = 0; i < HANDED_OVER; ++i) {
+            Integer element;
+            while ((element = queue.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(i, element.intValue());
+        }
+        producer.join();
+        assertNull(queue.poll());
+    }
+}
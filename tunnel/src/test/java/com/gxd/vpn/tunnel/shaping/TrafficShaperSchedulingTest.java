@@ -0,0 +1,116 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which class goes next, with packets that carry their class in their first byte.
+ */
+public class TrafficShaperSchedulingTest {
+    private static final int CAPACITY = 64;
+    private static final int PACKET_SIZE = 1000;
+    private static final PacketClassifier BY_FIRST_BYTE = packet -> packet.get(packet.position());
+    private final TrafficShaper mShaper = new TrafficShaper(BY_FIRST_BYTE, CAPACITY);
+
+    @Test
+    public void interactiveOvertakesQueuedTraffic() {
+        fill(TrafficShaper.BULK, 5);
+        fill(TrafficShaper.DEFAULT, 5);
+        final ByteBuffer interactive = packet(TrafficShaper.INTERACTIVE, PACKET_SIZE);
+        assertTrue(mShaper.offer(interactive));
+        assertSame(interactive, mShaper.poll());
+    }
+
+    @Test
+    public void backloggedClassesShareByQuanta() {
+        fill(TrafficShaper.INTERACTIVE, CAPACITY);
+        fill(TrafficShaper.DEFAULT, CAPACITY);
+        fill(TrafficShaper.BULK, CAPACITY);
+        // 6000, 3000 and 1000 bytes a round.
+        final int[] round = {0, 0, 0, 0, 0, 0, 1, 1, 1, 2};
+        for (int i = 0; i < 5; ++i) {
+            assertArrayEquals("round " + i, round, classes(round.length));
+        }
+    }
+
+    @Test
+    public void bulkNotStarved() {
+        fill(TrafficShaper.INTERACTIVE, CAPACITY);
+        fill(TrafficShaper.BULK, CAPACITY);
+        final int[] taken = classes(7 * 3);
+        int bulk = 0;
+        for (int cls : taken) {
+            bulk += cls == TrafficShaper.BULK ? 1 : 0;
+        }
+        assertEquals(3, bulk);
+    }
+
+    @Test
+    public void idleClassGoesNextOnceItHasSomething() {
+        fill(TrafficShaper.DEFAULT, CAPACITY);
+        fill(TrafficShaper.BULK, CAPACITY);
+        classes(7);
+        // Default has just used up its quantum and bulk is owed a turn, yet the new interactive packet goes first.
+        assertTrue(mShaper.offer(packet(TrafficShaper.INTERACTIVE, PACKET_SIZE)));
+        assertEquals(TrafficShaper.INTERACTIVE, classes(1)[0]);
+    }
+
+    @Test
+    public void largePacketWaitsForItsDeficit() {
+        final ByteBuffer large = packet(TrafficShaper.BULK, 2500);
+        assertTrue(mShaper.offer(large));
+        fill(TrafficShaper.DEFAULT, CAPACITY);
+        // Bulk has to save up over three rounds before its packet fits.
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 2}, classes(10));
+    }
+
+    @Test
+    public void orderKeptWithinAClass() {
+        final ByteBuffer first = packet(TrafficShaper.DEFAULT, PACKET_SIZE);
+        final ByteBuffer second = packet(TrafficShaper.DEFAULT, 10);
+        assertTrue(mShaper.offer(first));
+        assertTrue(mShaper.offer(second));
+        assertSame(first, mShaper.poll());
+        assertSame(second, mShaper.poll());
+        assertNull(mShaper.poll());
+        assertTrue(mShaper.isEmpty());
+    }
+
+    @Test
+    public void fullClassTurnsPacketsAwayAlone() {
+        fill(TrafficShaper.BULK, CAPACITY);
+        assertFalse(mShaper.offer(packet(TrafficShaper.BULK, PACKET_SIZE)));
+        assertTrue(mShaper.offer(packet(TrafficShaper.DEFAULT, PACKET_SIZE)));
+    }
+
+    private void fill(int cls, int count) {
+        for (int i = 0; i < count; ++i) {
+            assertTrue(mShaper.offer(packet(cls, PACKET_SIZE)));
+        }
+    }
+
+    /**
+     * @return the classes of the next {@code count} packets taken
+     */
+    private int[] classes(int count) {
+        final int[] classes = new int[count];
+        for (int i = 0; i < count; ++i) {
+            classes[i] = BY_FIRST_BYTE.classify(mShaper.poll());
+        }
+        return classes;
+    }
+
+    private static ByteBuffer packet(int cls, int size) {
+        final ByteBuffer packet = ByteBuffer.allocate(size);
+        packet.put(0, (byte) cls);
+        return packet;
+    }
+}
@@ -0,0 +1,123 @@
+package com.gxd.vpn.tunnel.shaping;
+
+import com.gxd.vpn.tunnel.TcpSegment;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ACK thinning: a queue of a head packet and the packets behind it, and whether the first {@link TrafficShaper#poll}
+ * drops the head.
+ */
+@RunWith(Parameterized.class)
+public class TrafficShaperTest {
+    private static final int CAPACITY = 64;
+    /**
+     * As far as the shaper looks behind an ACK.
+     */
+    private static final int LOOKAHEAD = 32;
+    @Parameter(0)
+    public String name;
+    @Parameter(1)
+    public ByteBuffer head;
+    @Parameter(2)
+    public ByteBuffer[] behind;
+    @Parameter(3)
+    public boolean dropped;
+
+    @Parameters(name = "{0}")
+    public static List<Object[]> cases() {
+        return Arrays.asList(new Object[][]{
+                {"superseded cumulative ACK", ack(1000), of(ack(2000)), true},
+                {"superseded across sequence wrap", ack(0xFFFFFF00), of(ack(0x100)), true},
+                {"superseded, with timestamps", TcpSegment.ack(1000).timestamps().build(),
+                        of(TcpSegment.ack(2000).timestamps().build()), true},
+                {"superseded behind another flow", ack(1000), of(otherFlow(), ack(2000)), true},
+                {"alone", ack(1000), of(), false},
+                {"duplicate ACK", ack(1000), of(ack(1000)), false},
+                {"followed by an older ACK", ack(1000), of(ack(500)), false},
+                {"only another flow behind", ack(1000), of(otherFlow()), false},
+                {"SACK on the head", TcpSegment.ack(1000).sack(2000, 3000).build(), of(ack(2000)), false},
+                {"SACK behind", ack(1000), of(TcpSegment.ack(2000).sack(3000, 4000).build()), false},
+                {"ECE set behind", ack(1000),
+                        of(TcpSegment.ack(2000).flags(TcpSegment.ACK | TcpSegment.ECE).build()), false},
+                {"ECE cleared behind", TcpSegment.ack(1000).flags(TcpSegment.ACK | TcpSegment.ECE).build(),
+                        of(ack(2000)), false},
+                {"data behind", ack(1000), of(TcpSegment.ack(2000).payload(100).build()), false},
+                {"data on the head", TcpSegment.ack(1000).payload(100).build(), of(ack(2000)), false},
+                {"FIN behind", ack(1000),
+                        of(TcpSegment.ack(2000).flags(TcpSegment.FIN | TcpSegment.ACK).build()), false},
+                {"FIN on the head", TcpSegment.ack(1000).flags(TcpSegment.FIN | TcpSegment.ACK).build(),
+                        of(ack(2000)), false},
+                {"RST behind", ack(1000),
+                        of(TcpSegment.ack(2000).flags(TcpSegment.RST | TcpSegment.ACK).build()), false},
+                {"superseding ACK last within lookahead", ack(1000), fill(LOOKAHEAD - 1, ack(2000)), true},
+                {"superseding ACK past lookahead", ack(1000), fill(LOOKAHEAD, ack(2000)), false},
+        });
+    }
+
+    @Test
+    public void thin() {
+        final TrafficShaper shaper = new TrafficShaper(packet -> TrafficShaper.DEFAULT, CAPACITY);
+        final List<ByteBuffer> thinned = new ArrayList<>();
+        shaper.setAckThinning(thinned::add);
+        assertTrue(shaper.offer(head));
+        for (ByteBuffer packet : behind) {
+            assertTrue(shaper.offer(packet));
+        }
+        final ByteBuffer first = shaper.poll();
+        if (dropped) {
+            assertEquals(Arrays.asList(head), thinned);
+            assertSame(behind[0], first);
+        } else {
+            assertEquals(0, thinned.size());
+            assertSame(head, first);
+        }
+    }
+
+    @Test
+    public void thinningOff() {
+        final TrafficShaper shaper = new TrafficShaper(packet -> TrafficShaper.DEFAULT, CAPACITY);
+        assertTrue(shaper.offer(head));
+        for (ByteBuffer packet : behind) {
+            assertTrue(shaper.offer(packet));
+        }
+        assertSame(head, shaper.poll());
+    }
+
+    private static ByteBuffer ack(int ackNumber) {
+        return TcpSegment.ack(ackNumber).build();
+    }
+
+    private static ByteBuffer otherFlow() {
+        return TcpSegment.ack(5000).sourcePort(40001).build();
+    }
+
+    private static ByteBuffer[] of(ByteBuffer... packets) {
+        return packets;
+    }
+
+    /**
+     * @return {@code last} behind {@code count} packets of another flow
+     */
+    private static ByteBuffer[] fill(int count, ByteBuffer last) {
+        final ByteBuffer[] packets = new ByteBuffer[count + 1];
+        for (int i = 0; i < count; ++i) {
+            packets[i] = otherFlow();
+        }
+        packets[count] = last;
+        return packets;
+    }
+}